@@ -0,0 +1,48 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.client.solrj.SolrResponse;
+
+/**
+ * Creates ShardResponses for shard handlers outside this package (whose
+ * setters are package private).
+ */
+public class ShardResponses {
+
+  private ShardResponses() {
+    // static methods only
+  }
+
+  /**
+   * Create a shard response, for a successful request (if exception is null)
+   * or a failed one.
+   */
+  public static ShardResponse create(ShardRequest sreq, String shard, String shardAddress,
+      SolrResponse rsp, Throwable exception, int responseCode) {
+    ShardResponse srsp = new ShardResponse();
+    srsp.setShardRequest(sreq);
+    srsp.setShard(shard);
+    srsp.setShardAddress(shardAddress);
+    srsp.setSolrResponse(rsp);
+    srsp.setException(exception);
+    srsp.setResponseCode(responseCode);
+    return srsp;
+  }
+
+}
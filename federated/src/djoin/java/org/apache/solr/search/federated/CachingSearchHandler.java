@@ -0,0 +1,370 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.handler.component.ShardHandler;
+import org.apache.solr.handler.component.ShardHandlerFactory;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrReturnFields;
+
+/**
+ * A search handler for federated (djoin and merge) requests which caches its
+ * responses, keyed by the request parameters and the index version of each
+ * shard. The shards must report their index versions in their response
+ * headers, by having IndexVersionSearchComponent as a last component of their
+ * search handlers; responses involving a shard that does not are not cached.
+ *
+ * A response is cached under the versions given in the shard responses it was
+ * made from, and is not cached if a shard's version changed while it was being
+ * made, or if it has partial results. When a shard response has a new version,
+ * the cached responses that used an older one are dropped.
+ *
+ * Responses are looked up under the latest known version of each shard. A
+ * shard whose version has not been seen for versionCheckInterval ms is asked
+ * for it with a rows=0 request before looking in the cache, so a cached
+ * response is returned for at most that long after a shard has changed. With
+ * versionCheckInterval set to 0, versions are only learnt from shard responses
+ * to requests that were not answered from the cache, and a cached response may
+ * be returned after a shard has changed until such a request sees the change.
+ *
+ * Initialisation parameters are cacheSize (the maximum number of entries,
+ * default 512), cacheMaxBytes (default 64MB) and versionCheckInterval (default
+ * 1000ms), as well as those of SearchHandler. The request parameter
+ * djoin.cache=false bypasses the cache.
+ * The handler statistics include the cache lookups, hits, hit ratio and size
+ * in bytes.
+ */
+public class CachingSearchHandler extends SearchHandler {
+
+  // initialisation parameters
+  public static final String INIT_CACHE_SIZE = "cacheSize";
+  public static final String INIT_CACHE_MAX_BYTES = "cacheMaxBytes";
+  public static final String INIT_VERSION_CHECK_INTERVAL = "versionCheckInterval";
+
+  // request parameters
+  public static final String CACHE_PARAMETER = "djoin.cache";
+
+  public static final int DEFAULT_CACHE_SIZE = 512;
+  public static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+  public static final long DEFAULT_VERSION_CHECK_INTERVAL = 1000;
+
+  // parameters which do not change the response values
+  private static final Set<String> IGNORED_PARAMETERS = new HashSet<>(Arrays.asList(
+      CommonParams.WT, "indent", CommonParams.HEADER_ECHO_PARAMS, CommonParams.HEADER_ECHO_HANDLER,
+      CommonParams.VERSION, "json.wrf", "_", CACHE_PARAMETER));
+
+  // in the request context, the versions given in the shard responses
+  private static final String SHARD_VERSIONS = "djoin.shardVersions";
+
+  private FederatedResultCache cache;
+
+  private long versionCheckInterval;
+
+  private PluginInfo shardHandlerFactoryInfo;
+
+  // used to ask the shards for their versions
+  private ShardHandlerFactory probeFactory;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(PluginInfo info) {
+    super.init(info);
+    shardHandlerFactoryInfo = info.getChild("shardHandlerFactory");
+    NamedList args = info.initArgs;
+    int cacheSize = getParameter(args, INIT_CACHE_SIZE, DEFAULT_CACHE_SIZE).intValue();
+    long cacheMaxBytes = getParameter(args, INIT_CACHE_MAX_BYTES, DEFAULT_CACHE_MAX_BYTES).longValue();
+    versionCheckInterval = getParameter(args, INIT_VERSION_CHECK_INTERVAL, DEFAULT_VERSION_CHECK_INTERVAL).longValue();
+    cache = new FederatedResultCache(cacheSize, cacheMaxBytes);
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static Number getParameter(NamedList args, String name, Number defaultValue) {
+    Object value = args != null ? args.get(name) : null;
+    return value != null ? Long.valueOf(value.toString()) : defaultValue;
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    super.inform(core);
+    components.add(new ShardVersionComponent());
+    if (versionCheckInterval <= 0) {
+      return;
+    }
+    if (shardHandlerFactoryInfo == null) {
+      probeFactory = core.getCoreDescriptor().getCoreContainer().getShardHandlerFactory();
+      return;
+    }
+    probeFactory = core.createInitInstance(shardHandlerFactoryInfo, ShardHandlerFactory.class, null, null);
+    core.addCloseHook(new CloseHook() {
+
+      @Override
+      public void preClose(SolrCore core) {
+        probeFactory.close();
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+        // nothing to do
+      }
+
+    });
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    String shards = params.get(ShardParams.SHARDS);
+    if (shards == null || ! params.getBool(CACHE_PARAMETER, true)) {
+      super.handleRequestBody(req, rsp);
+      return;
+    }
+
+    List<String> shardList = StrUtils.splitSmart(shards, ",", true);
+    Map<String, Long> versions = getVersions(params, shardList);
+    if (versions != null) {
+      byte[] data = cache.get(getKey(params, versions));
+      if (data != null) {
+        NamedList<?> values = (NamedList<?>)new JavaBinCodec().unmarshal(new ByteArrayInputStream(data));
+        for (int i = 0; i < values.size(); ++i) {
+          rsp.add(values.getName(i), values.getVal(i));
+        }
+        rsp.setReturnFields(new SolrReturnFields(req));
+        return;
+      }
+    }
+
+    ShardVersions seen = new ShardVersions();
+    req.getContext().put(SHARD_VERSIONS, seen);
+    super.handleRequestBody(req, rsp);
+    for (Map.Entry<String, Long> entry : seen.latest.entrySet()) {
+      cache.setVersion(entry.getKey(), entry.getValue());
+    }
+
+    // cache under the versions the response was made from
+    if (rsp.getException() == null && rsp.getResponseHeader().get("partialResults") == null
+        && ! seen.changed && seen.latest.keySet().containsAll(shardList)) {
+      cache.put(getKey(params, seen.latest), Collections.unmodifiableMap(seen.latest), serialise(rsp.getValues()));
+    }
+  }
+
+  // the response values, without the header
+  private byte[] serialise(NamedList<?> values) throws IOException {
+    NamedList<Object> nl = new NamedList<>();
+    for (int i = 0; i < values.size(); ++i) {
+      if (! "responseHeader".equals(values.getName(i))) {
+        nl.add(values.getName(i), values.getVal(i));
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new JavaBinCodec().marshal(nl, out);
+    return out.toByteArray();
+  }
+
+  // the normalised parameters, followed by the shard versions
+  private String getKey(SolrParams params, Map<String, Long> versions) {
+    Map<String, String[]> sorted = new TreeMap<>();
+    for (Iterator<String> i = params.getParameterNamesIterator(); i.hasNext(); ) {
+      String name = i.next();
+      if (! IGNORED_PARAMETERS.contains(name)) {
+        sorted.put(name, params.getParams(name));
+      }
+    }
+    StringBuilder key = new StringBuilder();
+    for (Map.Entry<String, String[]> entry : sorted.entrySet()) {
+      for (String value : entry.getValue()) {
+        key.append(entry.getKey()).append('=').append(value).append('&');
+      }
+    }
+    for (Map.Entry<String, Long> entry : new TreeMap<>(versions).entrySet()) {
+      key.append('\n').append(entry.getKey()).append('@').append(entry.getValue());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Get the latest known index version of each shard, asking the shards whose
+   * versions have not been seen within versionCheckInterval (unless 0). Return
+   * null if the version of any shard is not known.
+   */
+  private Map<String, Long> getVersions(SolrParams params, List<String> shards) {
+    Map<String, Long> versions = new HashMap<>();
+    List<String> unknown = new ArrayList<>();
+    for (String shard : shards) {
+      Long version = cache.getVersion(shard, versionCheckInterval > 0 ? versionCheckInterval : Long.MAX_VALUE);
+      if (version != null) {
+        versions.put(shard, version);
+      } else {
+        unknown.add(shard);
+      }
+    }
+    if (unknown.size() == 0) {
+      return versions;
+    }
+    if (versionCheckInterval <= 0) {
+      return null;
+    }
+
+    ShardRequest sreq = new ShardRequest();
+    sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+    sreq.shards = unknown.toArray(new String[unknown.size()]);
+    sreq.actualShards = sreq.shards;
+    sreq.params = new ModifiableSolrParams();
+    sreq.params.set(CommonParams.Q, "*:*");
+    sreq.params.set(CommonParams.ROWS, 0);
+    sreq.params.set(CommonParams.DISTRIB, false);
+    sreq.params.set(ShardParams.IS_SHARD, true);
+    String qt = params.get(ShardParams.SHARDS_QT);
+    if (qt != null) {
+      sreq.params.set(CommonParams.QT, qt);
+    }
+
+    ShardHandler shardHandler = probeFactory.getShardHandler();
+    for (String shard : unknown) {
+      shardHandler.submit(sreq, shard, new ModifiableSolrParams(sreq.params));
+    }
+    // (as for any shard handler, this gives the response completing the request)
+    ShardResponse last = shardHandler.takeCompletedIncludingErrors();
+    if (last != null) {
+      for (ShardResponse srsp : last.getShardRequest().responses) {
+        Long version = getIndexVersion(srsp);
+        if (version != null) {
+          cache.setVersion(getShard(srsp), version);
+          versions.put(getShard(srsp), version);
+        }
+      }
+    }
+    return versions.keySet().containsAll(shards) ? versions : null;
+  }
+
+  private static String getShard(ShardResponse srsp) {
+    if (srsp.getShard() != null) {
+      return srsp.getShard();
+    }
+    NamedList<Object> response = srsp.getSolrResponse() != null ? srsp.getSolrResponse().getResponse() : null;
+    return response != null ? (String)response.get("shard") : null;
+  }
+
+  // the index version in a shard response, or null if it has none
+  private static Long getIndexVersion(ShardResponse srsp) {
+    if (srsp.getException() != null || srsp.getSolrResponse() == null || getShard(srsp) == null) {
+      return null;
+    }
+    NamedList<Object> response = srsp.getSolrResponse().getResponse();
+    NamedList<?> header = response != null ? (NamedList<?>)response.get("responseHeader") : null;
+    Object version = header != null ? header.get(IndexVersionSearchComponent.INDEX_VERSION) : null;
+    return version instanceof Number ? ((Number)version).longValue() : null;
+  }
+
+  /**
+   * The latest version given by each shard during a request, and whether any
+   * shard gave different versions (having changed between requests to it).
+   */
+  private static class ShardVersions {
+
+    private final Map<String, Long> latest = new HashMap<>();
+
+    private boolean changed;
+
+  }
+
+  /**
+   * Records the versions given in the shard responses of a request, for
+   * handleRequestBody(). It is added as the last component of the handler.
+   */
+  private static class ShardVersionComponent extends SearchComponent {
+
+    @Override
+    public void prepare(ResponseBuilder rb) throws IOException {
+      // nothing to do
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+      // nothing to do
+    }
+
+    @Override
+    public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
+      ShardVersions seen = (ShardVersions)rb.req.getContext().get(SHARD_VERSIONS);
+      if (seen == null) {
+        return;
+      }
+      for (ShardResponse srsp : sreq.responses) {
+        Long version = getIndexVersion(srsp);
+        if (version != null) {
+          Long old = seen.latest.put(getShard(srsp), version);
+          seen.changed |= old != null && ! old.equals(version);
+        }
+      }
+    }
+
+    @Override
+    public String getDescription() {
+      return "Records the index versions in shard responses";
+    }
+
+    @Override
+    public String getSource() {
+      return null;
+    }
+
+  }
+
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = super.getStatistics();
+    cache.addStatistics(stats);
+    return stats;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Search handler caching federated responses by shard index version";
+  }
+
+}
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +28,6 @@ import java.util.Map;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.util.NamedList;
@@ -39,7 +37,6 @@ import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.ShardDoc;
 import org.apache.solr.handler.component.ShardRequest;
 import org.apache.solr.handler.component.ShardResponse;
-import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.CursorMark;
@@ -73,11 +70,10 @@ public class DJoinMergeStrategy implements MergeStrategy {
     IndexSchema schema = rb.req.getSchema();
     SchemaField uniqueKeyField = schema.getUniqueKeyField();
 
-    // Merge the docs via a priority queue so we don't have to sort *all* of the
-    // documents... we only need to order the top (rows+start)
+    // shard responses are already sorted, so merge them through a cursor on
+    // each, which only looks at the top (start+rows) docs
     Map<String, NamedList> sortFieldValuesMap = new HashMap<>();
-    Map<String, NamedList> unmarshalledSortFieldValuesMap = new HashMap<>();
-    ShardFieldSortedHitQueue queue = new ShardFieldSortedHitQueue(unmarshalledSortFieldValuesMap, sortFields, ss.getOffset() + ss.getCount(), rb.req.getSearcher());
+    SortedShardMerger merger = new SortedShardMerger(sortFields, ss.getSchemaFields(), rb.req.getSearcher());
 
     NamedList<Object> shardInfo = null;
     if (rb.req.getParams().getBool(ShardParams.SHARDS_INFO, false)) {
@@ -113,10 +109,18 @@ public class DJoinMergeStrategy implements MergeStrategy {
             nl.add("shardAddress", srsp.getShardAddress());
           }
         } else {
-          docs = (SolrDocumentList) srsp.getSolrResponse().getResponse().get("response");
+          NamedList<?> response = srsp.getSolrResponse().getResponse();
+          docs = (SolrDocumentList) response.get("response");
           nl.add("numFound", docs.getNumFound());
           nl.add("maxScore", docs.getMaxScore());
           nl.add("shardAddress", srsp.getShardAddress());
+          // see HedgedShardHandlerFactory
+          if (response.get(HedgedShardHandlerFactory.DROPPED) != null) {
+            nl.add(HedgedShardHandlerFactory.DROPPED, response.get(HedgedShardHandlerFactory.DROPPED));
+          }
+          if (response.get(HedgedShardHandlerFactory.HEDGED) != null) {
+            nl.add(HedgedShardHandlerFactory.HEDGED, response.get(HedgedShardHandlerFactory.HEDGED));
+          }
         }
         if (srsp.getSolrResponse() != null) {
           nl.add("time", srsp.getSolrResponse().getElapsedTime());
@@ -147,63 +151,31 @@ public class DJoinMergeStrategy implements MergeStrategy {
 
       NamedList sortFieldValues = (NamedList) (srsp.getSolrResponse().getResponse().get("sort_values"));
       sortFieldValuesMap.put(shard, sortFieldValues);
-      NamedList unmarshalledSortFieldValues = unmarshalSortValues(ss, sortFieldValues, schema);
-      unmarshalledSortFieldValuesMap.put(shard, unmarshalledSortFieldValues);
-
-      // go through every doc in this response, construct a ShardDoc, and
-      // put it in the priority queue so it can be ordered.
-      for (int i = 0; i < docs.size(); i++) {
-        SolrDocument doc = docs.get(i);
-        Object id = doc.getFieldValue(uniqueKeyField.getName());
-
-        Object scoreObj = doc.getFieldValue("score");
-        Float score = null;
-        if (scoreObj != null) {
-          if (scoreObj instanceof String) {
-            score = Float.parseFloat((String)scoreObj);
-          } else {
-            score = (Float)scoreObj;
-          }
-        }
-
-        ShardDoc shardDoc = new ShardDoc();
-        shardDoc.id = id;
-        shardDoc.shard = shard;
-        shardDoc.orderInShard = i;
-        if (score != null) {
-          shardDoc.score = score;
-        }
-
-        queue.insertWithReplacement(shardDoc);
-      } // end for-each-doc-in-response
+      merger.addShard(shard, docs, sortFieldValues, uniqueKeyField.getName());
     } // end for-each-response
 
-    // The queue now has 0 -> queuesize docs, where queuesize <= start + rows
-    // So we want to pop the last documents off the queue to get
-    // the docs offset -> queuesize
-    int resultSize = queue.size() - ss.getOffset();
-    resultSize = Math.max(0, resultSize); // there may not be any docs in range
-    
+    List<ShardDoc> mergedDocs = merger.merge(ss.getOffset(), ss.getCount());
+
     // build resultIds, which is used to request fields from each shard, and initialise responseDocs
-    DuplicateDocumentList responseDocs = new DuplicateDocumentList(resultSize, maxScore, numFound, ss.getOffset());
+    DuplicateDocumentList responseDocs = new DuplicateDocumentList(mergedDocs.size(), maxScore, numFound, ss.getOffset());
     Map<Object, ShardDoc> resultIds = new AllShardsResultIds(sreq.actualShards);
-    for (int i = resultSize - 1; i >= 0; i--) {
-      ShardDoc shardDoc = queue.pop();
-      shardDoc.positionInResponse = i;
-      
+    for (ShardDoc shardDoc : mergedDocs) {
       // Need the toString() for correlation with other lists that must
       // be strings (like keys in highlighting, explain, etc)
       resultIds.put(shardDoc.id.toString(), shardDoc);
       
       // pre-populate responseDocs
       NamedList docSortValues = sortFieldValuesMap.get(shardDoc.shard);
-      NamedList sortValue = new NamedList();
-      for (int j = 0; j < docSortValues.size(); ++j) {
-        String fieldName = docSortValues.getName(j);
-        List values = (List)docSortValues.getVal(j);
-        sortValue.add(fieldName, values.get(shardDoc.orderInShard));
+      NamedList sortValue = null;
+      if (docSortValues != null && docSortValues.size() > 0) {
+        sortValue = new NamedList();
+        for (int j = 0; j < docSortValues.size(); ++j) {
+          String fieldName = docSortValues.getName(j);
+          List values = (List)docSortValues.getVal(j);
+          sortValue.add(fieldName, values.get(shardDoc.orderInShard));
+        }
       }
-      responseDocs.setParentDoc(shardDoc.positionInResponse, docSortValues.size() > 0 ? sortValue : null, shardDoc.score);
+      responseDocs.setParentDoc(shardDoc.positionInResponse, sortValue, shardDoc.score);
     }
 
     // Add hits for distributed requests
@@ -216,7 +188,7 @@ public class DJoinMergeStrategy implements MergeStrategy {
     rb.resultIds = resultIds;
     rb.setResponseDocs(responseDocs);
 
-    populateNextCursorMarkFromMergedShards(rb, unmarshalledSortFieldValuesMap);
+    populateNextCursorMarkFromMergedShards(rb, merger, mergedDocs);
 
     if (partialResults) {
       if (rb.rsp.getResponseHeader().get("partialResults") == null) {
@@ -225,42 +197,30 @@ public class DJoinMergeStrategy implements MergeStrategy {
     }
   }
 
-  @SuppressWarnings({ "rawtypes", "unchecked" })
-  private void populateNextCursorMarkFromMergedShards(ResponseBuilder rb, Map<String, NamedList> sortFieldValuesMap) {
+  private void populateNextCursorMarkFromMergedShards(ResponseBuilder rb, SortedShardMerger merger, List<ShardDoc> mergedDocs) {
     final CursorMark lastCursorMark = rb.getCursorMark();
     if (null == lastCursorMark) {
       // Not a cursor based request
       return; // NOOP
     }
 
-    assert null != rb.resultIds : "resultIds was not set in ResponseBuilder";
-
-    Collection<ShardDoc> docsOnThisPage = rb.resultIds.values();
-
-    if (0 == docsOnThisPage.size()) {
+    if (mergedDocs.isEmpty()) {
       // nothing more matching query, re-use existing totem so user can "resume"
       // search later if it makes sense for this sort.
       rb.setNextCursorMark(lastCursorMark);
       return;
     }
 
-    ShardDoc lastDoc = null;
-    // ShardDoc and rb.resultIds are weird structures to work with...
-    for (ShardDoc eachDoc : docsOnThisPage) {
-      if (null == lastDoc || lastDoc.positionInResponse < eachDoc.positionInResponse) {
-        lastDoc = eachDoc;
-      }
-    }
+    ShardDoc lastDoc = mergedDocs.get(mergedDocs.size() - 1);
     SortField[] sortFields = lastCursorMark.getSortSpec().getSort().getSort();
     List<Object> nextCursorMarkValues = new ArrayList<>(sortFields.length);
-    for (SortField sf : sortFields) {
+    for (int i = 0; i < sortFields.length; ++i) {
+      SortField sf = sortFields[i];
       if (sf.getType().equals(SortField.Type.SCORE)) {
         nextCursorMarkValues.add(lastDoc.score);
       } else {
         assert null != sf.getField() : "SortField has null field";
-        NamedList sortFieldValues = sortFieldValuesMap.get(lastDoc.shard);
-        List<Object> fieldVals = (List<Object>)sortFieldValues.get(sf.getField());
-        nextCursorMarkValues.add(fieldVals.get(lastDoc.orderInShard));
+        nextCursorMarkValues.add(merger.getSortValue(lastDoc, i));
       }
     }
     CursorMark nextCursorMark = lastCursorMark.createNext(nextCursorMarkValues);
@@ -268,47 +228,6 @@ public class DJoinMergeStrategy implements MergeStrategy {
     rb.setNextCursorMark(nextCursorMark);
   }
 
-  @SuppressWarnings({ "rawtypes", "unchecked" })
-  private NamedList unmarshalSortValues(SortSpec sortSpec, NamedList sortFieldValues, IndexSchema schema) {
-    NamedList unmarshalledSortValsPerField = new NamedList();
-
-    if (0 == sortFieldValues.size())
-      return unmarshalledSortValsPerField;
-
-    List<SchemaField> schemaFields = sortSpec.getSchemaFields();
-    SortField[] sortFields = sortSpec.getSort().getSort();
-
-    int marshalledFieldNum = 0;
-    for (int sortFieldNum = 0; sortFieldNum < sortFields.length; sortFieldNum++) {
-      final SortField sortField = sortFields[sortFieldNum];
-      final SortField.Type type = sortField.getType();
-
-      // :TODO: would be simpler to always serialize every position of SortField[]
-      if (type == SortField.Type.SCORE || type == SortField.Type.DOC)
-        continue;
-
-      final String sortFieldName = sortField.getField();
-      final String valueFieldName = sortFieldValues.getName(marshalledFieldNum);
-      assert sortFieldName.equals(valueFieldName) : "sortFieldValues name key does not match expected SortField.getField";
-
-      List sortVals = (List) sortFieldValues.getVal(marshalledFieldNum);
-
-      final SchemaField schemaField = schemaFields.get(sortFieldNum);
-      if (null == schemaField) {
-        unmarshalledSortValsPerField.add(sortField.getField(), sortVals);
-      } else {
-        FieldType fieldType = schemaField.getType();
-        List unmarshalledSortVals = new ArrayList();
-        for (Object sortVal : sortVals) {
-          unmarshalledSortVals.add(fieldType.unmarshalSortValue(sortVal));
-        }
-        unmarshalledSortValsPerField.add(sortField.getField(), unmarshalledSortVals);
-      }
-      marshalledFieldNum++;
-    }
-    return unmarshalledSortValsPerField;
-  }
-
   @Override
   public boolean handlesMergeFields() {
     return false;
@@ -0,0 +1,177 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A least recently used cache of serialised federated responses, limited in
+ * both number of entries and total bytes. Each entry records the versions of
+ * the shard indexes it was made from, and is removed as soon as any of those
+ * shards is seen with a different version (see setVersion()). Callers include
+ * the shard versions in their keys too, so that an entry made just as a shard
+ * changed is never returned for the new version.
+ */
+class FederatedResultCache {
+
+  private static class Entry {
+
+    private final byte[] data;
+
+    private final Map<String, Long> versions;
+
+    private Entry(byte[] data, Map<String, Long> versions) {
+      this.data = data;
+      this.versions = versions;
+    }
+
+  }
+
+  private static class ShardVersion {
+
+    private final long version;
+
+    private final long checked;
+
+    private ShardVersion(long version, long checked) {
+      this.version = version;
+      this.checked = checked;
+    }
+
+  }
+
+  private final int maxEntries;
+
+  private final long maxBytes;
+
+  // in access order, so the first entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  // the latest known version of each shard
+  private final Map<String, ShardVersion> shardVersions = new HashMap<>();
+
+  private long bytes;
+
+  private long lookups;
+
+  private long hits;
+
+  private long inserts;
+
+  private long evictions;
+
+  private long invalidations;
+
+  FederatedResultCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the cached response for the given key, or null.
+   */
+  synchronized byte[] get(String key) {
+    ++lookups;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    ++hits;
+    return entry.data;
+  }
+
+  /**
+   * Cache a response, made when the shards had the given versions.
+   */
+  synchronized void put(String key, Map<String, Long> versions, byte[] data) {
+    if (data.length > maxBytes) {
+      return;
+    }
+    for (Map.Entry<String, Long> v : versions.entrySet()) {
+      ShardVersion current = shardVersions.get(v.getKey());
+      if (current != null && current.version != v.getValue()) {
+        // a shard has changed since the response was made
+        return;
+      }
+    }
+
+    Entry old = entries.put(key, new Entry(data, versions));
+    if (old != null) {
+      bytes -= old.data.length;
+    }
+    bytes += data.length;
+    ++inserts;
+
+    Iterator<Entry> i = entries.values().iterator();
+    while (i.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+      bytes -= i.next().data.length;
+      i.remove();
+      ++evictions;
+    }
+  }
+
+  /**
+   * Get the latest version of a shard, or null if it is unknown or was last
+   * checked more than maxAge ms ago.
+   */
+  synchronized Long getVersion(String shard, long maxAge) {
+    ShardVersion v = shardVersions.get(shard);
+    if (v == null || System.currentTimeMillis() - v.checked > maxAge) {
+      return null;
+    }
+    return v.version;
+  }
+
+  /**
+   * Record the latest version of a shard, removing any entries made from a
+   * different version of it.
+   */
+  synchronized void setVersion(String shard, long version) {
+    ShardVersion old = shardVersions.put(shard, new ShardVersion(version, System.currentTimeMillis()));
+    if (old == null || old.version == version) {
+      return;
+    }
+    Iterator<Entry> i = entries.values().iterator();
+    while (i.hasNext()) {
+      Entry entry = i.next();
+      Long v = entry.versions.get(shard);
+      if (v != null && v != version) {
+        bytes -= entry.data.length;
+        i.remove();
+        ++invalidations;
+      }
+    }
+  }
+
+  synchronized void addStatistics(NamedList<Object> stats) {
+    stats.add("cacheLookups", lookups);
+    stats.add("cacheHits", hits);
+    stats.add("cacheHitratio", lookups > 0 ? (float)hits / lookups : 0.0f);
+    stats.add("cacheInserts", inserts);
+    stats.add("cacheEvictions", evictions);
+    stats.add("cacheInvalidations", invalidations);
+    stats.add("cacheSize", entries.size());
+    stats.add("cacheBytes", bytes);
+  }
+
+}
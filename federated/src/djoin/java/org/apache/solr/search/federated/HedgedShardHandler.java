@@ -0,0 +1,299 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.SolrResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.HttpShardHandler;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.ShardHandlerFactory;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.handler.component.ShardResponses;
+
+/**
+ * Sends each shard request to the shard's replicas as HedgedShardHandlerFactory
+ * describes. Distribution (working out the shards) is as for HttpShardHandler.
+ */
+class HedgedShardHandler extends HttpShardHandler {
+
+  private final HedgedShardHandlerFactory factory;
+
+  private final CompletionService<ShardResponse> completionService;
+
+  private final Set<Future<ShardResponse>> pending = new HashSet<>();
+
+  private long timeBudget;
+
+  HedgedShardHandler(HedgedShardHandlerFactory factory, HttpClient httpClient) {
+    super(factory, httpClient);
+    this.factory = factory;
+    completionService = new ExecutorCompletionService<>(factory.getExecutor());
+    timeBudget = factory.getTimeBudget();
+  }
+
+  @Override
+  public void checkDistributed(ResponseBuilder rb) {
+    super.checkDistributed(rb);
+    timeBudget = rb.req.getParams().getInt(HedgedShardHandlerFactory.TIME_BUDGET_PARAMETER, factory.getTimeBudget());
+  }
+
+  @Override
+  public void submit(ShardRequest sreq, String shard, ModifiableSolrParams params) {
+    // let the response be javabin
+    params.remove(CommonParams.WT);
+    params.remove(CommonParams.VERSION);
+    pending.add(completionService.submit(new ShardTask(sreq, shard, params, timeBudget)));
+  }
+
+  @Override
+  public ShardResponse takeCompletedIncludingErrors() {
+    return take(false);
+  }
+
+  @Override
+  public ShardResponse takeCompletedOrError() {
+    return take(true);
+  }
+
+  // as HttpShardHandler: return when all the responses to a shard request are in, or on error if bailOnError
+  private ShardResponse take(boolean bailOnError) {
+    try {
+      while (pending.size() > 0) {
+        Future<ShardResponse> future = completionService.take();
+        pending.remove(future);
+        ShardResponse rsp = future.get();
+        if (bailOnError && rsp.getException() != null) {
+          return rsp;
+        }
+        ShardRequest sreq = rsp.getShardRequest();
+        sreq.responses.add(rsp);
+        if (sreq.responses.size() == sreq.actualShards.length) {
+          return rsp;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    } catch (ExecutionException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Impossible Exception", e);
+    }
+    return null;
+  }
+
+  @Override
+  public void cancelAll() {
+    for (Future<ShardResponse> future : pending) {
+      future.cancel(true);
+    }
+  }
+
+  @Override
+  public ShardHandlerFactory getShardHandlerFactory() {
+    return factory;
+  }
+
+  // a request to one replica
+  private class Attempt implements Callable<Attempt> {
+
+    private final String url;
+
+    private final ModifiableSolrParams params;
+
+    private final long start = System.nanoTime();
+
+    private Future<Attempt> future;
+
+    private NamedList<Object> response;
+
+    private Throwable exception;
+
+    private long millis;
+
+    private Attempt(String url, ModifiableSolrParams params) {
+      this.url = url;
+      this.params = params;
+    }
+
+    @Override
+    public Attempt call() {
+      try {
+        response = factory.request(url, params);
+      } catch (Throwable t) {
+        exception = t;
+      }
+      millis = elapsed(start);
+      return this;
+    }
+
+  }
+
+  // a request to a shard, sent to its replicas in turn (or hedged)
+  private class ShardTask implements Callable<ShardResponse> {
+
+    private final ShardRequest sreq;
+
+    private final String shard;
+
+    private final ModifiableSolrParams params;
+
+    private final long timeBudget;
+
+    private final long start = System.nanoTime();
+
+    private ShardTask(ShardRequest sreq, String shard, ModifiableSolrParams params, long timeBudget) {
+      this.sreq = sreq;
+      this.shard = shard;
+      this.params = params;
+      this.timeBudget = timeBudget;
+    }
+
+    @Override
+    public ShardResponse call() throws Exception {
+      List<String> urls = factory.orderReplicas(factory.makeURLList(shard));
+      long hedgeDelay = urls.size() > 1 ? factory.getHedgeDelay(shard, urls.get(0)) : -1;
+      long hedgeAt = hedgeDelay >= 0 ? start + TimeUnit.MILLISECONDS.toNanos(hedgeDelay) : Long.MAX_VALUE;
+      long deadline = timeBudget > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeBudget) : Long.MAX_VALUE;
+
+      CompletionService<Attempt> attempts = new ExecutorCompletionService<>(factory.getAttemptExecutor());
+      List<Attempt> running = new ArrayList<>();
+      int next = 0;
+      boolean hedged = false;
+      Attempt last = null;
+      running.add(submit(attempts, urls.get(next++)));
+      try {
+        while (running.size() > 0) {
+          long until = Math.min(deadline, next < urls.size() ? hedgeAt : Long.MAX_VALUE);
+          Future<Attempt> done = until == Long.MAX_VALUE ? attempts.take()
+              : attempts.poll(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (done == null) {
+            if (passed(deadline)) {
+              return dropped();
+            }
+            if (next < urls.size() && passed(hedgeAt)) {
+              // still waiting at the hedge time, so ask the next replica too
+              running.add(submit(attempts, urls.get(next++)));
+              hedged = true;
+              hedgeAt = Long.MAX_VALUE;
+            }
+            continue;
+          }
+
+          Attempt attempt = done.get();
+          running.remove(attempt);
+          last = attempt;
+          if (attempt.exception == null) {
+            factory.recordLatency(shard, attempt.url, attempt.millis);
+            if (hedged) {
+              attempt.response.add(HedgedShardHandlerFactory.HEDGED, true);
+            }
+            return ShardResponses.create(sreq, shard, attempt.url, new ShardSolrResponse(attempt.response, elapsed(start)), null, 0);
+          }
+
+          // fail over to the next replica, unless another is still trying
+          if (running.isEmpty() && next < urls.size()) {
+            running.add(submit(attempts, urls.get(next++)));
+          }
+        }
+      } finally {
+        for (Attempt attempt : running) {
+          attempt.future.cancel(true);
+          // we only know that these replicas take at least this long
+          factory.recordLatency(shard, attempt.url, elapsed(attempt.start));
+        }
+      }
+
+      int code = last.exception instanceof SolrException ? ((SolrException)last.exception).code() : -1;
+      return ShardResponses.create(sreq, shard, last.url, new ShardSolrResponse(null, elapsed(start)), last.exception, code);
+    }
+
+    private Attempt submit(CompletionService<Attempt> attempts, String url) {
+      Attempt attempt = new Attempt(url, params);
+      attempt.future = attempts.submit(attempt);
+      return attempt;
+    }
+
+    // give up on the shard, with an empty response
+    private ShardResponse dropped() {
+      NamedList<Object> response = new NamedList<>();
+      SimpleOrderedMap<Object> header = new SimpleOrderedMap<>();
+      header.add("partialResults", Boolean.TRUE);
+      response.add("responseHeader", header);
+      response.add("response", new SolrDocumentList());
+      response.add(HedgedShardHandlerFactory.DROPPED, "No response within time budget of " + timeBudget + "ms");
+      return ShardResponses.create(sreq, shard, null, new ShardSolrResponse(response, elapsed(start)), null, 0);
+    }
+
+  }
+
+  // whether the given System.nanoTime() has passed (Long.MAX_VALUE for never)
+  private static boolean passed(long time) {
+    return time != Long.MAX_VALUE && System.nanoTime() - time >= 0;
+  }
+
+  private static long elapsed(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  @SuppressWarnings("serial")
+  private static class ShardSolrResponse extends SolrResponse {
+
+    private NamedList<Object> response;
+
+    private final long elapsedTime;
+
+    private ShardSolrResponse(NamedList<Object> response, long elapsedTime) {
+      this.response = response;
+      this.elapsedTime = elapsedTime;
+    }
+
+    @Override
+    public long getElapsedTime() {
+      return elapsedTime;
+    }
+
+    @Override
+    public void setResponse(NamedList<Object> response) {
+      this.response = response;
+    }
+
+    @Override
+    public NamedList<Object> getResponse() {
+      return response;
+    }
+
+  }
+
+}
@@ -0,0 +1,183 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.handler.component.HttpShardHandlerFactory;
+import org.apache.solr.handler.component.ShardHandler;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+/**
+ * A shard handler factory for djoin requests, which are only as fast as their
+ * slowest shard. It keeps the recent response times of each shard and of each
+ * of its replicas (given as "replica1|replica2|..." in the shards parameter),
+ * and uses them to:
+ *
+ * - ask the replica with the lowest median response time first;
+ * - hedge: if no response has arrived by the time the hedgePercentile (default
+ *   95th percentile) response time has passed, send the same request to the
+ *   next replica too, and take whichever response comes first;
+ * - drop shards which have not responded within the time budget (if any),
+ *   giving an empty response for them with partialResults set in its header.
+ *   DJoinMergeStrategy reports dropped and hedged shards in shards.info.
+ *
+ * Initialisation parameters are hedgePercentile, minSamples (the number of
+ * response times needed before hedging, default 20), windowSize (the number of
+ * recent response times kept, default 100) and timeBudget (in ms, default 0
+ * meaning none), as well as those of HttpShardHandlerFactory. The time budget
+ * can be overridden by the request parameter djoin.timeBudget.
+ *
+ * Each shard request occupies a thread of the executor while it waits for its
+ * replicas, so the requests to the replicas themselves run on a separate,
+ * unbounded executor: sharing a bounded pool, shard requests could take every
+ * thread and then wait for replica requests that can never run. The number of
+ * replica requests is still bounded, by the number of shard requests times the
+ * number of replicas of each shard.
+ */
+public class HedgedShardHandlerFactory extends HttpShardHandlerFactory {
+
+  // initialisation parameters
+  public static final String INIT_HEDGE_PERCENTILE = "hedgePercentile";
+  public static final String INIT_MIN_SAMPLES = "minSamples";
+  public static final String INIT_WINDOW_SIZE = "windowSize";
+  public static final String INIT_TIME_BUDGET = "timeBudget";
+
+  // request parameters
+  public static final String TIME_BUDGET_PARAMETER = "djoin.timeBudget";
+
+  // added to shard responses
+  public static final String HEDGED = "hedged";
+  public static final String DROPPED = "dropped";
+
+  public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+  public static final int DEFAULT_MIN_SAMPLES = 20;
+  public static final int DEFAULT_WINDOW_SIZE = 100;
+
+  private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+  private int timeBudget = 0;
+
+  private LatencyTracker latencies = new LatencyTracker(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_SAMPLES);
+
+  // runs the requests to replicas, so that they never wait for shard requests
+  private final ExecutorService attemptExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+      5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DefaultSolrThreadFactory("hedgedAttempt"));
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(PluginInfo info) {
+    super.init(info);
+    NamedList args = info.initArgs;
+    hedgePercentile = getParameter(args, INIT_HEDGE_PERCENTILE, (Number)DEFAULT_HEDGE_PERCENTILE).doubleValue();
+    timeBudget = getParameter(args, INIT_TIME_BUDGET, (Number)0).intValue();
+    int windowSize = getParameter(args, INIT_WINDOW_SIZE, (Number)DEFAULT_WINDOW_SIZE).intValue();
+    int minSamples = getParameter(args, INIT_MIN_SAMPLES, (Number)DEFAULT_MIN_SAMPLES).intValue();
+    latencies = new LatencyTracker(windowSize, minSamples);
+  }
+
+  @Override
+  public ShardHandler getShardHandler() {
+    return new HedgedShardHandler(this, defaultClient);
+  }
+
+  @Override
+  public ShardHandler getShardHandler(HttpClient httpClient) {
+    return new HedgedShardHandler(this, httpClient);
+  }
+
+  /**
+   * Send a request to a replica, returning its response. Overridden in tests.
+   */
+  protected NamedList<Object> request(String url, ModifiableSolrParams params) throws Exception {
+    QueryRequest req = new QueryRequest(params);
+    req.setMethod(SolrRequest.METHOD.POST);
+    SolrServer server = new HttpSolrServer(url, defaultClient);
+    try {
+      return server.request(req);
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      super.close();
+    } finally {
+      ExecutorUtil.shutdownNowAndAwaitTermination(attemptExecutor);
+    }
+  }
+
+  Executor getExecutor() {
+    return getThreadPoolExecutor();
+  }
+
+  Executor getAttemptExecutor() {
+    return attemptExecutor;
+  }
+
+  int getTimeBudget() {
+    return timeBudget;
+  }
+
+  /**
+   * Order replica URLs by their median response time, with those not yet
+   * known first (so that all replicas get tried).
+   */
+  List<String> orderReplicas(List<String> urls) {
+    Collections.sort(urls, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Long.compare(latencies.percentile(a, 50), latencies.percentile(b, 50));
+      }
+    });
+    return urls;
+  }
+
+  /**
+   * Get the time (in ms) after which to hedge a request to the given replica
+   * of a shard, or -1 if there are not enough response times to know.
+   */
+  long getHedgeDelay(String shard, String url) {
+    long delay = latencies.percentile(url, hedgePercentile);
+    return delay >= 0 ? delay : latencies.percentile(shard, hedgePercentile);
+  }
+
+  void recordLatency(String shard, String url, long millis) {
+    latencies.record(shard, millis);
+    latencies.record(url, millis);
+  }
+
+}
@@ -0,0 +1,57 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+
+/**
+ * Add the version of the shard's index to the response header of shard
+ * requests, so that an aggregator (see CachingSearchHandler) knows when the
+ * shard's results may have changed. This goes in the shards' search handlers.
+ */
+public class IndexVersionSearchComponent extends SearchComponent {
+
+  public static final String INDEX_VERSION = "indexVersion";
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    // nothing to do
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    if (rb.req.getParams().getBool(ShardParams.IS_SHARD, false) && rb.rsp.getResponseHeader() != null) {
+      rb.rsp.getResponseHeader().add(INDEX_VERSION, rb.req.getSearcher().getIndexReader().getVersion());
+    }
+  }
+
+  @Override
+  public String getDescription() {
+    return "Adds the index version to shard response headers";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+}
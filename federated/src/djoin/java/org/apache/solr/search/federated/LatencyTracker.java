@@ -0,0 +1,102 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the most recent response times (in ms) of each shard and replica, so
+ * that percentiles of them can be used to decide when to hedge a request, and
+ * which replica to ask first.
+ */
+class LatencyTracker {
+
+  private final int windowSize;
+
+  private final int minSamples;
+
+  private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+
+  /**
+   * @param windowSize the number of recent response times kept for each key
+   * @param minSamples the number of response times needed for a percentile
+   */
+  LatencyTracker(int windowSize, int minSamples) {
+    if (windowSize < 1 || minSamples < 1 || minSamples > windowSize) {
+      throw new IllegalArgumentException("Need 1 <= minSamples <= windowSize");
+    }
+    this.windowSize = windowSize;
+    this.minSamples = minSamples;
+  }
+
+  void record(String key, long millis) {
+    Window window = windows.get(key);
+    if (window == null) {
+      window = new Window();
+      Window existing = windows.putIfAbsent(key, window);
+      if (existing != null) {
+        window = existing;
+      }
+    }
+    window.add(millis);
+  }
+
+  /**
+   * Get the given percentile (from 0 to 100) of the recent response times for
+   * a key, or -1 if there are not enough of them yet.
+   */
+  long percentile(String key, double percentile) {
+    Window window = windows.get(key);
+    return window != null ? window.percentile(percentile) : -1;
+  }
+
+  // a ring buffer of response times
+  private class Window {
+
+    private final long[] samples = new long[windowSize];
+
+    private int count;
+
+    private int next;
+
+    private synchronized void add(long millis) {
+      samples[next] = millis;
+      next = (next + 1) % samples.length;
+      if (count < samples.length) {
+        ++count;
+      }
+    }
+
+    private long percentile(double percentile) {
+      long[] sorted;
+      synchronized (this) {
+        if (count < minSamples) {
+          return -1;
+        }
+        sorted = Arrays.copyOf(samples, count);
+      }
+      Arrays.sort(sorted);
+      int rank = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+  }
+
+}
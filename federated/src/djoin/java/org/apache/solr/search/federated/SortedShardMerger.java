@@ -0,0 +1,267 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.solr.common.SolrException.ErrorCode.SERVER_ERROR;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ShardDoc;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Merges the (already sorted) results of each shard by keeping a cursor on
+ * each shard's response, and repeatedly taking the best of the cursors' current
+ * docs. When a doc id has been seen before (from another shard), it is
+ * skipped, so each id is kept at its best position. Merging stops after
+ * offset+rows distinct ids, so only the docs that are needed are looked at,
+ * and only their sort values are unmarshalled.
+ */
+class SortedShardMerger {
+
+  private final SortField[] sortFields;
+
+  private final FieldComparator<?>[] comparators;
+
+  // for each sort field, its position in the shard's sort_values (or -1 for score/doc)
+  private final int[] valueIndexes;
+
+  // for each sort field, the type for unmarshalling sort values (or null if not needed)
+  private final FieldType[] types;
+
+  private final List<ShardCursor> cursors = new ArrayList<>();
+
+  /**
+   * @param sortFields the sort criteria
+   * @param schemaFields the schema field for each sort field (or null, or with
+   *        null elements, where sort values need no unmarshalling)
+   * @param searcher for rewriting sort fields, if needed
+   */
+  SortedShardMerger(SortField[] sortFields, List<SchemaField> schemaFields, IndexSearcher searcher) {
+    int n = sortFields.length;
+    this.sortFields = new SortField[n];
+    comparators = new FieldComparator<?>[n];
+    valueIndexes = new int[n];
+    types = new FieldType[n];
+    int valueIndex = 0;
+    for (int i = 0; i < n; ++i) {
+      SortField sortField = sortFields[i];
+      SortField.Type type = sortField.getType();
+      if (type == SortField.Type.SCORE || type == SortField.Type.DOC) {
+        valueIndexes[i] = -1;
+      } else {
+        valueIndexes[i] = valueIndex++;
+        if (type == SortField.Type.REWRITEABLE) {
+          try {
+            sortField = sortField.rewrite(searcher);
+          } catch (IOException e) {
+            throw new SolrException(SERVER_ERROR, "Exception rewriting sort field " + sortField, e);
+          }
+        }
+        try {
+          comparators[i] = sortField.getComparator(0, 0);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to get FieldComparator for sortField " + sortField);
+        }
+        SchemaField schemaField = schemaFields != null && i < schemaFields.size() ? schemaFields.get(i) : null;
+        types[i] = schemaField != null ? schemaField.getType() : null;
+      }
+      this.sortFields[i] = sortField;
+    }
+  }
+
+  /**
+   * Add a shard response.
+   *
+   * @param shard the shard name
+   * @param docs the shard's docs, in sort order
+   * @param sortValues the shard's (marshalled) sort_values
+   * @param idField the name of the unique key field
+   */
+  @SuppressWarnings("rawtypes")
+  void addShard(String shard, SolrDocumentList docs, NamedList sortValues, String idField) {
+    if (docs.size() > 0) {
+      cursors.add(new ShardCursor(shard, docs, sortValues, idField));
+    }
+  }
+
+  /**
+   * Merge the shard responses, returning the docs at positions offset to
+   * offset+rows-1 (or fewer, if there are not enough distinct ids). Each has
+   * its id, shard, orderInShard, score and positionInResponse set.
+   */
+  List<ShardDoc> merge(int offset, int rows) {
+    List<ShardDoc> merged = new ArrayList<>(Math.max(0, Math.min(rows, 1024)));
+    if (cursors.isEmpty()) {
+      return merged;
+    }
+
+    PriorityQueue<ShardCursor> queue = new PriorityQueue<ShardCursor>(cursors.size()) {
+      @Override
+      protected boolean lessThan(ShardCursor a, ShardCursor b) {
+        return compare(a, b) < 0;
+      }
+    };
+    for (ShardCursor cursor : cursors) {
+      cursor.reset();
+      queue.add(cursor);
+    }
+
+    Set<Object> seen = new HashSet<>();
+    long end = (long)offset + rows;
+    while (queue.size() > 0 && seen.size() < end) {
+      ShardCursor top = queue.top();
+      if (seen.add(top.id) && seen.size() > offset) {
+        ShardDoc shardDoc = new ShardDoc();
+        shardDoc.id = top.id;
+        shardDoc.shard = top.shard;
+        shardDoc.orderInShard = top.index;
+        shardDoc.positionInResponse = merged.size();
+        if (top.score != null) {
+          shardDoc.score = top.score;
+        }
+        merged.add(shardDoc);
+      }
+      if (top.advance()) {
+        queue.updateTop();
+      } else {
+        queue.pop();
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Get the unmarshalled value of the given sort field for a merged doc.
+   */
+  Object getSortValue(ShardDoc shardDoc, int sortFieldNum) {
+    for (ShardCursor cursor : cursors) {
+      if (cursor.shard.equals(shardDoc.shard)) {
+        return cursor.sortValue(sortFieldNum, shardDoc.orderInShard);
+      }
+    }
+    throw new IllegalArgumentException("Unknown shard: " + shardDoc.shard);
+  }
+
+  // the order of the current docs of two cursors (on different shards)
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private int compare(ShardCursor a, ShardCursor b) {
+    for (int i = 0; i < sortFields.length; ++i) {
+      int c;
+      if (sortFields[i].getType() == SortField.Type.SCORE) {
+        // best score first
+        c = Float.compare(b.score != null ? b.score : 0, a.score != null ? a.score : 0);
+      } else if (valueIndexes[i] < 0) {
+        // doc ids are not comparable between shards
+        c = 0;
+      } else {
+        c = ((FieldComparator)comparators[i]).compareValues(a.values[i], b.values[i]);
+      }
+      if (c != 0) {
+        return sortFields[i].getReverse() ? -c : c;
+      }
+    }
+
+    // solve tiebreaks by comparing shards (similar to using docid)
+    return a.shard.compareTo(b.shard);
+  }
+
+  private class ShardCursor {
+
+    private final String shard;
+
+    private final SolrDocumentList docs;
+
+    private final String idField;
+
+    // the shard's marshalled sort values, by position in sort_values
+    @SuppressWarnings("rawtypes")
+    private final List[] sortValues;
+
+    // current doc
+    private int index;
+    private Object id;
+    private Float score;
+    private final Object[] values;
+
+    @SuppressWarnings("rawtypes")
+    private ShardCursor(String shard, SolrDocumentList docs, NamedList sortValues, String idField) {
+      this.shard = shard;
+      this.docs = docs;
+      this.idField = idField;
+      int n = sortValues != null ? sortValues.size() : 0;
+      this.sortValues = new List[n];
+      for (int i = 0; i < n; ++i) {
+        this.sortValues[i] = (List)sortValues.getVal(i);
+      }
+      values = new Object[sortFields.length];
+    }
+
+    private void reset() {
+      index = 0;
+      load();
+    }
+
+    private boolean advance() {
+      if (++index >= docs.size()) {
+        return false;
+      }
+      load();
+      return true;
+    }
+
+    // read the current doc's id, score and sort values
+    private void load() {
+      id = docs.get(index).getFieldValue(idField);
+      Object scoreObj = docs.get(index).getFieldValue("score");
+      if (scoreObj instanceof String) {
+        score = Float.parseFloat((String)scoreObj);
+      } else {
+        score = (Float)scoreObj;
+      }
+      for (int i = 0; i < values.length; ++i) {
+        if (valueIndexes[i] >= 0) {
+          values[i] = sortValue(i, index);
+        }
+      }
+    }
+
+    private Object sortValue(int sortFieldNum, int index) {
+      int valueIndex = valueIndexes[sortFieldNum];
+      if (valueIndex < 0 || valueIndex >= sortValues.length) {
+        return null;
+      }
+      Object value = sortValues[valueIndex].get(index);
+      return types[sortFieldNum] != null ? types[sortFieldNum].unmarshalSortValue(value) : value;
+    }
+
+  }
+
+}
@@ -0,0 +1,80 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.BinaryResponseWriter;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+/**
+ * Sends requests to local cores (named by the host part of the URL), after
+ * the latency set for the URL.
+ */
+public class LatencyShardHandlerFactory extends HedgedShardHandlerFactory implements SolrCoreAware {
+
+  private static final Map<String, Long> LATENCIES = new ConcurrentHashMap<>();
+
+  private CoreContainer container;
+
+  public static void setLatency(String url, long millis) {
+    LATENCIES.put(url, millis);
+  }
+
+  public static void clearLatencies() {
+    LATENCIES.clear();
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    container = core.getCoreDescriptor().getCoreContainer();
+  }
+
+  @Override
+  @SuppressWarnings({ "serial", "unchecked" })
+  protected NamedList<Object> request(String url, ModifiableSolrParams params) throws Exception {
+    Long latency = LATENCIES.get(url);
+    if (latency != null) {
+      Thread.sleep(latency);
+    }
+
+    String coreName = url.replaceFirst("^\\w+://", "").split("/")[0];
+    try (SolrCore core = container.getCore(coreName)) {
+      SolrQueryRequest req = new SolrQueryRequestBase(core, params) {};
+      SolrQueryResponse rsp = new SolrQueryResponse();
+      try {
+        core.execute(core.getRequestHandler(null), req, rsp);
+        if (rsp.getException() != null) {
+          throw rsp.getException();
+        }
+        return BinaryResponseWriter.getParsedResponse(req, rsp);
+      } finally {
+        req.close();
+      }
+    }
+  }
+
+}
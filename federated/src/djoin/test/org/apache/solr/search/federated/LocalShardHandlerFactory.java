@@ -31,6 +31,7 @@ import org.apache.solr.handler.component.ShardHandler;
 import org.apache.solr.handler.component.ShardHandlerFactory;
 import org.apache.solr.handler.component.ShardRequest;
 import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.handler.component.ShardResponses;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequestBase;
 import org.apache.solr.request.SolrRequestHandler;
@@ -66,11 +67,7 @@ public class LocalShardHandlerFactory extends HttpShardHandlerFactory implements
           req.close();
           response.add("shard", shard);
           
-          ShardResponse sr = new ShardResponse();
-          sreq.responses.add(sr);
-          responseList.add(sr);
-          sr.setShardRequest(sreq);
-          sr.setSolrResponse(new SolrResponse() {
+          SolrResponse solrResponse = new SolrResponse() {
   
             @Override
             public long getElapsedTime() {
@@ -87,12 +84,31 @@ public class LocalShardHandlerFactory extends HttpShardHandlerFactory implements
               return response;
             }
             
-          });
+          };
+          ShardResponse sr = ShardResponses.create(sreq, shard, shard, solrResponse, null, 0);
+          sreq.responses.add(sr);
+          responseList.add(sr);
         }
       }
       
+      // as HttpShardHandler, only give the response which completes its shard request
       private ShardResponse take() {
-        return responseList.isEmpty() ? null : responseList.remove(0);
+        while (! responseList.isEmpty()) {
+          ShardResponse sr = responseList.remove(0);
+          if (! pending(sr.getShardRequest())) {
+            return sr;
+          }
+        }
+        return null;
+      }
+
+      private boolean pending(ShardRequest sreq) {
+        for (ShardResponse sr : responseList) {
+          if (sr.getShardRequest() == sreq) {
+            return true;
+          }
+        }
+        return false;
       }
 
       @Override
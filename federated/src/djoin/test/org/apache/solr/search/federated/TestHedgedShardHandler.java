@@ -0,0 +1,159 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * As TestDJoin, with latency injected into shard requests.
+ */
+public class TestHedgedShardHandler extends BaseTestCase {
+
+  private final static String[][] DOCUMENTS_1 = new String[][] {
+    { "1", "D" },
+    { "3", "Q" } };
+
+  private final static String[][] DOCUMENTS_2 = new String[][] {
+    { "1", "A" },
+    { "2", "B" },
+    { "3", "C" } };
+
+  private final static String[][] DOCUMENTS_3 = new String[][] {
+    { "1", "E" },
+    { "2", "B" },
+    { "3", "C" } };
+
+  private final static long SLOW = 5000;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCores("federated/solr/solr-djoin.xml", "federated/solr");
+    loadShardCore("shard1", DOCUMENTS_1, "id", "letter");
+    loadShardCore("shard2", DOCUMENTS_2, "id", "letter");
+    loadShardCore("shard3", DOCUMENTS_3, "id", "letter");
+  }
+
+  @After
+  public void after() {
+    LatencyShardHandlerFactory.clearLatencies();
+  }
+
+  private ModifiableSolrParams params() {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "*:*");
+    params.add("rows", "2");
+    params.add("sort", "letter asc");
+    params.add("fl", "*,[shard]");
+    params.add(ShardParams.SHARDS_INFO, "true");
+    return params;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private NamedList shardInfo(SolrQueryResponse rsp, String shard) {
+    NamedList shardsInfo = (NamedList)rsp.getValues().get(ShardParams.SHARDS_INFO);
+    return (NamedList)shardsInfo.get(shard);
+  }
+
+  /**
+   * Once shard1's response times are known, a slow response from it is hedged
+   * by asking its replica.
+   */
+  @Test
+  public void testHedge() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      // learn the response times of shard1 and its (slower) replica
+      LatencyShardHandlerFactory.setLatency("http://shard1/replica", 50);
+      for (int i = 0; i < 10; ++i) {
+        queryDocs(core, "hedged", params());
+      }
+
+      LatencyShardHandlerFactory.clearLatencies();
+      LatencyShardHandlerFactory.setLatency("http://shard1/", SLOW);
+      long start = System.currentTimeMillis();
+      SolrQueryResponse rsp = query(core, "hedged", params());
+      long elapsed = System.currentTimeMillis() - start;
+      assertNull(rsp.getException());
+      assertTrue("took " + elapsed + "ms", elapsed < SLOW / 2);
+
+      SolrDocumentList docs = (SolrDocumentList)rsp.getValues().get("response");
+      assertEquals(2, docs.size());
+      assertEquals(3, docs.get(0).getChildDocumentCount());
+      assertEquals(2, docs.get(1).getChildDocumentCount());
+      assertEquals("http://shard1/replica", shardInfo(rsp, "shard1/|shard1/replica").get("shardAddress"));
+      assertEquals(Boolean.TRUE, shardInfo(rsp, "shard1/|shard1/replica").get(HedgedShardHandlerFactory.HEDGED));
+      assertNull(shardInfo(rsp, "shard2/").get(HedgedShardHandlerFactory.HEDGED));
+      assertNull(rsp.getResponseHeader().get("partialResults"));
+    }
+  }
+
+  /**
+   * A shard that does not respond within the time budget is dropped, and
+   * reported in shards.info.
+   */
+  @Test
+  public void testTimeBudget() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      LatencyShardHandlerFactory.setLatency("http://shard3/", SLOW);
+      ModifiableSolrParams params = params();
+      params.add(HedgedShardHandlerFactory.TIME_BUDGET_PARAMETER, "500");
+      long start = System.currentTimeMillis();
+      SolrQueryResponse rsp = query(core, "hedged", params);
+      long elapsed = System.currentTimeMillis() - start;
+      assertNull(rsp.getException());
+      assertTrue("took " + elapsed + "ms", elapsed < SLOW / 2);
+
+      // only the docs from shard1 and shard2
+      SolrDocumentList docs = (SolrDocumentList)rsp.getValues().get("response");
+      assertEquals(2, docs.size());
+      assertEquals(2, docs.get(0).getChildDocumentCount());
+      assertEquals(1, docs.get(1).getChildDocumentCount());
+      assertEquals(Boolean.TRUE, rsp.getResponseHeader().get("partialResults"));
+      assertNotNull(shardInfo(rsp, "shard3/").get(HedgedShardHandlerFactory.DROPPED));
+      assertNull(shardInfo(rsp, "shard2/").get(HedgedShardHandlerFactory.DROPPED));
+    }
+  }
+
+  /**
+   * Shard requests waiting for their replicas do not starve the replica
+   * requests, even when the shard request executor has a single thread.
+   */
+  @Test
+  public void testBoundedExecutor() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      ModifiableSolrParams params = params();
+      params.add(HedgedShardHandlerFactory.TIME_BUDGET_PARAMETER, "" + SLOW);
+      SolrQueryResponse rsp = query(core, "hedgedBounded", params);
+      assertNull(rsp.getException());
+      assertNull(rsp.getResponseHeader().get("partialResults"));
+
+      SolrDocumentList docs = (SolrDocumentList)rsp.getValues().get("response");
+      assertEquals(2, docs.size());
+      assertEquals(3, docs.get(0).getChildDocumentCount());
+      assertEquals(2, docs.get(1).getChildDocumentCount());
+    }
+  }
+
+}
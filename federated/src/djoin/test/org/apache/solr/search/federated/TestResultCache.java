@@ -0,0 +1,208 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * As TestDJoin, with responses cached by CachingSearchHandler.
+ */
+public class TestResultCache extends BaseTestCase {
+
+  private final static String[][] DOCUMENTS_1 = new String[][] {
+    { "1", "D" },
+    { "3", "Q" } };
+
+  private final static String[][] DOCUMENTS_2 = new String[][] {
+    { "1", "A" },
+    { "2", "B" },
+    { "3", "C" } };
+
+  private final static String[][] DOCUMENTS_3 = new String[][] {
+    { "1", "E" },
+    { "2", "B" },
+    { "3", "C" } };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCores("federated/solr/solr-djoin.xml", "federated/solr");
+    loadShardCore("shard1", DOCUMENTS_1, "id", "letter");
+    loadShardCore("shard2", DOCUMENTS_2, "id", "letter");
+    loadShardCore("shard3", DOCUMENTS_3, "id", "letter");
+  }
+
+  @After
+  public void after() {
+    LatencyShardHandlerFactory.clearLatencies();
+  }
+
+  // with an unused parameter, so that each test has its own cache entries
+  private ModifiableSolrParams params(String test) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "*:*");
+    params.add("rows", "10");
+    params.add("sort", "letter asc");
+    params.add("fl", "*,[shard]");
+    params.add("test", test);
+    return params;
+  }
+
+  // the id of a merge parent's children
+  private Object id(SolrDocument doc) {
+    return doc.getChildDocuments().get(0).getFieldValue("id");
+  }
+
+  private long stat(SolrCore core, String handler, String name) {
+    NamedList<?> stats = core.getRequestHandler(handler).getStatistics();
+    return ((Number)stats.get(name)).longValue();
+  }
+
+  /**
+   * A repeated request is answered from the cache.
+   */
+  @Test
+  public void testCache() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      long hits = stat(core, "cached", "cacheHits");
+      SolrDocumentList docs = queryDocs(core, "cached", params("cache"));
+      assertEquals(hits, stat(core, "cached", "cacheHits"));
+      assertTrue(stat(core, "cached", "cacheBytes") > 0);
+
+      SolrDocumentList cached = queryDocs(core, "cached", params("cache"));
+      assertEquals(hits + 1, stat(core, "cached", "cacheHits"));
+      assertEquals(docs.size(), cached.size());
+      for (int i = 0; i < docs.size(); ++i) {
+        assertEquals(id(docs.get(i)), id(cached.get(i)));
+        assertEquals(docs.get(i).getChildDocumentCount(), cached.get(i).getChildDocumentCount());
+      }
+
+      // a different request is not a hit, but the same one with another wt is
+      ModifiableSolrParams params = params("cache");
+      params.set("rows", "2");
+      assertEquals(2, queryDocs(core, "cached", params).size());
+      params = params("cache");
+      params.add("wt", "json");
+      queryDocs(core, "cached", params);
+      assertEquals(hits + 2, stat(core, "cached", "cacheHits"));
+    }
+  }
+
+  /**
+   * With djoin.cache=false, the cache is neither looked in nor added to.
+   */
+  @Test
+  public void testBypass() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      long lookups = stat(core, "cached", "cacheLookups");
+      long inserts = stat(core, "cached", "cacheInserts");
+      ModifiableSolrParams params = params("bypass");
+      params.add(CachingSearchHandler.CACHE_PARAMETER, "false");
+      queryDocs(core, "cached", params);
+      queryDocs(core, "cached", params);
+      assertEquals(lookups, stat(core, "cached", "cacheLookups"));
+      assertEquals(inserts, stat(core, "cached", "cacheInserts"));
+    }
+  }
+
+  /**
+   * With versionCheckInterval set, a cached response is dropped as soon as a
+   * shard it used changes.
+   */
+  @Test
+  public void testVersionCheck() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      long hits = stat(core, "cachedChecked", "cacheHits");
+      long invalidations = stat(core, "cachedChecked", "cacheInvalidations");
+      SolrDocumentList docs = queryDocs(core, "cachedChecked", params("check"));
+      queryDocs(core, "cachedChecked", params("check"));
+      assertEquals(hits + 1, stat(core, "cachedChecked", "cacheHits"));
+
+      // shard2 changes, so the response is no longer cached
+      loadShardCore("shard2", new String[][] { { "4", "F" } }, "id", "letter");
+      Thread.sleep(5);
+      SolrDocumentList changed = queryDocs(core, "cachedChecked", params("check"));
+      assertEquals(hits + 1, stat(core, "cachedChecked", "cacheHits"));
+      assertTrue(stat(core, "cachedChecked", "cacheInvalidations") > invalidations);
+      assertEquals(docs.size() + 1, changed.size());
+
+      queryDocs(core, "cachedChecked", params("check"));
+      assertEquals(hits + 2, stat(core, "cachedChecked", "cacheHits"));
+    }
+  }
+
+  /**
+   * Without versionCheckInterval, a cached response is dropped once a request
+   * that is not cached sees that a shard it used has changed.
+   */
+  @Test
+  public void testVersionSeen() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      long hits = stat(core, "cached", "cacheHits");
+      long invalidations = stat(core, "cached", "cacheInvalidations");
+      SolrDocumentList docs = queryDocs(core, "cached", params("seen"));
+
+      // shard2 changes, but that is not known yet
+      loadShardCore("shard2", new String[][] { { "5", "G" } }, "id", "letter");
+      assertEquals(docs.size(), queryDocs(core, "cached", params("seen")).size());
+      assertEquals(hits + 1, stat(core, "cached", "cacheHits"));
+
+      // another request sees the change
+      queryDocs(core, "cached", params("seen2"));
+      assertTrue(stat(core, "cached", "cacheInvalidations") > invalidations);
+      assertEquals(docs.size() + 1, queryDocs(core, "cached", params("seen")).size());
+      assertEquals(hits + 1, stat(core, "cached", "cacheHits"));
+
+      queryDocs(core, "cached", params("seen"));
+      assertEquals(hits + 2, stat(core, "cached", "cacheHits"));
+    }
+  }
+
+  /**
+   * Responses with partial results are not cached.
+   */
+  @Test
+  public void testPartialResults() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("djoin")) {
+      long inserts = stat(core, "cachedHedged", "cacheInserts");
+      LatencyShardHandlerFactory.setLatency("http://shard3/", 5000);
+      ModifiableSolrParams params = params("partial");
+      params.add(HedgedShardHandlerFactory.TIME_BUDGET_PARAMETER, "200");
+      for (int i = 0; i < 2; ++i) {
+        SolrQueryResponse rsp = query(core, "cachedHedged", params);
+        assertNull(rsp.getException());
+        assertEquals(Boolean.TRUE, rsp.getResponseHeader().get("partialResults"));
+      }
+      assertEquals(inserts, stat(core, "cachedHedged", "cacheInserts"));
+
+      // once shard3 responds in time, the response is cached
+      LatencyShardHandlerFactory.clearLatencies();
+      SolrQueryResponse rsp = query(core, "cachedHedged", params);
+      assertNull(rsp.getResponseHeader().get("partialResults"));
+      assertEquals(inserts + 1, stat(core, "cachedHedged", "cacheInserts"));
+    }
+  }
+
+}
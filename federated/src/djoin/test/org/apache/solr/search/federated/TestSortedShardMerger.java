@@ -0,0 +1,131 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ShardDoc;
+import org.junit.Test;
+
+public class TestSortedShardMerger {
+
+  private static final SortField[] SCORE_SORT = new SortField[] { SortField.FIELD_SCORE };
+
+  private static final SortField[] LETTER_SORT = new SortField[] { new SortField("letter", SortField.Type.STRING) };
+
+  // docs with the given ids, and scores decreasing from 1.0 in steps of 0.1
+  private SolrDocumentList docs(Object... ids) {
+    SolrDocumentList docs = new SolrDocumentList();
+    for (int i = 0; i < ids.length; ++i) {
+      SolrDocument doc = new SolrDocument();
+      doc.setField("id", ids[i]);
+      doc.setField("score", 1.0f - 0.1f * i);
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private NamedList letters(String... letters) {
+    List<Object> values = new ArrayList<>();
+    for (String letter : letters) {
+      values.add(new BytesRef(letter));
+    }
+    NamedList sortValues = new NamedList();
+    sortValues.add("letter", values);
+    return sortValues;
+  }
+
+  private List<Object> ids(List<ShardDoc> merged) {
+    List<Object> ids = new ArrayList<>();
+    for (ShardDoc doc : merged) {
+      ids.add(doc.id);
+    }
+    return ids;
+  }
+
+  @Test
+  public void testScoreOrder() {
+    SortedShardMerger merger = new SortedShardMerger(SCORE_SORT, null, null);
+    SolrDocumentList docs1 = docs(1, 2, 3);
+    docs1.get(1).setField("score", 0.85f);
+    merger.addShard("shard1", docs1, new NamedList<>(), "id");
+    merger.addShard("shard2", docs(4, 5, 6), new NamedList<>(), "id");
+
+    List<ShardDoc> merged = merger.merge(0, 10);
+    // ties go to the first shard
+    assertEquals(Arrays.<Object>asList(1, 4, 5, 2, 3, 6), ids(merged));
+    for (int i = 0; i < merged.size(); ++i) {
+      assertEquals(i, merged.get(i).positionInResponse);
+    }
+    assertEquals("shard2", merged.get(1).shard);
+    assertEquals(0, merged.get(1).orderInShard);
+    assertEquals(0.85f, merged.get(3).score, 0);
+  }
+
+  @Test
+  public void testOffsetAndRows() {
+    SortedShardMerger merger = new SortedShardMerger(SCORE_SORT, null, null);
+    merger.addShard("shard1", docs(1, 2, 3), new NamedList<>(), "id");
+    merger.addShard("shard2", docs(4, 5, 6), new NamedList<>(), "id");
+
+    List<ShardDoc> merged = merger.merge(1, 3);
+    assertEquals(Arrays.<Object>asList(4, 2, 5), ids(merged));
+    assertEquals(0, merged.get(0).positionInResponse);
+
+    assertEquals(0, merger.merge(6, 3).size());
+  }
+
+  @Test
+  public void testDuplicatesKeepBestPosition() {
+    SortedShardMerger merger = new SortedShardMerger(LETTER_SORT, null, null);
+    merger.addShard("shard1", docs("1", "3"), letters("D", "Q"), "id");
+    merger.addShard("shard2", docs("1", "2", "3"), letters("A", "B", "C"), "id");
+    merger.addShard("shard3", docs("2", "3", "1"), letters("B", "C", "E"), "id");
+
+    List<ShardDoc> merged = merger.merge(0, 10);
+    assertEquals(Arrays.<Object>asList("1", "2", "3"), ids(merged));
+    assertEquals("shard2", merged.get(0).shard);
+    assertEquals("shard2", merged.get(1).shard);
+    assertEquals(1, merged.get(1).orderInShard);
+    assertEquals(new BytesRef("C"), merger.getSortValue(merged.get(2), 0));
+
+    // with a page of two, id 1 is not counted twice
+    assertEquals(Arrays.<Object>asList("1", "2"), ids(merger.merge(0, 2)));
+  }
+
+  @Test
+  public void testReverse() {
+    SortField[] sort = new SortField[] { new SortField("letter", SortField.Type.STRING, true) };
+    SortedShardMerger merger = new SortedShardMerger(sort, null, null);
+    merger.addShard("shard1", docs("Cambridge", "Congleton"), letters("Y", "M"), "id");
+    merger.addShard("shard2", docs("Cowes", "Ely", "Congleton"), letters("Z", "N", "A"), "id");
+
+    assertEquals(Arrays.<Object>asList("Cowes", "Cambridge", "Ely", "Congleton"), ids(merger.merge(0, 10)));
+  }
+
+}
@@ -27,8 +27,9 @@ import org.apache.lucene.index.IndexableFieldType;
 import org.apache.lucene.util.BytesRef;
 import org.apache.solr.response.TextResponseWriter;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
 
-public abstract class MergeAbstractFieldType extends FieldType {
+public abstract class MergeAbstractFieldType extends FieldType implements MergeConverter.Provider {
 
   public static final Object DEFAULT_MERGE_BEHAVIOUR = new Object();
   
@@ -52,6 +53,20 @@ public abstract class MergeAbstractFieldType extends FieldType {
   
   public abstract Object convert(String val);
 
+  /**
+   * Merge converter calling convert() directly, rather than through an
+   * IndexableField.
+   */
+  @Override
+  public MergeConverter getMergeConverter() {
+    return new MergeConverter() {
+      @Override
+      public Object convert(SchemaField field, Object value) {
+        return MergeAbstractFieldType.this.convert(toInternal(value.toString()));
+      }
+    };
+  }
+
   /**
    * Override with your own merge behaviour if desired. It is called once for each
    * shard that returns the document, and shardValue may be a List of values.
@@ -0,0 +1,38 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Converts a value returned by a shard to the value the aggregator's field
+ * type would give it, for merging. See MergeConverters.
+ */
+public interface MergeConverter {
+
+  Object convert(SchemaField field, Object value);
+
+  /**
+   * Implemented by field types that supply their own converter.
+   */
+  interface Provider {
+
+    MergeConverter getMergeConverter();
+
+  }
+
+}
@@ -0,0 +1,165 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.schema.BoolField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieDoubleField;
+import org.apache.solr.schema.TrieFloatField;
+import org.apache.solr.schema.TrieIntField;
+import org.apache.solr.schema.TrieLongField;
+
+/**
+ * Registry of merge converters, by field type class.
+ *
+ * The default conversion creates an IndexableField from the shard value and
+ * then asks the field type for its object value, which allocates a field for
+ * every value. Common field types instead have direct conversions giving the
+ * same result. A field type implementing MergeConverter.Provider (such as any
+ * MergeAbstractFieldType) supplies its own converter, and others can be
+ * registered with register(). Types are matched by exact class, so subclasses
+ * of the common types use the default conversion unless registered too.
+ */
+@SuppressWarnings("deprecation")
+public final class MergeConverters {
+
+  /**
+   * The default conversion, through the field type's createField() and toObject().
+   */
+  public static final MergeConverter INDEXABLE = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      IndexableField indexable = field.getType().createField(field, value, 1.0f);
+      return indexable != null ? field.getType().toObject(indexable) : null;
+    }
+  };
+
+  public static final MergeConverter STRING = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return value.toString();
+    }
+  };
+
+  public static final MergeConverter INTEGER = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return value instanceof Number ? ((Number)value).intValue() : Integer.parseInt(value.toString());
+    }
+  };
+
+  public static final MergeConverter LONG = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return value instanceof Number ? ((Number)value).longValue() : Long.parseLong(value.toString());
+    }
+  };
+
+  public static final MergeConverter FLOAT = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return value instanceof Number ? ((Number)value).floatValue() : Float.parseFloat(value.toString());
+    }
+  };
+
+  public static final MergeConverter DOUBLE = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return value instanceof Number ? ((Number)value).doubleValue() : Double.parseDouble(value.toString());
+    }
+  };
+
+  public static final MergeConverter DATE = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      // a copy, as toObject() would give
+      long time = value instanceof Date ? ((Date)value).getTime() : ((org.apache.solr.schema.DateField)field.getType()).parseMath(null, value.toString()).getTime();
+      return new Date(time);
+    }
+  };
+
+  public static final MergeConverter BOOLEAN = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      if (value instanceof Boolean) {
+        return value;
+      }
+      // as BoolField.toInternal()
+      String s = value.toString();
+      char ch = s.length() > 0 ? s.charAt(0) : 0;
+      return ch == '1' || ch == 't' || ch == 'T';
+    }
+  };
+
+  // for fields that are neither indexed nor stored, which createField() ignores
+  private static final MergeConverter NONE = new MergeConverter() {
+    @Override
+    public Object convert(SchemaField field, Object value) {
+      return null;
+    }
+  };
+
+  private static final Map<Class<? extends FieldType>, MergeConverter> converters = new ConcurrentHashMap<>();
+
+  static {
+    register(StrField.class, STRING);
+    register(TrieIntField.class, INTEGER);
+    register(TrieLongField.class, LONG);
+    register(TrieFloatField.class, FLOAT);
+    register(TrieDoubleField.class, DOUBLE);
+    register(TrieDateField.class, DATE);
+    register(BoolField.class, BOOLEAN);
+  }
+
+  private MergeConverters() {
+    // static methods only
+  }
+
+  /**
+   * Register the converter for a field type class (replacing any existing one).
+   */
+  public static void register(Class<? extends FieldType> type, MergeConverter converter) {
+    converters.put(type, converter);
+  }
+
+  /**
+   * Get the converter for a field.
+   */
+  public static MergeConverter get(SchemaField field) {
+    if (! field.indexed() && ! field.stored()) {
+      return NONE;
+    }
+    FieldType type = field.getType();
+    if (type instanceof MergeConverter.Provider) {
+      MergeConverter converter = ((MergeConverter.Provider)type).getMergeConverter();
+      if (converter != null) {
+        return converter;
+      }
+    }
+    MergeConverter converter = converters.get(type.getClass());
+    return converter != null ? converter : INDEXABLE;
+  }
+
+}
@@ -0,0 +1,246 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.schema.CopyField;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.ReturnFields;
+
+/**
+ * What to do with each field when merging shard documents, worked out once per
+ * request from the schema and the return fields, so that the cost of merging a
+ * document does not depend on the size of the schema.
+ *
+ * For each field name returned by the shards, the plan has the aggregator
+ * fields it goes to (copy field destinations, then the field itself), each
+ * with its converter (see MergeConverters). After merging, only the fields with a default value,
+ * that are required (and wanted), or that are not stored need looking at.
+ *
+ * A plan may be used by several threads at once, each merging different
+ * documents.
+ */
+class MergePlan {
+
+  /**
+   * An aggregator field receiving shard values.
+   */
+  static class Target {
+
+    final SchemaField field;
+
+    final String name;
+
+    // null unless the field type has its own merge behaviour
+    final MergeAbstractFieldType mergeType;
+
+    final MergeConverter converter;
+
+    private Target(SchemaField field) {
+      this.field = field;
+      name = field.getName();
+      mergeType = field.getType() instanceof MergeAbstractFieldType ? (MergeAbstractFieldType)field.getType() : null;
+      converter = MergeConverters.get(field);
+    }
+
+  }
+
+  // a field that needs checking after merging
+  private static class FinishStep {
+
+    private final SchemaField field;
+
+    private final String name;
+
+    private final Object defaultValue;
+
+    private final boolean checkRequired;
+
+    private final boolean remove;
+
+    private FinishStep(SchemaField field, Object defaultValue, boolean checkRequired, boolean remove) {
+      this.field = field;
+      this.name = field.getName();
+      this.defaultValue = defaultValue;
+      this.checkRequired = checkRequired;
+      this.remove = remove;
+    }
+
+  }
+
+  private static final Target[] NO_TARGETS = new Target[0];
+
+  private final IndexSchema schema;
+
+  // shard field name -> aggregator fields, resolved on first use (by any thread)
+  private final ConcurrentMap<String, Target[]> targets = new ConcurrentHashMap<>();
+
+  // aggregator field name -> target, shared by all the shard fields copied to it
+  private final ConcurrentMap<String, Target> fieldTargets = new ConcurrentHashMap<>();
+
+  private final FinishStep[] finishSteps;
+
+  MergePlan(IndexSchema schema, ReturnFields rf) {
+    this.schema = schema;
+
+    List<FinishStep> steps = new ArrayList<>();
+    for (SchemaField field : schema.getFields().values()) {
+      Object defaultValue = field.getDefaultValue();
+      boolean checkRequired = field.isRequired() && rf.wantsField(field.getName());
+      boolean remove = ! field.stored();
+      if (defaultValue != null || checkRequired || remove) {
+        steps.add(new FinishStep(field, defaultValue, checkRequired, remove));
+      }
+    }
+    finishSteps = steps.toArray(new FinishStep[steps.size()]);
+  }
+
+  /**
+   * Get the aggregator fields that values of the given shard field go to.
+   */
+  Target[] getTargets(String fieldName) {
+    Target[] t = targets.get(fieldName);
+    if (t == null) {
+      List<Target> list = new ArrayList<>();
+      for (CopyField cf : schema.getCopyFieldsList(fieldName)) {
+        list.add(getTarget(cf.getDestination()));
+      }
+      SchemaField field = schema.getFieldOrNull(fieldName);
+      if (field != null) {
+        list.add(getTarget(field));
+      }
+      t = list.size() > 0 ? list.toArray(new Target[list.size()]) : NO_TARGETS;
+      Target[] existing = targets.putIfAbsent(fieldName, t);
+      if (existing != null) {
+        t = existing;
+      }
+    }
+    return t;
+  }
+
+  private Target getTarget(SchemaField field) {
+    Target target = fieldTargets.get(field.getName());
+    if (target == null) {
+      target = new Target(field);
+      Target existing = fieldTargets.putIfAbsent(field.getName(), target);
+      if (existing != null) {
+        target = existing;
+      }
+    }
+    return target;
+  }
+
+  /**
+   * Apply default values, check required fields are present, and then remove
+   * non-stored fields.
+   */
+  void finish(SolrDocument parent) {
+    for (FinishStep step : finishSteps) {
+      Object value = parent.getFieldValue(step.name);
+      if (value == null && step.defaultValue != null) {
+        value = step.defaultValue;
+        parent.setField(step.name, value);
+      }
+      if (value == null && step.checkRequired) {
+        throw new MergeException.MissingRequiredField(step.field);
+      }
+      if (step.remove) {
+        parent.removeFields(step.name);
+      }
+    }
+  }
+
+  /**
+   * Merge a shard value (which may be a List) of a field into the parent doc.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static void merge(String shard, SolrDocument parent, Object shardValue, Target target) {
+    Object mergeValue = parent.getFieldValue(target.name);
+
+    if (target.mergeType != null) {
+      Object newValue = target.mergeType.merge(shard, mergeValue, shardValue);
+      if (newValue != MergeAbstractFieldType.DEFAULT_MERGE_BEHAVIOUR) {
+        parent.setField(target.name, newValue);
+        return;
+      }
+    }
+
+    // continue with the default merge behaviour...
+    if (shardValue == null) {
+      return;
+    }
+
+    if (target.field.multiValued()) {
+      Set set = (Set)mergeValue;
+      if (shardValue instanceof List) {
+        for (Object value : (List)shardValue) {
+          set = addValue(parent, target, set, value);
+        }
+      } else {
+        addValue(parent, target, set, shardValue);
+      }
+    } else {
+      Object value = mergeValue;
+      if (shardValue instanceof List) {
+        for (Object v : (List)shardValue) {
+          value = singleValue(target, value, v);
+        }
+      } else {
+        value = singleValue(target, value, shardValue);
+      }
+      if (value != mergeValue) {
+        parent.setField(target.name, value);
+      }
+    }
+  }
+
+  // add a converted value to a multi-valued field, creating its set if needed
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Set addValue(SolrDocument parent, Target target, Set set, Object shardValue) {
+    Object value = target.converter.convert(target.field, shardValue);
+    if (value != null) {
+      if (set == null) {
+        set = new HashSet();
+        parent.setField(target.name, set);
+      }
+      set.add(value);
+    }
+    return set;
+  }
+
+  // the value of a single-valued field after adding a shard value
+  private static Object singleValue(Target target, Object current, Object shardValue) {
+    Object value = target.converter.convert(target.field, shardValue);
+    if (value == null) {
+      return current;
+    }
+    if (current != null && ! current.equals(value)) {
+      throw new MergeException.FieldNotMultiValued(target.field);
+    }
+    return current != null ? current : value;
+  }
+
+}
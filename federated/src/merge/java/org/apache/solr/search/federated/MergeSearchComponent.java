@@ -18,29 +18,112 @@ package org.apache.solr.search.federated;
  */
 
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.lucene.index.IndexableField;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.ShardRequest;
-import org.apache.solr.schema.CopyField;
+import org.apache.solr.handler.component.ShardResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.ReturnFields;
 import org.apache.solr.search.federated.DuplicateDocumentList;
 import org.apache.solr.search.federated.FilterDJoinQParserSearchComponent;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
 /**
  * Inspect the result documents for merge parents, and merge the children.
+ *
+ * With the request parameter [name].parallel=true, pages of at least
+ * parallelMinDocs (an initialisation parameter, default 100) documents are
+ * merged in parallel, on a pool of up to parallelism threads (default: the
+ * number of processors) shared by all requests to the component, and shut
+ * down when the core closes. The output, and the exception thrown if a merge
+ * fails, are the same as when merging sequentially. Any MergeAbstractFieldType
+ * must then be thread-safe.
+ *
+ * With [name].stream=true, each document is instead merged when the response
+ * writer gets it (see MergingDocumentList), and the shard responses let go of
+ * their documents, so that the merged page does not sit alongside the shard
+ * documents (memory still grows with the page size, but it is held once). A
+ * merge error then cuts the written response short, rather than
+ * replacing it.
  */
-public class MergeSearchComponent extends FilterDJoinQParserSearchComponent {
+public class MergeSearchComponent extends FilterDJoinQParserSearchComponent implements SolrCoreAware {
+
+  // initialisation parameters
+  public static final String INIT_PARALLELISM = "parallelism";
+  public static final String INIT_PARALLEL_MIN_DOCS = "parallelMinDocs";
+
+  // request parameters, as suffixes of the component name
+  public static final String PARALLEL = "parallel";
+  public static final String STREAM = "stream";
+
+  public static final int DEFAULT_PARALLEL_MIN_DOCS = 100;
+
+  // number of parents merged by each parallel task
+  private static final int PARALLEL_CHUNK_SIZE = 16;
+
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  private int parallelMinDocs = DEFAULT_PARALLEL_MIN_DOCS;
+
+  private ForkJoinPool pool;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args) {
+    super.init(args);
+    Object value = args.get(INIT_PARALLELISM);
+    if (value != null) {
+      parallelism = Integer.parseInt(value.toString());
+    }
+    value = args.get(INIT_PARALLEL_MIN_DOCS);
+    if (value != null) {
+      parallelMinDocs = Integer.parseInt(value.toString());
+    }
+  }
+
+  private synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(parallelism);
+    }
+    return pool;
+  }
+
+  private synchronized void shutdownPool() {
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    core.addCloseHook(new CloseHook() {
+
+      @Override
+      public void preClose(SolrCore core) {
+        shutdownPool();
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+        // nothing to do
+      }
+
+    });
+  }
   
   // return whether to do a merge at all
   private boolean doMerge(ResponseBuilder rb) {
@@ -93,6 +176,11 @@ public class MergeSearchComponent extends FilterDJoinQParserSearchComponent {
       return;
     }
 
+    if (rb.req.getParams().getBool(getName() + "." + STREAM, false)) {
+      stream(rb);
+      return;
+    }
+
     try {
       mergeAndConvert(rb);
     } catch (RuntimeException e) {
@@ -102,135 +190,152 @@ public class MergeSearchComponent extends FilterDJoinQParserSearchComponent {
     }
   }
   
-  @SuppressWarnings({ "rawtypes", "unchecked" })
-  private void mergeAndConvert(ResponseBuilder rb) {
+  // replace the response docs with ones merged as they are written
+  @SuppressWarnings("rawtypes")
+  private void stream(ResponseBuilder rb) {
+    @SuppressWarnings("unchecked")
+    NamedList<Object> values = rb.rsp.getValues();
+    int index = values.indexOf("response", 0);
+    if (index < 0) {
+      return;
+    }
     IndexSchema schema = rb.req.getCore().getLatestSchema();
-    ReturnFields rf = rb.rsp.getReturnFields();
+    MergePlan plan = new MergePlan(schema, rb.rsp.getReturnFields());
+    values.setVal(index, new MergingDocumentList(this, plan, (SolrDocumentList)values.getVal(index)));
 
-    SolrDocumentList docs = (SolrDocumentList)rb.rsp.getValues().get("response");
-    for (SolrDocument parent : docs) {
-      parent.remove(DuplicateDocumentList.MERGE_PARENT_FIELD);
-
-      Set shardList = new HashSet();
-      Float score = null;
-      for (SolrDocument doc : parent.getChildDocuments()) {
-        String shard = (String)doc.getFieldValue("[shard]");
-        NamedList nl = null;
-        if (shard != null) {
-          nl = new NamedList();
-          nl.add("address", shard);
-          shardList.add(nl);
-        }
-        
-        for (String fieldName : doc.getFieldNames()) {
-          Object value = doc.getFieldValue(fieldName);
-          
-          for (CopyField cf : schema.getCopyFieldsList(fieldName)) {
-            SchemaField field = cf.getDestination();
-            addConvertedFieldValue(shard, parent, value, field);
-          }
-          
-          SchemaField field = schema.getFieldOrNull(fieldName);
-          if (fieldName.equals("score")) {
-            score = Math.max(score != null ? score : 0.0f, (Float)value);
-            if (nl != null) {
-              nl.add("score", score);
-            }
-          } else if (field != null) {
-            addConvertedFieldValue(shard, parent, value, field);          
-          }
-        }
-      }
-      if (shardList.size() > 0) {
-        parent.setField("[shard]", shardList);
-      } else {
-        parent.removeFields("[shard]");
+    // the shard docs are now only needed as children of the response docs
+    for (ShardRequest sreq : rb.finished) {
+      if ((sreq.purpose & ShardRequest.PURPOSE_GET_FIELDS) == 0) {
+        continue;
       }
-      if (score != null) {
-        parent.setField("score", score);
-      } else {
-        parent.removeFields("score");
+      for (ShardResponse srsp : sreq.responses) {
+        NamedList response = srsp.getSolrResponse() != null ? srsp.getSolrResponse().getResponse() : null;
+        Object docs = response != null ? response.get("response") : null;
+        if (docs instanceof SolrDocumentList) {
+          ((SolrDocumentList)docs).clear();
+        }
       }
+    }
+  }
 
-      // check required fields are present, and then remove if non-stored
-      for (SchemaField field : schema.getFields().values()) {
-        Object value = parent.getFieldValue(field.getName());
-        if (value == null) {
-          value = field.getDefaultValue();
-          if (value != null) {
-            parent.setField(field.getName(), value);
-          }
-        }
-        if (value == null && field.isRequired() && rf.wantsField(field.getName())) {
-          throw new MergeException.MissingRequiredField(field);
-        }
-        if (! field.stored()) {
-          parent.removeFields(field.getName());
-        }
+  private void mergeAndConvert(ResponseBuilder rb) {
+    IndexSchema schema = rb.req.getCore().getLatestSchema();
+    SolrDocumentList docs = (SolrDocumentList)rb.rsp.getValues().get("response");
+    boolean parallel = rb.req.getParams().getBool(getName() + "." + PARALLEL, false);
+    mergeAndConvert(schema, rb.rsp.getReturnFields(), docs, parallel);
+  }
+
+  /**
+   * Merge the children of each of the given parent docs.
+   */
+  void mergeAndConvert(IndexSchema schema, ReturnFields rf, SolrDocumentList docs, boolean parallel) {
+    MergePlan plan = new MergePlan(schema, rf);
+    if (! parallel || docs.size() < parallelMinDocs || parallelism < 2) {
+      for (SolrDocument parent : docs) {
+        mergeParent(plan, parent);
       }
+      return;
+    }
 
-      // remove child documents
-      while (parent.getChildDocumentCount() > 0) {
-        parent.getChildDocuments().remove(0);
+    // throw the exception for the first parent that failed, as a sequential merge would
+    RuntimeException[] errors = new RuntimeException[docs.size()];
+    getPool().invoke(new MergeTask(plan, docs, errors, 0, docs.size()));
+    for (RuntimeException e : errors) {
+      if (e != null) {
+        throw e;
       }
     }
   }
 
-  private void convert(SchemaField field, Object value, Set<Object> valueSet) {
-    IndexableField indexable = field.getType().createField(field, value, 1.0f);
-    valueSet.add(field.getType().toObject(indexable));
-  }
-  
-  @SuppressWarnings({ "unchecked", "rawtypes", "serial" })
-  private void addConvertedFieldValue(String shard, SolrDocument superDoc, Object shardValue, SchemaField field) {
-    Object mergeValue = superDoc.getFieldValue(field.getName());
-
-    if (field.getType() instanceof MergeAbstractFieldType) {
-      Object newValue = ((MergeAbstractFieldType)field.getType()).merge(shard, mergeValue, shardValue);
-      if (newValue != MergeAbstractFieldType.DEFAULT_MERGE_BEHAVIOUR) {
-        superDoc.setField(field.getName(), mergeValue);
-        return;
-      }
+  @SuppressWarnings("serial")
+  private class MergeTask extends RecursiveAction {
+
+    private final MergePlan plan;
+
+    private final SolrDocumentList docs;
+
+    private final RuntimeException[] errors;
+
+    private final int from;
+
+    private final int to;
+
+    private MergeTask(MergePlan plan, SolrDocumentList docs, RuntimeException[] errors, int from, int to) {
+      this.plan = plan;
+      this.docs = docs;
+      this.errors = errors;
+      this.from = from;
+      this.to = to;
     }
-    
-    // continue with the default merge behaviour...
-    if (shardValue == null) {
-      return;
+
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_CHUNK_SIZE) {
+        for (int i = from; i < to; ++i) {
+          try {
+            mergeParent(plan, docs.get(i));
+          } catch (RuntimeException e) {
+            // later parents in this chunk can not fail first
+            errors[i] = e;
+            return;
+          }
+        }
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new MergeTask(plan, docs, errors, from, mid), new MergeTask(plan, docs, errors, mid, to));
+      }
     }
-    
-    Set newValues = new HashSet() {
-      @Override
-      public boolean add(Object value) {
-        if (value == null) return false;
-        return super.add(value);
+
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  void mergeParent(MergePlan plan, SolrDocument parent) {
+    parent.remove(DuplicateDocumentList.MERGE_PARENT_FIELD);
+
+    Set shardList = new HashSet();
+    Float score = null;
+    for (SolrDocument doc : parent.getChildDocuments()) {
+      String shard = (String)doc.getFieldValue("[shard]");
+      NamedList nl = null;
+      if (shard != null) {
+        nl = new NamedList();
+        nl.add("address", shard);
+        shardList.add(nl);
       }
-    };
-    
-    if (shardValue instanceof List) {
-      for (Object value : (List)shardValue) {
-        convert(field, value, newValues);
+      
+      for (Map.Entry<String, Object> entry : doc) {
+        String fieldName = entry.getKey();
+        Object value = entry.getValue();
+        if (fieldName.equals("score")) {
+          score = Math.max(score != null ? score : 0.0f, (Float)value);
+          if (nl != null) {
+            nl.add("score", score);
+          }
+          continue;
+        }
+
+        for (MergePlan.Target target : plan.getTargets(fieldName)) {
+          MergePlan.merge(shard, parent, value, target);
+        }
       }
+    }
+    if (shardList.size() > 0) {
+      parent.setField("[shard]", shardList);
     } else {
-      convert(field, shardValue, newValues);
+      parent.removeFields("[shard]");
     }
-    if (newValues.size() == 0) {
-      return;
+    if (score != null) {
+      parent.setField("score", score);
+    } else {
+      parent.removeFields("score");
     }
 
-    if (field.multiValued()) {
-      Set set = (Set)mergeValue;
-      if (set == null) {
-        set = new HashSet();
-        superDoc.setField(field.getName(), set);
-      }
-      set.addAll(newValues);
-    } else {
-      newValues.add(mergeValue);
-      if (newValues.size() > 1) {
-        throw new MergeException.FieldNotMultiValued(field);
-      } else if (newValues.size() == 1) {
-        superDoc.setField(field.getName(), newValues.iterator().next());
-      }
+    // check required fields are present, and then remove if non-stored
+    plan.finish(parent);
+
+    // remove child documents
+    while (parent.getChildDocumentCount() > 0) {
+      parent.getChildDocuments().remove(0);
     }
   }
 
@@ -0,0 +1,99 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Response docs which are merge parents until they are got (usually by the
+ * response writer), when their children are merged into them and released.
+ * So, as the response is written, the merged documents replace the shard
+ * documents one at a time, and the page is held once rather than as both
+ * shard and merged documents. The whole page is still held until the response
+ * is done with: merged documents are kept, since the response may be read more
+ * than once (for instance by CachingSearchHandler and then the writer).
+ *
+ * Any merge error is thrown when the parent is got, so for a response
+ * being written it will cut the response short.
+ */
+@SuppressWarnings("serial")
+class MergingDocumentList extends SolrDocumentList {
+
+  private final transient MergeSearchComponent component;
+
+  private final transient MergePlan plan;
+
+  MergingDocumentList(MergeSearchComponent component, MergePlan plan, SolrDocumentList parents) {
+    super.addAll(parents);
+    setNumFound(parents.getNumFound());
+    setStart(parents.getStart());
+    setMaxScore(parents.getMaxScore());
+    this.component = component;
+    this.plan = plan;
+  }
+
+  @Override
+  public SolrDocument get(int index) {
+    SolrDocument doc = super.get(index);
+    if (doc != null && doc.containsKey(DuplicateDocumentList.MERGE_PARENT_FIELD)) {
+      component.mergeParent(plan, doc);
+    }
+    return doc;
+  }
+
+  /**
+   * Whether the doc at the given position has been merged yet.
+   */
+  boolean isMerged(int index) {
+    SolrDocument doc = super.get(index);
+    return doc == null || ! doc.containsKey(DuplicateDocumentList.MERGE_PARENT_FIELD);
+  }
+
+  // merge docs as they are iterated over
+  @Override
+  public Iterator<SolrDocument> iterator() {
+    return new Iterator<SolrDocument>() {
+
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < size();
+      }
+
+      @Override
+      public SolrDocument next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return get(next++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+    };
+  }
+
+}
@@ -21,12 +21,19 @@ import org.apache.lucene.search.SortField;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.StrField;
 import org.apache.solr.search.Sorting;
+import org.apache.solr.search.federated.MergeConverter;
+import org.apache.solr.search.federated.MergeConverters;
 
-public class FederatedString extends StrField {
+public class FederatedString extends StrField implements MergeConverter.Provider {
 
   @Override
   public SortField getSortField(SchemaField field, boolean reverse) {
     return Sorting.getStringSortField(field.getName(), reverse, field.sortMissingLast(), field.sortMissingFirst());
   }
 
+  @Override
+  public MergeConverter getMergeConverter() {
+    return MergeConverters.STRING;
+  }
+
 }
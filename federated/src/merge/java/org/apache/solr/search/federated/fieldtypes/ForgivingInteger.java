@@ -20,6 +20,7 @@ package org.apache.solr.search.federated.fieldtypes;
 import org.apache.lucene.search.SortField;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.federated.MergeAbstractFieldType;
+import org.apache.solr.search.federated.MergeConverter;
 
 public class ForgivingInteger extends MergeAbstractFieldType {
   
@@ -32,6 +33,16 @@ public class ForgivingInteger extends MergeAbstractFieldType {
     }
   }
 
+  @Override
+  public MergeConverter getMergeConverter() {
+    return new MergeConverter() {
+      @Override
+      public Object convert(SchemaField field, Object value) {
+        return value instanceof Integer ? value : ForgivingInteger.this.convert(value.toString());
+      }
+    };
+  }
+
   @Override
   public SortField getSortField(SchemaField field, boolean reverse) {
       field.checkSortability();
@@ -0,0 +1,267 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A load test of federated queries over a number of local shard cores, which
+ * reports the throughput, latency percentiles and aggregator allocation of
+ * each kind of query, so that changes to the federated components can be
+ * compared. Only run with -Dtests.benchmark=true.
+ *
+ * The shards (created from the "loadshard" instance dir) share a proportion
+ * of their ids, given by tests.load.overlap, so that djoin has documents to
+ * join; the rest are unique to each shard. The workloads are djoin (the djoin
+ * query parser alone), merge (with MergeSearchComponent) and numfound (with
+ * NumFoundSearchComponent), chosen at random for each query. Bytes allocated
+ * by the shard requests are not counted as aggregator allocation.
+ *
+ * System properties (with defaults):
+ *
+ * - tests.load.shards (3): the number of shards
+ * - tests.load.docs (2000): the number of documents in each shard
+ * - tests.load.overlap (0.5): the proportion of each shard's ids in every shard
+ * - tests.load.values (10): the number of text values in each document
+ * - tests.load.workloads (djoin,merge,numfound): the mix of queries
+ * - tests.load.rows (10): the rows of each query
+ * - tests.load.threads (4): the number of client threads
+ * - tests.load.warmup (2) and tests.load.seconds (10): the warm up and
+ *   measured run times, in seconds
+ */
+public class FederatedLoadBenchmark extends BaseTestCase {
+
+  private static final int SHARDS = Integer.getInteger("tests.load.shards", 3);
+  private static final int DOCS = Integer.getInteger("tests.load.docs", 2000);
+  private static final double OVERLAP = Double.parseDouble(System.getProperty("tests.load.overlap", "0.5"));
+  private static final int VALUES = Integer.getInteger("tests.load.values", 10);
+  private static final String[] WORKLOADS = System.getProperty("tests.load.workloads", "djoin,merge,numfound").split(",");
+  private static final int ROWS = Integer.getInteger("tests.load.rows", 10);
+  private static final int THREADS = Integer.getInteger("tests.load.threads", 4);
+  private static final int WARMUP = Integer.getInteger("tests.load.warmup", 2);
+  private static final int SECONDS = Integer.getInteger("tests.load.seconds", 10);
+
+  // number of distinct text values
+  private static final int VOCABULARY = 1000;
+
+  private static String shards;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("tests.benchmark"));
+    initCores("federated/solr/solr-merge.xml", "federated/solr");
+
+    CoreContainer container = h.getCoreContainer();
+    Random random = new Random(42);
+    StringBuilder sb = new StringBuilder();
+    for (int s = 1; s <= SHARDS; ++s) {
+      String name = "load" + s;
+      Properties props = new Properties();
+      props.setProperty(CoreDescriptor.CORE_DATADIR, "data-" + name);
+      container.create(new CoreDescriptor(container, name, "loadshard", props));
+      loadShardCore(name, documents(random, s), "id", "letter", "single", "singlevalued", "required", "text");
+      sb.append(s > 1 ? "," : "").append(name).append('/');
+    }
+    shards = sb.toString();
+  }
+
+  // documents for shard s, the first OVERLAP of which have ids shared by all shards
+  private static String[][] documents(Random random, int s) {
+    int shared = (int)(DOCS * OVERLAP);
+    String[][] docs = new String[DOCS][];
+    for (int i = 0; i < DOCS; ++i) {
+      String id = i < shared ? "c" + i : "s" + s + "_" + i;
+      StringBuilder text = new StringBuilder();
+      for (int v = 0; v < VALUES; ++v) {
+        text.append(v > 0 ? "," : "").append('w').append(random.nextInt(VOCABULARY));
+      }
+      String letter = Character.toString((char)('A' + random.nextInt(26)));
+      docs[i] = new String[] { id, letter, "s" + id, "v" + id, "r", text.toString() };
+    }
+    return docs;
+  }
+
+  /**
+   * Latencies and allocation of the queries of one workload.
+   */
+  private static class Stats {
+
+    private long[] latencies = new long[1024];
+
+    private int count;
+
+    private long aggregatorBytes;
+
+    private long shardBytes;
+
+    private void add(long latency, long aggregator, long shard) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, 2 * count);
+      }
+      latencies[count++] = latency;
+      aggregatorBytes += aggregator;
+      shardBytes += shard;
+    }
+
+    private void add(Stats other) {
+      for (int i = 0; i < other.count; ++i) {
+        add(other.latencies[i], 0, 0);
+      }
+      aggregatorBytes += other.aggregatorBytes;
+      shardBytes += other.shardBytes;
+    }
+
+    // the p'th percentile latency, in ms
+    private double percentile(long[] sorted, double p) {
+      int i = (int)Math.ceil(p / 100 * count) - 1;
+      return sorted[Math.max(0, Math.min(count - 1, i))] / 1e6;
+    }
+
+    private String report(String name, double seconds) {
+      if (count == 0) {
+        return String.format(Locale.ROOT, "%-8s no queries", name);
+      }
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return String.format(Locale.ROOT, "%-8s %7d queries %8.1f qps | p50 %7.2f p90 %7.2f p99 %7.2f max %8.2f ms | aggregator %8.1f KB/query %7.1f MB/s, shards %8.1f KB/query",
+          name, count, count / seconds,
+          percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[count - 1] / 1e6,
+          aggregatorBytes / 1024.0 / count, aggregatorBytes / 1048576.0 / seconds, shardBytes / 1024.0 / count);
+    }
+
+  }
+
+  // a client thread, running random queries until the deadline
+  private static class Client implements Callable<Map<String, Stats>> {
+
+    private final SolrCore core;
+
+    private final Random random;
+
+    private final long deadline;
+
+    private Client(SolrCore core, long seed, long deadline) {
+      this.core = core;
+      this.random = new Random(seed);
+      this.deadline = deadline;
+    }
+
+    private ModifiableSolrParams params() {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      switch (random.nextInt(3)) {
+      case 0: params.add("q", "*:*"); break;
+      case 1: params.add("q", "letter:" + (char)('A' + random.nextInt(26))); break;
+      default: params.add("q", "text:w" + random.nextInt(VOCABULARY));
+      }
+      params.add("rows", Integer.toString(ROWS));
+      params.add("fl", "*,[shard]");
+      params.add("shards", shards);
+      return params;
+    }
+
+    @Override
+    public Map<String, Stats> call() throws Exception {
+      Map<String, Stats> stats = new TreeMap<>();
+      for (String workload : WORKLOADS) {
+        stats.put(workload, new Stats());
+      }
+      while (System.currentTimeMillis() < deadline) {
+        String workload = WORKLOADS[random.nextInt(WORKLOADS.length)];
+        ModifiableSolrParams params = params();
+        long bytes = MeteredShardHandlerFactory.allocatedBytes();
+        long shardBytes = MeteredShardHandlerFactory.shardBytes();
+        long start = System.nanoTime();
+        SolrQueryResponse rsp = query(core, "load-" + workload, params);
+        long latency = System.nanoTime() - start;
+        if (rsp.getException() != null) {
+          throw rsp.getException();
+        }
+        shardBytes = MeteredShardHandlerFactory.shardBytes() - shardBytes;
+        bytes = MeteredShardHandlerFactory.allocatedBytes() - bytes - shardBytes;
+        stats.get(workload).add(latency, bytes, shardBytes);
+      }
+      return stats;
+    }
+
+  }
+
+  // run the clients for the given time, returning the stats of each workload
+  private Map<String, Stats> run(SolrCore core, int seconds) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      long deadline = System.currentTimeMillis() + 1000L * seconds;
+      List<Future<Map<String, Stats>>> futures = new ArrayList<>();
+      for (int t = 0; t < THREADS; ++t) {
+        futures.add(executor.submit(new Client(core, random().nextLong(), deadline)));
+      }
+      Map<String, Stats> stats = new TreeMap<>();
+      for (Future<Map<String, Stats>> future : futures) {
+        for (Map.Entry<String, Stats> entry : future.get().entrySet()) {
+          if (! stats.containsKey(entry.getKey())) {
+            stats.put(entry.getKey(), new Stats());
+          }
+          stats.get(entry.getKey()).add(entry.getValue());
+        }
+      }
+      return stats;
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      run(core, WARMUP);
+      Map<String, Stats> stats = run(core, SECONDS);
+
+      System.out.println(String.format(Locale.ROOT, "%d shards of %d docs (%.0f%% overlap, %d values each), %d threads, %d rows, %d s:",
+          SHARDS, DOCS, 100 * OVERLAP, VALUES, THREADS, ROWS, SECONDS));
+      Stats all = new Stats();
+      for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+        System.out.println(entry.getValue().report(entry.getKey(), SECONDS));
+        all.add(entry.getValue());
+      }
+      System.out.println(all.report("all", SECONDS));
+      assertTrue(all.count > 0);
+    }
+  }
+
+}
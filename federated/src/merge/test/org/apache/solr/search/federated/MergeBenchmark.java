@@ -0,0 +1,121 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrReturnFields;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares sequential and parallel merging of large pages of parent documents.
+ * Only run with -Dtests.benchmark=true.
+ */
+public class MergeBenchmark extends BaseTestCase {
+
+  private static final int[] PAGE_SIZES = new int[] { 100, 1000, 10000 };
+
+  private static final int CHILDREN = 3;
+
+  private static final int ITERATIONS = 20;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("tests.benchmark"));
+    initCores("federated/solr/solr-merge.xml", "federated/solr");
+  }
+
+  // a page of parents, each with children from CHILDREN shards
+  private SolrDocumentList page(int size) {
+    SolrDocumentList docs = new SolrDocumentList();
+    for (int i = 0; i < size; ++i) {
+      SolrDocument parent = new SolrDocument();
+      parent.setField(DuplicateDocumentList.MERGE_PARENT_FIELD, true);
+      for (int s = 0; s < CHILDREN; ++s) {
+        SolrDocument child = new SolrDocument();
+        child.setField("id", Integer.toString(i));
+        child.setField("letter", Character.toString((char)('A' + (i + s) % 26)));
+        child.setField("single", "s" + i);
+        child.setField("text", Arrays.asList("foo", "bar" + s, "baz" + (i % 10)));
+        child.setField("xyzzy", "x" + i);
+        child.setField("notanumber", Integer.toString(i));
+        child.setField("required", "r");
+        child.setField("singlevalued", "v" + i);
+        child.setField("[shard]", "shard" + s + "/");
+        child.setField("score", 1.0f / (s + 1));
+        parent.addChildDocument(child);
+      }
+      docs.add(parent);
+    }
+    return docs;
+  }
+
+  private long time(MergeSearchComponent component, IndexSchema schema, ReturnFields rf, int size, boolean parallel) {
+    long total = 0;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      SolrDocumentList docs = page(size);
+      long start = System.nanoTime();
+      component.mergeAndConvert(schema, rf, docs, parallel);
+      total += System.nanoTime() - start;
+    }
+    return total / ITERATIONS;
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      IndexSchema schema = core.getLatestSchema();
+      ReturnFields rf = new SolrReturnFields();
+
+      MergeSearchComponent component = new MergeSearchComponent();
+      NamedList<Object> args = new NamedList<>();
+      args.add(MergeSearchComponent.INIT_PARALLEL_MIN_DOCS, 1);
+      component.init(args);
+
+      // same output both ways
+      SolrDocumentList sequential = page(100);
+      component.mergeAndConvert(schema, rf, sequential, false);
+      SolrDocumentList parallel = page(100);
+      component.mergeAndConvert(schema, rf, parallel, true);
+      for (int i = 0; i < sequential.size(); ++i) {
+        assertEquals(sequential.get(i).toString(), parallel.get(i).toString());
+      }
+
+      for (int size : PAGE_SIZES) {
+        // warm up
+        time(component, schema, rf, size, false);
+        time(component, schema, rf, size, true);
+
+        long s = time(component, schema, rf, size, false);
+        long p = time(component, schema, rf, size, true);
+        System.out.println(String.format(Locale.ROOT, "%6d parents: sequential %8.2f ms, parallel %8.2f ms (x%.2f, %d processors)",
+            size, s / 1e6, p / 1e6, (double)s / p, Runtime.getRuntime().availableProcessors()));
+      }
+    }
+  }
+
+}
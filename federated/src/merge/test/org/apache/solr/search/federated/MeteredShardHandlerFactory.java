@@ -0,0 +1,105 @@
+package org.apache.solr.search.federated;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.ShardHandler;
+import org.apache.solr.handler.component.ShardHandlerFactory;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+
+/**
+ * As LocalShardHandlerFactory, also counting the bytes allocated by the
+ * current thread while running shard requests, so that allocation by the
+ * aggregator can be told apart from allocation by the (local) shards.
+ */
+@SuppressWarnings("restriction")
+public class MeteredShardHandlerFactory extends LocalShardHandlerFactory {
+
+  private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private static final ThreadLocal<long[]> SHARD_BYTES = new ThreadLocal<long[]>() {
+
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+
+  };
+
+  /**
+   * The bytes allocated so far by the current thread.
+   */
+  public static long allocatedBytes() {
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * The bytes allocated so far by the current thread in shard requests.
+   */
+  public static long shardBytes() {
+    return SHARD_BYTES.get()[0];
+  }
+
+  @Override
+  public ShardHandler getShardHandler() {
+    final ShardHandler handler = super.getShardHandler();
+    return new ShardHandler() {
+
+      @Override
+      public void checkDistributed(ResponseBuilder rb) {
+        handler.checkDistributed(rb);
+      }
+
+      @Override
+      public void submit(ShardRequest sreq, String shard, ModifiableSolrParams params) {
+        long start = allocatedBytes();
+        try {
+          handler.submit(sreq, shard, params);
+        } finally {
+          SHARD_BYTES.get()[0] += allocatedBytes() - start;
+        }
+      }
+
+      @Override
+      public ShardResponse takeCompletedIncludingErrors() {
+        return handler.takeCompletedIncludingErrors();
+      }
+
+      @Override
+      public ShardResponse takeCompletedOrError() {
+        return handler.takeCompletedOrError();
+      }
+
+      @Override
+      public void cancelAll() {
+        handler.cancelAll();
+      }
+
+      @Override
+      public ShardHandlerFactory getShardHandlerFactory() {
+        return MeteredShardHandlerFactory.this;
+      }
+
+    };
+  }
+
+}
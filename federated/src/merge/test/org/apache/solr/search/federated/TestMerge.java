@@ -18,13 +18,18 @@ package org.apache.solr.search.federated;
  */
 
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.TreeMap;
 
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrReturnFields;
 import org.apache.solr.search.federated.BaseTestCase;
 import org.apache.solr.search.federated.MergeException;
 import org.junit.BeforeClass;
@@ -158,9 +163,28 @@ public class TestMerge extends BaseTestCase {
       SolrDocument doc2 = docs.get(2);
       assertEquals("z", doc2.getFieldValue("copy"));
       assertEquals(new HashSet<String>(Arrays.asList("C", "Q", "z")), doc2.getFieldValue("multicopy"));
-    }   
+    }
   }
-  
+
+  /**
+   * The value returned by a custom merge should be set on the document.
+   */
+  @Test
+  public void testCustomMerge() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("sort", "letter asc");
+      params.add("fl", "*");
+
+      SolrDocumentList docs = queryDocs(core, "merge", params);
+      assertEquals(3, docs.size());
+      assertEquals(3, docs.get(0).getFieldValue("shardcount"));
+      assertEquals(2, docs.get(1).getFieldValue("shardcount"));
+      assertEquals(3, docs.get(2).getFieldValue("shardcount"));
+    }
+  }
+
   /**
    * Required fields should expect a value from at least one shard.
    */
@@ -461,5 +485,232 @@ public class TestMerge extends BaseTestCase {
       queryThrow(core, "merge", params);
     }   
   }
-  
+
+  /**
+   * Fast-path converters should give the same values as conversion through an IndexableField.
+   */
+  @Test
+  public void testConverters() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      IndexSchema schema = core.getLatestSchema();
+      Object[][] typesAndValues = new Object[][] {
+        { "string", "foo", 42 },
+        { "federatedString", "bar" },
+        { "integer", "17", 17, 17L },
+        { "long", "-5", 12345678901L, 3 },
+        { "float", "1.5", 2.5f, 3.0 },
+        { "double", "0.25", 1.5, 2 },
+        { "date", "1995-12-31T23:59:59Z", new Date(0L) },
+        { "boolean", "true", "false", "T", "1", Boolean.TRUE, Boolean.FALSE }
+      };
+      for (Object[] row : typesAndValues) {
+        SchemaField field = new SchemaField("test", schema.getFieldTypeByName((String)row[0]));
+        MergeConverter converter = MergeConverters.get(field);
+        assertNotSame(row[0].toString(), MergeConverters.INDEXABLE, converter);
+        for (int i = 1; i < row.length; ++i) {
+          assertEquals(row[0] + " " + row[i], MergeConverters.INDEXABLE.convert(field, row[i]), converter.convert(field, row[i]));
+        }
+      }
+    }
+  }
+
+  /**
+   * A parallel merge should give the same documents, in the same order, as a sequential one.
+   */
+  @Test
+  public void testParallel() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("sort", "letter asc");
+      params.add("fl", "*,[shard],score");
+
+      SolrDocumentList sequential = queryDocs(core, "merge", params);
+      params.add("merge.parallel", "true");
+      SolrDocumentList parallel = queryDocs(core, "merge", params);
+      assertEquals(3, parallel.size());
+      for (int i = 0; i < sequential.size(); ++i) {
+        // (the [shard] NamedLists change after being added to their set, so compare as strings)
+        assertEquals(new TreeMap<String, Object>(sequential.get(i)).toString(), new TreeMap<String, Object>(parallel.get(i)).toString());
+      }
+    }
+  }
+
+  /**
+   * A parallel merge should fail in the same way as a sequential one.
+   */
+  @Test(expected=MergeException.FieldNotMultiValued.class)
+  public void testParallelSingleValued() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("shards", "shard1/,shard4/");
+      params.add("fl", "single");
+      params.add("merge.parallel", "true");
+
+      queryThrow(core, "merge", params);
+    }
+  }
+
+  @Test(expected=MergeException.MissingRequiredField.class)
+  public void testParallelRequired() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("shards", "shard2/,shard3/");
+      params.add("fl", "*");
+      params.add("merge.parallel", "true");
+
+      queryThrow(core, "merge", params);
+    }
+  }
+
+  // a page of parents (enough for a parallel merge to split it), each with children from three shards
+  private SolrDocumentList page(int size) {
+    SolrDocumentList docs = new SolrDocumentList();
+    for (int i = 0; i < size; ++i) {
+      SolrDocument parent = new SolrDocument();
+      parent.setField(DuplicateDocumentList.MERGE_PARENT_FIELD, true);
+      for (int s = 1; s <= 3; ++s) {
+        SolrDocument child = new SolrDocument();
+        child.setField("id", Integer.toString(i));
+        child.setField("letter", Character.toString((char)('A' + (i + s) % 26)));
+        child.setField("single", "s" + i);
+        child.setField("text", Arrays.asList("foo", "bar" + s));
+        child.setField("required", "r");
+        child.setField("singlevalued", "v" + i);
+        child.setField("[shard]", "shard" + s + "/");
+        child.setField("score", 1.0f / s);
+        parent.addChildDocument(child);
+      }
+      docs.add(parent);
+    }
+    return docs;
+  }
+
+  // make the given parent fail to merge, for want of a required value, or with different single values
+  private void breakParent(SolrDocumentList docs, int index, boolean required) {
+    int s = 0;
+    for (SolrDocument child : docs.get(index).getChildDocuments()) {
+      if (required) {
+        child.removeFields("single");
+      } else {
+        child.setField("single", "s" + index + "-" + s++);
+      }
+    }
+  }
+
+  // the exception thrown by merging the given page
+  private RuntimeException mergeError(MergeSearchComponent component, IndexSchema schema, SolrDocumentList docs, boolean parallel) {
+    try {
+      component.mergeAndConvert(schema, new SolrReturnFields(), docs, parallel);
+    } catch (RuntimeException e) {
+      return e;
+    }
+    fail("no merge error");
+    return null;
+  }
+
+  /**
+   * A parallel merge of a page split into several chunks should give the same documents as a sequential one.
+   */
+  @Test
+  public void testParallelChunks() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      MergeSearchComponent component = (MergeSearchComponent)core.getSearchComponent("merge");
+      IndexSchema schema = core.getLatestSchema();
+      SolrDocumentList sequential = page(100);
+      component.mergeAndConvert(schema, new SolrReturnFields(), sequential, false);
+      SolrDocumentList parallel = page(100);
+      component.mergeAndConvert(schema, new SolrReturnFields(), parallel, true);
+      assertEquals(100, parallel.size());
+      for (int i = 0; i < sequential.size(); ++i) {
+        assertEquals(0, parallel.get(i).getChildDocumentCount());
+        assertEquals(new TreeMap<String, Object>(sequential.get(i)).toString(), new TreeMap<String, Object>(parallel.get(i)).toString());
+      }
+    }
+  }
+
+  /**
+   * When parents in several chunks fail, a parallel merge should throw the error for the first of them, as a
+   * sequential merge does, whichever chunk fails first.
+   */
+  @Test
+  public void testParallelChunksEarliestError() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      MergeSearchComponent component = (MergeSearchComponent)core.getSearchComponent("merge");
+      IndexSchema schema = core.getLatestSchema();
+      for (boolean earlyRequired : new boolean[] { true, false }) {
+        for (int n = 0; n < 10; ++n) {
+          SolrDocumentList[] pages = new SolrDocumentList[2];
+          for (int p = 0; p < 2; ++p) {
+            // failures in three different chunks, the later ones of the other kind
+            pages[p] = page(100);
+            breakParent(pages[p], 15, earlyRequired);
+            breakParent(pages[p], 50, ! earlyRequired);
+            breakParent(pages[p], 75, ! earlyRequired);
+          }
+          RuntimeException sequential = mergeError(component, schema, pages[0], false);
+          RuntimeException parallel = mergeError(component, schema, pages[1], true);
+          assertEquals(earlyRequired ? MergeException.MissingRequiredField.class : MergeException.FieldNotMultiValued.class,
+              sequential.getClass());
+          assertEquals(sequential.getClass(), parallel.getClass());
+          assertEquals(sequential.getMessage(), parallel.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * When streaming, docs should only be merged when got, and then be the same as when merged up front.
+   */
+  @Test
+  public void testStream() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("sort", "letter asc");
+      params.add("fl", "*,[shard],score");
+
+      SolrDocumentList merged = queryDocs(core, "merge", params);
+      params.add("merge.stream", "true");
+      SolrDocumentList streamed = queryDocs(core, "merge", params);
+      assertEquals(3, streamed.size());
+      assertTrue(streamed instanceof MergingDocumentList);
+
+      MergingDocumentList docs = (MergingDocumentList)streamed;
+      assertFalse(docs.isMerged(0));
+      docs.get(0);
+      assertTrue(docs.isMerged(0));
+      assertFalse(docs.isMerged(1));
+
+      int i = 0;
+      for (SolrDocument doc : streamed) {
+        assertEquals(0, doc.getChildDocumentCount());
+        assertEquals(new TreeMap<String, Object>(merged.get(i)).toString(), new TreeMap<String, Object>(doc).toString());
+        ++i;
+      }
+      assertEquals(3, i);
+    }
+  }
+
+  /**
+   * When streaming, merge errors happen as the docs are got.
+   */
+  @Test(expected=MergeException.FieldNotMultiValued.class)
+  public void testStreamSingleValued() throws Exception {
+    try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.add("q", "*:*");
+      params.add("shards", "shard1/,shard4/");
+      params.add("fl", "single");
+      params.add("merge.stream", "true");
+
+      SolrDocumentList docs = queryDocs(core, "merge", params);
+      for (SolrDocument doc : docs) {
+        assertNotNull(doc);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,108 @@
+package org.apache.solr.search.federated;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * The distinct values of a field, kept exactly until there are more than
+ * exactLimit of them, and then as a HyperLogLog sketch. Shards send theirs to
+ * the aggregator (see toNamedList()), which merges them all to count the
+ * distinct values across shards.
+ */
+class DistinctValues {
+
+	private static final String VALUES = "values";
+	private static final String PRECISION = "precision";
+	private static final String REGISTERS = "registers";
+
+	private final int precision;
+
+	private final int exactLimit;
+
+	// null once there are too many values to keep
+	private Set<String> values = new HashSet<>();
+
+	// null until there are too many values to keep
+	private HyperLogLog sketch;
+
+	DistinctValues(int precision, int exactLimit) {
+		this.precision = precision;
+		this.exactLimit = exactLimit;
+		if (exactLimit <= 0) {
+			toSketch();
+		}
+	}
+
+	public void add(String value) {
+		if (values != null) {
+			values.add(value);
+			if (values.size() > exactLimit) {
+				toSketch();
+			}
+		} else {
+			sketch.add(value);
+		}
+	}
+
+	private void toSketch() {
+		sketch = new HyperLogLog(precision);
+		if (values != null) {
+			for (String value : values) {
+				sketch.add(value);
+			}
+			values = null;
+		}
+	}
+
+	/**
+	 * Merge a shard's distinct values, as returned by toNamedList(). Lists of
+	 * values are kept whatever their number, so that the count stays exact
+	 * while every shard sends its values (each shard sends at most exactLimit).
+	 */
+	@SuppressWarnings("rawtypes")
+	public void merge(NamedList shardValues) {
+		List shardList = (List)shardValues.get(VALUES);
+		if (shardList != null) {
+			for (Object value : shardList) {
+				if (values != null) {
+					values.add(value.toString());
+				} else {
+					sketch.add(value.toString());
+				}
+			}
+		} else {
+			if (values != null) {
+				toSketch();
+			}
+			Number p = (Number)shardValues.get(PRECISION);
+			sketch.merge(new HyperLogLog(p.intValue(), (byte[])shardValues.get(REGISTERS)));
+		}
+	}
+
+	/**
+	 * Whether count() is exact.
+	 */
+	public boolean isExact() {
+		return values != null;
+	}
+
+	public long count() {
+		return values != null ? values.size() : sketch.cardinality();
+	}
+
+	public NamedList<Object> toNamedList() {
+		NamedList<Object> nl = new NamedList<>();
+		if (values != null) {
+			nl.add(VALUES, new ArrayList<>(values));
+		} else {
+			nl.add(PRECISION, sketch.getPrecision());
+			nl.add(REGISTERS, sketch.getRegisters());
+		}
+		return nl;
+	}
+
+}
@@ -0,0 +1,126 @@
+package org.apache.solr.search.federated;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * A HyperLogLog sketch, for estimating the number of distinct values seen.
+ * It has 2^precision one-byte registers, and a relative standard error of
+ * about 1.04/sqrt(2^precision) (0.8% for the default precision of 14).
+ * Sketches of the same precision can be merged, giving the sketch of the
+ * union of their values.
+ */
+class HyperLogLog {
+
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 18;
+	public static final int DEFAULT_PRECISION = 14;
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	HyperLogLog(int precision) {
+		this(precision, new byte[checkPrecision(precision)]);
+	}
+
+	HyperLogLog(int precision, byte[] registers) {
+		if (registers.length != checkPrecision(precision)) {
+			throw new IllegalArgumentException("Expected " + (1 << precision) + " registers, not " + registers.length);
+		}
+		this.precision = precision;
+		this.registers = registers;
+	}
+
+	// returns the number of registers
+	private static int checkPrecision(int precision) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("HyperLogLog precision must be from " + MIN_PRECISION + " to " + MAX_PRECISION);
+		}
+		return 1 << precision;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	public byte[] getRegisters() {
+		return registers;
+	}
+
+	/**
+	 * Add a value, given its 64 bit hash.
+	 */
+	public void add(long hash) {
+		int index = (int)(hash >>> (64 - precision));
+		// position of the first 1 bit in the rest of the hash (at most 64 - precision + 1)
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if (rank > registers[index]) {
+			registers[index] = (byte)rank;
+		}
+	}
+
+	public void add(String value) {
+		add(hash(value));
+	}
+
+	/**
+	 * Merge another sketch (of the same precision) into this one.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Cannot merge HyperLogLog of precision " + other.precision + " into one of precision " + precision);
+		}
+		for (int i = 0; i < registers.length; ++i) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * Estimate the number of distinct values added.
+	 */
+	public long cardinality() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				++zeros;
+			}
+		}
+		double alpha;
+		switch (m) {
+		case 16: alpha = 0.673; break;
+		case 32: alpha = 0.697; break;
+		case 64: alpha = 0.709; break;
+		default: alpha = 0.7213 / (1 + 1.079 / m);
+		}
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// small range correction (linear counting)
+			estimate = m * Math.log((double)m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Get the 64 bit hash of a value (from its UTF-8 bytes), so that equal
+	 * values from different shards have the same hash.
+	 */
+	public static long hash(String value) {
+		BytesRef bytes = new BytesRef(value);
+		long h = ((long)StringHelper.murmurhash3_x86_32(bytes, 0x9747b28c) << 32)
+				| (StringHelper.murmurhash3_x86_32(bytes, 0x5bd1e995) & 0xffffffffL);
+		// MurmurHash3 finaliser, to mix the two halves
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb3f97b8f1f53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
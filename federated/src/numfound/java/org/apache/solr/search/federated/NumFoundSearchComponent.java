@@ -3,28 +3,58 @@ package org.apache.solr.search.federated;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.ShardRequest;
 import org.apache.solr.handler.component.ShardResponse;
-import org.apache.solr.schema.CopyField;
 import org.apache.solr.schema.FieldType;
-import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
 
+/**
+ * Counts the distinct values of the join field over all the docs matching a
+ * federated query. Each shard works out the join field values of its matching
+ * docs (from doc values, or the field cache) and returns them, or a
+ * HyperLogLog sketch of them if there are more than exactLimit, along with
+ * its top ids. The aggregator merges these into the number of distinct join
+ * values, which is exact if all shards returned their values, and otherwise
+ * an estimate with a relative error of about 1.04/sqrt(2^precision).
+ *
+ * The count replaces the numFound of the response, and the "federated" section
+ * of the response has it (as numFound) along with whether it is exact, and
+ * the numFound of each shard.
+ *
+ * Initialisation parameters are joinField, precision (default 14) and
+ * exactLimit (default 1000). The last two can be overridden by request
+ * parameters djoin.precision and djoin.exactLimit; a large exactLimit gives an
+ * exact count, and an exactLimit of 0 always uses sketches.
+ */
 public class NumFoundSearchComponent extends SearchComponent {
 
 	public static final String COMPONENT_NAME = "djoin";
@@ -38,14 +68,32 @@ public class NumFoundSearchComponent extends SearchComponent {
 	// initialisation parameters
 	public static final String INIT_JOIN_FIELD = "joinField";
 	public static final String INIT_IGNORE_CONVERSION_ERRORS = "ignoreConversionErrors";
+	public static final String INIT_PRECISION = "precision";
+	public static final String INIT_EXACT_LIMIT = "exactLimit";
 	
 	// request parameters
+	/** @deprecated no longer used */
+	@Deprecated
 	public static final String DEBUG_PARAMETER = COMPONENT_NAME + ".debug";
+	public static final String PRECISION_PARAMETER = COMPONENT_NAME + "." + INIT_PRECISION;
+	public static final String EXACT_LIMIT_PARAMETER = COMPONENT_NAME + "." + INIT_EXACT_LIMIT;
+	
+	// set on shard requests for join values
+	public static final String DISTINCT_PARAMETER = COMPONENT_NAME + ".distinct";
+	
+	// shard response with join values (or their sketch)
+	public static final String FEDERATED_COUNTS = "federated_counts";
+	
+	public static final int DEFAULT_EXACT_LIMIT = 1000;
 	
 	private String joinField;
 	
 	private boolean ignoreConversionErrors = false;
 	
+	private int precision = HyperLogLog.DEFAULT_PRECISION;
+	
+	private int exactLimit = DEFAULT_EXACT_LIMIT;
+	
     @Override
     @SuppressWarnings("rawtypes")
     public void init(NamedList args) {
@@ -56,6 +104,14 @@ public class NumFoundSearchComponent extends SearchComponent {
     	if (b != null) {
     		ignoreConversionErrors = b.booleanValue();
     	}
+    	Object p = args.get(INIT_PRECISION);
+    	if (p != null) {
+    		precision = Integer.parseInt(p.toString());
+    	}
+    	Object limit = args.get(INIT_EXACT_LIMIT);
+    	if (limit != null) {
+    		exactLimit = Integer.parseInt(limit.toString());
+    	}
     }
     
     private static List<String> getFieldList(SolrParams params) {
@@ -64,114 +120,133 @@ public class NumFoundSearchComponent extends SearchComponent {
 
 	@Override
 	public void prepare(ResponseBuilder rb) throws IOException {
-		System.out.println("===== PREPARE =====");
-		System.out.println("shards=" + rb.shards);
-
-		// only do this on aggregator
-		if (rb.shards == null) return;
+		SolrParams params = rb.req.getParams();
+		if (rb.shards == null) {
+			// on a shard, we need the doc set to find the join values
+			if (params.getBool(DISTINCT_PARAMETER, false)) {
+				rb.setNeedDocSet(true);
+			}
+			return;
+		}
 
-		List<String> fl = getFieldList(rb.req.getParams());
+		List<String> fl = getFieldList(params);
 		rb.req.getContext().put(COMPONENT_NAME + CommonParams.FL, fl);
 		
-		Map<String, Long> numFounds = new HashMap<>();
+		NamedList<Long> numFounds = new NamedList<>();
 		rb.req.getContext().put(COMPONENT_NAME + "numFounds", numFounds);
 		
-		Set<Object> joinIds = new HashSet<>();
+		DistinctValues joinIds = new DistinctValues(getPrecision(params), getExactLimit(params));
 		rb.req.getContext().put(COMPONENT_NAME + "joinIds", joinIds);
 	}
 	
+	private int getPrecision(SolrParams params) {
+		int p = params.getInt(PRECISION_PARAMETER, precision);
+		if (p < HyperLogLog.MIN_PRECISION || p > HyperLogLog.MAX_PRECISION) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+					PRECISION_PARAMETER + " must be from " + HyperLogLog.MIN_PRECISION + " to " + HyperLogLog.MAX_PRECISION);
+		}
+		return p;
+	}
+	
+	private int getExactLimit(SolrParams params) {
+		return params.getInt(EXACT_LIMIT_PARAMETER, exactLimit);
+	}
+	
 	@SuppressWarnings("unchecked")
 	private static boolean fieldListIncludes(ResponseBuilder rb, String fieldName) {
 		List<String> fl = (List<String>)rb.req.getContext().get(COMPONENT_NAME + CommonParams.FL);
 		return fl.contains(fieldName);
 	}
 	
-	private static boolean isDebug(ResponseBuilder rb) {
-		return rb.req.getParams().getBool(DEBUG_PARAMETER, false);
-	}
-
 	@Override
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void process(ResponseBuilder rb) throws IOException {
-		System.out.println("===== PROCESS =====");
-		System.out.println("shards=" + rb.shards);
-		
-		// only do this on shards
+		// only do this on shards, when asked by the aggregator
 		if (rb.shards != null) return;
+		SolrParams params = rb.req.getParams();
+		if (! params.getBool(DISTINCT_PARAMETER, false)) return;
 		
-		// output list of all group values
-		NamedList federated = new NamedList();
-		rb.rsp.getValues().add("federated_counts", federated);
-		
-		NamedList counts = (NamedList)rb.rsp.getValues().get("facet_counts");
-		if (counts == null) return;
-		
-		NamedList fields = (NamedList)counts.get("facet_fields");
-		if (fields == null) return;
-
-		for (int i = 0; i < fields.size(); ++i) {
-			String field = fields.getName(i);
-			List values = new ArrayList();
-			federated.add(field, values);
-			
-			NamedList v = (NamedList)fields.get(field);
-			for (int j = 0; j < v.size(); ++j) {
-				values.add(v.getName(j));
+		SolrIndexSearcher searcher = rb.req.getSearcher();
+		DocSet docs = rb.getResults() != null ? rb.getResults().docSet : null;
+		if (docs == null) {
+			List<Query> queries = new ArrayList<>();
+			queries.add(rb.getQuery());
+			if (rb.getFilters() != null) {
+				queries.addAll(rb.getFilters());
 			}
+			docs = searcher.getDocSet(queries);
 		}
 		
-		// remove the unfederated results?
-		if (! isDebug(rb)) {
-			rb.rsp.getValues().remove("facet_counts");
-		}
+		DistinctValues joinIds = new DistinctValues(getPrecision(params), getExactLimit(params));
+		addJoinValues(searcher, docs, joinIds);
+		rb.rsp.add(FEDERATED_COUNTS, joinIds.toNamedList());
 	}
 	
-	/** not called on shards, i.e. only aggregator */
-	public int distributedProcess(ResponseBuilder rb) throws IOException {
-		System.out.println("===== DISTRIBUTED PROCESS =====");
-		System.out.println("stage=" + rb.stage);
-		return super.distributedProcess(rb);
+	// add the join field values of the given docs
+	@SuppressWarnings("rawtypes")
+	private void addJoinValues(SolrIndexSearcher searcher, DocSet docs, DistinctValues joinIds) throws IOException {
+		SchemaField field = searcher.getSchema().getField(joinField);
+		FieldType type = field.getType();
+		Filter filter = docs.getTopFilter();
+		Map context = ValueSource.newContext(searcher);
+		for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+			DocIdSet set = filter.getDocIdSet(leaf, null);
+			DocIdSetIterator it = set != null ? set.iterator() : null;
+			if (it == null) continue;
+			
+			if (type instanceof TrieField && ! field.multiValued()) {
+				// single valued numbers have no ordinals
+				FunctionValues values = type.getValueSource(field, null).getValues(context, leaf);
+				for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+					if (values.exists(doc)) {
+						joinIds.add(values.strVal(doc));
+					}
+				}
+				continue;
+			}
+			
+			// note the ordinals seen, then only look up each of those once
+			SortedSetDocValues ords = field.multiValued()
+					? FieldCache.DEFAULT.getDocTermOrds(leaf.reader(), joinField)
+					: DocValues.singleton(FieldCache.DEFAULT.getTermsIndex(leaf.reader(), joinField));
+			FixedBitSet seen = new FixedBitSet((int)ords.getValueCount());
+			for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+				ords.setDocument(doc);
+				for (long ord = ords.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = ords.nextOrd()) {
+					seen.set((int)ord);
+				}
+			}
+			CharsRef chars = new CharsRef();
+			DocIdSetIterator seenOrds = seen.iterator();
+			for (int ord = seenOrds.nextDoc(); ord != DocIdSetIterator.NO_MORE_DOCS; ord = seenOrds.nextDoc()) {
+				joinIds.add(type.indexedToReadable(ords.lookupOrd(ord), chars).toString());
+			}
+		}
 	}
 	
 	@Override
 	public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
-		System.out.println("===== MODIFY REQUEST =====");
-		System.out.println("who=" + who);
-		System.out.println("purpose=" + sreq.purpose);
+		if ((sreq.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) > 0) {
+			// get join ids from the shards while they run the query
+			SolrParams params = rb.req.getParams();
+			sreq.params.set(DISTINCT_PARAMETER, true);
+			sreq.params.set(PRECISION_PARAMETER, getPrecision(params));
+			sreq.params.set(EXACT_LIMIT_PARAMETER, getExactLimit(params));
+		}
 		if ((sreq.purpose & ShardRequest.PURPOSE_GET_FIELDS) > 0) {
 			if (fieldListIncludes(rb, DJOIN_FIELD)) {
 				Set<String> fl = new HashSet<>(getFieldList(sreq.params));
 				fl.add(SHARD_FIELD);
 				sreq.params.set(CommonParams.FL, String.join(",", fl));
 			}
-			
-			// enable faceting on shards to get join ids
-			sreq.params.set("facet", true);
-			sreq.params.set("facet.field", joinField);
 		}
 	}
 	
 	@Override
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public void finishStage(ResponseBuilder rb) {
-		System.out.println("===== FINISH STAGE =====");
-		System.out.println("shards=" + rb.shards);
-
-		SolrCore core = rb.req.getCore();
-		IndexSchema schema = core.getLatestSchema();
-		String uniqueKeyField = schema.getUniqueKeyField().getName();
-		
-		boolean includeShardId = fieldListIncludes(rb, DJOIN_FIELD);
-		boolean includeShard = fieldListIncludes(rb, SHARD_FIELD);
-
 		// only do this in final stage
-		if (rb.stage != 3000) return;
-		
-		System.out.println("*** Federating results ***");
+		if (rb.stage != ResponseBuilder.STAGE_GET_FIELDS) return;
 		
-		SolrDocumentList feds = new SolrDocumentList();
-		//rb.rsp.getValues().add("federated", feds);
-
 		/*NamedList results = (NamedList)grouped.get(joinField);
 		feds.setNumFound((Integer)results.get("matches"));
 		feds.setStart(rb.getQueryCommand().getOffset());
@@ -209,18 +284,19 @@ public class NumFoundSearchComponent extends SearchComponent {
 			feds.add(superDoc);
 		}*/
 		
-		// for now, just add the numFounds for each shard to the results...
-		/*NamedList details = new NamedList();
+		// add the numFounds for each shard, and the number of distinct join ids, to the results
+		NamedList<Long> numFounds = (NamedList<Long>)rb.req.getContext().get(COMPONENT_NAME + "numFounds");
+		DistinctValues joinIds = (DistinctValues)rb.req.getContext().get(COMPONENT_NAME + "joinIds");
+		NamedList details = new NamedList();
 		rb.rsp.getValues().add("federated", details);
-		Map<String, Long> numFounds = (Map<String, Long>)rb.req.getContext().get(COMPONENT_NAME + "numFounds");
-		details.add("numFounds", numFounds);*/
-
-		// ... and the size of joinIds
-		/*Set<Object> joinIds = (Set<Object>)rb.req.getContext().get(COMPONENT_NAME + "joinIds");
-		details.add("joinIds", joinIds);
+		details.add("numFounds", numFounds);
+		details.add("numFound", joinIds.count());
+		details.add("exact", joinIds.isExact());
+		
 		SolrDocumentList docs = (SolrDocumentList)rb.rsp.getValues().get("response");
-		//docs.setNumFound((long)joinIds.size());
-		numFounds.put("total", (long)joinIds.size());*/
+		if (docs != null) {
+			docs.setNumFound(joinIds.count());
+		}
 	}
 	
 	private void addConvertedFieldValue(SolrDocument superDoc, Object value, SchemaField field) {
@@ -262,22 +338,22 @@ public class NumFoundSearchComponent extends SearchComponent {
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public void handleResponses(ResponseBuilder rb, ShardRequest req) {
-		System.out.println("===== HANDLE RESPONSES =====");
-		System.out.println("purpose=" + req.purpose);
-		System.out.println("Shards: " + (req.shards != null ? String.join(" ", req.shards) : "(null)"));
-		if ((req.purpose & ShardRequest.PURPOSE_GET_FIELDS) > 0) {
-			Map<String, Long> numFounds = (Map<String, Long>)rb.req.getContext().get(COMPONENT_NAME + "numFounds");
-			Set<Object> joinIds = (Set<Object>)rb.req.getContext().get(COMPONENT_NAME + "joinIds");
+		if ((req.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) > 0) {
+			NamedList<Long> numFounds = (NamedList<Long>)rb.req.getContext().get(COMPONENT_NAME + "numFounds");
+			DistinctValues joinIds = (DistinctValues)rb.req.getContext().get(COMPONENT_NAME + "joinIds");
 			for (ShardResponse rsp : req.responses) {
 				NamedList response = rsp.getSolrResponse().getResponse();
+				if (response == null) continue;
 				SolrDocumentList results = (SolrDocumentList)response.get("response");
-				numFounds.put(rsp.getShard(), results.getNumFound());
-				NamedList counts = (NamedList)response.get("facet_counts");
-				if (counts != null) {
-					NamedList fields = (NamedList)counts.get("facet_fields");
-					NamedList values = (NamedList)fields.get(joinField);
-					for (int i = 0; i < values.size(); ++i) {
-						joinIds.add(values.getName(i));
+				if (results != null) {
+					numFounds.add(rsp.getShard(), results.getNumFound());
+				}
+				NamedList shardJoinIds = (NamedList)response.get(FEDERATED_COUNTS);
+				if (shardJoinIds != null) {
+					try {
+						joinIds.merge(shardJoinIds);
+					} catch (IllegalArgumentException e) {
+						throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Bad join ids from shard " + rsp.getShard(), e);
 					}
 				}
 			}
@@ -0,0 +1,107 @@
+package org.apache.solr.search.federated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class TestDistinctValues {
+
+	private static final int PRECISION = HyperLogLog.DEFAULT_PRECISION;
+
+	// the distinct values from..to-1 (as strings)
+	private DistinctValues values(int exactLimit, int from, int to) {
+		DistinctValues values = new DistinctValues(PRECISION, exactLimit);
+		for (int i = from; i < to; ++i) {
+			values.add("value" + i);
+		}
+		return values;
+	}
+
+	private void assertEstimate(DistinctValues values, long count) {
+		long estimate = values.count();
+		assertTrue("estimated " + estimate + " for " + count, Math.abs(estimate - count) <= 0.03 * count);
+	}
+
+	/**
+	 * Up to exactLimit values are counted exactly.
+	 */
+	@Test
+	public void testExact() {
+		DistinctValues values = values(100, 0, 100);
+		for (int i = 0; i < 100; ++i) {
+			values.add("value" + i);
+		}
+		assertTrue(values.isExact());
+		assertEquals(100, values.count());
+	}
+
+	/**
+	 * Beyond exactLimit values, they are counted by a sketch.
+	 */
+	@Test
+	public void testSketch() {
+		DistinctValues values = values(100, 0, 101);
+		assertFalse(values.isExact());
+		assertEstimate(values, 101);
+
+		values = values(100, 0, 10000);
+		assertFalse(values.isExact());
+		assertEstimate(values, 10000);
+	}
+
+	/**
+	 * An exactLimit of 0 always uses a sketch.
+	 */
+	@Test
+	public void testNoExactLimit() {
+		DistinctValues values = new DistinctValues(PRECISION, 0);
+		assertFalse(values.isExact());
+		assertEquals(0, values.count());
+	}
+
+	/**
+	 * Shard lists merged at the aggregator stay exact, even when there are
+	 * more than exactLimit values in all.
+	 */
+	@Test
+	public void testMergeExact() {
+		DistinctValues merged = new DistinctValues(PRECISION, 100);
+		merged.merge(values(100, 0, 100).toNamedList());
+		merged.merge(values(100, 50, 150).toNamedList());
+		merged.merge(values(100, 150, 250).toNamedList());
+		assertTrue(merged.isExact());
+		assertEquals(250, merged.count());
+	}
+
+	/**
+	 * Once any shard sends a sketch, the count is an estimate.
+	 */
+	@Test
+	public void testMergeSketch() {
+		DistinctValues merged = new DistinctValues(PRECISION, 100);
+		merged.merge(values(100, 0, 100).toNamedList());
+		merged.merge(values(100, 0, 20000).toNamedList());
+		merged.merge(values(100, 19950, 20050).toNamedList());
+		assertFalse(merged.isExact());
+		assertEstimate(merged, 20050);
+	}
+
+	/**
+	 * Shard values should survive encoding and decoding.
+	 */
+	@Test
+	public void testRoundTrip() {
+		for (int count : new int[] { 50, 5000 }) {
+			DistinctValues shard = values(100, 0, count);
+			NamedList<Object> nl = shard.toNamedList();
+			DistinctValues merged = new DistinctValues(PRECISION, 100);
+			merged.merge(nl);
+			assertEquals(shard.isExact(), merged.isExact());
+			assertEquals(shard.count(), merged.count());
+		}
+	}
+
+}
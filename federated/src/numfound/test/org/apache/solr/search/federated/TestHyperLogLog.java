@@ -0,0 +1,85 @@
+package org.apache.solr.search.federated;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHyperLogLog {
+
+	// a sketch of the values from..to-1 (as strings)
+	private HyperLogLog sketch(int precision, int from, int to) {
+		HyperLogLog hll = new HyperLogLog(precision);
+		for (int i = from; i < to; ++i) {
+			hll.add("value" + i);
+		}
+		return hll;
+	}
+
+	// check the estimate is within three standard errors of the actual count
+	private void assertEstimate(HyperLogLog hll, long count) {
+		double error = 3 * 1.04 / Math.sqrt(1 << hll.getPrecision());
+		long estimate = hll.cardinality();
+		assertTrue("estimated " + estimate + " for " + count, Math.abs(estimate - count) <= error * count);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(0, new HyperLogLog(HyperLogLog.DEFAULT_PRECISION).cardinality());
+	}
+
+	/**
+	 * The relative error should be about 1.04/sqrt(2^precision).
+	 */
+	@Test
+	public void testRelativeError() {
+		for (int precision : new int[] { 10, HyperLogLog.DEFAULT_PRECISION }) {
+			for (int count : new int[] { 10, 100, 1000, 10000, 100000 }) {
+				assertEstimate(sketch(precision, 0, count), count);
+			}
+		}
+	}
+
+	/**
+	 * Adding a value again should not change the estimate.
+	 */
+	@Test
+	public void testDuplicates() {
+		HyperLogLog hll = sketch(HyperLogLog.DEFAULT_PRECISION, 0, 1000);
+		long estimate = hll.cardinality();
+		for (int i = 0; i < 1000; ++i) {
+			hll.add("value" + i);
+		}
+		assertEquals(estimate, hll.cardinality());
+	}
+
+	/**
+	 * Merging sketches of overlapping values should give the same sketch as
+	 * adding all the values to one.
+	 */
+	@Test
+	public void testMerge() {
+		HyperLogLog merged = sketch(HyperLogLog.DEFAULT_PRECISION, 0, 30000);
+		merged.merge(sketch(HyperLogLog.DEFAULT_PRECISION, 20000, 50000));
+		HyperLogLog all = sketch(HyperLogLog.DEFAULT_PRECISION, 0, 50000);
+		assertArrayEquals(all.getRegisters(), merged.getRegisters());
+		assertEstimate(merged, 50000);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMergePrecision() {
+		new HyperLogLog(10).merge(new HyperLogLog(12));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testPrecisionRange() {
+		new HyperLogLog(HyperLogLog.MAX_PRECISION + 1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRegisterCount() {
+		new HyperLogLog(10, new byte[1 << 12]);
+	}
+
+}
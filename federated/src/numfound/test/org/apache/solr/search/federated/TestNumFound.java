@@ -0,0 +1,122 @@
+package org.apache.solr.search.federated;
+
+import java.util.Properties;
+
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * An aggregator ("merge") with NumFoundSearchComponent, and two shards whose
+ * ids overlap: "count1" has ids 1 to 300, and "count2" ids 151 to 450.
+ */
+public class TestNumFound extends BaseTestCase {
+
+	private static final String SHARDS = "count1/,count2/";
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		initCores("federated/solr/solr-merge.xml", "federated/solr");
+
+		CoreContainer container = h.getCoreContainer();
+		for (int s = 1; s <= 2; ++s) {
+			String name = "count" + s;
+			Properties props = new Properties();
+			props.setProperty(CoreDescriptor.CORE_DATADIR, "data-" + name);
+			container.create(new CoreDescriptor(container, name, "loadshard", props));
+			loadShardCore(name, documents(150 * s - 149, 150 * s + 150), "id", "letter", "single", "singlevalued", "required");
+		}
+	}
+
+	// documents with the ids from..to
+	private static String[][] documents(int from, int to) {
+		String[][] docs = new String[to - from + 1][];
+		for (int i = from; i <= to; ++i) {
+			String letter = Character.toString((char)('A' + i % 26));
+			docs[i - from] = new String[] { Integer.toString(i), letter, "s" + i, "v" + i, "r" };
+		}
+		return docs;
+	}
+
+	private ModifiableSolrParams params(String q) {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", q);
+		params.add("shards", SHARDS);
+		params.add("rows", "5");
+		return params;
+	}
+
+	private NamedList<?> federated(SolrQueryResponse rsp) {
+		assertNull(rsp.getException());
+		return (NamedList<?>)rsp.getValues().get("federated");
+	}
+
+	private long numFound(SolrQueryResponse rsp) {
+		return ((SolrDocumentList)rsp.getValues().get("response")).getNumFound();
+	}
+
+	/**
+	 * The numFound is the exact number of distinct ids, while every shard has
+	 * no more than exactLimit of them.
+	 */
+	@Test
+	public void testExact() throws Exception {
+		try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+			SolrQueryResponse rsp = query(core, "load-numfound", params("*:*"));
+			NamedList<?> federated = federated(rsp);
+			assertEquals(450L, federated.get("numFound"));
+			assertEquals(Boolean.TRUE, federated.get("exact"));
+			assertEquals(450L, numFound(rsp));
+
+			NamedList<?> numFounds = (NamedList<?>)federated.get("numFounds");
+			assertEquals(300L, numFounds.get("count1/"));
+			assertEquals(300L, numFounds.get("count2/"));
+
+			// only the matching docs are counted
+			rsp = query(core, "load-numfound", params("letter:A"));
+			assertEquals(17L, federated(rsp).get("numFound"));
+			assertEquals(17L, numFound(rsp));
+		}
+	}
+
+	/**
+	 * Once a shard has more than exactLimit ids, the numFound is estimated.
+	 */
+	@Test
+	public void testSketch() throws Exception {
+		try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+			for (String exactLimit : new String[] { "0", "200" }) {
+				ModifiableSolrParams params = params("*:*");
+				params.add(NumFoundSearchComponent.EXACT_LIMIT_PARAMETER, exactLimit);
+				SolrQueryResponse rsp = query(core, "load-numfound", params);
+				NamedList<?> federated = federated(rsp);
+				assertEquals(Boolean.FALSE, federated.get("exact"));
+				long estimate = (Long)federated.get("numFound");
+				assertTrue("estimated " + estimate, Math.abs(estimate - 450) <= 450 * 0.05);
+				assertEquals(estimate, numFound(rsp));
+			}
+		}
+	}
+
+	/**
+	 * A precision out of range is a bad request.
+	 */
+	@Test
+	public void testBadPrecision() throws Exception {
+		try (SolrCore core = h.getCoreContainer().getCore("merge")) {
+			ModifiableSolrParams params = params("*:*");
+			params.add(NumFoundSearchComponent.PRECISION_PARAMETER, Integer.toString(HyperLogLog.MAX_PRECISION + 1));
+			SolrQueryResponse rsp = query(core, "load-numfound", params);
+			assertTrue(rsp.getException() instanceof SolrException);
+			assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, ((SolrException)rsp.getException()).code());
+		}
+	}
+
+}
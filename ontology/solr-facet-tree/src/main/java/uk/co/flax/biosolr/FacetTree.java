@@ -0,0 +1,631 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Compact representation of a set of facet trees, held in parallel
+ * primitive arrays indexed by node number, plus a table of the node values
+ * and labels.
+ * 
+ * <p>Each node has a value, an optional label, a count and a child count.
+ * A node's children are linked through their first child and next sibling
+ * entries, in the order they should be returned. The top-level nodes are
+ * held separately, in {@link #getRoots()}, and have no siblings.</p>
+ * 
+ * <p>A facet value with several parents gets a node under each of them,
+ * since each has its own next sibling, but those nodes share a single
+ * list of children. Pruners which change the links between nodes must call
+ * {@link #unshareNodes()} first.</p>
+ * 
+ * <p>Pruners work on the tree in place, by unlinking children, changing
+ * child counts, adding nodes and replacing the top-level nodes. The tree is
+ * converted to the response format by {@link #toNamedLists()}, which only
+ * builds each node's {@link NamedList} as it is written.</p>
+ * 
+ * <p>Node numbers are only meaningful within a single tree. A tree is not
+ * thread-safe while it is being built or pruned, but once pruned it is only
+ * read, and may be shared between requests (see
+ * {@link FacetTreeGenerator#CACHE_NAME}).</p>
+ *
+ * @author mlp
+ */
+public class FacetTree {
+	
+	/** Node number used for a missing child, sibling or label. */
+	public static final int NONE = -1;
+	
+	private static final String LABEL_KEY = "label";
+	private static final String VALUE_KEY = "value";
+	private static final String COUNT_KEY = "count";
+	private static final String TOTAL_KEY = "total";
+	private static final String HIERARCHY_KEY = "hierarchy";
+	private static final String EXPANDABLE_KEY = "expandable";
+	
+	/** Depth used to return all of the levels below a node. */
+	public static final int ALL_LEVELS = 0;
+	
+	private static final int INITIAL_SIZE = 16;
+	
+	// String table, holding values and labels
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIds = new HashMap<>();
+	
+	private int size;
+	private int[] values = new int[INITIAL_SIZE];
+	private int[] labels = new int[INITIAL_SIZE];
+	private long[] counts = new long[INITIAL_SIZE];
+	private long[] childCounts = new long[INITIAL_SIZE];
+	private int[] firstChildren = new int[INITIAL_SIZE];
+	private int[] nextSiblings = new int[INITIAL_SIZE];
+	
+	private int[] roots = new int[0];
+	
+	// Whether any list of children is shared by several nodes
+	private boolean shared;
+	
+	/**
+	 * Build a tree from a collection of {@link TreeFacetField}s, as returned by
+	 * a {@link uk.co.flax.biosolr.builders.FacetTreeBuilder}. A node shared by
+	 * several parents gets a node in the tree for each of them, but its
+	 * children are only added once, and are shared by those nodes.
+	 * @param trees the top-level tree nodes.
+	 * @return the equivalent tree.
+	 */
+	public static FacetTree fromTrees(Collection<TreeFacetField> trees) {
+		FacetTree tree = new FacetTree();
+		Map<TreeFacetField, Integer> added = new IdentityHashMap<>();
+		int[] roots = new int[trees.size()];
+		int i = 0;
+		for (TreeFacetField tff : trees) {
+			roots[i ++] = tree.addTree(tff, added);
+		}
+		tree.setRoots(roots);
+		return tree;
+	}
+	
+	private int addTree(TreeFacetField tff, Map<TreeFacetField, Integer> added) {
+		int node = addNode(tff.getValue(), tff.getLabel(), tff.getCount(), tff.getChildCount());
+		if (tff.hasChildren()) {
+			Integer firstChild = added.get(tff);
+			if (firstChild != null) {
+				// Seen under another parent - share its children
+				firstChildren[node] = firstChild;
+				shared = true;
+			} else {
+				int[] children = new int[tff.getHierarchy().size()];
+				int i = 0;
+				for (TreeFacetField child : tff.getHierarchy()) {
+					children[i ++] = addTree(child, added);
+				}
+				setChildren(node, children);
+				added.put(tff, children[0]);
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * Give every node reachable from the top-level nodes its own list of
+	 * children, copying the nodes in any list shared with another node, so
+	 * that the links can be changed. Only the shared lists are copied, and
+	 * the original nodes are left to their first parent.
+	 */
+	public void unshareNodes() {
+		if (!shared) {
+			return;
+		}
+		BitSet reached = new BitSet(size);
+		for (int root : roots) {
+			unshareNodes(root, reached);
+		}
+		shared = false;
+	}
+	
+	private void unshareNodes(int node, BitSet reached) {
+		reached.set(node);
+		int first = firstChildren[node];
+		if (first != NONE && reached.get(first)) {
+			// Already reached through another parent - copy the list, the
+			// copies sharing their own children until they are reached
+			int previous = NONE;
+			for (int child = first; child != NONE; child = nextSiblings[child]) {
+				int copy = copyNode(child);
+				if (previous == NONE) {
+					firstChildren[node] = copy;
+				} else {
+					nextSiblings[previous] = copy;
+				}
+				previous = copy;
+			}
+		}
+		for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+			unshareNodes(child, reached);
+		}
+	}
+	
+	/**
+	 * Add a new node, with no children, to the tree. It is not linked to
+	 * any other node.
+	 * @param value the facet value.
+	 * @param label the label (optional).
+	 * @param count the facet count for the node.
+	 * @param childCount the total count for the node's children.
+	 * @return the new node number.
+	 */
+	public int addNode(String value, String label, long count, long childCount) {
+		if (size == values.length) {
+			grow();
+		}
+		int node = size ++;
+		values[node] = getStringId(value);
+		labels[node] = label == null ? NONE : getStringId(label);
+		counts[node] = count;
+		childCounts[node] = childCount;
+		firstChildren[node] = NONE;
+		nextSiblings[node] = NONE;
+		return node;
+	}
+	
+	// Add a copy of a node, with the same children but no next sibling
+	private int copyNode(int node) {
+		if (size == values.length) {
+			grow();
+		}
+		int copy = size ++;
+		values[copy] = values[node];
+		labels[copy] = labels[node];
+		counts[copy] = counts[node];
+		childCounts[copy] = childCounts[node];
+		firstChildren[copy] = firstChildren[node];
+		nextSiblings[copy] = NONE;
+		return copy;
+	}
+	
+	private int getStringId(String s) {
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+	
+	private void grow() {
+		int newSize = values.length * 2;
+		values = Arrays.copyOf(values, newSize);
+		labels = Arrays.copyOf(labels, newSize);
+		counts = Arrays.copyOf(counts, newSize);
+		childCounts = Arrays.copyOf(childCounts, newSize);
+		firstChildren = Arrays.copyOf(firstChildren, newSize);
+		nextSiblings = Arrays.copyOf(nextSiblings, newSize);
+	}
+	
+	/**
+	 * Copy every node in the tree, keeping the copies linked in the same way
+	 * as the originals. The copy of node <code>n</code> is node
+	 * <code>n + offset</code>.
+	 * @return the offset of the copied nodes.
+	 */
+	public int copyNodes() {
+		int offset = size;
+		while (values.length < size * 2) {
+			grow();
+		}
+		System.arraycopy(values, 0, values, offset, size);
+		System.arraycopy(labels, 0, labels, offset, size);
+		System.arraycopy(counts, 0, counts, offset, size);
+		System.arraycopy(childCounts, 0, childCounts, offset, size);
+		for (int i = 0; i < offset; i ++) {
+			firstChildren[offset + i] = firstChildren[i] == NONE ? NONE : firstChildren[i] + offset;
+			nextSiblings[offset + i] = nextSiblings[i] == NONE ? NONE : nextSiblings[i] + offset;
+		}
+		size += offset;
+		return offset;
+	}
+	
+	/**
+	 * @return the number of nodes in the tree, including any which are no
+	 * longer linked to the top-level nodes.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the top-level nodes, in order.
+	 */
+	public int[] getRoots() {
+		return roots;
+	}
+	
+	/**
+	 * Replace the top-level nodes.
+	 * @param roots the new top-level nodes, in order.
+	 */
+	public void setRoots(int[] roots) {
+		this.roots = roots;
+	}
+	
+	public String getValue(int node) {
+		return strings.get(values[node]);
+	}
+	
+	public String getLabel(int node) {
+		return labels[node] == NONE ? null : strings.get(labels[node]);
+	}
+	
+	public long getCount(int node) {
+		return counts[node];
+	}
+	
+	public long getChildCount(int node) {
+		return childCounts[node];
+	}
+	
+	public void setChildCount(int node, long childCount) {
+		childCounts[node] = childCount;
+	}
+	
+	public long getTotal(int node) {
+		return counts[node] + childCounts[node];
+	}
+	
+	public int getFirstChild(int node) {
+		return firstChildren[node];
+	}
+	
+	public int getNextSibling(int node) {
+		return nextSiblings[node];
+	}
+	
+	public boolean hasChildren(int node) {
+		return firstChildren[node] != NONE;
+	}
+	
+	/**
+	 * Get a node's children.
+	 * @param node the node.
+	 * @return the children, in order.
+	 */
+	public int[] getChildren(int node) {
+		int n = 0;
+		for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+			n ++;
+		}
+		int[] children = new int[n];
+		n = 0;
+		for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+			children[n ++] = child;
+		}
+		return children;
+	}
+	
+	/**
+	 * Replace a node's children.
+	 * @param node the parent node.
+	 * @param children the child nodes, in order. These must not be linked
+	 * to any other parent.
+	 */
+	public void setChildren(int node, int[] children) {
+		firstChildren[node] = children.length == 0 ? NONE : children[0];
+		for (int i = 0; i < children.length; i ++) {
+			nextSiblings[children[i]] = i + 1 < children.length ? children[i + 1] : NONE;
+		}
+	}
+	
+	/**
+	 * Unlink a child from its parent.
+	 * @param parent the parent node.
+	 * @param previous the child's previous sibling, or {@link #NONE} if it is
+	 * the first child.
+	 * @param child the child to unlink.
+	 */
+	public void removeChild(int parent, int previous, int child) {
+		if (previous == NONE) {
+			firstChildren[parent] = nextSiblings[child];
+		} else {
+			nextSiblings[previous] = nextSiblings[child];
+		}
+		nextSiblings[child] = NONE;
+	}
+	
+	/**
+	 * Recalculate and update the child count for a node and all of its
+	 * descendants, as {@link TreeFacetField#recalculateChildCount()}.
+	 * @param node the node.
+	 * @return the new total count for the node.
+	 */
+	public long recalculateChildCount(int node) {
+		long childCount = 0;
+		for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+			childCount += recalculateChildCount(child);
+		}
+		childCounts[node] = childCount;
+		return getTotal(node);
+	}
+	
+	/**
+	 * Check whether two nodes are equivalent, as {@link TreeFacetField#equals(Object)}:
+	 * they have the same value, label, count and child count.
+	 */
+	public boolean nodeEquals(int a, int b) {
+		return a == b || (values[a] == values[b] && labels[a] == labels[b]
+				&& counts[a] == counts[b] && childCounts[a] == childCounts[b]);
+	}
+	
+	/**
+	 * Create an empty set of nodes in this tree, which are compared using
+	 * {@link #nodeEquals(int, int)}.
+	 * @return the new set.
+	 */
+	public NodeSet newNodeSet() {
+		return new NodeSet();
+	}
+	
+	/**
+	 * Compare two nodes, as {@link TreeFacetField#compareTo(TreeFacetField)}.
+	 */
+	public int compareNodes(int a, int b) {
+		int ret;
+		
+		if (nodeEquals(a, b)) {
+			ret = 0;
+		} else {
+			// Compare the total, then the count if the totals are the same
+			ret = (int) (getTotal(a) - getTotal(b)) | (int) (counts[a] - counts[b]);
+			if (ret == 0) {
+				ret = getValue(a).compareTo(getValue(b));
+				if (ret == 0 && StringUtils.isNotBlank(getLabel(a)) && StringUtils.isNotBlank(getLabel(b))) {
+					ret = getLabel(a).compareTo(getLabel(b));
+				}
+			}
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Get the top-level nodes in the response format: a list of maps, one
+	 * for each node, holding its value, label, count, total and hierarchy.
+	 * The maps (and their hierarchy lists) are built as they are read, so
+	 * the whole tree is never held in that format at once.
+	 * @return a list of the top-level nodes.
+	 */
+	public List<NamedList<Object>> toNamedLists() {
+		return toNamedLists(roots, ALL_LEVELS);
+	}
+	
+	/**
+	 * Get a set of nodes in the response format, down to a given depth.
+	 * Nodes at the lowest level which have children are returned without
+	 * their hierarchy, and marked as expandable instead. Their totals still
+	 * include all of their descendants.
+	 * @param nodes the nodes to return.
+	 * @param depth the number of levels to return, counting the given nodes
+	 * as the first level, or {@link #ALL_LEVELS}.
+	 * @return a list of the nodes.
+	 */
+	public List<NamedList<Object>> toNamedLists(int[] nodes, int depth) {
+		return new NodeList(nodes, depth <= ALL_LEVELS ? Integer.MAX_VALUE : depth);
+	}
+	
+	/**
+	 * Build the map for a single node, with all of its levels.
+	 * @param node the node.
+	 * @return the node's map, with a lazy list of its children.
+	 */
+	public SimpleOrderedMap<Object> toMap(int node) {
+		return toMap(node, Integer.MAX_VALUE);
+	}
+	
+	private SimpleOrderedMap<Object> toMap(int node, int depth) {
+		SimpleOrderedMap<Object> map = new SimpleOrderedMap<>();
+		
+		if (labels[node] != NONE) {
+			map.add(LABEL_KEY, getLabel(node));
+		}
+		map.add(VALUE_KEY, getValue(node));
+		map.add(COUNT_KEY, counts[node]);
+		map.add(TOTAL_KEY, getTotal(node));
+		if (hasChildren(node)) {
+			if (depth > 1) {
+				map.add(HIERARCHY_KEY, new NodeList(getChildren(node), depth - 1));
+			} else {
+				map.add(EXPANDABLE_KEY, true);
+			}
+		}
+		
+		return map;
+	}
+	
+	/**
+	 * Find the first node with a given value, searching each top-level tree
+	 * in turn, depth first.
+	 * @param value the node value.
+	 * @return the node, or {@link #NONE} if there is no node with the value.
+	 */
+	public int findNode(String value) {
+		Integer valueId = stringIds.get(value);
+		if (valueId != null) {
+			BitSet searched = new BitSet();
+			for (int root : roots) {
+				int node = findNode(root, valueId, searched);
+				if (node != NONE) {
+					return node;
+				}
+			}
+		}
+		return NONE;
+	}
+	
+	// searched holds the first children of the lists already searched, so
+	// a shared list is only searched once
+	private int findNode(int node, int valueId, BitSet searched) {
+		if (values[node] == valueId) {
+			return node;
+		}
+		int first = firstChildren[node];
+		if (first == NONE || searched.get(first)) {
+			return NONE;
+		}
+		searched.set(first);
+		for (int child = first; child != NONE; child = nextSiblings[child]) {
+			int found = findNode(child, valueId, searched);
+			if (found != NONE) {
+				return found;
+			}
+		}
+		return NONE;
+	}
+	
+	/**
+	 * Hash set of nodes, holding at most one of each group of equivalent
+	 * nodes. Looking up a node is a single hash probe, rather than a search
+	 * of the trees. The nodes held should not be changed while they are in
+	 * the set.
+	 */
+	public class NodeSet {
+		
+		// Open addressing table of node numbers, NONE for an empty slot
+		private int[] table = newTable(INITIAL_SIZE);
+		private int nodeCount;
+		// The first children of the lists whose nodes have all been added
+		private final BitSet added = new BitSet();
+		
+		private NodeSet() {
+		}
+		
+		/**
+		 * Add a node, if no equivalent node is already in the set.
+		 * @param node the node.
+		 * @return <code>true</code> if the node was added.
+		 */
+		public boolean add(int node) {
+			int slot = findSlot(table, node);
+			if (table[slot] != NONE) {
+				return false;
+			}
+			table[slot] = node;
+			if (++ nodeCount * 2 > table.length) {
+				rehash();
+			}
+			return true;
+		}
+		
+		/**
+		 * Add all the descendants of a node, but not the node itself. A list
+		 * of children shared by several nodes is only walked once.
+		 * @param node the node.
+		 */
+		public void addDescendants(int node) {
+			int first = firstChildren[node];
+			if (first == NONE || added.get(first)) {
+				return;
+			}
+			added.set(first);
+			for (int child = first; child != NONE; child = nextSiblings[child]) {
+				add(child);
+				addDescendants(child);
+			}
+		}
+		
+		/**
+		 * Check whether the set holds a node equivalent to the given node.
+		 * @param node the node.
+		 * @return <code>true</code> if an equivalent node is in the set.
+		 */
+		public boolean contains(int node) {
+			return table[findSlot(table, node)] != NONE;
+		}
+		
+		private int findSlot(int[] t, int node) {
+			int mask = t.length - 1;
+			int slot = nodeHash(node) & mask;
+			while (t[slot] != NONE && !nodeEquals(t[slot], node)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private void rehash() {
+			int[] newTable = newTable(table.length * 2);
+			for (int node : table) {
+				if (node != NONE) {
+					newTable[findSlot(newTable, node)] = node;
+				}
+			}
+			table = newTable;
+		}
+		
+		private int[] newTable(int length) {
+			int[] t = new int[length];
+			Arrays.fill(t, NONE);
+			return t;
+		}
+		
+	}
+	
+	private int nodeHash(int node) {
+		int hash = values[node];
+		hash = 31 * hash + labels[node];
+		hash = 31 * hash + Long.hashCode(counts[node]);
+		hash = 31 * hash + Long.hashCode(childCounts[node]);
+		// Spread the bits, since the table size is a power of two
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	/**
+	 * Read-only list of node maps, built on demand.
+	 */
+	private class NodeList extends AbstractList<NamedList<Object>> {
+		
+		private final int[] nodes;
+		private final int depth;
+		
+		private NodeList(int[] nodes, int depth) {
+			this.nodes = nodes;
+			this.depth = depth;
+		}
+		
+		@Override
+		public NamedList<Object> get(int index) {
+			return toMap(nodes[index], depth);
+		}
+		
+		@Override
+		public int size() {
+			return nodes.length;
+		}
+		
+	}
+	
+}
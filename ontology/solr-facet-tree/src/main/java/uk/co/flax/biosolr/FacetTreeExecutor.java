@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded executor for building facet trees, and for the hierarchy lookups
+ * within them. There is one per {@link TreeFacetComponent}, ie. per core.
+ * <p>
+ * The pool has a fixed number of threads and a bounded queue. When both are
+ * full, a task is run by the thread submitting it, rather than failing or
+ * starting another thread, and the rejection is counted. The number of trees
+ * being built at once is capped by a set of permits, which are shared by
+ * all of the cores in the node unless given explicitly.
+ *
+ * @author mlp
+ */
+public class FacetTreeExecutor implements Executor {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(FacetTreeExecutor.class);
+	
+	/** System property setting the number of trees built at once in the node. */
+	public static final String MAX_TREES_PROPERTY = "biosolr.facetTree.maxTrees";
+	
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	/** The tree permits shared by every core in the node. */
+	public static final Semaphore NODE_TREE_PERMITS = new Semaphore(
+			Integer.getInteger(MAX_TREES_PROPERTY, 2 * Runtime.getRuntime().availableProcessors()), true);
+	
+	private final ThreadPoolExecutor pool;
+	private final int batchSize;
+	private final Semaphore treePermits;
+	
+	private final AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Construct an executor using the node's tree permits.
+	 * @param name the name of the pool, used for its thread names.
+	 * @param threads the number of threads in the pool.
+	 * @param queueSize the number of tasks which can wait for a thread.
+	 * @param batchSize the number of node IDs looked up by each parallel task.
+	 */
+	public FacetTreeExecutor(String name, int threads, int queueSize, int batchSize) {
+		this(name, threads, queueSize, batchSize, NODE_TREE_PERMITS);
+	}
+	
+	FacetTreeExecutor(String name, int threads, int queueSize, int batchSize, Semaphore treePermits) {
+		if (threads < 1 || queueSize < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Facet tree threads, queue size and batch size must be positive");
+		}
+		this.batchSize = batchSize;
+		this.treePermits = treePermits;
+		
+		RejectedExecutionHandler callerRuns = (r, executor) -> {
+			rejected.incrementAndGet();
+			LOGGER.trace("Facet tree pool is full - running task on the calling thread");
+			r.run();
+		};
+		pool = new ThreadPoolExecutor(threads, threads,
+				10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
+				new ArrayBlockingQueue<>(queueSize),
+				new DefaultSolrThreadFactory(name),
+				callerRuns);
+		pool.allowCoreThreadTimeOut(true);
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		pool.execute(task);
+	}
+	
+	/**
+	 * Wait for a permit to build a tree. Every call must be followed by a
+	 * call to {@link #releaseTree()}.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void acquireTree() throws InterruptedException {
+		treePermits.acquire();
+	}
+	
+	public void releaseTree() {
+		treePermits.release();
+	}
+	
+	/**
+	 * Run a set of tasks, in parallel where there are free threads, and wait
+	 * for them all to complete. The calling thread runs any tasks which have
+	 * not been started by the time it reaches them, so this can be called by
+	 * a task running in the pool without the risk of waiting for itself.
+	 * @param tasks the tasks to run.
+	 * @return the results of the tasks, in the same order.
+	 * @throws IOException if any of the tasks throws one, or the calling
+	 * thread is interrupted.
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+		List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+		for (int i = 0; i < tasks.size(); i ++) {
+			FutureTask<T> future = new FutureTask<>(tasks.get(i));
+			futures.add(future);
+			// Keep the first task back, to run straight away
+			if (i > 0) {
+				pool.execute(future);
+			}
+		}
+		
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (FutureTask<T> future : futures) {
+				// Does nothing if the task has already been started
+				future.run();
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			futures.forEach(f -> f.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for facet tree lookups");
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(true));
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		return results;
+	}
+	
+	/**
+	 * @return the number of node IDs each parallel lookup task should handle.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * @return the number of tasks waiting for a thread.
+	 */
+	public int getQueueSize() {
+		return pool.getQueue().size();
+	}
+	
+	/**
+	 * @return the approximate number of threads running tasks.
+	 */
+	public int getActiveThreads() {
+		return pool.getActiveCount();
+	}
+	
+	/**
+	 * @return the number of tasks run on the calling thread because the
+	 * pool was full.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * @return the number of tree permits free.
+	 */
+	public int getAvailableTrees() {
+		return treePermits.availablePermits();
+	}
+	
+	/**
+	 * Stop the pool threads once the tasks already submitted are complete.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+}
@@ -18,10 +18,11 @@ package uk.co.flax.biosolr;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.util.RefCounted;
 import org.slf4j.Logger;
@@ -30,50 +31,195 @@ import uk.co.flax.biosolr.builders.FacetTreeBuilder;
 import uk.co.flax.biosolr.pruning.Pruner;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Class to generate a facet tree.
  * 
+ * <p>
+ * If the searcher for the request has a {@value #CACHE_NAME} cache, the
+ * pruned trees are kept there, keyed by the facet counts, the tree
+ * parameters and the version of the hierarchy collection's index. Since
+ * the cache belongs to the request searcher, its entries are dropped when
+ * a new searcher is opened; a change to a separate hierarchy collection
+ * changes the key instead.
+ * </p>
+ * 
  * @author mlp
  */
 public class FacetTreeGenerator {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(FacetTreeGenerator.class);
 	
+	/** The name of the user cache holding facet trees, in solrconfig.xml. */
+	public static final String CACHE_NAME = "facetTreeResult";
+	
+	/**
+	 * Cache key for a facet tree, made up of everything that goes into
+	 * building it.
+	 */
+	static final class Key {
+		
+		private final String treeParams;
+		private final String hierarchyCore;
+		private final long hierarchyVersion;
+		private final String[] terms;
+		private final int[] counts;
+		private final int hash;
+		
+		Key(String treeParams, String hierarchyCore, long hierarchyVersion, Map<String, Integer> facetValues) {
+			this.treeParams = treeParams;
+			this.hierarchyCore = hierarchyCore;
+			this.hierarchyVersion = hierarchyVersion;
+			this.terms = new String[facetValues.size()];
+			this.counts = new int[facetValues.size()];
+			int i = 0;
+			for (Entry<String, Integer> entry : facetValues.entrySet()) {
+				terms[i] = entry.getKey();
+				counts[i ++] = entry.getValue();
+			}
+			this.hash = Objects.hash(treeParams, hierarchyCore, hierarchyVersion, Arrays.hashCode(terms), Arrays.hashCode(counts));
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && hierarchyVersion == other.hierarchyVersion
+					&& treeParams.equals(other.treeParams) && hierarchyCore.equals(other.hierarchyCore)
+					&& Arrays.equals(counts, other.counts) && Arrays.equals(terms, other.terms);
+		}
+		
+		@Override
+		public String toString() {
+			return treeParams + " " + hierarchyCore + "/" + hierarchyVersion + " (" + terms.length + " terms)";
+		}
+		
+	}
+	
 	private final FacetTreeBuilder treeBuilder;
 	private final String collection;
 	private final Pruner pruner;
+	private final String cacheParams;
+	private final String expand;
+	private final int depth;
 	
 	public FacetTreeGenerator(FacetTreeBuilder treeBuilder, String collection, Pruner pruner) {
+		this(treeBuilder, collection, pruner, null);
+	}
+	
+	/**
+	 * Create a generator whose trees may be cached.
+	 * @param treeBuilder the tree builder.
+	 * @param collection the collection holding the hierarchy (optional).
+	 * @param pruner the pruner (optional).
+	 * @param cacheParams the tree parameters, as returned by
+	 * {@link #getCacheParams(SolrParams, FacetTreeParameters)}, or
+	 * <code>null</code> if the trees should not be cached.
+	 */
+	public FacetTreeGenerator(FacetTreeBuilder treeBuilder, String collection, Pruner pruner, String cacheParams) {
+		this(treeBuilder, collection, pruner, cacheParams, null, FacetTree.ALL_LEVELS);
+	}
+	
+	/**
+	 * Create a generator returning part of the trees. The whole tree is
+	 * still built and pruned (and cached), so that the totals, and any
+	 * subtree expanded later, are the same as in the full tree.
+	 * @param treeBuilder the tree builder.
+	 * @param collection the collection holding the hierarchy (optional).
+	 * @param pruner the pruner (optional).
+	 * @param cacheParams the tree parameters, or <code>null</code> if the
+	 * trees should not be cached.
+	 * @param expand the value of the node whose subtree should be returned,
+	 * or <code>null</code> to return the top-level nodes.
+	 * @param depth the number of levels to return, or
+	 * {@link FacetTree#ALL_LEVELS}.
+	 */
+	public FacetTreeGenerator(FacetTreeBuilder treeBuilder, String collection, Pruner pruner, String cacheParams,
+			String expand, int depth) {
 		this.treeBuilder = treeBuilder;
 		this.collection = collection;
 		this.pruner = pruner;
+		this.cacheParams = cacheParams;
+		this.expand = expand;
+		this.depth = depth;
+	}
+	
+	/**
+	 * Get the parameters a facet tree is built with, for use in its cache
+	 * key: the local parameters (including the field, builder and pruner
+	 * settings), and the component defaults which fill in any missing
+	 * pruner settings. The depth and expanded node only change which part
+	 * of the tree is returned, so are left out.
+	 * @param localParams the facet tree local parameters.
+	 * @param componentParams the component parameters.
+	 * @return the parameters, in a consistent order.
+	 */
+	public static String getCacheParams(SolrParams localParams, FacetTreeParameters componentParams) {
+		SortedMap<String, List<String>> params = new TreeMap<>();
+		for (Iterator<String> it = localParams.getParameterNamesIterator(); it.hasNext(); ) {
+			String name = it.next();
+			if (!FacetTreeParameters.DEPTH_PARAM.equals(name) && !FacetTreeParameters.EXPAND_PARAM.equals(name)) {
+				params.put(name, Arrays.asList(localParams.getParams(name)));
+			}
+		}
+		return params + " " + componentParams.getDefaults();
 	}
 	
-	public List<SimpleOrderedMap<Object>> generateTree(ResponseBuilder rb, NamedList<Integer> facetValues) throws IOException {
-		List<SimpleOrderedMap<Object>> retVal;
+	/**
+	 * Generate the facet trees for a set of facet values.
+	 * @param rb the response builder.
+	 * @param facetValues the facet values and their counts.
+	 * @return a list of maps, one for each top-level (or expanded) node,
+	 * which are built as they are read (see
+	 * {@link FacetTree#toNamedLists(int[], int)}).
+	 * @throws IOException if the hierarchy cannot be read.
+	 */
+	public List<NamedList<Object>> generateTree(ResponseBuilder rb, NamedList<Integer> facetValues) throws IOException {
+		List<NamedList<Object>> retVal;
 		
 		// First get the searcher for the required collection
 		RefCounted<SolrIndexSearcher> searcherRef = getSearcherReference(rb);
 		
 		try {
-			// Build the facet tree(s)
-			Collection<TreeFacetField> fTrees = treeBuilder.processFacetTree(searcherRef.get(), extractFacetValues(facetValues));
-			LOGGER.debug("Extracted {} facet trees", fTrees.size());
+			SolrIndexSearcher hierarchySearcher = searcherRef.get();
+			Map<String, Integer> values = extractFacetValues(facetValues);
+			
+			SolrCache<Key, FacetTree> cache = getCache(rb);
+			Key key = null;
+			FacetTree tree = null;
+			if (cache != null) {
+				key = new Key(cacheParams, hierarchySearcher.getCore().getName(),
+						hierarchySearcher.getIndexReader().getVersion(), values);
+				tree = cache.get(key);
+			}
 			
-			if (pruner != null) {
-				// Prune the trees
-				fTrees = pruner.prune(fTrees);
+			if (tree == null) {
+				tree = buildTree(hierarchySearcher, values);
+				if (cache != null) {
+					cache.put(key, tree);
+				}
+			} else {
+				LOGGER.debug("Found facet tree in cache for {}", key);
 			}
 
-			// Convert the trees into a SimpleOrderedMap
-			retVal = convertTreeFacetFields(fTrees);
+			retVal = tree.toNamedLists(getReturnedNodes(tree), depth);
 		} finally {
 			// Make sure the search ref count is decreased
 			searcherRef.decref();
@@ -82,6 +228,46 @@ public class FacetTreeGenerator {
 		return retVal;
 	}
 	
+	/**
+	 * Build and prune the facet trees.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param facetValues the facet values and their counts.
+	 * @return the pruned trees.
+	 * @throws IOException if the hierarchy cannot be read.
+	 */
+	private FacetTree buildTree(SolrIndexSearcher searcher, Map<String, Integer> facetValues) throws IOException {
+		// Build the facet tree(s)
+		Collection<TreeFacetField> fTrees = treeBuilder.processFacetTree(searcher, facetValues);
+		LOGGER.debug("Extracted {} facet trees", fTrees.size());
+		
+		// Convert to the compact tree format
+		FacetTree tree = FacetTree.fromTrees(fTrees);
+		
+		if (pruner != null) {
+			// Prune the trees
+			pruner.prune(tree);
+		}
+		
+		return tree;
+	}
+	
+	/**
+	 * Get the nodes to return - either the top-level nodes, or the node
+	 * being expanded (if it is in the tree).
+	 */
+	private int[] getReturnedNodes(FacetTree tree) {
+		if (StringUtils.isBlank(expand)) {
+			return tree.getRoots();
+		}
+		int node = tree.findNode(expand);
+		return node == FacetTree.NONE ? new int[0] : new int[] { node };
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SolrCache<Key, FacetTree> getCache(ResponseBuilder rb) {
+		return cacheParams == null ? null : rb.req.getSearcher().getCache(CACHE_NAME);
+	}
+	
 	/**
 	 * Get a reference to the searcher for the required collection. If the collection is
 	 * not the same as the search collection, we assume it is under the same Solr instance.
@@ -123,16 +309,5 @@ public class FacetTreeGenerator {
 		
 		return facetMap;
 	}
-	
-
-	/**
-	 * Convert the tree facet fields into a list of SimpleOrderedMaps, so they can
-	 * be easily serialized by Solr.
-	 * @param fTrees the list of facet tree fields.
-	 * @return a list of equivalent maps.
-	 */
-	private List<SimpleOrderedMap<Object>> convertTreeFacetFields(Collection<TreeFacetField> fTrees) {
-		return fTrees.stream().map(TreeFacetField::toMap).collect(Collectors.toList());
-	}
 
 }
@@ -16,6 +16,7 @@
 
 package uk.co.flax.biosolr;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -40,7 +41,13 @@ public class FacetTreeParameters {
 	public static final String NODE_FIELD_PARAM = "nodeField";
 	public static final String LABEL_FIELD_PARAM = "labelField";
 	public static final String LEVELS_PARAM = "levels";
+	public static final String DISTINCT_TOTALS_PARAM = "distinctTotals";
+	public static final String DEPTH_PARAM = "depth";
+	public static final String EXPAND_PARAM = "expand";
 	public static final String STRATEGY_PARAM = "strategy";
+	public static final String PATH_SEPARATOR_PARAM = "pathSeparator";
+	public static final String LABEL_SEPARATOR_PARAM = "labelSeparator";
+	public static final String ROOT_FIRST_PARAM = "rootFirst";
 	public static final String PRUNE_PARAM = "prune";
 	public static final String DATAPOINTS_PARAM = "datapoints";
 	public static final String DATAPOINTS_MORELABEL_PARAM = "datapoints.moreLabel";
@@ -65,6 +72,14 @@ public class FacetTreeParameters {
 		}
 	}
 	
+	/**
+	 * @return the default parameter values, set in the component
+	 * configuration.
+	 */
+	public Map<String, String> getDefaults() {
+		return Collections.unmodifiableMap(defaults);
+	}
+	
 	public String getDefault(String name) {
 		return getDefault(name, null);
 	}
@@ -25,9 +25,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
@@ -41,7 +38,6 @@ import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
-import org.apache.solr.util.DefaultSolrThreadFactory;
 
 import uk.co.flax.biosolr.builders.FacetTreeBuilder;
 import uk.co.flax.biosolr.builders.FacetTreeBuilderFactory;
@@ -52,12 +48,18 @@ import uk.co.flax.biosolr.pruning.PrunerFactory;
  * trees. This deals with the parameter processing and retrieving the
  * base facet values, before handing over to {@link FacetTreeGenerator}
  * instances to actually build the facet tree.
+ * <p>
+ * With <code>facet.threads</code> set, the trees are built in parallel on
+ * the component's {@link FacetTreeExecutor}. Each tree holds one of the
+ * executor's tree permits while it is being built, and large hierarchy
+ * lookups within a tree are split into batches run on the same executor.
  * 
  * @author mlp
  */
 public class HierarchicalFacets extends SimpleFacets {
 
 	private final FacetTreeParameters parameters;
+	private final FacetTreeExecutor facetExecutor;
 
 	static final Executor directExecutor = new Executor() {
 		@Override
@@ -66,14 +68,11 @@ public class HierarchicalFacets extends SimpleFacets {
 		}
 	};
 
-	static final Executor facetExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
-			10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
-			new SynchronousQueue<Runnable>(), // directly hand off tasks
-			new DefaultSolrThreadFactory("facetExecutor"));
-
-	public HierarchicalFacets(SolrQueryRequest req, DocSet docs, SolrParams params, ResponseBuilder rb, FacetTreeParameters ftParams) {
+	public HierarchicalFacets(SolrQueryRequest req, DocSet docs, SolrParams params, ResponseBuilder rb, FacetTreeParameters ftParams,
+			FacetTreeExecutor facetExecutor) {
 		super(req, docs, params, rb);
 		this.parameters = ftParams;
+		this.facetExecutor = facetExecutor;
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
@@ -97,21 +96,26 @@ public class HierarchicalFacets extends SimpleFacets {
 					ParsedParams parsedParams = parseParams(FacetTreeParameters.LOCAL_PARAM_TYPE, fTree);
 					SolrParams localParams = parsedParams.localParams;
 					FacetTreeBuilder treeBuilder = treeBuilderFactory.constructFacetTreeBuilder(localParams);
+					treeBuilder.setExecutor(facetExecutor);
 					final String localKey = localParams.get(QueryParsing.V);
 					
 					final FacetTreeGenerator generator = new FacetTreeGenerator(treeBuilder, 
 							localParams.get(FacetTreeParameters.COLLECTION_PARAM, null),
-							prunerFactory.constructPruner(localParams));
+							prunerFactory.constructPruner(localParams),
+							FacetTreeGenerator.getCacheParams(localParams, parameters),
+							localParams.get(FacetTreeParameters.EXPAND_PARAM),
+							localParams.getInt(FacetTreeParameters.DEPTH_PARAM, FacetTree.ALL_LEVELS));
 					final NamedList<Integer> termCounts = getTermCounts(localKey, parsedParams);
 					Callable<NamedList> callable = new Callable<NamedList>() {
 						@Override
 						public NamedList call() throws Exception {
 							try {
-								List<SimpleOrderedMap<Object>> tree = generator.generateTree(rb, termCounts);
-								NamedList<List<SimpleOrderedMap<Object>>> nl = new NamedList<>();
+								List<NamedList<Object>> tree = generator.generateTree(rb, termCounts);
+								NamedList<List<NamedList<Object>>> nl = new NamedList<>();
 								nl.add(localKey, tree);
 								return nl;
 							} finally {
+								facetExecutor.releaseTree();
 								semaphore.release();
 							}
 						}
@@ -119,7 +123,8 @@ public class HierarchicalFacets extends SimpleFacets {
 
 					RunnableFuture<NamedList> runnableFuture = new FutureTask<>(callable);
 					semaphore.acquire();// may block and/or interrupt
-					executor.execute(runnableFuture);// releases semaphore when done
+					acquireTree(semaphore);
+					executor.execute(runnableFuture);// releases semaphore and tree permit when done
 					futures.add(runnableFuture);
 				} catch (SyntaxError e) {
 					throw new SolrException(ErrorCode.BAD_REQUEST, e);
@@ -145,5 +150,14 @@ public class HierarchicalFacets extends SimpleFacets {
 
 		return treeResponse;
 	}
+	
+	private void acquireTree(Semaphore semaphore) throws InterruptedException {
+		try {
+			facetExecutor.acquireTree();
+		} catch (InterruptedException e) {
+			semaphore.release();
+			throw e;
+		}
+	}
 
 }
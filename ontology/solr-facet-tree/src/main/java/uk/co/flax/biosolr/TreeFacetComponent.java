@@ -18,43 +18,131 @@ package uk.co.flax.biosolr;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.FacetComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.co.flax.biosolr.builders.FacetTreeBuilder;
+import uk.co.flax.biosolr.builders.FacetTreeBuilderFactory;
+import uk.co.flax.biosolr.pruning.PrunerFactory;
+
 /**
  * Extension to the default {@code FacetComponent} that adds tree
  * facet building capabilities.
+ * <p>
+ * In a distributed request, the shards only return the flat facet counts
+ * for the tree fields. These are merged (and refined) by the standard
+ * facet component, and the trees are then built and pruned once, on the
+ * aggregating node. The hierarchy must therefore be available to the
+ * aggregator - either in its own core, or in the core named by the
+ * {@code collection} local parameter.
+ * <p>
+ * The trees are built on a {@link FacetTreeExecutor} belonging to the
+ * component, whose size can be set with the {@code threads},
+ * {@code queueSize} and {@code lookupBatchSize} initialisation parameters.
+ * The executor's queue and rejection counts are reported in the
+ * component's metrics.
  *
  * @author mlp
  */
-public class TreeFacetComponent extends FacetComponent {
+public class TreeFacetComponent extends FacetComponent implements SolrCoreAware, SolrMetricProducer {
 
 	public static final String FACET_TREE = FacetParams.FACET + ".tree";
 	public static final String FACET_TREE_FIELD = FACET_TREE + ".field";
 	
 	public static final String FACET_TREE_SIMPLE_PRUNE_NODES = FACET_TREE + ".prune.simple.nodes";
 	
+	// initialisation parameters
+	public static final String INIT_THREADS = "threads";
+	public static final String INIT_QUEUE_SIZE = "queueSize";
+	public static final String INIT_LOOKUP_BATCH_SIZE = "lookupBatchSize";
+	
 	private static final Logger LOGGER = LoggerFactory.getLogger(TreeFacetComponent.class);
 	
 	private FacetTreeParameters parameters;
+	private FacetTreeExecutor facetExecutor;
+	private SolrMetricsContext metricsContext;
 	
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public void init(NamedList args) {
 		super.init(args);
 		this.parameters = new FacetTreeParameters(args);
+		this.facetExecutor = new FacetTreeExecutor("facetTreeExecutor",
+				getIntArg(args, INIT_THREADS, FacetTreeExecutor.DEFAULT_THREADS),
+				getIntArg(args, INIT_QUEUE_SIZE, FacetTreeExecutor.DEFAULT_QUEUE_SIZE),
+				getIntArg(args, INIT_LOOKUP_BATCH_SIZE, FacetTreeExecutor.DEFAULT_BATCH_SIZE));
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static int getIntArg(NamedList args, String name, int defaultValue) {
+		Object value = args == null ? null : args.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value.toString());
+	}
+	
+	@Override
+	public void inform(SolrCore core) {
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(SolrCore core) {
+				facetExecutor.shutdown();
+			}
+			
+			@Override
+			public void postClose(SolrCore core) {
+			}
+		});
+	}
+	
+	@Override
+	public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+		metricsContext = parentContext.getChildContext(this);
+		registry = metricsContext.getMetricRegistry();
+		String category = getCategory().toString();
+		metricsContext.gauge(this, () -> facetExecutor.getQueueSize(), true, "queueSize", category, scope, "executor");
+		metricsContext.gauge(this, () -> facetExecutor.getActiveThreads(), true, "activeThreads", category, scope, "executor");
+		metricsContext.gauge(this, () -> facetExecutor.getRejectedCount(), true, "rejected", category, scope, "executor");
+		metricsContext.gauge(this, () -> facetExecutor.getAvailableTrees(), true, "availableTrees", category, scope, "executor");
+	}
+	
+	@Override
+	public SolrMetricsContext getSolrMetricsContext() {
+		return metricsContext;
+	}
+	
+	/**
+	 * Unregister the component's metrics (but not those of the core).
+	 */
+	@Override
+	public void close() {
+		if (metricsContext != null) {
+			metricsContext.unregister();
+		}
+	}
+	
+	FacetTreeExecutor getFacetExecutor() {
+		return facetExecutor;
 	}
 	
 	@Override
@@ -109,20 +197,154 @@ public class TreeFacetComponent extends FacetComponent {
 
 		// And do the facet tree, if required
 		if (rb.doFacets && rb.req.getParams().getBool(FACET_TREE, false)) {
-			HierarchicalFacets ftp = new HierarchicalFacets(rb.req, rb.getResults().docSet, rb.req.getParams(), rb, parameters);
+			HierarchicalFacets ftp = new HierarchicalFacets(rb.req, rb.getResults().docSet, rb.req.getParams(), rb, parameters,
+					facetExecutor);
 			@SuppressWarnings("rawtypes")
 			SimpleOrderedMap<NamedList> ftpResponse = ftp.process(rb.req.getParams().getParams(FACET_TREE_FIELD));
+			addFacetTrees(rb, ftpResponse);
+		}
+	}
+	
+	@Override
+	public int distributedProcess(ResponseBuilder rb) throws IOException {
+		int nextStage = super.distributedProcess(rb);
+		
+		// The refinement requests are added by this component, so are not
+		// passed to its own modifyRequest()
+		for (ShardRequest sreq : rb.outgoing) {
+			removeTreeParams(sreq);
+		}
+		
+		return nextStage;
+	}
+	
+	@Override
+	public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
+		super.modifyRequest(rb, who, sreq);
+		removeTreeParams(sreq);
+	}
+	
+	/**
+	 * The shards only need the flat facet counts (the tree fields are
+	 * already in facet.field) - the trees are built by the aggregator.
+	 * Left in place, a shard would also add the tree fields to any
+	 * refinement facet.field, and return their counts twice.
+	 */
+	private static void removeTreeParams(ShardRequest sreq) {
+		if (sreq.params.getBool(FACET_TREE, false)) {
+			sreq.params.remove(FACET_TREE);
+			sreq.params.remove(FACET_TREE_FIELD);
+		}
+	}
+	
+	@Override
+	public void finishStage(ResponseBuilder rb) {
+		boolean buildTrees = rb.doFacets && rb.stage == ResponseBuilder.STAGE_GET_FIELDS
+				&& rb.req.getParams().getBool(FACET_TREE, false);
+		
+		// Merge the facet counts from the shards
+		super.finishStage(rb);
+		
+		if (buildTrees) {
+			try {
+				buildDistributedFacetTrees(rb);
+			} catch (SyntaxError e) {
+				throw new SolrException(ErrorCode.BAD_REQUEST, e);
+			} catch (IOException e) {
+				throw new SolrException(ErrorCode.SERVER_ERROR, "Error while building facet trees", e);
+			}
+		}
+	}
+	
+	/**
+	 * Build the facet trees from the merged facet counts of a distributed
+	 * request.
+	 * @param rb the response builder, whose response holds the merged counts.
+	 * @throws SyntaxError if a facet tree field's parameters are invalid.
+	 * @throws IOException if the hierarchy cannot be read.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	void buildDistributedFacetTrees(ResponseBuilder rb) throws SyntaxError, IOException {
+		String[] ftFields = rb.req.getParams().getParams(FACET_TREE_FIELD);
+		if (ftFields == null || ftFields.length == 0) {
+			return;
+		}
+		
+		NamedList<Object> facetCounts = (NamedList<Object>) rb.rsp.getValues().get("facet_counts");
+		NamedList facetFields = facetCounts == null ? null : (NamedList) facetCounts.get("facet_fields");
+		
+		FacetTreeBuilderFactory treeBuilderFactory = new FacetTreeBuilderFactory();
+		PrunerFactory prunerFactory = new PrunerFactory(parameters);
+		
+		SimpleOrderedMap<NamedList> treeResponse = new SimpleOrderedMap<>();
+		for (String ftField : ftFields) {
+			SolrParams localParams = QueryParsing.getLocalParams(ftField, rb.req.getParams());
+			if (localParams == null) {
+				throw new SyntaxError("Missing local parameters for facet tree field " + ftField);
+			}
+			FacetTreeBuilder treeBuilder = treeBuilderFactory.constructFacetTreeBuilder(localParams);
+			treeBuilder.setExecutor(facetExecutor);
+			String localKey = localParams.get(QueryParsing.V);
 			
-			@SuppressWarnings("unchecked")
-			NamedList<Object> facetCounts = (NamedList<Object>) rb.rsp.getValues().get("facet_counts");
-			if (facetCounts != null) {
-				facetCounts.add("facet_trees", ftpResponse);
-			} else {
-				facetCounts = new NamedList<>();
-				facetCounts.add("facet_trees", ftpResponse);
-				rb.rsp.add("facet_counts", facetCounts);
+			FacetTreeGenerator generator = new FacetTreeGenerator(treeBuilder,
+					localParams.get(FacetTreeParameters.COLLECTION_PARAM, null),
+					prunerFactory.constructPruner(localParams),
+					FacetTreeGenerator.getCacheParams(localParams, parameters),
+					localParams.get(FacetTreeParameters.EXPAND_PARAM),
+					localParams.getInt(FacetTreeParameters.DEPTH_PARAM, FacetTree.ALL_LEVELS));
+			NamedList<Integer> termCounts = toIntegerCounts(facetFields == null ? null : (NamedList) facetFields.get(localKey));
+			List<NamedList<Object>> tree = generateTree(generator, rb, termCounts);
+			NamedList nl = new NamedList();
+			nl.add(localKey, tree);
+			treeResponse.addAll(nl);
+		}
+		
+		addFacetTrees(rb, treeResponse);
+	}
+	
+	/**
+	 * Generate a tree while holding one of the executor's tree permits.
+	 */
+	private List<NamedList<Object>> generateTree(FacetTreeGenerator generator, ResponseBuilder rb, NamedList<Integer> termCounts)
+			throws IOException {
+		try {
+			facetExecutor.acquireTree();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Interrupted while waiting to build facet tree", e);
+		}
+		try {
+			return generator.generateTree(rb, termCounts);
+		} finally {
+			facetExecutor.releaseTree();
+		}
+	}
+	
+	/**
+	 * Convert merged facet counts, which may be Integers or Longs, to the
+	 * Integer counts used when building the tree.
+	 */
+	private static NamedList<Integer> toIntegerCounts(NamedList<?> mergedCounts) {
+		NamedList<Integer> counts = new NamedList<>();
+		if (mergedCounts != null) {
+			for (Map.Entry<String, ?> entry : mergedCounts) {
+				counts.add(entry.getKey(), ((Number) entry.getValue()).intValue());
 			}
 		}
+		return counts;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static void addFacetTrees(ResponseBuilder rb, SimpleOrderedMap<NamedList> trees) {
+		@SuppressWarnings("unchecked")
+		NamedList<Object> facetCounts = (NamedList<Object>) rb.rsp.getValues().get("facet_counts");
+		if (facetCounts != null) {
+			facetCounts.add("facet_trees", trees);
+		} else {
+			facetCounts = new NamedList<>();
+			facetCounts.add("facet_trees", trees);
+			rb.rsp.add("facet_counts", facetCounts);
+		}
 	}
 	
 }
@@ -16,7 +16,9 @@
 package uk.co.flax.biosolr;
 
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
@@ -228,20 +230,34 @@ public class TreeFacetField implements Comparable<TreeFacetField>, Serializable,
 		return sb.toString();
 	}
 	
+	/**
+	 * Recursively clone this node and its hierarchy. Nodes shared between
+	 * several parents (as built from a directed acyclic graph) are cloned
+	 * once, and remain shared in the clone.
+	 */
 	@Override
 	public TreeFacetField clone() {
-		// Recursively clone the hierarchy
-		return new TreeFacetField(label, value, count, childCount, cloneHierarchy(this.hierarchy));
+		return clone(new IdentityHashMap<>());
+	}
+	
+	private TreeFacetField clone(Map<TreeFacetField, TreeFacetField> clones) {
+		TreeFacetField cloned = clones.get(this);
+		if (cloned == null) {
+			// Recursively clone the hierarchy
+			cloned = new TreeFacetField(label, value, count, childCount, cloneHierarchy(this.hierarchy, clones));
+			clones.put(this, cloned);
+		}
+		return cloned;
 	}
 	
-	private SortedSet<TreeFacetField> cloneHierarchy(SortedSet<TreeFacetField> orig) {
+	private SortedSet<TreeFacetField> cloneHierarchy(SortedSet<TreeFacetField> orig, Map<TreeFacetField, TreeFacetField> clones) {
 		SortedSet<TreeFacetField> cloned = null;
 		
 		if (orig != null) {
 			cloned = new TreeSet<>(orig.comparator());
 			
 			for (TreeFacetField tff : orig) {
-				cloned.add(tff.clone());
+				cloned.add(tff.clone(clones));
 			}
 		}
 		
@@ -16,10 +16,16 @@
 
 package uk.co.flax.biosolr.builders;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -33,7 +39,9 @@ import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
 import org.slf4j.Logger;
 
+import uk.co.flax.biosolr.FacetTreeExecutor;
 import uk.co.flax.biosolr.FacetTreeParameters;
+import uk.co.flax.biosolr.TreeFacetField;
 
 /**
  * Abstract base class for FacetTreeBuilder implementations.
@@ -44,8 +52,12 @@ public abstract class AbstractFacetTreeBuilder implements FacetTreeBuilder {
 	
 	private String nodeField;
 	private String labelField;
+	private boolean distinctTotals;
 	
-	private final Map<String, String> nodeLabels = new HashMap<>();
+	private FacetTreeExecutor executor;
+	
+	// Labels may be recorded by lookups running in parallel
+	private final Map<String, String> nodeLabels = Collections.synchronizedMap(new HashMap<>());
 
 	@Override
 	public void initialiseParameters(SolrParams localParams) throws SyntaxError {
@@ -68,6 +80,7 @@ public abstract class AbstractFacetTreeBuilder implements FacetTreeBuilder {
 
 		//  Initialise the optional fields
 		labelField = localParams.get(FacetTreeParameters.LABEL_FIELD_PARAM, null);
+		distinctTotals = localParams.getBool(FacetTreeParameters.DISTINCT_TOTALS_PARAM, false);
 	}
 	
 	protected void checkFieldsInSchema(SolrIndexSearcher searcher, Collection<String> fields) throws SolrException {
@@ -89,6 +102,10 @@ public abstract class AbstractFacetTreeBuilder implements FacetTreeBuilder {
 		return labelField;
 	}
 	
+	protected boolean isDistinctTotals() {
+		return distinctTotals;
+	}
+	
 	protected boolean hasLabelField() {
 		return StringUtils.isNotBlank(labelField);
 	}
@@ -106,10 +123,31 @@ public abstract class AbstractFacetTreeBuilder implements FacetTreeBuilder {
 		}
 	}
 	
+	protected void recordLabel(String nodeId, String label) {
+		nodeLabels.put(nodeId, label);
+	}
+	
 	protected String getLabel(String nodeId) {
 		return nodeLabels.get(nodeId);
 	}
 	
+	/**
+	 * Get the in-memory hierarchy for the node field and a relation field.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param relationField the child or parent field.
+	 * @return the hierarchy, or <code>null</code> if it is not available, in
+	 * which case the hierarchy should be looked up with queries.
+	 * @throws IOException if the hierarchy cannot be read.
+	 */
+	protected NodeHierarchy getHierarchy(SolrIndexSearcher searcher, String relationField) throws IOException {
+		NodeHierarchy hierarchy = NodeHierarchy.getHierarchy(searcher, nodeField, relationField,
+				hasLabelField() ? labelField : null);
+		if (hierarchy == null) {
+			getLogger().debug("No {} cache available - using queries to find nodes", NodeHierarchy.CACHE_NAME);
+		}
+		return hierarchy;
+	}
+	
 	/**
 	 * Find all of the top-level nodes in a map of parent - child node IDs.
 	 * @param nodeChildren a map of parent - child node IDs..
@@ -124,6 +162,68 @@ public abstract class AbstractFacetTreeBuilder implements FacetTreeBuilder {
 		return nodeChildren.keySet().stream().filter(id -> !childIds.contains(id)).collect(Collectors.toSet());
 	}
 	
+	/**
+	 * Build the accumulated facet trees for a set of top-level nodes. Each
+	 * node's tree is built once, and shared between all of its parents.
+	 * @param topNodes the top-level node IDs.
+	 * @param nodeChildren a map of parent - child node IDs.
+	 * @param facetCounts the facet counts, keyed by node ID.
+	 * @param childFilter predicate returning <code>true</code> for the child
+	 * IDs which should be included in the trees.
+	 * @return a list of TreeFacetFields, one for each top-level node.
+	 * @see FacetTreeAccumulator
+	 */
+	protected List<TreeFacetField> buildAccumulatedTrees(Collection<String> topNodes, Map<String, Set<String>> nodeChildren,
+			Map<String, Integer> facetCounts, Predicate<String> childFilter) {
+		return new FacetTreeAccumulator(nodeChildren, facetCounts, this::getLabel, childFilter, distinctTotals)
+				.buildTrees(topNodes);
+	}
+	
+	@Override
+	public void setExecutor(FacetTreeExecutor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Look up a set of node IDs, splitting them into batches which are
+	 * looked up in parallel when there is an executor and more IDs than
+	 * fit in a single batch.
+	 * @param ids the node IDs to look up.
+	 * @param lookup the lookup for a single batch, which must be safe to
+	 * call from several threads at once.
+	 * @return a map of node ID to related node IDs, merged from the
+	 * results of each batch.
+	 * @throws IOException if any of the batch lookups fails.
+	 */
+	protected Map<String, Set<String>> lookupInBatches(Collection<String> ids, BatchLookup lookup) throws IOException {
+		if (executor == null || ids.size() <= executor.getBatchSize()) {
+			return lookup.lookup(ids);
+		}
+		
+		int batchSize = executor.getBatchSize();
+		List<String> idList = new ArrayList<>(ids);
+		List<Callable<Map<String, Set<String>>>> batches = new ArrayList<>();
+		for (int i = 0; i < idList.size(); i += batchSize) {
+			List<String> batch = idList.subList(i, Math.min(i + batchSize, idList.size()));
+			batches.add(() -> lookup.lookup(batch));
+		}
+		getLogger().debug("Looking up {} nodes in {} batches", idList.size(), batches.size());
+		
+		Map<String, Set<String>> entries = new HashMap<>();
+		for (Map<String, Set<String>> batchEntries : executor.invokeAll(batches)) {
+			entries.putAll(batchEntries);
+		}
+		return entries;
+	}
+	
 	protected abstract Logger getLogger();
 	
+	/**
+	 * A lookup of the related node IDs for a batch of node IDs.
+	 */
+	@FunctionalInterface
+	protected interface BatchLookup {
+		Map<String, Set<String>> lookup(Collection<String> ids) throws IOException;
+	}
+	
 }
@@ -25,19 +25,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.params.SolrParams;
-import org.apache.solr.common.util.NamedList;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -103,37 +98,40 @@ public class ChildNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 		// Check that all of the given fields are in the searcher's schema
 		checkFieldsInSchema(searcher, docFields);
 		
+		// Use the in-memory hierarchy, if there is one
+		NodeHierarchy hierarchy = getHierarchy(searcher, childField);
+		
 		// Extract the facet keys to a volatile set
 		Set<String> facetKeys = new HashSet<>(facetMap.keySet());
 
 		// Build a map of parent - child node IDs. This should contain the parents
 		// of all our starting facet terms.
-		Map<String, Set<String>> nodeChildren = findParentEntries(searcher, facetKeys);
+		Map<String, Set<String>> nodeChildren = findParentEntries(searcher, hierarchy, facetKeys);
 
 		// Find the details for the starting facet terms, if there are any which haven't 
 		// been found already.
 		facetKeys.removeAll(nodeChildren.keySet());
-		nodeChildren.putAll(filterEntriesByField(searcher, facetKeys, getNodeField()));
+		nodeChildren.putAll(filterEntriesByField(searcher, hierarchy, facetKeys, getNodeField()));
 
 		// Find the top nodes
 		Set<String> topNodes = findTopLevelNodes(nodeChildren);
 		LOGGER.debug("Found {} top level nodes", topNodes.size());
 
-		// Convert to a list of TreeFacetFields
-		return topNodes.parallelStream()
-				.map(node -> buildAccumulatedEntryTree(0, node, nodeChildren, facetMap))
-				.collect(Collectors.toList());
+		// Convert to a list of TreeFacetFields, only including children
+		// which are either facet values or their ancestors
+		return buildAccumulatedTrees(topNodes, nodeChildren, facetMap, nodeChildren::containsKey);
 	}
 
 	/**
 	 * Find all parent nodes for the given set of items.
 	 * @param searcher the searcher for the collection being used.
+	 * @param hierarchy the in-memory hierarchy, or <code>null</code> to use queries.
 	 * @param facetValues the starting set of node IDs.
 	 * @return a map of nodes, keyed by their IDs.
 	 * @throws IOException
 	 */
-	private Map<String, Set<String>> findParentEntries(SolrIndexSearcher searcher, Collection<String> facetValues)
-			throws IOException {
+	private Map<String, Set<String>> findParentEntries(SolrIndexSearcher searcher, NodeHierarchy hierarchy,
+			Collection<String> facetValues) throws IOException {
 		Map<String, Set<String>> parentEntries = new HashMap<>();
 
 		Set<String> childrenFound = new HashSet<>();
@@ -142,7 +140,7 @@ public class ChildNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 		int count = 0;
 		while (childIds.size() > 0 && (maxLevels == 0 || maxLevels >= count)) {
 			// Find the direct parents for the current child IDs
-			Map<String, Set<String>> parents = filterEntriesByField(searcher, childIds, childField);
+			Map<String, Set<String>> parents = filterEntriesByField(searcher, hierarchy, childIds, childField);
 			parentEntries.putAll(parents);
 			childrenFound.addAll(childIds);
 
@@ -161,13 +159,32 @@ public class ChildNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 	/**
 	 * Fetch facets for items containing a specific set of values.
 	 * @param searcher the searcher for the collection being used.
+	 * @param hierarchy the in-memory hierarchy, or <code>null</code> to use queries.
+	 * @param facetValues the incoming values to use as filters.
+	 * @param filterField the item field containing the child values, which will be used
+	 * to filter against.
+	 * @return a map of node value to child values for the items.
+	 * @throws IOException
+	 */
+	private Map<String, Set<String>> filterEntriesByField(SolrIndexSearcher searcher, NodeHierarchy hierarchy,
+			Collection<String> facetValues, String filterField) throws IOException {
+		if (hierarchy != null) {
+			return filterEntriesByField(hierarchy, facetValues, filterField);
+		}
+		
+		return lookupInBatches(facetValues, batch -> filterEntriesByQuery(searcher, batch, filterField));
+	}
+	
+	/**
+	 * Fetch facets for items containing a specific set of values, using a query.
+	 * @param searcher the searcher for the collection being used.
 	 * @param facetValues the incoming values to use as filters.
 	 * @param filterField the item field containing the child values, which will be used
 	 * to filter against.
 	 * @return a map of node value to child values for the items.
 	 * @throws IOException
 	 */
-	private Map<String, Set<String>> filterEntriesByField(SolrIndexSearcher searcher, Collection<String> facetValues,
+	private Map<String, Set<String>> filterEntriesByQuery(SolrIndexSearcher searcher, Collection<String> facetValues,
 			String filterField) throws IOException {
 		Map<String, Set<String>> filteredEntries = new HashMap<>();
 
@@ -202,76 +219,55 @@ public class ChildNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 	}
 
 	/**
-	 * Build a filter query for a field using a set of values, taken from the keys
-	 * of a {@link NamedList}.
-	 * @param field
-	 * @param values
-	 * @return a filter string.
-	 */
-	private Query buildFilterQuery(String field, Collection<String> values) {
-		BooleanQuery.Builder builder = new BooleanQuery.Builder();
-
-		values.stream()
-				.map(v -> new TermQuery(new Term(field, v)))
-				.forEach(tq -> builder.add(tq, Occur.SHOULD));
-
-		return builder.build();
-	}
-
-	/**
-	 * Recursively build an accumulated facet entry tree.
-	 * @param level current level in the tree (used for debugging/logging).
-	 * @param fieldValue the current node value.
-	 * @param hierarchyMap the map of nodes (either in the original facet set,
-	 * or parents of those entries).
-	 * @param facetCounts the facet counts, keyed by node ID.
-	 * @return a {@link TreeFacetField} containing details for the current node and all
-	 * sub-nodes down to the lowest leaf which has a facet count.
+	 * Fetch facets for items containing a specific set of values from the
+	 * in-memory hierarchy, as {@link #filterEntriesByField(SolrIndexSearcher, NodeHierarchy, Collection, String)}.
+	 * @param hierarchy the hierarchy read from the node and child fields.
+	 * @param facetValues the incoming values to use as filters.
+	 * @param filterField the item field containing the child values, which will be used
+	 * to filter against.
+	 * @return a map of node value to child values for the items.
 	 */
-	private TreeFacetField buildAccumulatedEntryTree(int level, String fieldValue, Map<String, Set<String>> hierarchyMap,
-			Map<String, Integer> facetCounts) {
-		// Build the child hierarchy for this entry.
-		// We use a reverse-ordered SortedSet so entries are returned in descending
-		// order by their total count.
-		SortedSet<TreeFacetField> childHierarchy = new TreeSet<>(Collections.reverseOrder());
+	private Map<String, Set<String>> filterEntriesByField(NodeHierarchy hierarchy, Collection<String> facetValues,
+			String filterField) {
+		Map<String, Set<String>> filteredEntries = new HashMap<>();
 		
-		// childTotal is the total number of facet hits below this node
-		long childTotal = 0;
-		if (hierarchyMap.containsKey(fieldValue)) {
-			// Loop through all the direct child URIs, looking for those which are in the annotation map
-			for (String childId : hierarchyMap.get(fieldValue)) {
-				if (hierarchyMap.containsKey(childId) && !childId.equals(fieldValue)) {
-					// Found a child of this node - recurse to build its facet tree
-					LOGGER.trace("[{}] Building child tree for {}, with {} children", level, childId, hierarchyMap.get(childId).size());
-					TreeFacetField childTree = buildAccumulatedEntryTree(level + 1, childId, hierarchyMap, facetCounts);
-					
-					// Only add to the total count if this node isn't already in the child hierarchy
-					if (childHierarchy.add(childTree)) {
-						childTotal += childTree.getTotal();
+		LOGGER.debug("Looking up {} entries in field {} in memory", facetValues.size(), filterField);
+		boolean nodeFilter = filterField.equals(getNodeField());
+		for (String value : facetValues) {
+			if (nodeFilter) {
+				// Filtering on the node field - child IDs are redundant
+				if (hierarchy.isNode(value)) {
+					filteredEntries.put(value, Collections.emptySet());
+					recordHierarchyLabel(hierarchy, value);
+				}
+			} else {
+				for (String nodeId : hierarchy.getReferrers(value)) {
+					if (!filteredEntries.containsKey(nodeId)) {
+						filteredEntries.put(nodeId, hierarchy.getRelated(nodeId));
+						recordHierarchyLabel(hierarchy, nodeId);
 					}
-					LOGGER.trace("[{}] child tree total: {} - child Total {}, child count {}", level, childTree.getTotal(), childTotal, childHierarchy.size());
-				} else {
-					LOGGER.trace("[{}] no node entry for {}->{}", level, fieldValue, childId);
 				}
 			}
 		}
-
-		// Build the accumulated facet entry
-		LOGGER.trace("[{}] Building facet tree for {}", level, fieldValue);
-		return new TreeFacetField(getLabel(fieldValue), fieldValue, getFacetCount(fieldValue, facetCounts), childTotal, childHierarchy);
+		
+		return filteredEntries;
+	}
+	
+	private void recordHierarchyLabel(NodeHierarchy hierarchy, String nodeId) {
+		if (isLabelRequired(nodeId)) {
+			recordLabel(nodeId, hierarchy.getLabel(nodeId));
+		}
 	}
 
 	/**
-	 * Get the count for the facet with the given key.
-	 * @param key the key to look up.
-	 * @param facetCounts the map of facet counts.
-	 * @return the count, or <code>0</code> if the key does not exist in the map.
+	 * Build a filter query for a field using a set of values. This uses a
+	 * {@link TermInSetQuery}, so is not limited by maxBooleanClauses.
+	 * @param field
+	 * @param values
+	 * @return a filter query.
 	 */
-	private long getFacetCount(String key, Map<String, Integer> facetCounts) {
-		if (facetCounts.containsKey(key)) {
-			return facetCounts.get(key);
-		}
-		return 0;
+	private Query buildFilterQuery(String field, Collection<String> values) {
+		return new TermInSetQuery(field, values.stream().map(BytesRef::new).collect(Collectors.toList()));
 	}
-	
+
 }
@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Build the accumulated facet trees for a map of parent - child node IDs in
+ * a single bottom-up pass.
+ * 
+ * <p>
+ * Each node's tree is built once, after those of its children, and is
+ * shared by every parent it appears under. In a directed acyclic graph,
+ * where a node may be reached through several parents, this avoids
+ * rebuilding its subtree once per path, which grows exponentially with the
+ * depth of the graph. The trees returned are therefore graphs of shared
+ * {@link TreeFacetField}s; they should be cloned before being modified.
+ * </p>
+ * 
+ * <p>
+ * By default, a node's child count is the sum of its children's totals, so
+ * a descendant reached through two children is counted twice. With
+ * distinct totals, each descendant is counted once.
+ * </p>
+ * 
+ * <p>
+ * Edges leading back to a node still being built (cycles in the hierarchy)
+ * are ignored.
+ * </p>
+ *
+ * @author mlp
+ */
+class FacetTreeAccumulator {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(FacetTreeAccumulator.class);
+	
+	private final Map<String, Set<String>> hierarchyMap;
+	private final Map<String, Integer> facetCounts;
+	private final Function<String, String> labels;
+	private final Predicate<String> childFilter;
+	private final boolean distinctTotals;
+	
+	// The trees built so far, keyed by node ID
+	private final Map<String, TreeFacetField> trees = new HashMap<>();
+	
+	// The nodes currently being built, so cycles can be detected
+	private final Set<String> inProgress = new HashSet<>();
+	
+	// Node ordinals and descendant sets, only used for distinct totals
+	private final Map<String, Integer> ordinals = new HashMap<>();
+	private final Map<String, BitSet> descendants = new HashMap<>();
+	private final List<String> ordinalNodes = new ArrayList<>();
+	
+	/**
+	 * Construct an accumulator.
+	 * @param hierarchyMap the map of nodes to their child node IDs.
+	 * @param facetCounts the facet counts, keyed by node ID.
+	 * @param labels function returning the label for a node ID, or <code>null</code>.
+	 * @param childFilter predicate returning <code>true</code> for child IDs which
+	 * should be included in the tree.
+	 * @param distinctTotals <code>true</code> if descendants reached through several
+	 * children should only be counted once.
+	 */
+	FacetTreeAccumulator(Map<String, Set<String>> hierarchyMap, Map<String, Integer> facetCounts,
+			Function<String, String> labels, Predicate<String> childFilter, boolean distinctTotals) {
+		this.hierarchyMap = hierarchyMap;
+		this.facetCounts = facetCounts;
+		this.labels = labels;
+		this.childFilter = childFilter;
+		this.distinctTotals = distinctTotals;
+	}
+	
+	/**
+	 * Build the trees for a set of top-level nodes.
+	 * @param topNodes the IDs of the top-level nodes.
+	 * @return a list containing a tree for each top-level node.
+	 */
+	List<TreeFacetField> buildTrees(Collection<String> topNodes) {
+		List<TreeFacetField> ret = new ArrayList<>(topNodes.size());
+		for (String node : topNodes) {
+			ret.add(buildTree(node));
+		}
+		LOGGER.debug("Built {} facet trees from {} distinct nodes", ret.size(), trees.size());
+		return ret;
+	}
+	
+	/**
+	 * Build the tree for a node, building its children's trees first, using
+	 * an explicit stack rather than recursion so deep hierarchies cannot
+	 * overflow the thread's stack.
+	 * @param root the node ID.
+	 * @return the node's tree.
+	 */
+	TreeFacetField buildTree(String root) {
+		TreeFacetField tree = trees.get(root);
+		if (tree != null) {
+			return tree;
+		}
+		
+		Deque<Frame> stack = new ArrayDeque<>();
+		stack.push(new Frame(root));
+		inProgress.add(root);
+		
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			String childId = frame.nextChild();
+			if (childId != null) {
+				if (!trees.containsKey(childId) && inProgress.add(childId)) {
+					// Build the child first
+					stack.push(new Frame(childId));
+				} else if (!trees.containsKey(childId)) {
+					LOGGER.trace("Ignoring cyclic reference {}->{}", frame.nodeId, childId);
+				}
+			} else {
+				// All children built - build this node
+				stack.pop();
+				inProgress.remove(frame.nodeId);
+				trees.put(frame.nodeId, accumulate(frame.nodeId));
+			}
+		}
+		
+		return trees.get(root);
+	}
+	
+	/**
+	 * Build a node's tree from the (already built) trees of its children.
+	 * @param nodeId the node ID.
+	 * @return the node's tree.
+	 */
+	private TreeFacetField accumulate(String nodeId) {
+		// We use a reverse-ordered SortedSet so entries are returned in descending
+		// order by their total count.
+		SortedSet<TreeFacetField> childHierarchy = new TreeSet<>(Collections.reverseOrder());
+		
+		// childTotal is the total number of facet hits below this node
+		long childTotal = 0;
+		BitSet nodeDescendants = distinctTotals ? new BitSet() : null;
+		for (String childId : getChildren(nodeId)) {
+			TreeFacetField childTree = trees.get(childId);
+			if (childTree == null) {
+				// Child is part of a cycle, and still being built
+				continue;
+			}
+			
+			if (childHierarchy.add(childTree)) {
+				if (distinctTotals) {
+					nodeDescendants.set(getOrdinal(childId));
+					nodeDescendants.or(descendants.get(childId));
+				} else {
+					// Only add to the total count if this node isn't already in the child hierarchy
+					childTotal += childTree.getTotal();
+				}
+			}
+		}
+		
+		if (distinctTotals) {
+			nodeDescendants.clear(getOrdinal(nodeId));
+			descendants.put(nodeId, nodeDescendants);
+			for (int i = nodeDescendants.nextSetBit(0); i >= 0; i = nodeDescendants.nextSetBit(i + 1)) {
+				childTotal += getFacetCount(ordinalNodes.get(i));
+			}
+		}
+		
+		return new TreeFacetField(labels.apply(nodeId), nodeId, getFacetCount(nodeId), childTotal, childHierarchy);
+	}
+	
+	private Collection<String> getChildren(String nodeId) {
+		Set<String> children = hierarchyMap.get(nodeId);
+		return children == null ? Collections.emptySet() : children;
+	}
+	
+	private int getOrdinal(String nodeId) {
+		Integer ord = ordinals.get(nodeId);
+		if (ord == null) {
+			ord = ordinalNodes.size();
+			ordinals.put(nodeId, ord);
+			ordinalNodes.add(nodeId);
+		}
+		return ord;
+	}
+	
+	/**
+	 * Get the count for the facet with the given key.
+	 * @param key the key to look up.
+	 * @return the count, or <code>0</code> if the key does not exist in the map.
+	 */
+	private long getFacetCount(String key) {
+		Integer count = facetCounts.get(key);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * A node on the build stack, with the children still to be visited.
+	 */
+	private final class Frame {
+		
+		private final String nodeId;
+		private final Iterator<String> children;
+		
+		private Frame(String nodeId) {
+			this.nodeId = nodeId;
+			this.children = getChildren(nodeId).iterator();
+		}
+		
+		/**
+		 * @return the next child to be included in the tree, or <code>null</code>
+		 * if there are no more.
+		 */
+		private String nextChild() {
+			while (children.hasNext()) {
+				String childId = children.next();
+				if (!childId.equals(nodeId) && childFilter.test(childId)) {
+					return childId;
+				}
+			}
+			return null;
+		}
+		
+	}
+	
+}
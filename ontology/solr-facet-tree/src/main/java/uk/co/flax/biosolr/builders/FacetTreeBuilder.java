@@ -24,6 +24,7 @@ import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
 
+import uk.co.flax.biosolr.FacetTreeExecutor;
 import uk.co.flax.biosolr.TreeFacetField;
 
 /**
@@ -58,4 +59,13 @@ public interface FacetTreeBuilder {
 	 */
 	List<TreeFacetField> processFacetTree(SolrIndexSearcher searcher, Map<String, Integer> facetMap) throws IOException;
 	
+	/**
+	 * Set the executor which may be used to run independent hierarchy lookups
+	 * in parallel. Builders which do not split their lookups can ignore this.
+	 * @param executor the executor, or <code>null</code> to run all lookups
+	 * on the calling thread.
+	 */
+	default void setExecutor(FacetTreeExecutor executor) {
+	}
+	
 }
@@ -32,6 +32,7 @@ public class FacetTreeBuilderFactory {
 	
 	public static final String CHILD_NODE_STRATEGY = "childnode";
 	public static final String PARENT_NODE_STRATEGY = "parentnode";
+	public static final String PATH_STRATEGY = "path";
 	
 	public FacetTreeBuilderFactory() {
 	}
@@ -89,6 +90,8 @@ public class FacetTreeBuilderFactory {
 				ftb = new ChildNodeFacetTreeBuilder();
 			} else if (strategy.equals(PARENT_NODE_STRATEGY)) {
 				ftb = new ParentNodeFacetTreeBuilder();
+			} else if (strategy.equals(PATH_STRATEGY)) {
+				ftb = new PathFacetTreeBuilder();
 			}
 		}
 		
@@ -0,0 +1,354 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of the hierarchy held in a collection, read once per
+ * searcher and kept in the searcher's {@value #CACHE_NAME} cache (see
+ * {@link NodeHierarchyRegenerator}).
+ * 
+ * <p>
+ * Every node ID found in the node field or the relation field (the child
+ * or parent field, depending on the strategy) has an ordinal, and for each
+ * ordinal the hierarchy holds the ordinals of its related nodes, the
+ * ordinals of the nodes that refer to it, and its label. The node and
+ * relation fields are read from their docValues (or uninverted, if they
+ * have none). The label field is read from its docValues if it has them,
+ * and otherwise from the stored fields, since labels are usually tokenized.
+ * </p>
+ *
+ * @author mlp
+ */
+public class NodeHierarchy {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(NodeHierarchy.class);
+	
+	/** The name of the user cache holding hierarchies, in solrconfig.xml. */
+	public static final String CACHE_NAME = "facetTreeHierarchy";
+	
+	private static final int[] NO_ORDS = new int[0];
+	
+	/**
+	 * Cache key for a hierarchy, made up of the fields it is read from.
+	 */
+	static final class Key {
+		
+		private final String nodeField;
+		private final String relationField;
+		private final String labelField;
+		
+		Key(String nodeField, String relationField, String labelField) {
+			this.nodeField = nodeField;
+			this.relationField = relationField;
+			this.labelField = labelField;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(nodeField, relationField, labelField);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return nodeField.equals(other.nodeField) && relationField.equals(other.relationField)
+					&& Objects.equals(labelField, other.labelField);
+		}
+		
+		@Override
+		public String toString() {
+			return nodeField + "/" + relationField + (labelField == null ? "" : "/" + labelField);
+		}
+		
+	}
+	
+	private final Map<String, Integer> ords;
+	private final String[] ids;
+	private final BitSet nodes;
+	private final int[][] related;
+	private final int[][] referrers;
+	private final String[] labels;
+	
+	private NodeHierarchy(Map<String, Integer> ords, String[] ids, BitSet nodes, int[][] related, int[][] referrers, String[] labels) {
+		this.ords = ords;
+		this.ids = ids;
+		this.nodes = nodes;
+		this.related = related;
+		this.referrers = referrers;
+		this.labels = labels;
+	}
+	
+	/**
+	 * Get the hierarchy for the given fields from the searcher's cache,
+	 * reading it if it is not there yet.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param nodeField the node ID field.
+	 * @param relationField the field holding the IDs of related nodes.
+	 * @param labelField the label field (optional).
+	 * @return the hierarchy, or <code>null</code> if the searcher has no
+	 * hierarchy cache, or the fields cannot be read from docValues.
+	 * @throws IOException if the index cannot be read.
+	 */
+	@SuppressWarnings("unchecked")
+	public static NodeHierarchy getHierarchy(SolrIndexSearcher searcher, String nodeField, String relationField, String labelField)
+			throws IOException {
+		SolrCache<Key, NodeHierarchy> cache = searcher.getCache(CACHE_NAME);
+		if (cache == null || !canUninvert(searcher, nodeField) || !canUninvert(searcher, relationField)) {
+			return null;
+		}
+		
+		Key key = new Key(nodeField, relationField, labelField);
+		NodeHierarchy hierarchy = cache.get(key);
+		if (hierarchy == null) {
+			hierarchy = build(searcher, key);
+			cache.put(key, hierarchy);
+		}
+		return hierarchy;
+	}
+	
+	private static boolean canUninvert(SolrIndexSearcher searcher, String field) {
+		SchemaField schemaField = searcher.getSchema().getFieldOrNull(field);
+		return schemaField != null && (schemaField.hasDocValues() || (schemaField.indexed() && schemaField.isUninvertible()));
+	}
+	
+	/**
+	 * Read a hierarchy from a searcher.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param key the fields to read.
+	 * @return the hierarchy.
+	 * @throws IOException if the index cannot be read.
+	 */
+	static NodeHierarchy build(SolrIndexSearcher searcher, Key key) throws IOException {
+		long start = System.currentTimeMillis();
+		
+		Map<String, Integer> ords = new HashMap<>();
+		List<String> ids = new ArrayList<>();
+		BitSet nodes = new BitSet();
+		Map<Integer, String> labels = new HashMap<>();
+		
+		// The node -> related node edges, as pairs of ordinals
+		int[] edges = new int[1024];
+		int edgeCount = 0;
+		int[] docRelations = new int[16];
+		
+		SchemaField labelField = key.labelField == null ? null : searcher.getSchema().getFieldOrNull(key.labelField);
+		boolean labelDocValues = labelField != null && labelField.hasDocValues();
+		
+		for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+			LeafReader reader = context.reader();
+			Bits liveDocs = reader.getLiveDocs();
+			SortedSetDocValues nodeValues = DocValues.getSortedSet(reader, key.nodeField);
+			SortedSetDocValues relationValues = DocValues.getSortedSet(reader, key.relationField);
+			SortedSetDocValues labelValues = labelDocValues ? DocValues.getSortedSet(reader, key.labelField) : null;
+			
+			// Map the segment ordinals to hierarchy ordinals as they are seen
+			int[] nodeOrds = newOrdMap(nodeValues.getValueCount());
+			int[] relationOrds = newOrdMap(relationValues.getValueCount());
+			
+			for (int doc = 0; doc < reader.maxDoc(); doc ++) {
+				if ((liveDocs != null && !liveDocs.get(doc)) || !nodeValues.advanceExact(doc)) {
+					continue;
+				}
+				
+				// Read the document's related nodes first, since there may be more than one node
+				int relationCount = 0;
+				if (relationValues.advanceExact(doc)) {
+					for (long relOrd = relationValues.nextOrd(); relOrd != SortedSetDocValues.NO_MORE_ORDS; relOrd = relationValues.nextOrd()) {
+						if (relationCount == docRelations.length) {
+							docRelations = Arrays.copyOf(docRelations, relationCount * 2);
+						}
+						docRelations[relationCount ++] = lookupOrd(relationValues, relOrd, relationOrds, ords, ids);
+					}
+				}
+				
+				for (long nodeOrd = nodeValues.nextOrd(); nodeOrd != SortedSetDocValues.NO_MORE_ORDS; nodeOrd = nodeValues.nextOrd()) {
+					int node = lookupOrd(nodeValues, nodeOrd, nodeOrds, ords, ids);
+					nodes.set(node);
+					
+					if (edgeCount + 2 * relationCount > edges.length) {
+						edges = Arrays.copyOf(edges, Math.max(edges.length * 2, edgeCount + 2 * relationCount));
+					}
+					for (int i = 0; i < relationCount; i ++) {
+						edges[edgeCount ++] = node;
+						edges[edgeCount ++] = docRelations[i];
+					}
+					
+					if (labelField != null && !labels.containsKey(node)) {
+						labels.put(node, readLabel(reader, doc, key.labelField, labelValues));
+					}
+				}
+			}
+		}
+		
+		int size = ids.size();
+		int[][] related = groupEdges(edges, edgeCount, size, 0);
+		int[][] referrers = groupEdges(edges, edgeCount, size, 1);
+		String[] labelArray = new String[size];
+		labels.forEach((ord, label) -> labelArray[ord] = label);
+		
+		LOGGER.debug("Read hierarchy {} with {} nodes and {} edges in {}ms", key, size, edgeCount / 2,
+				System.currentTimeMillis() - start);
+		return new NodeHierarchy(ords, ids.toArray(new String[size]), nodes, related, referrers, labelArray);
+	}
+	
+	private static int[] newOrdMap(long valueCount) {
+		int[] ordMap = new int[(int) valueCount];
+		Arrays.fill(ordMap, -1);
+		return ordMap;
+	}
+	
+	private static int lookupOrd(SortedSetDocValues values, long segmentOrd, int[] ordMap, Map<String, Integer> ords, List<String> ids) throws IOException {
+		int ord = ordMap[(int) segmentOrd];
+		if (ord < 0) {
+			String id = values.lookupOrd(segmentOrd).utf8ToString();
+			Integer existing = ords.get(id);
+			if (existing == null) {
+				existing = ids.size();
+				ords.put(id, existing);
+				ids.add(id);
+			}
+			ord = existing;
+			ordMap[(int) segmentOrd] = ord;
+		}
+		return ord;
+	}
+	
+	private static String readLabel(LeafReader reader, int doc, String labelField, SortedSetDocValues labelValues) throws IOException {
+		if (labelValues != null) {
+			if (labelValues.advanceExact(doc)) {
+				return labelValues.lookupOrd(labelValues.nextOrd()).utf8ToString();
+			}
+			return null;
+		}
+		
+		DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(labelField);
+		reader.document(doc, visitor);
+		Document document = visitor.getDocument();
+		return document.get(labelField);
+	}
+	
+	/**
+	 * Group the edges by one of their ends.
+	 * @param edges the edges, as pairs of ordinals.
+	 * @param edgeCount the number of entries used in the edges array.
+	 * @param size the number of ordinals.
+	 * @param from 0 to group by the first ordinal of each pair, 1 to group by
+	 * the second.
+	 * @return the ordinals at the other end of the edges from each ordinal.
+	 */
+	private static int[][] groupEdges(int[] edges, int edgeCount, int size, int from) {
+		int[] counts = new int[size];
+		for (int i = from; i < edgeCount; i += 2) {
+			counts[edges[i]] ++;
+		}
+		
+		int[][] grouped = new int[size][];
+		for (int ord = 0; ord < size; ord ++) {
+			grouped[ord] = counts[ord] == 0 ? NO_ORDS : new int[counts[ord]];
+			counts[ord] = 0;
+		}
+		for (int i = 0; i < edgeCount; i += 2) {
+			int ord = edges[i + from];
+			grouped[ord][counts[ord] ++] = edges[i + 1 - from];
+		}
+		return grouped;
+	}
+	
+	/**
+	 * @return the number of node IDs in the hierarchy, including those only
+	 * found as related nodes.
+	 */
+	public int size() {
+		return ids.length;
+	}
+	
+	/**
+	 * @param id the node ID.
+	 * @return <code>true</code> if there is a document for the node.
+	 */
+	public boolean isNode(String id) {
+		Integer ord = ords.get(id);
+		return ord != null && nodes.get(ord);
+	}
+	
+	/**
+	 * @param id the node ID.
+	 * @return the IDs held in the relation field of the node's document(s).
+	 */
+	public Set<String> getRelated(String id) {
+		return toIds(related, id);
+	}
+	
+	/**
+	 * @param id the node ID.
+	 * @return the IDs of the nodes whose relation field holds the given ID.
+	 */
+	public Set<String> getReferrers(String id) {
+		return toIds(referrers, id);
+	}
+	
+	private Set<String> toIds(int[][] edges, String id) {
+		Integer ord = ords.get(id);
+		if (ord == null || edges[ord].length == 0) {
+			return Collections.emptySet();
+		}
+		
+		Set<String> relatedIds = new HashSet<>(edges[ord].length * 2);
+		for (int relatedOrd : edges[ord]) {
+			relatedIds.add(ids[relatedOrd]);
+		}
+		return relatedIds;
+	}
+	
+	/**
+	 * @param id the node ID.
+	 * @return the first label of the node, or <code>null</code> if it has none.
+	 */
+	public String getLabel(String id) {
+		Integer ord = ords.get(id);
+		return ord == null ? null : labels[ord];
+	}
+	
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import java.io.IOException;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Cache regenerator for the {@value NodeHierarchy#CACHE_NAME} cache, which
+ * re-reads each hierarchy from the new searcher when it is warmed, so that
+ * requests after a commit do not have to wait for it. Configure the cache
+ * in solrconfig.xml:
+ * 
+ * <pre>
+ * &lt;cache name="facetTreeHierarchy" class="solr.LRUCache" size="16"
+ *        autowarmCount="16" regenerator="uk.co.flax.biosolr.builders.NodeHierarchyRegenerator" /&gt;
+ * </pre>
+ *
+ * @author mlp
+ */
+public class NodeHierarchyRegenerator implements CacheRegenerator {
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey,
+			Object oldVal) throws IOException {
+		NodeHierarchy.Key key = (NodeHierarchy.Key) oldKey;
+		newCache.put(key, NodeHierarchy.build(newSearcher, key));
+		return true;
+	}
+
+}
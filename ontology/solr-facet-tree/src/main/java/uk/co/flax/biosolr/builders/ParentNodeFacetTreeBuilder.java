@@ -19,26 +19,20 @@ package uk.co.flax.biosolr.builders;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.params.SolrParams;
-import org.apache.solr.common.util.NamedList;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -96,32 +90,34 @@ public class ParentNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 			throws IOException {
 		checkFieldsInSchema(searcher, docFields);
 		
+		// Use the in-memory hierarchy, if there is one
+		NodeHierarchy hierarchy = getHierarchy(searcher, parentField);
+		
 		// Extract the facet keys to a volatile set
 		Set<String> facetKeys = new HashSet<>(facetMap.keySet());
 
 		// Build a map of parent - child node IDs. This should contain the parents
 		// of all our starting facet terms.
-		Map<String, Set<String>> nodeChildren = findParentEntries(searcher, facetKeys);
+		Map<String, Set<String>> nodeChildren = findParentEntries(searcher, hierarchy, facetKeys);
 
 		// Find the top nodes
 		Set<String> topNodes = findTopLevelNodes(nodeChildren);
 		LOGGER.debug("Found {} top level nodes", topNodes.size());
 
 		// Convert to a list of TreeFacetFields
-		return topNodes.parallelStream()
-				.map(node -> buildAccumulatedEntryTree(0, node, nodeChildren, facetMap))
-				.collect(Collectors.toList());
+		return buildAccumulatedTrees(topNodes, nodeChildren, facetMap, childId -> true);
 	}
 	
 	/**
 	 * Find all parent nodes for the given set of items.
 	 * @param searcher the searcher for the collection being used.
+	 * @param hierarchy the in-memory hierarchy, or <code>null</code> to use queries.
 	 * @param facetValues the starting set of node IDs.
 	 * @return a map of nodes, keyed by their IDs.
 	 * @throws IOException
 	 */
-	private Map<String, Set<String>> findParentEntries(SolrIndexSearcher searcher, Collection<String> facetValues)
-			throws IOException {
+	private Map<String, Set<String>> findParentEntries(SolrIndexSearcher searcher, NodeHierarchy hierarchy,
+			Collection<String> facetValues) throws IOException {
 		Map<String, Set<String>> nodeParentIds = new HashMap<>();
 
 		Set<String> nodesFound = new HashSet<>();
@@ -130,7 +126,8 @@ public class ParentNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 		int count = 0;
 		while (nodeIds.size() > 0 && (maxLevels == 0 || maxLevels >= count)) {
 			// Find the direct parents for the current node IDs
-			Map<String, Set<String>> parents = findParentIdsForNodes(searcher, nodeIds);
+			Map<String, Set<String>> parents = hierarchy != null ? findParentIdsForNodes(hierarchy, nodeIds)
+					: lookupInBatches(nodeIds, batch -> findParentIdsForNodes(searcher, batch));
 			nodeParentIds.putAll(parents);
 			nodesFound.addAll(nodeIds);
 
@@ -183,80 +180,35 @@ public class ParentNodeFacetTreeBuilder extends AbstractFacetTreeBuilder {
 		return parentIds;
 	}
 
-	/**
-	 * Build a filter query for a field using a set of values, taken from the keys
-	 * of a {@link NamedList}.
-	 * @param field
-	 * @param values
-	 * @return a filter string.
-	 */
-	private Query buildFilterQuery(String field, Collection<String> values) {
-		BooleanQuery.Builder builder = new BooleanQuery.Builder();
-
-		values.stream()
-			.map(v -> new TermQuery(new Term(field, v)))
-			.forEach(tq -> builder.add(tq, Occur.SHOULD));
-
-		return builder.build();
-	}
-
-	/**
-	 * Recursively build an accumulated facet entry tree.
-	 * @param level current level in the tree (used for debugging/logging).
-	 * @param fieldValue the current node value.
-	 * @param hierarchyMap the map of nodes (either in the original facet set,
-	 * or parents of those entries).
-	 * @param facetCounts the facet counts, keyed by node ID.
-	 * @return a {@link TreeFacetField} containing details for the current node and all
-	 * sub-nodes down to the lowest leaf which has a facet count.
-	 */
-	private TreeFacetField buildAccumulatedEntryTree(int level, String fieldValue, Map<String, Set<String>> hierarchyMap,
-			Map<String, Integer> facetCounts) {
-		// Build the child hierarchy for this entry.
-		// We use a reverse-ordered SortedSet so entries are returned in descending
-		// order by their total count.
-		SortedSet<TreeFacetField> childHierarchy = new TreeSet<>(Collections.reverseOrder());
+	private Map<String, Set<String>> findParentIdsForNodes(NodeHierarchy hierarchy, Collection<String> nodeIds) {
+		Map<String, Set<String>> parentIds = new HashMap<>();
 		
-		// childTotal is the total number of facet hits below this node
-		long childTotal = 0;
-		if (hierarchyMap.containsKey(fieldValue)) {
-			// Loop through all the direct child URIs, looking for those which are in the annotation map
-			for (String childId : hierarchyMap.get(fieldValue)) {
-				if (!childId.equals(fieldValue)) {
-					// Found a child of this node - recurse to build its facet tree
-					LOGGER.trace("[{}] Building child tree for {}, with {} children", level, childId, 
-							(hierarchyMap.containsKey(childId) ? hierarchyMap.get(childId).size(): 0));
-					TreeFacetField childTree = buildAccumulatedEntryTree(level + 1, childId, hierarchyMap, facetCounts);
-					
-					// Only add to the total count if this node isn't already in the child hierarchy
-					if (childHierarchy.add(childTree)) {
-						childTotal += childTree.getTotal();
-					}
-					LOGGER.trace("[{}] child tree total: {} - child Total {}, child count {}", level, childTree.getTotal(), childTotal, childHierarchy.size());
-				} else {
-					LOGGER.trace("[{}] found self-referring ID {}->{}", level, fieldValue, childId);
+		LOGGER.debug("Looking up parents for {} nodes in memory", nodeIds.size());
+		for (String nodeId : nodeIds) {
+			if (hierarchy.isNode(nodeId)) {
+				parentIds.put(nodeId, hierarchy.getRelated(nodeId));
+				
+				// Record the label, if required
+				if (isLabelRequired(nodeId)) {
+					recordLabel(nodeId, hierarchy.getLabel(nodeId));
 				}
 			}
 		}
-
-		// Build the accumulated facet entry
-		LOGGER.trace("[{}] Building facet tree for {}", level, fieldValue);
-		return new TreeFacetField(getLabel(fieldValue), fieldValue, getFacetCount(fieldValue, facetCounts), childTotal, childHierarchy);
+		
+		return parentIds;
 	}
 
 	/**
-	 * Get the count for the facet with the given key.
-	 * @param key the key to look up.
-	 * @param facetCounts the map of facet counts.
-	 * @return the count, or <code>0</code> if the key does not exist in the map.
+	 * Build a filter query for a field using a set of values. This uses a
+	 * {@link TermInSetQuery}, so is not limited by maxBooleanClauses.
+	 * @param field
+	 * @param values
+	 * @return a filter query.
 	 */
-	private long getFacetCount(String key, Map<String, Integer> facetCounts) {
-		if (facetCounts.containsKey(key)) {
-			return facetCounts.get(key);
-		}
-		return 0;
+	private Query buildFilterQuery(String field, Collection<String> values) {
+		return new TermInSetQuery(field, values.stream().map(BytesRef::new).collect(Collectors.toList()));
 	}
-	
+
 	@Override
 	protected Logger getLogger() {
 		return LOGGER;
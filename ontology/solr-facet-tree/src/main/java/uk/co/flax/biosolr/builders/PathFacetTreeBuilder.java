@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.flax.biosolr.FacetTreeParameters;
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Implementation of {@link FacetTreeBuilder} that builds the tree from
+ * the facet values of a field holding node paths, without looking up the
+ * hierarchy at all.
+ * 
+ * <p>
+ * Each value of the field is the path from a node to the top of the
+ * hierarchy, as the node IDs separated by the path separator (a comma
+ * by default). This is the format of the parent paths written by the
+ * ontology update processor, except that the path must start with the
+ * node the document is attached to, rather than its parent. Each node
+ * ID may be followed by the label separator (" => " by default) and
+ * the node's label. With the <code>rootFirst</code> parameter, the paths
+ * run from the top of the hierarchy down to the node instead.
+ * </p>
+ * <p>
+ * The facet count for a path is the node's own count. A node with
+ * several paths to the top of the hierarchy should have every path
+ * indexed with each document, so each of them has the same count.
+ * </p>
+ * 
+ * @author mlp
+ */
+public class PathFacetTreeBuilder extends AbstractFacetTreeBuilder {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(PathFacetTreeBuilder.class);
+	
+	public static final String DEFAULT_PATH_SEPARATOR = ",";
+	public static final String DEFAULT_LABEL_SEPARATOR = " => ";
+	
+	private String pathSeparator;
+	private String labelSeparator;
+	private boolean rootFirst;
+	
+	@Override
+	public void initialiseParameters(SolrParams localParams) throws SyntaxError {
+		super.initialiseParameters(localParams);
+		
+		// The hierarchy is all in the paths
+		if (StringUtils.isNotBlank(localParams.get(FacetTreeParameters.COLLECTION_PARAM))) {
+			throw new SyntaxError("The path strategy cannot use a separate collection: " + localParams);
+		}
+		
+		pathSeparator = localParams.get(FacetTreeParameters.PATH_SEPARATOR_PARAM, DEFAULT_PATH_SEPARATOR);
+		if (StringUtils.isEmpty(pathSeparator)) {
+			throw new SyntaxError("Empty path separator in " + localParams);
+		}
+		labelSeparator = localParams.get(FacetTreeParameters.LABEL_SEPARATOR_PARAM, DEFAULT_LABEL_SEPARATOR);
+		rootFirst = localParams.getBool(FacetTreeParameters.ROOT_FIRST_PARAM, false);
+	}
+	
+	@Override
+	public List<TreeFacetField> processFacetTree(SolrIndexSearcher searcher, Map<String, Integer> facetMap) {
+		Map<String, Set<String>> nodeChildren = new HashMap<>();
+		Map<String, Integer> nodeCounts = new HashMap<>();
+		
+		for (Map.Entry<String, Integer> entry : facetMap.entrySet()) {
+			String[] path = StringUtils.splitByWholeSeparatorPreserveAllTokens(entry.getKey(), pathSeparator);
+			
+			// Walk from the node up to the top of the hierarchy
+			String child = null;
+			for (int i = 0; i < path.length; i ++) {
+				String nodeId = readNode(path[rootFirst ? path.length - 1 - i : i]);
+				if (nodeId.isEmpty()) {
+					continue;
+				}
+				
+				Set<String> children = nodeChildren.computeIfAbsent(nodeId, k -> new HashSet<>());
+				if (child == null) {
+					// The node itself - all of its paths should have the same count
+					nodeCounts.merge(nodeId, entry.getValue(), Math::max);
+				} else {
+					children.add(child);
+				}
+				child = nodeId;
+			}
+		}
+		LOGGER.debug("Read {} nodes from {} paths", nodeChildren.size(), facetMap.size());
+		
+		return buildAccumulatedTrees(findTopLevelNodes(nodeChildren), nodeChildren, nodeCounts, childId -> true);
+	}
+	
+	/**
+	 * Read the node ID from an element of a path, recording its label if
+	 * there is one.
+	 * @param element the path element.
+	 * @return the node ID.
+	 */
+	private String readNode(String element) {
+		String nodeId = element;
+		if (StringUtils.isNotEmpty(labelSeparator)) {
+			int idx = element.indexOf(labelSeparator);
+			if (idx >= 0) {
+				nodeId = element.substring(0, idx).trim();
+				recordLabel(nodeId, element.substring(idx + labelSeparator.length()));
+			}
+		}
+		return nodeId.trim();
+	}
+	
+	@Override
+	protected Logger getLogger() {
+		return LOGGER;
+	}
+	
+}
@@ -16,15 +16,15 @@
 
 package uk.co.flax.biosolr.pruning;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
-import uk.co.flax.biosolr.TreeFacetField;
+import uk.co.flax.biosolr.FacetTree;
 
 /**
  * Prune a facet hierarchy tree into its most significant data points,
@@ -45,23 +45,38 @@ public class DatapointPruner implements Pruner {
 	}
 
 	@Override
-	public Collection<TreeFacetField> prune(Collection<TreeFacetField> unprunedTrees) {
-		Collection<TreeFacetField> prunedTrees = new TreeSet<>(Comparator.comparingLong(TreeFacetField::getCount)
-				.thenComparing(TreeFacetField::getValue).reversed());
-		// Clone the unpruned collection - we need it again later
-		Collection<TreeFacetField> incoming = unprunedTrees.stream().map(TreeFacetField::clone).collect(Collectors.toList());
+	public void prune(FacetTree tree) {
+		// Nodes are unlinked below, so they cannot share their children
+		tree.unshareNodes();
+		int[] unprunedTrees = tree.getRoots();
+		Collection<Integer> prunedTrees = new TreeSet<>(Comparator.<Integer>comparingLong(tree::getCount)
+				.thenComparing(tree::getValue).reversed());
+		
+		// Copy the unpruned nodes - we need them again later. The copies are
+		// held as the children of a new node, so they can be unlinked in the
+		// same way as any other node.
+		int offset = tree.copyNodes();
+		int incoming = tree.addNode("", null, 0, 0);
+		int[] copies = new int[unprunedTrees.length];
+		for (int i = 0; i < unprunedTrees.length; i ++) {
+			copies[i] = unprunedTrees[i] + offset;
+		}
+		tree.setChildren(incoming, copies);
+
+		// The copied nodes whose child counts have been recalculated
+		BitSet summed = new BitSet(tree.size());
 
-		long total = getNodeTotal(incoming);
+		long total = getNodeTotal(tree, copies);
 		int itCount = 1;
 		int prevCount = Integer.MAX_VALUE;
 		
-		while (prunedTrees.size() < datapoints && !incoming.isEmpty()) {
+		while (prunedTrees.size() < datapoints && tree.hasChildren(incoming)) {
 			int minCount = getThreshold(itCount, prevCount, total);
 			if (minCount <= 0) {
 				break;
 			}
 			
-			prunedTrees.addAll(getNodesWithCount(incoming, minCount));
+			prunedTrees.addAll(getNodesWithCount(tree, incoming, minCount, summed));
 			
 			itCount ++;
 			prevCount = minCount;
@@ -76,18 +91,25 @@ public class DatapointPruner implements Pruner {
 			prunedTrees = prunedTrees.stream().limit(datapoints).collect(Collectors.toList());
 		}
 		
-		// Rebuild the incoming node set - no need to clone...
-		incoming = new LinkedList<>(unprunedTrees);
-		// ...and strip the nodes already extracted to the pruned list
-		trimIncomingNodes(incoming, prunedTrees, 0);
+		// Rebuild the incoming node set from the original nodes...
+		incoming = tree.addNode("", null, 0, 0);
+		tree.setChildren(incoming, unprunedTrees);
+		// ...and strip the nodes already extracted to the pruned list, or
+		// found in their children
+		FacetTree.NodeSet prunedNodes = tree.newNodeSet();
+		for (int node : prunedTrees) {
+			prunedNodes.add(node);
+			prunedNodes.addDescendants(node);
+		}
+		trimIncomingNodes(tree, incoming, prunedNodes, 0);
 		
 		// Build the "other" node
-		TreeFacetField otherNode = buildOtherNode(incoming);
-		if (otherNode.getTotal() > 0) {
+		int otherNode = buildOtherNode(tree, tree.getChildren(incoming));
+		if (tree.getTotal(otherNode) > 0) {
 			prunedTrees.add(otherNode);
 		}
 		
-		return prunedTrees;
+		tree.setRoots(prunedTrees.stream().mapToInt(Integer::intValue).toArray());
 	}
 	
 	private int getThreshold(int iteration, int previous, long total) {
@@ -102,102 +124,123 @@ public class DatapointPruner implements Pruner {
 	}
 	
 	/**
-	 * Extract all nodes in a collection with a hit count greater or equal
-	 * to a given threshold. This has the side effect of modifying the
-	 * incoming node collection.
-	 * @param incoming the incoming nodes. Matching nodes will be removed
-	 * during the processing.
+	 * Extract all nodes below a parent with a hit count greater or equal
+	 * to a given threshold. This has the side effect of unlinking the
+	 * matching nodes from their parents.
+	 * @param tree the tree holding the nodes.
+	 * @param parent the parent of the incoming nodes. Matching nodes will
+	 * be removed during the processing.
 	 * @param threshold the minimum hit count required to be returned.
+	 * @param summed the nodes whose child counts have been recalculated.
 	 * @return the collection of nodes whose hit count is greater than or
 	 * equal to the threshold. 
 	 */
-	private Collection<TreeFacetField> getNodesWithCount(Collection<TreeFacetField> incoming, long threshold) {
-		Collection<TreeFacetField> retList = new LinkedList<>();
+	private Collection<Integer> getNodesWithCount(FacetTree tree, int parent, long threshold, BitSet summed) {
+		Collection<Integer> retList = new ArrayList<>();
 		
-		for (Iterator<TreeFacetField> iter = incoming.iterator(); iter.hasNext(); ) {
-			TreeFacetField tff = iter.next();
-			if (tff.getTotal() >= threshold) {
-				if (tff.getChildCount() >= threshold) {
+		int previous = FacetTree.NONE;
+		for (int node = tree.getFirstChild(parent); node != FacetTree.NONE; ) {
+			int next = tree.getNextSibling(node);
+			boolean removed = false;
+			if (tree.getTotal(node) >= threshold) {
+				if (tree.getChildCount(node) >= threshold) {
 					// Recurse, finding the nodes with enough hits
-					retList.addAll(getNodesWithCount(tff.getHierarchy(), threshold));
+					retList.addAll(getNodesWithCount(tree, node, threshold, summed));
 					// Recalculate the child count throughout the tree
-					tff.recalculateChildCount();
+					recalculateChildCount(tree, node, summed);
 				}
 				
-				if (tff.getCount() >= threshold) {
+				if (tree.getCount(node) >= threshold) {
 					// This node has enough hits - store, and remove from the 
 					// incoming nodes so it's not picked again later.
-					retList.add(tff);
-					iter.remove();
+					retList.add(node);
+					tree.removeChild(parent, previous, node);
+					removed = true;
 				}
 			}
+			if (!removed) {
+				previous = node;
+			}
+			node = next;
 		}
 		
 		return retList;
 	}
 	
+	/**
+	 * Recalculate the child count for a node, as
+	 * {@link FacetTree#recalculateChildCount(int)}, but only descending into
+	 * children which have not been recalculated before. Any node changed
+	 * since it was recalculated is on the path to a removed node, and has
+	 * been recalculated again on the way back up, so each subtree is
+	 * only summed in full once.
+	 * @param tree the tree holding the nodes.
+	 * @param node the node to recalculate.
+	 * @param summed the nodes whose child counts have been recalculated.
+	 * @return the new total count for the node.
+	 */
+	private long recalculateChildCount(FacetTree tree, int node, BitSet summed) {
+		long childCount = 0;
+		for (int child = tree.getFirstChild(node); child != FacetTree.NONE; child = tree.getNextSibling(child)) {
+			childCount += summed.get(child) ? tree.getTotal(child) : recalculateChildCount(tree, child, summed);
+		}
+		tree.setChildCount(node, childCount);
+		summed.set(node);
+		return tree.getTotal(node);
+	}
+	
 	/**
 	 * Get the total node count for all trees.
-	 * @param trees the trees whose total count is required.
+	 * @param tree the tree holding the nodes.
+	 * @param nodes the nodes whose total count is required.
 	 * @return the count.
 	 */
-	private long getNodeTotal(Collection<TreeFacetField> trees) {
-		return trees.stream().mapToLong(TreeFacetField::getTotal).sum();
+	private long getNodeTotal(FacetTree tree, int[] nodes) {
+		long total = 0;
+		for (int node : nodes) {
+			total += tree.getTotal(node);
+		}
+		return total;
 	}
 	
 	/**
 	 * Remove a collection of pruned nodes from the original incoming set.
-	 * @param incoming the set containing all nodes in the tree.
-	 * @param pruned the nodes to check for duplicates.
+	 * @param tree the tree holding the nodes.
+	 * @param parent the parent of the nodes to check.
+	 * @param pruned the pruned nodes, and all of their descendants.
 	 * @param level the current level in the tree, starting from 0.
 	 */
-	private void trimIncomingNodes(Collection<TreeFacetField> incoming, Collection<TreeFacetField> pruned, int level) {
-		for (Iterator<TreeFacetField> it = incoming.iterator(); it.hasNext(); ) {
-			TreeFacetField tff = it.next();
-			if (isFacetInChildren(tff, pruned)) {
-				it.remove();
+	private void trimIncomingNodes(FacetTree tree, int parent, FacetTree.NodeSet pruned, int level) {
+		int previous = FacetTree.NONE;
+		for (int node = tree.getFirstChild(parent); node != FacetTree.NONE; ) {
+			int next = tree.getNextSibling(node);
+			if (pruned.contains(node)) {
+				tree.removeChild(parent, previous, node);
 			} else {
-				if (tff.hasChildren()) {
-					trimIncomingNodes(tff.getHierarchy(), pruned, level + 1);
+				if (tree.hasChildren(node)) {
+					trimIncomingNodes(tree, node, pruned, level + 1);
 				}
 
 				if (level == 0) {
 					// Update the child counts in the node and its children
-					tff.recalculateChildCount();
+					tree.recalculateChildCount(node);
 				}
+				previous = node;
 			}
+			node = next;
 		}
 	}
 	
-	/**
-	 * Check whether a particular facet exists in the children of any other facets
-	 * in a collection.
-	 * @param facet the facet to check for.
-	 * @param trees the collection of trees to check through.
-	 * @return <code>true</code> if the facet is found in the child lists.
-	 */
-	private boolean isFacetInChildren(TreeFacetField facet, Collection<TreeFacetField> trees) {
-		boolean retVal = false;
-		
-		if (trees != null) {
-			for (TreeFacetField tree : trees) {
-				if (tree.equals(facet) || isFacetInChildren(facet, tree.getHierarchy())) {
-					retVal = true;
-					break;
-				}
-			}
-		}
-		
-		return retVal;
-	}
-	
-	private TreeFacetField buildOtherNode(Collection<TreeFacetField> otherNodes) {
+	private int buildOtherNode(FacetTree tree, int[] otherNodes) {
 		// Prune the other nodes - use the SimplePruner
-		SortedSet<TreeFacetField> pruned = new TreeSet<>(Comparator.reverseOrder());
-		pruned.addAll(new SimplePruner(SimplePruner.MIN_CHILD_COUNT).prune(otherNodes));
+		SortedSet<Integer> pruned = new TreeSet<>((a, b) -> tree.compareNodes(b, a));
+		for (int node : new SimplePruner(SimplePruner.MIN_CHILD_COUNT).prune(tree, otherNodes)) {
+			pruned.add(node);
+		}
 		
-		TreeFacetField other = new TreeFacetField(moreLabel, "", 0, 0, pruned);
-		other.recalculateChildCount();
+		int other = tree.addNode("", moreLabel, 0, 0);
+		tree.setChildren(other, pruned.stream().mapToInt(Integer::intValue).toArray());
+		tree.recalculateChildCount(other);
 		
 		return other;
 	}
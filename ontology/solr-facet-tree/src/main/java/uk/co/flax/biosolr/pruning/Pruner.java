@@ -16,9 +16,7 @@
 
 package uk.co.flax.biosolr.pruning;
 
-import java.util.Collection;
-
-import uk.co.flax.biosolr.TreeFacetField;
+import uk.co.flax.biosolr.FacetTree;
 
 /**
  * A Pruner defines how a facet tree structure should be pruned
@@ -29,10 +27,10 @@ import uk.co.flax.biosolr.TreeFacetField;
 public interface Pruner {
 	
 	/**
-	 * Prune the incoming collection of {@link TreeFacetField} items.
-	 * @param unprunedTrees the unpruned facet fields.
-	 * @return the pruned collection.
+	 * Prune the incoming {@link FacetTree}, in place. This may unlink and
+	 * modify nodes, add new nodes, and replace the top-level nodes.
+	 * @param trees the unpruned facet trees.
 	 */
-	public Collection<TreeFacetField> prune(Collection<TreeFacetField> unprunedTrees);
+	public void prune(FacetTree trees);
 
 }
@@ -22,7 +22,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
-import uk.co.flax.biosolr.TreeFacetField;
+import uk.co.flax.biosolr.FacetTree;
 
 /**
  * A simple {@link Pruner} implementation, which attempts to strip off the
@@ -51,48 +51,44 @@ public class SimplePruner implements Pruner {
 	}
 
 	@Override
-	public Collection<TreeFacetField> prune(Collection<TreeFacetField> unprunedTrees) {
-		// Prune the trees
-		Collection<TreeFacetField> pruned = stripNonRelevantTrees(unprunedTrees);
+	public void prune(FacetTree tree) {
+		tree.setRoots(prune(tree, tree.getRoots()));
+	}
+	
+	/**
+	 * Prune a set of nodes in a tree, without changing the tree itself.
+	 * @param tree the tree holding the nodes.
+	 * @param unprunedTrees the nodes to prune.
+	 * @return the pruned nodes, in count-descending order.
+	 */
+	int[] prune(FacetTree tree, int[] unprunedTrees) {
+		// Prune the trees. Use the same comparator throughout, so that adding
+		// one sorted set to another (empty) one keeps its order.
+		Comparator<Integer> order = (a, b) -> tree.compareNodes(b, a);
+		Collection<Integer> pruned = stripNonRelevantTrees(tree, order, unprunedTrees);
 		
 		// Now loop through the top-level nodes, making sure none of the entries
 		// are included in another entry's children
-		pruned = deduplicateTrees(pruned);
+		pruned = deduplicateTrees(tree, pruned);
 		
-		return pruned;
+		return pruned.stream().mapToInt(Integer::intValue).toArray();
 	}
 
 	/**
 	 * De-duplicate a collection of top-level trees by checking whether a top-level
 	 * node exists in the children of any of the other nodes, and removing it if so.
+	 * The children are collected into a set in a single pass, rather than
+	 * searched for each node.
+	 * @param tree the tree holding the nodes.
 	 * @param trees the collection of top-level facet trees.
 	 * @return the de-duplicated collection.
 	 */
-	private Collection<TreeFacetField> deduplicateTrees(Collection<TreeFacetField> trees) {
-		return trees.stream().filter(t -> !isFacetInChildren(t, 0, trees)).collect(Collectors.toList());
-	}
-	
-	/**
-	 * Check whether a particular facet exists in the children of any other facets
-	 * in a collection.
-	 * @param facet the facet to check for.
-	 * @param level the current level in the hierarchy, starting from 0.
-	 * @param trees the collection of trees to check through.
-	 * @return <code>true</code> if the facet is found in the child lists.
-	 */
-	private boolean isFacetInChildren(TreeFacetField facet, int level, Collection<TreeFacetField> trees) {
-		boolean retVal = false;
-		
-		if (trees != null) {
-			for (TreeFacetField tree : trees) {
-				if ((level != 0 && tree.equals(facet)) || (isFacetInChildren(facet, level + 1, tree.getHierarchy()))) {
-					retVal = true;
-					break;
-				}
-			}
+	private Collection<Integer> deduplicateTrees(FacetTree tree, Collection<Integer> trees) {
+		FacetTree.NodeSet children = tree.newNodeSet();
+		for (int t : trees) {
+			children.addDescendants(t);
 		}
-		
-		return retVal;
+		return trees.stream().filter(t -> !children.contains(t)).collect(Collectors.toList());
 	}
 	
 	/**
@@ -101,23 +97,25 @@ public class SimplePruner implements Pruner {
 	 * entries with direct hits, or entries with a pre-defined number of
 	 * child nodes with direct hits. This can remove several top-level
 	 * layers from the tree which don't have direct hits.
+	 * @param tree the tree holding the nodes.
+	 * @param order the count-descending node order.
 	 * @param unprunedTrees the trees which need pruning.
 	 * @return a sorted list of pruned trees.
 	 */
-	private Collection<TreeFacetField> stripNonRelevantTrees(Collection<TreeFacetField> unprunedTrees) {
+	private Collection<Integer> stripNonRelevantTrees(FacetTree tree, Comparator<Integer> order, int[] unprunedTrees) {
 		// Use a sorted set so the trees come out in count-descending order
-		Set<TreeFacetField> pruned = new TreeSet<>(Comparator.reverseOrder());
+		Set<Integer> pruned = new TreeSet<>(order);
 		
-		for (TreeFacetField tff : unprunedTrees) {
-			if (tff.getCount() > 0) {
+		for (int node : unprunedTrees) {
+			if (tree.getCount(node) > 0) {
 				// Relevant  - entry has direct hits
-				pruned.add(tff);
-			} else if (checkChildCounts(tff)) {
+				pruned.add(node);
+			} else if (checkChildCounts(tree, node)) {
 				// Relevant - entry has a number of children with direct hits
-				pruned.add(tff);
-			} else if (tff.hasChildren()) {
+				pruned.add(node);
+			} else if (tree.hasChildren(node)) {
 				// Not relevant at this level - recurse through children
-				pruned.addAll(stripNonRelevantTrees(tff.getHierarchy()));
+				pruned.addAll(stripNonRelevantTrees(tree, order, tree.getChildren(node)));
 			}
 		}
 		
@@ -127,15 +125,18 @@ public class SimplePruner implements Pruner {
 	/**
 	 * Check whether the given tree has enough children with direct hits to 
 	 * be included in the pruned tree.
-	 * @param tree the facet tree.
+	 * @param tree the tree holding the node.
+	 * @param node the facet tree node.
 	 * @return <code>true</code> if the tree has enough children to be 
 	 * included.
 	 */
-	private boolean checkChildCounts(TreeFacetField tree) {
+	private boolean checkChildCounts(FacetTree tree, int node) {
 		long hitCount = 0;
 		
-		if (tree.hasChildren()) {
-			hitCount = tree.getHierarchy().stream().filter(t -> t.getCount() > 0).count();
+		for (int child = tree.getFirstChild(node); child != FacetTree.NONE; child = tree.getNextSibling(child)) {
+			if (tree.getCount(child) > 0) {
+				hitCount ++;
+			}
 		}
 		
 		return hitCount >= minChildCount;
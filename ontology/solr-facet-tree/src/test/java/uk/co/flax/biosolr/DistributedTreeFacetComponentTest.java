@@ -0,0 +1,113 @@
+package uk.co.flax.biosolr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for the distributed handling in TreeFacetComponent, building
+ * trees from merged shard facet counts.
+ *
+ * @author mlp
+ */
+public class DistributedTreeFacetComponentTest extends SolrTestCaseJ4 {
+	
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		// Initialise a single Solr core, holding the hierarchy
+		initCore("solrconfig.xml", "schema.xml", "src/test/resources/facetTree/solr", "hierarchy");
+		
+		// Add some records
+		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC", "name", "nodeA", "label", "nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB", "name", "nodeAA", "label", "nodeAA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "nodeAAA")));
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAB", "name", "nodeAAB", "label", "nodeAAB")));
+		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "AB", "name", "nodeAB", "label", "nodeAB")));
+		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "name", "nodeAC", "label", "nodeAC")));
+		assertNull(h.validateUpdate(commit()));
+	}
+	
+	private TreeFacetComponent getComponent() {
+		SearchComponent component = h.getCore().getSearchComponent("facet");
+		assertTrue(component instanceof TreeFacetComponent);
+		return (TreeFacetComponent) component;
+	}
+	
+	@Test
+	public void modifyRequest_removesTreeParams() {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "*:*");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids}node_id");
+		SolrQueryRequest req = new LocalSolrQueryRequest(h.getCore(), params);
+		ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), new ArrayList<>());
+		
+		ShardRequest sreq = new ShardRequest();
+		sreq.purpose = ShardRequest.PURPOSE_GET_FIELDS;
+		sreq.params = new ModifiableSolrParams(params);
+		getComponent().modifyRequest(rb, getComponent(), sreq);
+		req.close();
+		
+		assertNull(sreq.params.get("facet.tree"));
+		assertNull(sreq.params.get("facet.tree.field"));
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void buildDistributedFacetTrees() throws Exception {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "name:nodeA*");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids}node_id");
+		SolrQueryRequest req = new LocalSolrQueryRequest(h.getCore(), params);
+		SolrQueryResponse rsp = new SolrQueryResponse();
+		ResponseBuilder rb = new ResponseBuilder(req, rsp, new ArrayList<>());
+		
+		// Counts as merged from two shards - may be Integers or Longs
+		NamedList<Object> merged = new NamedList<>();
+		merged.add("AAA", 2L);
+		merged.add("A", 1);
+		merged.add("AA", 1);
+		merged.add("AAB", 1);
+		merged.add("AB", 1);
+		merged.add("AC", 0);
+		NamedList<Object> facetFields = new NamedList<>();
+		facetFields.add("node_id", merged);
+		NamedList<Object> facetCounts = new NamedList<>();
+		facetCounts.add("facet_fields", facetFields);
+		rsp.add("facet_counts", facetCounts);
+		
+		getComponent().buildDistributedFacetTrees(rb);
+		req.close();
+		
+		NamedList facetTree = (NamedList) facetCounts.get("facet_trees");
+		assertNotNull(facetTree);
+		
+		List<Object> nodes = (List) facetTree.get("node_id");
+		assertEquals(1, nodes.size());
+		NamedList level1 = (NamedList) nodes.get(0);
+		assertEquals("A", level1.get("value"));
+		assertEquals(1L, level1.get("count"));
+		assertEquals(6L, level1.get("total"));
+		List level2Nodes = (List) level1.get("hierarchy");
+		assertEquals(2, level2Nodes.size());
+		NamedList level2 = (NamedList) level2Nodes.get(0);
+		assertEquals("AA", level2.get("value"));
+		assertEquals(1L, level2.get("count"));
+		assertEquals(4L, level2.get("total"));
+	}
+	
+}
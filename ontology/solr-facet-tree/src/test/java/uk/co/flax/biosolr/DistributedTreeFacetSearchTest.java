@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.SolrTestCaseJ4.SuppressSSL;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Distributed tests for TreeFacetComponent, over two shards which both hold
+ * the hierarchy. The trees should be built once, on the node handling the
+ * request, from the refined facet counts.
+ *
+ * @author mlp
+ */
+@SuppressSSL
+public class DistributedTreeFacetSearchTest extends BaseDistributedSearchTestCase {
+	
+	private static Path solrHome;
+	
+	@BeforeClass
+	public static void setupSolrHome() throws Exception {
+		// The test cores use the hierarchy configuration, as collection1
+		solrHome = createTempDir();
+		FileUtils.copyDirectory(new File("src/test/resources/facetTree/solr/hierarchy/conf"),
+				solrHome.resolve("collection1").resolve("conf").toFile());
+		Files.write(solrHome.resolve("solr.xml"),
+				"<solr><str name=\"configSetBaseDir\">${configSetBaseDir:configsets}</str></solr>".getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Override
+	public String getSolrHome() {
+		return solrHome.toString();
+	}
+	
+	private void addToShard(int shard, String id, String nodeId, String... childIds) throws Exception {
+		Object[] fields = new Object[6 + 2 * childIds.length];
+		int i = 0;
+		fields[i ++] = "id";
+		fields[i ++] = id;
+		fields[i ++] = "node_id";
+		fields[i ++] = nodeId;
+		fields[i ++] = "label";
+		fields[i ++] = "node" + nodeId;
+		for (String childId : childIds) {
+			fields[i ++] = "child_ids";
+			fields[i ++] = childId;
+		}
+		clients.get(shard).add(sdoc(fields));
+	}
+	
+	private long cacheSize(JettySolrRunner jetty) {
+		try (SolrCore core = jetty.getCoreContainer().getCore(DEFAULT_TEST_CORENAME)) {
+			RefCounted<SolrIndexSearcher> searcherRef = core.getSearcher();
+			try {
+				return searcherRef.get().getCache(FacetTreeGenerator.CACHE_NAME).size();
+			} finally {
+				searcherRef.decref();
+			}
+		}
+	}
+	
+	private NamedList<?> findNode(List<?> nodes, String value) {
+		for (Object node : nodes) {
+			if (value.equals(((NamedList<?>) node).get("value"))) {
+				return (NamedList<?>) node;
+			}
+		}
+		fail(value + " not found in " + nodes);
+		return null;
+	}
+	
+	@Test
+	@ShardsFixed(num = 2)
+	public void test() throws Exception {
+		// Both shards hold the whole hierarchy
+		for (int shard = 0; shard < 2; shard ++) {
+			addToShard(shard, shard + "A", "A", "AA", "AB", "AC");
+			addToShard(shard, shard + "AA", "AA", "AAA", "AAB");
+			addToShard(shard, shard + "AAA", "AAA");
+			addToShard(shard, shard + "AAB", "AAB");
+			addToShard(shard, shard + "AB", "AB");
+			addToShard(shard, shard + "AC", "AC");
+		}
+		// ... and shard 0 has more AAA nodes, shard 1 more AB nodes
+		for (int i = 0; i < 3; i ++) {
+			addToShard(0, "AAA" + i, "AAA");
+			addToShard(1, "AB" + i, "AB");
+		}
+		commit();
+		
+		// With only the top two terms from each shard, AAA and AB have to be
+		// refined to find their counts on the other shard
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "*:*");
+		params.add("rows", "0");
+		params.add("shards", shards);
+		params.add("facet", "true");
+		params.add("facet.limit", "2");
+		params.add("facet.overrequest.ratio", "1");
+		params.add("facet.overrequest.count", "0");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids labelField=label}node_id");
+		params.add("debug", "track");
+		SolrClient client = clients.get(0);
+		QueryResponse rsp = client.query(params);
+		
+		NamedList<?> facetCounts = (NamedList<?>) rsp.getResponse().get("facet_counts");
+		assertEquals(1, facetCounts.getAll("facet_trees").size());
+		List<?> roots = (List<?>) ((NamedList<?>) facetCounts.get("facet_trees")).get("node_id");
+		assertEquals(1, roots.size());
+		NamedList<?> a = (NamedList<?>) roots.get(0);
+		assertEquals("A", a.get("value"));
+		assertEquals(10L, a.get("total"));
+		List<?> aChildren = (List<?>) a.get("hierarchy");
+		assertEquals(2, aChildren.size());
+		NamedList<?> aa = findNode(aChildren, "AA");
+		assertEquals(5L, findNode((List<?>) aa.get("hierarchy"), "AAA").get("count"));
+		assertEquals(5L, findNode(aChildren, "AB").get("count"));
+		
+		// Each shard was asked to refine the other's top term, without the
+		// tree params
+		NamedList<?> refinements = (NamedList<?>) rsp.getDebugMap().get("track");
+		refinements = (NamedList<?>) refinements.get("GET_FIELDS");
+		assertEquals(2, refinements.size());
+		for (int i = 0; i < refinements.size(); i ++) {
+			NamedList<?> refinement = (NamedList<?>) refinements.getVal(i);
+			assertEquals("REFINE_FACETS", refinement.get("RequestPurpose"));
+			String shardResponse = refinement.get("Response").toString();
+			assertFalse(shardResponse, shardResponse.contains(TreeFacetComponent.FACET_TREE));
+		}
+		
+		// So the tree was only built by the node handling the request
+		assertEquals(1, cacheSize(jettys.get(0)));
+		assertEquals(0, cacheSize(jettys.get(1)));
+	}
+	
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for the FacetTreeExecutor.
+ *
+ * @author mlp
+ */
+public class FacetTreeExecutorTest {
+	
+	private FacetTreeExecutor executor;
+	
+	@After
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void invokeAll_returnsResultsInOrder() throws Exception {
+		executor = new FacetTreeExecutor("test", 2, 10, 1, new Semaphore(1));
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < 20; i ++) {
+			final int value = i;
+			tasks.add(() -> value);
+		}
+		
+		List<Integer> results = executor.invokeAll(tasks);
+		assertEquals(20, results.size());
+		for (int i = 0; i < 20; i ++) {
+			assertEquals(i, results.get(i).intValue());
+		}
+	}
+	
+	@Test(expected=IOException.class)
+	public void invokeAll_throwsTaskException() throws Exception {
+		executor = new FacetTreeExecutor("test", 2, 10, 1, new Semaphore(1));
+		executor.invokeAll(Arrays.<Callable<String>>asList(() -> "ok", () -> { throw new IOException("failed"); }));
+	}
+	
+	@Test
+	public void invokeAll_fromPoolThread() throws Exception {
+		// A single thread, running a task which splits its own work
+		executor = new FacetTreeExecutor("test", 1, 10, 1, new Semaphore(1));
+		FutureTask<List<String>> outer = new FutureTask<>(
+				() -> executor.invokeAll(Arrays.<Callable<String>>asList(() -> "a", () -> "b", () -> "c")));
+		executor.execute(outer);
+		
+		assertEquals(Arrays.asList("a", "b", "c"), outer.get(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void execute_fullPoolRunsOnCaller() throws Exception {
+		executor = new FacetTreeExecutor("test", 1, 1, 1, new Semaphore(1));
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		started.await();
+		// Fills the queue
+		executor.execute(() -> { });
+		assertEquals(1, executor.getQueueSize());
+		assertEquals(1, executor.getActiveThreads());
+		
+		// No room - should run on this thread
+		Thread[] runner = new Thread[1];
+		executor.execute(() -> runner[0] = Thread.currentThread());
+		assertEquals(Thread.currentThread(), runner[0]);
+		assertEquals(1, executor.getRejectedCount());
+		
+		release.countDown();
+	}
+	
+	@Test
+	public void treePermits() throws Exception {
+		Semaphore permits = new Semaphore(2);
+		executor = new FacetTreeExecutor("test", 1, 1, 1, permits);
+		
+		executor.acquireTree();
+		assertEquals(1, executor.getAvailableTrees());
+		executor.acquireTree();
+		assertEquals(0, executor.getAvailableTrees());
+		assertFalse(permits.tryAcquire());
+		
+		executor.releaseTree();
+		executor.releaseTree();
+		assertEquals(2, executor.getAvailableTrees());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void construct_invalidThreads() {
+		new FacetTreeExecutor("test", 0, 1, 1);
+	}
+	
+}
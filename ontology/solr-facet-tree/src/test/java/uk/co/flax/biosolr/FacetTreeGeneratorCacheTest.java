@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr;
+
+import java.util.List;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for the facet tree result cache, using a basic Solr instance.
+ *
+ * @author mlp
+ */
+public class FacetTreeGeneratorCacheTest extends SolrTestCaseJ4 {
+	
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		// Initialise a single Solr core
+		initCore("solrconfig.xml", "schema.xml", "src/test/resources/facetTree/solr", "hierarchy");
+		
+		// Add some records
+		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "name", "nodeA", "label", "nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "name", "nodeAA", "label", "nodeAA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "nodeAAA")));
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AB", "name", "nodeAB", "label", "nodeAB")));
+		assertNull(h.validateUpdate(commit()));
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static List facetTree(String query, String treeField) {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", query);
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", treeField);
+		
+		SolrQueryResponse rsp = new SolrQueryResponse();
+		rsp.add("responseHeader", new SimpleOrderedMap<>());
+		SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+		core.getRequestHandler("facetTree").handleRequest(req, rsp);
+		req.close();
+		
+		assertNull(rsp.getException());
+		NamedList facetTrees = (NamedList) ((NamedList) rsp.getValues().get("facet_counts")).get("facet_trees");
+		return (List) facetTrees.get("node_id");
+	}
+	
+	private static int cacheSize() {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			return searcherRef.get().getCache(FacetTreeGenerator.CACHE_NAME).size();
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void sameRequest_usesCachedTree() throws Exception {
+		String treeField = "{!ftree childField=child_ids}node_id";
+		int size = cacheSize();
+		
+		List<?> first = facetTree("name:nodeAA*", treeField);
+		assertEquals(size + 1, cacheSize());
+		
+		// The same counts and parameters give the same tree, from the cache
+		assertEquals(first, facetTree("name:nodeAA*", treeField));
+		assertEquals(size + 1, cacheSize());
+		
+		// A different pruner is a different entry
+		facetTree("name:nodeAA*", "{!ftree childField=child_ids prune=simple}node_id");
+		assertEquals(size + 2, cacheSize());
+		
+		// As are different counts
+		facetTree("name:nodeAB", treeField);
+		assertEquals(size + 3, cacheSize());
+		
+		// Returning part of a tree uses the cached tree
+		List<?> expanded = facetTree("name:nodeAA*", "{!ftree childField=child_ids expand=AA depth=1}node_id");
+		assertEquals(size + 3, cacheSize());
+		assertEquals(1, expanded.size());
+		assertEquals(Boolean.TRUE, ((NamedList<?>) expanded.get(0)).get("expandable"));
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void newSearcher_rebuildsTree() throws Exception {
+		String treeField = "{!ftree childField=child_ids}node_id";
+		facetTree("node_id:A*", treeField);
+		assertTrue(cacheSize() > 0);
+		
+		// Add a new child of A, and commit
+		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC",
+				"name", "nodeA", "label", "nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "name", "nodeAC", "label", "nodeAC")));
+		assertNull(h.validateUpdate(commit()));
+		assertEquals(0, cacheSize());
+		
+		List nodes = facetTree("node_id:A*", treeField);
+		assertEquals(1, nodes.size());
+		assertEquals(3, ((List) ((NamedList) nodes.get(0)).get("hierarchy")).size());
+	}
+	
+}
@@ -45,7 +45,7 @@ public class FacetTreeProcessorTest {
 		SolrQueryRequest req = mock(SolrQueryRequest.class);
 		FacetTreeParameters ftParams = mock(FacetTreeParameters.class);
 		
-		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams);
+		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams, mock(FacetTreeExecutor.class));
 		assertNull(ftp.process(new String[]{ "blah" }));
 	}
 
@@ -58,7 +58,7 @@ public class FacetTreeProcessorTest {
 		SolrQueryRequest req = mock(SolrQueryRequest.class);
 		FacetTreeParameters ftParams = mock(FacetTreeParameters.class);
 		
-		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams);
+		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams, mock(FacetTreeExecutor.class));
 		assertNull(ftp.process(null));
 	}
 
@@ -74,7 +74,7 @@ public class FacetTreeProcessorTest {
 		FacetTreeParameters ftParams = mock(FacetTreeParameters.class);
 
 		final String[] facetTrees = new String[] { "{!" + FacetTreeParameters.LOCAL_PARAM_TYPE + " x=y}uri" };
-		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams);
+		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams, mock(FacetTreeExecutor.class));
 		ftp.process(facetTrees);
 	}
 
@@ -88,7 +88,7 @@ public class FacetTreeProcessorTest {
 		FacetTreeParameters ftParams = mock(FacetTreeParameters.class);
 
 		final String[] facetTrees = new String[] { "{!" + FacetTreeParameters.LOCAL_PARAM_TYPE + FacetTreeParameters.CHILD_FIELD_PARAM + "=child_uris}uri" };
-		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams);
+		HierarchicalFacets ftp = new HierarchicalFacets(req, null, null, rb, ftParams, mock(FacetTreeExecutor.class));
 		assertNotNull(ftp.process(facetTrees));
 	}
 
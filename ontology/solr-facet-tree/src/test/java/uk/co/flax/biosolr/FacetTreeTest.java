@@ -0,0 +1,279 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ * Unit tests for the compact FacetTree class.
+ *
+ * @author mlp
+ */
+public class FacetTreeTest {
+	
+	private static TreeFacetField node(String value, long count, TreeFacetField... children) {
+		SortedSet<TreeFacetField> hierarchy = new TreeSet<>(Collections.reverseOrder());
+		long childCount = 0;
+		for (TreeFacetField child : children) {
+			hierarchy.add(child);
+			childCount += child.getTotal();
+		}
+		return new TreeFacetField("label" + value, value, count, childCount, hierarchy);
+	}
+	
+	private static List<TreeFacetField> sampleTrees() {
+		TreeFacetField aab = node("AAB", 2);
+		return Arrays.asList(
+				node("A", 1, node("AA", 0, node("AAA", 3), aab), node("AB", 1), node("AC", 0, aab)),
+				node("B", 4));
+	}
+	
+	@Test
+	public void toNamedLists_matchesTreeFacetField() {
+		List<TreeFacetField> trees = sampleTrees();
+		FacetTree tree = FacetTree.fromTrees(trees);
+		
+		List<NamedList<Object>> expected = trees.stream().map(TreeFacetField::toMap).collect(Collectors.toList());
+		assertEquals(expected, tree.toNamedLists());
+		
+		// The shared node gets a node for each parent
+		assertEquals(8, tree.size());
+	}
+	
+	@Test
+	public void fromTrees_sharesChildren() {
+		TreeFacetField shared = node("S", 1, node("S1", 1), node("S2", 2));
+		List<TreeFacetField> trees = Arrays.asList(node("A", 0, node("X", 0, shared), node("Y", 1, shared)));
+		FacetTree tree = FacetTree.fromTrees(trees);
+
+		List<NamedList<Object>> expected = trees.stream().map(TreeFacetField::toMap).collect(Collectors.toList());
+		assertEquals(expected, tree.toNamedLists());
+		// S gets a node under each parent, but S1 and S2 are only added once
+		assertEquals(7, tree.size());
+		int[] parents = tree.getChildren(tree.getRoots()[0]);
+		int s0 = tree.getFirstChild(parents[0]);
+		int s1 = tree.getFirstChild(parents[1]);
+		assertTrue(s0 != s1);
+		assertEquals(tree.getFirstChild(s0), tree.getFirstChild(s1));
+
+		FacetTree.NodeSet descendants = tree.newNodeSet();
+		descendants.addDescendants(tree.getRoots()[0]);
+		assertTrue(descendants.contains(tree.getFirstChild(s0)));
+		assertTrue(descendants.contains(tree.getNextSibling(tree.getFirstChild(s0))));
+	}
+
+	@Test
+	public void unshareNodes() {
+		TreeFacetField shared = node("S", 1, node("S1", 1), node("S2", 2));
+		List<TreeFacetField> trees = Arrays.asList(node("A", 0, node("X", 0, shared), node("Y", 1, shared)));
+		FacetTree tree = FacetTree.fromTrees(trees);
+		List<NamedList<Object>> original = tree.toNamedLists();
+
+		tree.unshareNodes();
+		assertEquals(original, tree.toNamedLists());
+		assertEquals(9, tree.size());
+		int[] parents = tree.getChildren(tree.getRoots()[0]);
+		int s0 = tree.getFirstChild(parents[0]);
+		int s1 = tree.getFirstChild(parents[1]);
+		assertTrue(tree.getFirstChild(s0) != tree.getFirstChild(s1));
+
+		// Changing one list of children leaves the other alone
+		tree.removeChild(s0, FacetTree.NONE, tree.getFirstChild(s0));
+		assertEquals(1, tree.getChildren(s0).length);
+		assertEquals(2, tree.getChildren(s1).length);
+
+		// A tree without shared children is left alone
+		FacetTree unshared = FacetTree.fromTrees(sampleTrees());
+		unshared.unshareNodes();
+		assertEquals(8, unshared.size());
+	}
+
+	@Test
+	public void nodeAccessors() {
+		FacetTree tree = FacetTree.fromTrees(sampleTrees());
+		int[] roots = tree.getRoots();
+		assertEquals(2, roots.length);
+		
+		int a = roots[0];
+		assertEquals("A", tree.getValue(a));
+		assertEquals("labelA", tree.getLabel(a));
+		assertEquals(1, tree.getCount(a));
+		assertEquals(9, tree.getTotal(a));
+		assertEquals(3, tree.getChildren(a).length);
+		assertFalse(tree.hasChildren(roots[1]));
+		assertEquals(FacetTree.NONE, tree.getNextSibling(a));
+		
+		int noLabel = tree.addNode("C", null, 0, 0);
+		assertNull(tree.getLabel(noLabel));
+		assertNull(tree.toMap(noLabel).get("label"));
+	}
+	
+	@Test
+	public void removeChildAndRecalculate() {
+		FacetTree tree = FacetTree.fromTrees(sampleTrees());
+		int a = tree.getRoots()[0];
+		int[] children = tree.getChildren(a);
+		
+		// Remove the middle child
+		tree.removeChild(a, children[0], children[1]);
+		assertArrayEquals(new int[] { children[0], children[2] }, tree.getChildren(a));
+		// Remove the first child
+		tree.removeChild(a, FacetTree.NONE, children[0]);
+		assertArrayEquals(new int[] { children[2] }, tree.getChildren(a));
+		
+		assertEquals(9, tree.getTotal(a));
+		assertEquals(3, tree.recalculateChildCount(a));
+	}
+	
+	@Test
+	public void copyNodes() {
+		FacetTree tree = FacetTree.fromTrees(sampleTrees());
+		List<NamedList<Object>> original = tree.toNamedLists();
+		int size = tree.size();
+		
+		int offset = tree.copyNodes();
+		assertEquals(size, offset);
+		assertEquals(size * 2, tree.size());
+		
+		// Changing the copies leaves the originals alone
+		int aCopy = tree.getRoots()[0] + offset;
+		tree.removeChild(aCopy, FacetTree.NONE, tree.getFirstChild(aCopy));
+		tree.recalculateChildCount(aCopy);
+		assertEquals(original, tree.toNamedLists());
+		
+		tree.setRoots(new int[] { aCopy });
+		assertEquals(1, tree.toNamedLists().size());
+		assertEquals(2, ((List<?>) tree.toNamedLists().get(0).get("hierarchy")).size());
+	}
+	
+	@Test
+	public void compareNodes_matchesTreeFacetField() {
+		List<TreeFacetField> fields = Arrays.asList(node("A", 1), node("B", 1), node("A", 2), node("A", 0, node("X", 1)),
+				node("C", 5, node("Y", 1)));
+		FacetTree tree = FacetTree.fromTrees(fields);
+		int[] roots = tree.getRoots();
+		for (int i = 0; i < fields.size(); i ++) {
+			for (int j = 0; j < fields.size(); j ++) {
+				assertEquals(Integer.signum(fields.get(i).compareTo(fields.get(j))),
+						Integer.signum(tree.compareNodes(roots[i], roots[j])));
+				assertEquals(fields.get(i).equals(fields.get(j)), tree.nodeEquals(roots[i], roots[j]));
+			}
+		}
+		assertTrue(tree.nodeEquals(roots[0], tree.addNode("A", "labelA", 1, 0)));
+	}
+	
+	@Test
+	public void nodeSet() {
+		FacetTree tree = FacetTree.fromTrees(sampleTrees());
+		int a = tree.getRoots()[0];
+		FacetTree.NodeSet descendants = tree.newNodeSet();
+		descendants.addDescendants(a);
+		
+		assertFalse(descendants.contains(a));
+		assertFalse(descendants.contains(tree.getRoots()[1]));
+		for (int child : tree.getChildren(a)) {
+			assertTrue(descendants.contains(child));
+		}
+		// Equivalent nodes are found, even when not in the tree
+		assertTrue(descendants.contains(tree.addNode("AAB", "labelAAB", 2, 0)));
+		assertFalse(descendants.contains(tree.addNode("AAB", null, 2, 0)));
+		assertFalse(descendants.contains(tree.addNode("AAB", "labelAAB", 2, 1)));
+		// Only one of each set of equivalent nodes is held
+		assertFalse(descendants.add(tree.addNode("AAA", "labelAAA", 3, 0)));
+		
+		// Grow well past the initial table size
+		FacetTree.NodeSet all = tree.newNodeSet();
+		for (int i = 0; i < 1000; i ++) {
+			assertTrue(all.add(tree.addNode("N" + i, null, i, 0)));
+		}
+		for (int i = 0; i < 1000; i ++) {
+			assertTrue(all.contains(tree.addNode("N" + i, null, i, 0)));
+		}
+	}
+	
+	@Test
+	public void toNamedLists_limitedDepth() {
+		FacetTree tree = FacetTree.fromTrees(sampleTrees());
+		
+		List<NamedList<Object>> topLevel = tree.toNamedLists(tree.getRoots(), 1);
+		assertEquals(2, topLevel.size());
+		NamedList<Object> a = topLevel.get(0);
+		assertEquals(9L, a.get("total"));
+		assertNull(a.get("hierarchy"));
+		assertEquals(Boolean.TRUE, a.get("expandable"));
+		// Leaf nodes are not expandable
+		assertNull(topLevel.get(1).get("expandable"));
+		
+		List<NamedList<Object>> twoLevels = tree.toNamedLists(tree.getRoots(), 2);
+		List<?> children = (List<?>) twoLevels.get(0).get("hierarchy");
+		assertEquals(3, children.size());
+		NamedList<?> aa = children.stream().map(c -> (NamedList<?>) c).filter(c -> "AA".equals(c.get("value"))).findFirst().get();
+		assertEquals(5L, aa.get("total"));
+		assertEquals(Boolean.TRUE, aa.get("expandable"));
+		
+		assertEquals(tree.toNamedLists(), tree.toNamedLists(tree.getRoots(), FacetTree.ALL_LEVELS));
+	}
+	
+	@Test
+	public void findNode() {
+		List<TreeFacetField> trees = sampleTrees();
+		FacetTree tree = FacetTree.fromTrees(trees);
+		
+		int aab = tree.findNode("AAB");
+		assertEquals("AAB", tree.getValue(aab));
+		// The first occurrence, below AA
+		assertEquals(aab, tree.getChildren(tree.findNode("AA"))[1]);
+		assertEquals(tree.getRoots()[1], tree.findNode("B"));
+		assertEquals(FacetTree.NONE, tree.findNode("Z"));
+		
+		List<NamedList<Object>> expanded = tree.toNamedLists(new int[] { tree.findNode("AA") }, FacetTree.ALL_LEVELS);
+		assertEquals(1, expanded.size());
+		TreeFacetField aa = trees.get(0).getHierarchy().stream().filter(t -> "AA".equals(t.getValue())).findFirst().get();
+		assertEquals(aa.toMap(), expanded.get(0));
+	}
+	
+	@Test(timeout = 10000)
+	public void findNode_sharedSubtrees() {
+		// Each level's node is shared by the two nodes above it, so there are
+		// 2^40 paths to the bottom
+		TreeFacetField level = node("L40", 1);
+		for (int i = 39; i >= 0; i --) {
+			level = node("L" + i, 1, node("X" + i, 1, level), node("Y" + i, 1, level));
+		}
+		FacetTree tree = FacetTree.fromTrees(Collections.singletonList(level));
+		
+		// The second child of the root is only reached after everything below the first
+		int second = tree.getChildren(tree.getRoots()[0])[1];
+		assertEquals(second, tree.findNode(tree.getValue(second)));
+		assertEquals("L40", tree.getValue(tree.findNode("L40")));
+	}
+	
+}
@@ -2,6 +2,7 @@ package uk.co.flax.biosolr;
 
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -15,6 +16,8 @@ import org.apache.solr.response.SolrQueryResponse;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.codahale.metrics.Metric;
+
 /**
  * Unit tests for the SimpleTreeFacetComponent, using a basic
  * Solr instance for integration testing.
@@ -31,12 +34,18 @@ public class SimpleTreeFacetComponentTest extends SolrTestCaseJ4 {
 		initCore("solrconfig.xml", "schema.xml", "src/test/resources/facetTree/solr", "hierarchy");
 		
 		// Add some records
-		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC", "name", "nodeA", "label", "nodeA")));
-		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB", "name", "nodeAA", "label", "nodeAA")));
-		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "nodeAAA")));
-		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAB", "name", "nodeAAB", "label", "nodeAAB")));
-		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "AB", "name", "nodeAB", "label", "nodeAB")));
-		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "name", "nodeAC", "label", "nodeAC")));
+		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC", "name", "nodeA", "label", "nodeA",
+				"node_paths", "A => nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB", "name", "nodeAA", "label", "nodeAA",
+				"node_paths", "AA => nodeAA,A => nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "nodeAAA",
+				"node_paths", "AAA => nodeAAA,AA => nodeAA,A => nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAB", "name", "nodeAAB", "label", "nodeAAB",
+				"node_paths", "AAB => nodeAAB,AA => nodeAA,A => nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "AB", "name", "nodeAB", "label", "nodeAB",
+				"node_paths", "AB => nodeAB,A => nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "name", "nodeAC", "label", "nodeAC",
+				"node_paths", "AC => nodeAC,A => nodeA")));
 		assertNull(h.validateUpdate(commit()));
 	}
 	
@@ -225,4 +234,107 @@ public class SimpleTreeFacetComponentTest extends SolrTestCaseJ4 {
 	    assertNull(level3.get("hierarchy"));
 	}
 	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testDepthAndExpand() {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "name:nodeA*");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids depth=2}node_id");
+		params.add("facet.tree.field", "{!ftree childField=child_ids expand=AA}node_id");
+		
+	    SolrQueryResponse rsp = new SolrQueryResponse();
+	    rsp.add("responseHeader", new SimpleOrderedMap<>());
+	    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+
+	    SolrRequestHandler handler = core.getRequestHandler(requestHandler);
+	    handler.handleRequest(req, rsp);
+	    req.close();
+	      
+	    assertNull(rsp.getException());
+	    
+	    NamedList facetTree = (NamedList) ((NamedList)(rsp.getValues().get("facet_counts"))).get("facet_trees");
+	    assertNotNull(facetTree);
+	    
+	    // Only two levels, with AA marked as expandable
+	    List<Object> nodes = (List) facetTree.getVal(0);
+	    NamedList level1 = (NamedList) nodes.get(0);
+	    assertEquals(6L, level1.get("total"));
+	    List level2Nodes = (List)level1.get("hierarchy");
+	    assertEquals(3, level2Nodes.size());
+	    NamedList level2 = (NamedList)level2Nodes.get(0);
+	    assertEquals("AA", level2.get("value"));
+	    assertEquals(3L, level2.get("total"));
+	    assertNull(level2.get("hierarchy"));
+	    assertEquals(Boolean.TRUE, level2.get("expandable"));
+	    assertNull(((NamedList) level2Nodes.get(1)).get("expandable"));
+	    
+	    // The expanded subtree, from AA down
+	    List<Object> expanded = (List) facetTree.getVal(1);
+	    assertEquals(1, expanded.size());
+	    NamedList aa = (NamedList) expanded.get(0);
+	    assertEquals("AA", aa.get("value"));
+	    assertEquals(3L, aa.get("total"));
+	    assertEquals(2, ((List) aa.get("hierarchy")).size());
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testPathStrategy() {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "name:nodeA*");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree strategy=path}node_paths");
+		
+	    SolrQueryResponse rsp = new SolrQueryResponse();
+	    rsp.add("responseHeader", new SimpleOrderedMap<>());
+	    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+
+	    SolrRequestHandler handler = core.getRequestHandler(requestHandler);
+	    handler.handleRequest(req, rsp);
+	    req.close();
+	      
+	    assertNull(rsp.getException());
+	    
+	    NamedList facetTree = (NamedList) ((NamedList)(rsp.getValues().get("facet_counts"))).get("facet_trees");
+	    List<Object> nodes = (List) facetTree.get("node_paths");
+	    assertEquals(1, nodes.size());
+	    NamedList level1 = (NamedList) nodes.get(0);
+	    assertEquals("A", level1.get("value"));
+	    assertEquals("nodeA", level1.get("label"));
+	    assertEquals(1L, level1.get("count"));
+	    assertEquals(6L, level1.get("total"));
+	    assertEquals(3, ((List) level1.get("hierarchy")).size());
+	}
+	
+	@Test
+	public void testExecutorMetrics() {
+		Map<String, Metric> metrics = h.getCore().getCoreMetricManager().getRegistry().getMetrics();
+		for (String name : new String[] { "queueSize", "activeThreads", "rejected", "availableTrees" }) {
+			assertTrue(name + " not found in " + metrics.keySet(), metrics.containsKey("QUERY.facet.executor." + name));
+		}
+	}
+	
+	@Test
+	public void testCloseUnregistersOwnMetrics() {
+		TreeFacetComponent component = new TreeFacetComponent();
+		component.init(new NamedList<>());
+		component.initializeMetrics(h.getCore().getSolrMetricsContext(), "closeTest");
+		Map<String, Metric> metrics = h.getCore().getCoreMetricManager().getRegistry().getMetrics();
+		assertTrue(metrics.containsKey("QUERY.closeTest.executor.queueSize"));
+		
+		component.close();
+		component.getFacetExecutor().shutdown();
+		metrics = h.getCore().getCoreMetricManager().getRegistry().getMetrics();
+		assertFalse(metrics.containsKey("QUERY.closeTest.executor.queueSize"));
+		// The core's own metrics are left alone
+		assertTrue(metrics.containsKey("QUERY.facet.executor.queueSize"));
+	}
+	
 }
@@ -16,14 +16,24 @@
 
 package uk.co.flax.biosolr.builders;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.search.QueryParsing;
 import org.junit.Test;
 
+import uk.co.flax.biosolr.FacetTreeExecutor;
 import uk.co.flax.biosolr.FacetTreeParameters;
 
 /**
@@ -88,4 +98,32 @@ public class ChildNodeFacetTreeBuilderTest {
 		verify(params).getInt(FacetTreeParameters.LEVELS_PARAM, 0);
 	}
 
+	@Test
+	public void lookupInBatches() throws Exception {
+		List<String> ids = Arrays.asList("A", "B", "C", "D", "E");
+		AtomicInteger batches = new AtomicInteger();
+		AbstractFacetTreeBuilder.BatchLookup lookup = batch -> {
+			batches.incrementAndGet();
+			Map<String, Set<String>> entries = new HashMap<>();
+			batch.forEach(id -> entries.put(id, Collections.singleton(id + "A")));
+			return entries;
+		};
+		
+		ChildNodeFacetTreeBuilder ftb = new ChildNodeFacetTreeBuilder();
+		assertEquals(5, ftb.lookupInBatches(ids, lookup).size());
+		assertEquals(1, batches.get());
+		
+		FacetTreeExecutor executor = new FacetTreeExecutor("test", 2, 10, 2);
+		try {
+			ftb.setExecutor(executor);
+			batches.set(0);
+			Map<String, Set<String>> entries = ftb.lookupInBatches(ids, lookup);
+			assertEquals(3, batches.get());
+			assertEquals(5, entries.size());
+			assertEquals(Collections.singleton("EA"), entries.get("E"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 }
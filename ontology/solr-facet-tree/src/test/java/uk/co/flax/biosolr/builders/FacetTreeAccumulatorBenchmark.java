@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Benchmark comparing FacetTreeAccumulator with the original recursive
+ * tree build, on a synthetic DAG about the size of EFO. Only run when the
+ * tests.benchmark system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=FacetTreeAccumulatorBenchmark -Dtests.benchmark=true
+ * </pre>
+ * 
+ * The size of the DAG can be changed with tests.dag.nodes, tests.dag.depth
+ * and tests.dag.facets.
+ *
+ * @author mlp
+ */
+public class FacetTreeAccumulatorBenchmark {
+	
+	// The largest number of nodes the recursive build will be timed for
+	private static final long MAX_RECURSIVE_NODES = 5_000_000;
+	
+	private static final int ITERATIONS = 10;
+	
+	@Test
+	public void benchmark() {
+		assumeTrue(Boolean.getBoolean("tests.benchmark"));
+		
+		int nodes = Integer.getInteger("tests.dag.nodes", 25000);
+		int depth = Integer.getInteger("tests.dag.depth", 16);
+		int facets = Integer.getInteger("tests.dag.facets", 2000);
+		Random random = new Random(42);
+		
+		// Build the DAG, level by level, from a handful of roots, widening to
+		// the middle levels. Each node has a parent in the level above, and
+		// some have a second or third parent there too.
+		int[] levelSizes = levelSizes(nodes, depth);
+		List<List<String>> levels = new ArrayList<>();
+		Map<String, Set<String>> children = new HashMap<>();
+		Map<String, Set<String>> parents = new HashMap<>();
+		int nextId = 0;
+		for (int level = 0; level < depth; level ++) {
+			List<String> levelIds = new ArrayList<>(levelSizes[level]);
+			for (int i = 0; i < levelSizes[level]; i ++) {
+				String nodeId = "EFO_" + nextId ++;
+				levelIds.add(nodeId);
+				children.put(nodeId, new HashSet<>());
+				parents.put(nodeId, new HashSet<>());
+				if (level > 0) {
+					addEdge(pick(levels.get(level - 1), random), nodeId, children, parents);
+					double extra = random.nextDouble();
+					if (extra < 0.3) {
+						addEdge(pick(levels.get(level - 1), random), nodeId, children, parents);
+					}
+					if (extra < 0.05) {
+						addEdge(pick(levels.get(level - 1), random), nodeId, children, parents);
+					}
+				}
+			}
+			levels.add(levelIds);
+		}
+		
+		// Pick the facet values, and find their ancestors
+		Map<String, Integer> facetCounts = new HashMap<>();
+		List<String> all = new ArrayList<>(children.keySet());
+		while (facetCounts.size() < Math.min(facets, nodes)) {
+			facetCounts.put(pick(all, random), 1 + random.nextInt(100));
+		}
+		Map<String, Set<String>> nodeChildren = new HashMap<>();
+		List<String> queue = new ArrayList<>(facetCounts.keySet());
+		while (!queue.isEmpty()) {
+			String id = queue.remove(queue.size() - 1);
+			if (!nodeChildren.containsKey(id)) {
+				nodeChildren.put(id, children.get(id));
+				queue.addAll(parents.get(id));
+			}
+		}
+		Set<String> childIds = nodeChildren.values().stream().flatMap(Set::stream).collect(Collectors.toSet());
+		Set<String> topNodes = nodeChildren.keySet().stream().filter(id -> !childIds.contains(id)).collect(Collectors.toSet());
+		
+		long pathNodes = countPathNodes(topNodes, nodeChildren);
+		System.out.printf("DAG: %d nodes, depth %d, %d facet values, %d relevant nodes, %d top nodes%n",
+				nodes, depth, facetCounts.size(), nodeChildren.size(), topNodes.size());
+		System.out.printf("Tree nodes built: %d by the accumulator, %d by the recursive build%n",
+				nodeChildren.size(), pathNodes);
+		
+		time("accumulator", () -> new FacetTreeAccumulator(nodeChildren, facetCounts, id -> null,
+				nodeChildren::containsKey, false).buildTrees(topNodes));
+		time("accumulator (distinct totals)", () -> new FacetTreeAccumulator(nodeChildren, facetCounts, id -> null,
+				nodeChildren::containsKey, true).buildTrees(topNodes));
+		if (pathNodes <= MAX_RECURSIVE_NODES) {
+			time("recursive", () -> topNodes.stream()
+					.map(n -> buildRecursively(n, nodeChildren, facetCounts)).collect(Collectors.toList()));
+		} else {
+			System.out.printf("recursive: skipped - more than %d tree nodes%n", MAX_RECURSIVE_NODES);
+		}
+	}
+	
+	/**
+	 * Split the nodes between the levels, growing geometrically from the top
+	 * level to the middle one, and staying level from there.
+	 */
+	private static int[] levelSizes(int nodes, int depth) {
+		double[] weights = new double[depth];
+		double sum = 0;
+		for (int level = 0; level < depth; level ++) {
+			weights[level] = Math.pow(2.5, Math.min(level, depth / 2));
+			sum += weights[level];
+		}
+		int[] sizes = new int[depth];
+		for (int level = 0; level < depth; level ++) {
+			sizes[level] = Math.max(1, (int) Math.round(nodes * weights[level] / sum));
+		}
+		return sizes;
+	}
+	
+	private static void addEdge(String parent, String child, Map<String, Set<String>> children, Map<String, Set<String>> parents) {
+		children.get(parent).add(child);
+		parents.get(child).add(parent);
+	}
+	
+	private static String pick(List<String> ids, Random random) {
+		return ids.get(random.nextInt(ids.size()));
+	}
+	
+	/**
+	 * Count the nodes the recursive build creates - one per path from a top
+	 * node.
+	 */
+	private static long countPathNodes(Set<String> topNodes, Map<String, Set<String>> nodeChildren) {
+		Map<String, Long> counts = new HashMap<>();
+		long total = 0;
+		for (String node : topNodes) {
+			total += countPathNodes(node, nodeChildren, counts);
+		}
+		return total;
+	}
+	
+	private static long countPathNodes(String node, Map<String, Set<String>> nodeChildren, Map<String, Long> counts) {
+		Long count = counts.get(node);
+		if (count == null) {
+			count = 1L;
+			for (String child : nodeChildren.get(node)) {
+				if (nodeChildren.containsKey(child)) {
+					count += countPathNodes(child, nodeChildren, counts);
+				}
+			}
+			counts.put(node, count);
+		}
+		return count;
+	}
+	
+	private static void time(String name, Runnable build) {
+		// Warm up
+		for (int i = 0; i < ITERATIONS; i ++) {
+			build.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i ++) {
+			build.run();
+		}
+		System.out.printf("%s: %.2f ms per build%n", name, (System.nanoTime() - start) / 1e6 / ITERATIONS);
+	}
+	
+	/**
+	 * The original recursive build, rebuilding each subtree once per path.
+	 */
+	private static TreeFacetField buildRecursively(String nodeId, Map<String, Set<String>> hierarchyMap,
+			Map<String, Integer> facetCounts) {
+		SortedSet<TreeFacetField> childHierarchy = new TreeSet<>(Collections.reverseOrder());
+		long childTotal = 0;
+		for (String childId : hierarchyMap.get(nodeId)) {
+			if (hierarchyMap.containsKey(childId) && !childId.equals(nodeId)) {
+				TreeFacetField childTree = buildRecursively(childId, hierarchyMap, facetCounts);
+				if (childHierarchy.add(childTree)) {
+					childTotal += childTree.getTotal();
+				}
+			}
+		}
+		return new TreeFacetField(null, nodeId, facetCounts.getOrDefault(nodeId, 0), childTotal, childHierarchy);
+	}
+	
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Unit tests for FacetTreeAccumulator.
+ *
+ * @author mlp
+ */
+public class FacetTreeAccumulatorTest {
+	
+	private static Map<String, Set<String>> hierarchy(String... parentChildren) {
+		Map<String, Set<String>> map = new HashMap<>();
+		for (String pc : parentChildren) {
+			String[] parts = pc.split(":");
+			Set<String> children = map.computeIfAbsent(parts[0], k -> new HashSet<>());
+			if (parts.length > 1) {
+				children.addAll(Arrays.asList(parts[1].split(",")));
+			}
+		}
+		return map;
+	}
+	
+	private static Map<String, Integer> counts(Object... nodeCounts) {
+		Map<String, Integer> map = new HashMap<>();
+		for (int i = 0; i < nodeCounts.length; i += 2) {
+			map.put((String) nodeCounts[i], (Integer) nodeCounts[i + 1]);
+		}
+		return map;
+	}
+	
+	private static TreeFacetField child(TreeFacetField tree, String value) {
+		return tree.getHierarchy().stream().filter(t -> t.getValue().equals(value)).findFirst().get();
+	}
+	
+	@Test
+	public void buildTrees_sharesSubtrees() {
+		Map<String, Set<String>> map = hierarchy("A:B,C", "B:D", "C:D", "D");
+		FacetTreeAccumulator acc = new FacetTreeAccumulator(map, counts("A", 1, "B", 1, "C", 1, "D", 2),
+				id -> null, map::containsKey, false);
+		
+		List<TreeFacetField> trees = acc.buildTrees(Collections.singleton("A"));
+		assertEquals(1, trees.size());
+		TreeFacetField a = trees.get(0);
+		assertEquals(2, a.getHierarchy().size());
+		assertSame(child(child(a, "B"), "D"), child(child(a, "C"), "D"));
+		
+		// D is counted once under each of B and C
+		assertEquals(3, child(a, "B").getTotal());
+		assertEquals(7, a.getTotal());
+	}
+	
+	@Test
+	public void buildTrees_distinctTotals() {
+		Map<String, Set<String>> map = hierarchy("A:B,C", "B:D", "C:D", "D");
+		FacetTreeAccumulator acc = new FacetTreeAccumulator(map, counts("A", 1, "B", 1, "C", 1, "D", 2),
+				id -> null, map::containsKey, true);
+		
+		TreeFacetField a = acc.buildTrees(Collections.singleton("A")).get(0);
+		assertEquals(3, child(a, "B").getTotal());
+		assertEquals(5, a.getTotal());
+	}
+	
+	@Test
+	public void buildTrees_childFilterAndLabels() {
+		Map<String, Set<String>> map = hierarchy("A:B,X", "B");
+		FacetTreeAccumulator acc = new FacetTreeAccumulator(map, counts("B", 1),
+				id -> "label" + id, map::containsKey, false);
+		
+		TreeFacetField a = acc.buildTrees(Collections.singleton("A")).get(0);
+		assertEquals(1, a.getHierarchy().size());
+		assertEquals("labelA", a.getLabel());
+		assertEquals("labelB", a.getHierarchy().first().getLabel());
+	}
+	
+	@Test
+	public void buildTrees_ignoresCycles() {
+		Map<String, Set<String>> map = hierarchy("A:B,A", "B:C", "C:A");
+		FacetTreeAccumulator acc = new FacetTreeAccumulator(map, counts("A", 1, "B", 1, "C", 1),
+				id -> null, map::containsKey, false);
+		
+		TreeFacetField a = acc.buildTrees(Collections.singleton("A")).get(0);
+		assertEquals(3, a.getTotal());
+		assertEquals(0, child(child(a, "B"), "C").getChildCount());
+	}
+	
+	@Test
+	public void buildTrees_matchesRecursiveBuild() {
+		Random random = new Random(42);
+		for (int run = 0; run < 50; run ++) {
+			// Random DAG - nodes only have children with higher numbers
+			int size = 5 + random.nextInt(40);
+			Map<String, Set<String>> map = new HashMap<>();
+			Map<String, Integer> counts = new HashMap<>();
+			for (int i = 0; i < size; i ++) {
+				Set<String> children = new HashSet<>();
+				for (int j = i + 1; j < size; j ++) {
+					if (random.nextInt(size) < 3) {
+						children.add("n" + j);
+					}
+				}
+				map.put("n" + i, children);
+				if (random.nextBoolean()) {
+					counts.put("n" + i, random.nextInt(10));
+				}
+			}
+			
+			Set<String> childIds = map.values().stream().flatMap(Set::stream).collect(Collectors.toSet());
+			Set<String> topNodes = map.keySet().stream().filter(id -> !childIds.contains(id)).collect(Collectors.toSet());
+			
+			List<TreeFacetField> trees = new FacetTreeAccumulator(map, counts, id -> null, map::containsKey, false)
+					.buildTrees(topNodes);
+			List<TreeFacetField> expected = topNodes.stream().map(n -> buildRecursively(n, map, counts))
+					.collect(Collectors.toList());
+			assertEquals(expected.stream().map(TreeFacetField::toMap).collect(Collectors.toList()),
+					trees.stream().map(TreeFacetField::toMap).collect(Collectors.toList()));
+		}
+	}
+	
+	/**
+	 * The original recursive build, rebuilding each subtree once per path.
+	 */
+	private static TreeFacetField buildRecursively(String nodeId, Map<String, Set<String>> hierarchyMap,
+			Map<String, Integer> facetCounts) {
+		SortedSet<TreeFacetField> childHierarchy = new TreeSet<>(Collections.reverseOrder());
+		long childTotal = 0;
+		for (String childId : hierarchyMap.get(nodeId)) {
+			if (hierarchyMap.containsKey(childId) && !childId.equals(nodeId)) {
+				TreeFacetField childTree = buildRecursively(childId, hierarchyMap, facetCounts);
+				if (childHierarchy.add(childTree)) {
+					childTotal += childTree.getTotal();
+				}
+			}
+		}
+		return new TreeFacetField(null, nodeId, facetCounts.getOrDefault(nodeId, 0), childTotal, childHierarchy);
+	}
+	
+}
@@ -213,5 +213,36 @@ public class FacetTreeBuilderFactoryTest {
 		verify(params, atLeastOnce()).get(FacetTreeParameters.PARENT_FIELD_PARAM);
 		verify(params, atLeastOnce()).get(FacetTreeParameters.NODE_FIELD_PARAM);
 	}
+	
+	@Test
+	public void constructFTB_pathStrategy() throws Exception {
+		final String strategy = FacetTreeBuilderFactory.PATH_STRATEGY;
+		final String nodeField = "node_paths";
+		final SolrParams params = mock(SolrParams.class);
+		when(params.get(FacetTreeParameters.STRATEGY_PARAM)).thenReturn(strategy);
+		when(params.get(FacetTreeParameters.NODE_FIELD_PARAM)).thenReturn(nodeField);
+		when(params.get(FacetTreeParameters.PATH_SEPARATOR_PARAM, PathFacetTreeBuilder.DEFAULT_PATH_SEPARATOR))
+				.thenReturn(PathFacetTreeBuilder.DEFAULT_PATH_SEPARATOR);
+		
+		FacetTreeBuilderFactory factory = new FacetTreeBuilderFactory();
+		FacetTreeBuilder ftb = factory.constructFacetTreeBuilder(params);
+		
+		assertNotNull(ftb);
+		assertTrue(ftb instanceof PathFacetTreeBuilder);
+		
+		verify(params).get(FacetTreeParameters.STRATEGY_PARAM);
+		verify(params, atLeastOnce()).get(FacetTreeParameters.NODE_FIELD_PARAM);
+	}
+	
+	@Test(expected=org.apache.solr.search.SyntaxError.class)
+	public void constructFTB_pathStrategy_withCollection() throws Exception {
+		final SolrParams params = mock(SolrParams.class);
+		when(params.get(FacetTreeParameters.STRATEGY_PARAM)).thenReturn(FacetTreeBuilderFactory.PATH_STRATEGY);
+		when(params.get(FacetTreeParameters.NODE_FIELD_PARAM)).thenReturn("node_paths");
+		when(params.get(FacetTreeParameters.COLLECTION_PARAM)).thenReturn("ontology");
+		
+		FacetTreeBuilderFactory factory = new FacetTreeBuilderFactory();
+		factory.constructFacetTreeBuilder(params);
+	}
 
 }
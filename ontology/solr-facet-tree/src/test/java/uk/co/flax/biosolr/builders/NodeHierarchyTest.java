@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr.builders;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import uk.co.flax.biosolr.FacetTreeParameters;
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Unit tests for NodeHierarchy, reading from a basic Solr instance.
+ *
+ * @author mlp
+ */
+public class NodeHierarchyTest extends SolrTestCaseJ4 {
+	
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		// Initialise a single Solr core
+		initCore("solrconfig.xml", "schema.xml", "src/test/resources/facetTree/solr", "hierarchy");
+		
+		// Add some records
+		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "name", "nodeA", "label", "nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "name", "nodeAA", "label", "nodeAA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "node AAA")));
+		assertNull(h.validateUpdate(commit()));
+	}
+	
+	@Test
+	public void getHierarchy() throws Exception {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			NodeHierarchy hierarchy = NodeHierarchy.getHierarchy(searcherRef.get(), "node_id", "child_ids", "label");
+			assertNotNull(hierarchy);
+			
+			// AB has no document of its own
+			assertTrue(hierarchy.isNode("A"));
+			assertFalse(hierarchy.isNode("AB"));
+			assertFalse(hierarchy.isNode("Z"));
+			
+			assertEquals(new HashSet<>(Arrays.asList("AA", "AB")), hierarchy.getRelated("A"));
+			assertEquals(new HashSet<>(Arrays.asList("A")), hierarchy.getReferrers("AB"));
+			assertTrue(hierarchy.getRelated("AAA").isEmpty());
+			assertTrue(hierarchy.getReferrers("A").isEmpty());
+			
+			// Labels come from the stored (untokenized) values
+			assertEquals("node AAA", hierarchy.getLabel("AAA"));
+			assertNull(hierarchy.getLabel("AB"));
+			
+			// The same hierarchy is returned while the searcher is open
+			assertSame(hierarchy, NodeHierarchy.getHierarchy(searcherRef.get(), "node_id", "child_ids", "label"));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void getHierarchy_regeneratedOnCommit() throws Exception {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			assertNotNull(NodeHierarchy.getHierarchy(searcherRef.get(), "node_id", "child_ids", null));
+		} finally {
+			searcherRef.decref();
+		}
+		
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "B", "child_ids", "BA", "name", "nodeB", "label", "nodeB")));
+		assertNull(h.validateUpdate(commit()));
+		
+		searcherRef = h.getCore().getSearcher();
+		try {
+			// The new searcher's cache was warmed with the new hierarchy
+			@SuppressWarnings("unchecked")
+			SolrCache<NodeHierarchy.Key, NodeHierarchy> cache = searcherRef.get().getCache(NodeHierarchy.CACHE_NAME);
+			NodeHierarchy hierarchy = cache.get(new NodeHierarchy.Key("node_id", "child_ids", null));
+			assertNotNull(hierarchy);
+			assertTrue(hierarchy.isNode("B"));
+			assertEquals(new HashSet<>(Arrays.asList("B")), hierarchy.getReferrers("BA"));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void queryFallback_matchesHierarchy() throws Exception {
+		Map<String, Integer> facetMap = new HashMap<>();
+		facetMap.put("AA", 2);
+		facetMap.put("AAA", 1);
+		facetMap.put("AB", 3);
+		
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			SolrIndexSearcher searcher = searcherRef.get();
+			
+			// Without a hierarchy, the child builder looks the nodes up with queries
+			ModifiableSolrParams childParams = params(FacetTreeParameters.NODE_FIELD_PARAM, "node_id",
+					FacetTreeParameters.CHILD_FIELD_PARAM, "child_ids", FacetTreeParameters.LABEL_FIELD_PARAM, "label");
+			ChildNodeFacetTreeBuilder child = new ChildNodeFacetTreeBuilder();
+			child.initialiseParameters(childParams);
+			ChildNodeFacetTreeBuilder childByQuery = new ChildNodeFacetTreeBuilder() {
+				@Override
+				protected NodeHierarchy getHierarchy(SolrIndexSearcher searcher, String relationField) {
+					return null;
+				}
+			};
+			childByQuery.initialiseParameters(childParams);
+			List<NamedList<Object>> expected = toMaps(child.processFacetTree(searcher, facetMap));
+			assertEquals(1, expected.size());
+			assertEquals(expected, toMaps(childByQuery.processFacetTree(searcher, facetMap)));
+			
+			// ... as does the parent builder (taking child_ids as the parents)
+			ModifiableSolrParams parentParams = params(FacetTreeParameters.NODE_FIELD_PARAM, "node_id",
+					FacetTreeParameters.PARENT_FIELD_PARAM, "child_ids", FacetTreeParameters.LABEL_FIELD_PARAM, "label");
+			ParentNodeFacetTreeBuilder parent = new ParentNodeFacetTreeBuilder();
+			parent.initialiseParameters(parentParams);
+			ParentNodeFacetTreeBuilder parentByQuery = new ParentNodeFacetTreeBuilder() {
+				@Override
+				protected NodeHierarchy getHierarchy(SolrIndexSearcher searcher, String relationField) {
+					return null;
+				}
+			};
+			parentByQuery.initialiseParameters(parentParams);
+			expected = toMaps(parent.processFacetTree(searcher, facetMap));
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, toMaps(parentByQuery.processFacetTree(searcher, facetMap)));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	private static List<NamedList<Object>> toMaps(List<TreeFacetField> trees) {
+		return trees.stream().sorted().map(TreeFacetField::toMap).collect(Collectors.toList());
+	}
+	
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.search.QueryParsing;
+import org.junit.Test;
+
+import uk.co.flax.biosolr.FacetTreeParameters;
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Unit tests for PathFacetTreeBuilder.
+ *
+ * @author mlp
+ */
+public class PathFacetTreeBuilderTest {
+	
+	private static PathFacetTreeBuilder builder(String... params) throws Exception {
+		ModifiableSolrParams localParams = new ModifiableSolrParams();
+		localParams.set(QueryParsing.V, "node_paths");
+		for (int i = 0; i < params.length; i += 2) {
+			localParams.set(params[i], params[i + 1]);
+		}
+		PathFacetTreeBuilder ftb = new PathFacetTreeBuilder();
+		ftb.initialiseParameters(localParams);
+		return ftb;
+	}
+	
+	private static Map<String, Integer> counts(Object... pathCounts) {
+		Map<String, Integer> map = new LinkedHashMap<>();
+		for (int i = 0; i < pathCounts.length; i += 2) {
+			map.put((String) pathCounts[i], (Integer) pathCounts[i + 1]);
+		}
+		return map;
+	}
+	
+	private static TreeFacetField child(TreeFacetField parent, String value) {
+		return parent.getHierarchy().stream().filter(c -> value.equals(c.getValue())).findFirst().get();
+	}
+	
+	@Test
+	public void processFacetTree() throws Exception {
+		// AAB has two parents, AA and AC
+		List<TreeFacetField> trees = builder().processFacetTree(null, counts(
+				"A", 1,
+				"AAA,AA,A", 3,
+				"AAB,AA,A", 2,
+				"AAB,AC,A", 2,
+				"AB,A", 1));
+		
+		assertEquals(1, trees.size());
+		TreeFacetField a = trees.get(0);
+		assertEquals("A", a.getValue());
+		assertEquals(1, a.getCount());
+		assertEquals(3, a.getHierarchy().size());
+		
+		TreeFacetField aa = child(a, "AA");
+		assertEquals(0, aa.getCount());
+		assertEquals(5, aa.getTotal());
+		assertEquals(2, child(aa, "AAB").getCount());
+		assertEquals(2, child(child(a, "AC"), "AAB").getTotal());
+		assertNull(aa.getLabel());
+	}
+	
+	@Test
+	public void processFacetTree_withLabels() throws Exception {
+		List<TreeFacetField> trees = builder().processFacetTree(null, counts(
+				"AA => Node AA,A => Node A", 2,
+				"AB => Node AB,A => Node A", 1));
+		
+		TreeFacetField a = trees.get(0);
+		assertEquals("Node A", a.getLabel());
+		assertEquals(3, a.getTotal());
+		assertEquals("Node AA", child(a, "AA").getLabel());
+	}
+	
+	@Test
+	public void processFacetTree_rootFirst() throws Exception {
+		List<TreeFacetField> trees = builder(
+				FacetTreeParameters.PATH_SEPARATOR_PARAM, "/",
+				FacetTreeParameters.ROOT_FIRST_PARAM, "true")
+				.processFacetTree(null, counts("/A/AA/AAA", 3, "/A/AB", 1, "/B", 2));
+		
+		assertEquals(2, trees.size());
+		TreeFacetField a = trees.stream().filter(t -> "A".equals(t.getValue())).findFirst().get();
+		assertEquals(0, a.getCount());
+		assertEquals(4, a.getTotal());
+		assertEquals(3, child(child(a, "AA"), "AAA").getCount());
+	}
+	
+	@Test(expected=org.apache.solr.search.SyntaxError.class)
+	public void initialiseParameters_emptyPathSeparator() throws Exception {
+		builder(FacetTreeParameters.PATH_SEPARATOR_PARAM, "");
+	}
+	
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.flax.biosolr.pruning;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import uk.co.flax.biosolr.FacetTree;
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Benchmark comparing the pruners with the original implementations, on
+ * random trees of 10,000 to 100,000 nodes. Only run when the
+ * tests.benchmark system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=PrunerBenchmark -Dtests.benchmark=true
+ * </pre>
+ * 
+ * The tree sizes can be changed with tests.prune.sizes (a comma-separated
+ * list), and the largest tree the original implementations are timed for
+ * with tests.prune.maxReference.
+ *
+ * @author mlp
+ */
+public class PrunerBenchmark {
+	
+	private static final int ITERATIONS = 5;
+	
+	@Test
+	public void benchmark() {
+		assumeTrue(Boolean.getBoolean("tests.benchmark"));
+		
+		String[] sizes = System.getProperty("tests.prune.sizes", "10000,30000,100000").split(",");
+		int maxReference = Integer.getInteger("tests.prune.maxReference", 100000);
+		Random random = new Random(42);
+		
+		for (String size : sizes) {
+			int nodes = Integer.parseInt(size.trim());
+			List<TreeFacetField> trees = randomTrees(random, nodes);
+			System.out.printf("%d nodes, %d top-level%n", nodes, trees.size());
+			
+			time("simple", trees, t -> FacetTree.fromTrees(t),
+					tree -> new SimplePruner(SimplePruner.MIN_CHILD_COUNT).prune(tree));
+			time("datapoint", trees, t -> FacetTree.fromTrees(t),
+					tree -> new DatapointPruner(10, DatapointPruner.DEFAULT_MORE_LABEL).prune(tree));
+			if (nodes <= maxReference) {
+				time("original simple", trees, t -> t,
+						t -> new ReferenceSimplePruner(SimplePruner.MIN_CHILD_COUNT).prune(t));
+				// The original datapoint pruner changes its input, so needs a copy each time
+				time("original datapoint", trees, PrunerBenchmark::cloneAll,
+						t -> new ReferenceDatapointPruner(10, DatapointPruner.DEFAULT_MORE_LABEL).prune(t));
+			} else {
+				System.out.printf("original: skipped - more than %d nodes%n", maxReference);
+			}
+		}
+	}
+	
+	/**
+	 * Build random trees of the given size. Each node is added below a
+	 * random earlier node (or at the top level), and about a third of the
+	 * nodes have hits. The values are drawn from a range smaller than the
+	 * number of nodes, so that equivalent leaf nodes turn up in different
+	 * places, as they do when an ontology is expanded into trees.
+	 */
+	private static List<TreeFacetField> randomTrees(Random random, int nodes) {
+		int[] parents = new int[nodes];
+		List<List<Integer>> children = new ArrayList<>(nodes);
+		for (int i = 0; i < nodes; i ++) {
+			parents[i] = i < 10 ? -1 : random.nextInt(i);
+			children.add(new ArrayList<>());
+			if (parents[i] >= 0) {
+				children.get(parents[i]).add(i);
+			}
+		}
+		
+		// Build bottom-up - children always follow their parents
+		TreeFacetField[] fields = new TreeFacetField[nodes];
+		int values = nodes / 2;
+		for (int i = nodes - 1; i >= 0; i --) {
+			SortedSet<TreeFacetField> hierarchy = new TreeSet<>(Collections.reverseOrder());
+			long childCount = 0;
+			for (int child : children.get(i)) {
+				if (hierarchy.add(fields[child])) {
+					childCount += fields[child].getTotal();
+				}
+			}
+			long count = random.nextInt(3) == 0 ? 1 + random.nextInt(100) : 0;
+			fields[i] = new TreeFacetField(null, "EFO_" + random.nextInt(values), count, childCount, hierarchy);
+		}
+		
+		List<TreeFacetField> roots = new ArrayList<>();
+		for (int i = 0; i < nodes; i ++) {
+			if (parents[i] < 0) {
+				roots.add(fields[i]);
+			}
+		}
+		return roots;
+	}
+	
+	private static List<TreeFacetField> cloneAll(List<TreeFacetField> trees) {
+		List<TreeFacetField> clones = new ArrayList<>(trees.size());
+		for (TreeFacetField tree : trees) {
+			clones.add(tree.clone());
+		}
+		return clones;
+	}
+	
+	/**
+	 * Time a pruner, excluding the time taken to prepare its input.
+	 */
+	private static <T> void time(String name, List<TreeFacetField> trees, Function<List<TreeFacetField>, T> prepare,
+			Consumer<T> prune) {
+		// Warm up
+		prune.accept(prepare.apply(trees));
+		long elapsed = 0;
+		for (int i = 0; i < ITERATIONS; i ++) {
+			T input = prepare.apply(trees);
+			long start = System.nanoTime();
+			prune.accept(input);
+			elapsed += System.nanoTime() - start;
+		}
+		System.out.printf("%s: %.2f ms per prune%n", name, elapsed / 1e6 / ITERATIONS);
+	}
+	
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.flax.biosolr.pruning;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import uk.co.flax.biosolr.FacetTree;
+import uk.co.flax.biosolr.TreeFacetField;
+
+/**
+ * Check the pruners give the same results as the original
+ * implementations, on randomly generated trees.
+ *
+ * @author mlp
+ */
+public class PrunerTest {
+	
+	private static final int RUNS = 500;
+	
+	/**
+	 * Generate a random set of trees, using a small set of values so that
+	 * equivalent nodes turn up in different places.
+	 */
+	static List<TreeFacetField> randomTrees(Random random, int maxDepth) {
+		return randomTrees(random, maxDepth, false);
+	}
+	
+	/**
+	 * Generate a random set of trees, as {@link #randomTrees(Random, int)},
+	 * optionally repeating earlier subtrees as the same instances (as the
+	 * tree builders share them) rather than as copies.
+	 */
+	static List<TreeFacetField> randomTrees(Random random, int maxDepth, boolean share) {
+		List<TreeFacetField> generated = new ArrayList<>();
+		List<TreeFacetField> roots = new ArrayList<>();
+		int rootCount = 1 + random.nextInt(5);
+		for (int i = 0; i < rootCount; i ++) {
+			roots.add(randomTree(random, maxDepth, generated, share));
+		}
+		return roots;
+	}
+	
+	private static TreeFacetField randomTree(Random random, int depth, List<TreeFacetField> generated, boolean share) {
+		if (!generated.isEmpty() && random.nextInt(8) == 0) {
+			// Repeat an earlier subtree
+			TreeFacetField repeated = generated.get(random.nextInt(generated.size()));
+			return share ? repeated : repeated.clone();
+		}
+		
+		SortedSet<TreeFacetField> hierarchy = new TreeSet<>(Collections.reverseOrder());
+		long childCount = 0;
+		if (depth > 0) {
+			int children = random.nextInt(5);
+			for (int i = 0; i < children; i ++) {
+				TreeFacetField child = randomTree(random, depth - 1, generated, share);
+				if (hierarchy.add(child)) {
+					childCount += child.getTotal();
+				}
+			}
+		}
+		if (random.nextInt(4) == 0) {
+			// Child counts need not add up, eg. when totals are distinct
+			childCount = (long) (random.nextDouble() * childCount);
+		}
+		String value = "n" + random.nextInt(20);
+		String label = random.nextBoolean() ? "label" + value : null;
+		TreeFacetField tree = new TreeFacetField(label, value, random.nextInt(4) == 0 ? 0 : random.nextInt(10), childCount, hierarchy);
+		generated.add(tree);
+		return tree;
+	}
+	
+	private static List<NamedList<Object>> toMaps(Collection<TreeFacetField> trees) {
+		return trees.stream().map(TreeFacetField::toMap).collect(Collectors.toList());
+	}
+	
+	@Test
+	public void simplePruner_matchesReference() {
+		Random random = new Random(1);
+		for (int run = 0; run < RUNS; run ++) {
+			List<TreeFacetField> trees = randomTrees(random, 1 + random.nextInt(5));
+			int minChildCount = 1 + random.nextInt(4);
+			
+			FacetTree tree = FacetTree.fromTrees(trees);
+			new SimplePruner(minChildCount).prune(tree);
+			
+			assertEquals("Run " + run, toMaps(new ReferenceSimplePruner(minChildCount).prune(trees)), tree.toNamedLists());
+		}
+	}
+	
+	@Test
+	public void datapointPruner_matchesReference() {
+		Random random = new Random(2);
+		for (int run = 0; run < RUNS; run ++) {
+			List<TreeFacetField> trees = randomTrees(random, 1 + random.nextInt(5));
+			int datapoints = 1 + random.nextInt(8);
+			
+			FacetTree tree = FacetTree.fromTrees(trees);
+			new DatapointPruner(datapoints, "More").prune(tree);
+			
+			assertEquals("Run " + run, toMaps(new ReferenceDatapointPruner(datapoints, "More").prune(trees)), tree.toNamedLists());
+		}
+	}
+	
+	/**
+	 * The tree builders share subtrees between parents, which the FacetTree
+	 * shares too - the pruners should give the same results as for
+	 * separate copies.
+	 */
+	@Test
+	public void simplePruner_sharedSubtrees() {
+		Random random = new Random(3);
+		for (int run = 0; run < RUNS; run ++) {
+			List<TreeFacetField> trees = randomTrees(random, 1 + random.nextInt(5), true);
+			List<TreeFacetField> copies = trees.stream().map(ReferenceDatapointPruner::copy).collect(Collectors.toList());
+			int minChildCount = 1 + random.nextInt(4);
+			
+			FacetTree tree = FacetTree.fromTrees(trees);
+			new SimplePruner(minChildCount).prune(tree);
+			
+			assertEquals("Run " + run, toMaps(new ReferenceSimplePruner(minChildCount).prune(copies)), tree.toNamedLists());
+		}
+	}
+	
+	@Test
+	public void datapointPruner_sharedSubtrees() {
+		Random random = new Random(4);
+		for (int run = 0; run < RUNS; run ++) {
+			List<TreeFacetField> trees = randomTrees(random, 1 + random.nextInt(5), true);
+			List<TreeFacetField> copies = trees.stream().map(ReferenceDatapointPruner::copy).collect(Collectors.toList());
+			int datapoints = 1 + random.nextInt(8);
+			
+			FacetTree tree = FacetTree.fromTrees(trees);
+			new DatapointPruner(datapoints, "More").prune(tree);
+			
+			assertEquals("Run " + run, toMaps(new ReferenceDatapointPruner(datapoints, "More").prune(copies)), tree.toNamedLists());
+		}
+	}
+	
+}
@@ -0,0 +1,164 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Aligns a query sequence locally against many PDB chains, spreading the work
+ * over an executor. Chains are identified by "pdbId_chain" strings, as in FASTA
+ * output.
+ */
+public class ChainAligner {
+
+  // number of chains aligned by each task
+  private static final int BATCH_SIZE = 64;
+
+  private ScoringMatrix matrix;
+  private int gapOpen;
+  private int gapExtend;
+  private KarlinAltschul statistics;
+  private ExecutorService executor;
+
+  /**
+   * Aligner using BLOSUM62 with its default gap penalties. If executor is null,
+   * alignments are done in the calling thread.
+   */
+  public ChainAligner(ExecutorService executor) {
+    this(ScoringMatrix.BLOSUM62, 11, 1, KarlinAltschul.BLOSUM62_11_1, executor);
+  }
+
+  public ChainAligner(ScoringMatrix matrix, int gapOpen, int gapExtend, KarlinAltschul statistics, ExecutorService executor) {
+    this.matrix = matrix;
+    this.gapOpen = gapOpen;
+    this.gapExtend = gapExtend;
+    this.statistics = statistics;
+    this.executor = executor;
+  }
+
+  /**
+   * Align the query against each of the given chains (pdbId_chain -> sequence),
+   * returning those alignments with an e-value no greater than maxEValue in
+   * order of increasing e-value. E-values are calculated treating the given
+   * chains as the whole database.
+   */
+  public FastaJobResults align(String query, Map<String, String> chains, double maxEValue) throws InterruptedException {
+    List<String> ids = new ArrayList<>(chains.keySet());
+    List<byte[]> targets = new ArrayList<>(ids.size());
+    long dbLength = 0;
+    for (String id : ids) {
+      byte[] target = ScoringMatrix.encode(chains.get(id));
+      targets.add(target);
+      dbLength += target.length;
+    }
+    byte[] q = ScoringMatrix.encode(query);
+    LocalAlignment[] local = alignAll(q, targets);
+
+    List<Integer> hits = new ArrayList<>();
+    double[] eValues = new double[local.length];
+    for (int i = 0; i < local.length; ++i) {
+      if (local[i] == null) continue;
+      double eValue = statistics.eValue(local[i].getScore(), q.length, dbLength);
+      if (eValue > maxEValue) continue;
+      eValues[i] = eValue;
+      hits.add(i);
+    }
+    hits.sort(Comparator.comparingDouble(i -> eValues[i]));
+
+    FastaJobResults results = new FastaJobResults();
+    for (int i : hits) {
+      String id = ids.get(i);
+      int n = id.indexOf('_');
+      if (n < 0) {
+        throw new RuntimeException("Bad PDB chain id: " + id);
+      }
+      int row = results.addAlignment(id.substring(0, n), id.substring(n + 1), eValues[i]);
+      local[i].fill(results, row);
+    }
+    return results;
+  }
+
+  /**
+   * Fill in the alignment details of any incomplete alignments in the results,
+   * for which a chain sequence is given (pdbId_chain -> sequence).
+   */
+  public void complete(FastaJobResults results, String query, Map<String, String> chains) throws InterruptedException {
+    List<Integer> incomplete = new ArrayList<>();
+    List<byte[]> targets = new ArrayList<>();
+    for (int row = 0; row < results.getNumChains(); ++row) {
+      String sequence = chains.get(results.getPdbId(row) + "_" + results.getChain(row));
+      if (! results.isComplete(row) && sequence != null) {
+        incomplete.add(row);
+        targets.add(ScoringMatrix.encode(sequence));
+      }
+    }
+    LocalAlignment[] local = alignAll(ScoringMatrix.encode(query), targets);
+    for (int i = 0; i < local.length; ++i) {
+      if (local[i] != null) {
+        local[i].fill(results, incomplete.get(i));
+      }
+    }
+  }
+
+  private LocalAlignment[] alignAll(byte[] query, List<byte[]> targets) throws InterruptedException {
+    LocalAlignment[] alignments = new LocalAlignment[targets.size()];
+    if (executor == null) {
+      new Batch(query, targets, 0, targets.size(), alignments).call();
+      return alignments;
+    }
+
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int from = 0; from < targets.size(); from += BATCH_SIZE) {
+      int to = Math.min(from + BATCH_SIZE, targets.size());
+      futures.add(executor.submit(new Batch(query, targets, from, to, alignments)));
+    }
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return alignments;
+  }
+
+  // aligns a range of targets, writing to its own slice of the results array
+  private class Batch implements Callable<Void> {
+
+    private byte[] query;
+    private List<byte[]> targets;
+    private int from;
+    private int to;
+    private LocalAlignment[] alignments;
+
+    private Batch(byte[] query, List<byte[]> targets, int from, int to, LocalAlignment[] alignments) {
+      this.query = query;
+      this.targets = targets;
+      this.from = from;
+      this.to = to;
+      this.alignments = alignments;
+    }
+
+    @Override
+    public Void call() {
+      SmithWaterman sw = new SmithWaterman(matrix, gapOpen, gapExtend);
+      sw.setQuery(query);
+      for (int i = from; i < to; ++i) {
+        byte[] target = targets.get(i);
+        alignments[i] = target.length > 0 ? sw.align(target) : null;
+      }
+      return null;
+    }
+
+  }
+
+}
@@ -28,6 +28,8 @@ public class FastaJob implements Runnable {
 
   private FastaJobResults results;
 
+  private byte[] rawResults;
+
   // job id created in run()
   private String jobId;
 
@@ -37,11 +39,11 @@ public class FastaJob implements Runnable {
   private boolean interrupted;
 
   // regexp patterns
-  private Pattern pattern1 = Pattern.compile("^PDB:(.*?_.*?)\\s+(.+?)\\s+([0-9.e-]+?)$|^PRE_PDB:(\\w{4} Entity)\\s+(.+?)\\s+([0-9.e-]+?)$");
-  private Pattern pattern2 = Pattern.compile("^>>PDB:(.*?_.*?)\\s+.*?$|^>>PRE_PDB:(\\w{4} Entity).*?$");
-  private Pattern pattern3 = Pattern.compile("^Smith-Waterman score:.*?\\;(.*?)\\% .*? overlap \\((.*?)\\)$");
-  private Pattern pattern4 = Pattern.compile("^EMBOS[S ] (\\s*.*?)$");
-  private Pattern pattern5 = Pattern.compile("^PDB:.*? (\\s*.*?)$|^PRE_PD.*? (\\s*.*?)$");
+  private static final Pattern pattern1 = Pattern.compile("^PDB:(.*?_.*?)\\s+(.+?)\\s+([0-9.e-]+?)$|^PRE_PDB:(\\w{4} Entity)\\s+(.+?)\\s+([0-9.e-]+?)$");
+  private static final Pattern pattern2 = Pattern.compile("^>>PDB:(.*?_.*?)\\s+.*?$|^>>PRE_PDB:(\\w{4} Entity).*?$");
+  private static final Pattern pattern3 = Pattern.compile("^Smith-Waterman score:.*?\\;(.*?)\\% .*? overlap \\((.*?)\\)$");
+  private static final Pattern pattern4 = Pattern.compile("^EMBOS[S ] (\\s*.*?)$");
+  private static final Pattern pattern5 = Pattern.compile("^PDB:.*? (\\s*.*?)$|^PRE_PD.*? (\\s*.*?)$");
 
   public IOException getException() {
     return exception;
@@ -53,16 +55,25 @@ public class FastaJob implements Runnable {
 
   public FastaJobResults getResults() throws IOException {
     if (results == null) {
-      byte[] result = getRawResults();
-      InputStream in = new ByteArrayInputStream(result);
-      results = parseResults(new BufferedReader(new InputStreamReader(in)));
+      results = parseResults(getRawResults());
     }
     return results;
   }
 
   public byte[] getRawResults() throws RemoteException {
-    String id = fasta.getResultTypes(jobId)[0].getIdentifier();
-    return fasta.getResult(jobId, id, null);
+    if (rawResults == null) {
+      String id = fasta.getResultTypes(jobId)[0].getIdentifier();
+      rawResults = fasta.getResult(jobId, id, null);
+    }
+    return rawResults;
+  }
+
+  /**
+   * Parse raw FASTA output (as returned by getRawResults()).
+   */
+  public static FastaJobResults parseResults(byte[] raw) throws IOException {
+    InputStream in = new ByteArrayInputStream(raw);
+    return parseResults(new BufferedReader(new InputStreamReader(in)));
   }
 
   public boolean isInterrupted() {
@@ -92,7 +103,7 @@ public class FastaJob implements Runnable {
     return params;
   }
 
-  private int firstGroup(Matcher m) {
+  private static int firstGroup(Matcher m) {
     for (int n = 1; n <= m.groupCount(); ++n) {
       if (m.group(n) != null) {
         return n;
@@ -123,44 +134,43 @@ public class FastaJob implements Runnable {
     }
   }
 
-  // create an Alignment from a matching line
-  private PDb.Alignment parseAlignment(Matcher matcher) {
-    int n = firstGroup(matcher);
+  // split "pdbId_chain" or "pdbId Entity" into its parts
+  private static String[] parsePdbIdChain(Matcher matcher, int n) {
     String pdbIdChain = matcher.group(n);
     if (pdbIdChain.contains("Entity")) {
       pdbIdChain = pdbIdChain.replaceFirst(" ", "_");
     }
-    String[] s = pdbIdChain.split("_");
-    double eValue = new Double(matcher.group(n + 2));
-    return new PDb.Alignment(new PDb.Id(s[0]), s[1], eValue);
+    return pdbIdChain.split("_");
   }
 
-  private FastaJobResults parseResults(BufferedReader reader) throws IOException {
-    results = new FastaJobResults();
+  private static FastaJobResults parseResults(BufferedReader reader) throws IOException {
+    FastaJobResults results = new FastaJobResults();
+
+    // aligned sequence fragments for the current alignment, reused throughout
+    StringBuilder querySeq = new StringBuilder();
+    StringBuilder retSeq = new StringBuilder();
 
     String line = "";
     while (line != null) {
       Matcher matcher1 = pattern1.matcher(line);
       Matcher matcher2 = pattern2.matcher(line);
       if (matcher1.find()) {
-        PDb.Alignment alignment = parseAlignment(matcher1);
-        results.addAlignment(alignment);
+        int n = firstGroup(matcher1);
+        String[] s = parsePdbIdChain(matcher1, n);
+        results.addAlignment(s[0], s[1], Double.parseDouble(matcher1.group(n + 2)));
         line = reader.readLine();
       } else if (matcher2.find()) {
-        int n = firstGroup(matcher2);
-        String pdbIdChain = matcher2.group(n);
-        if (pdbIdChain.contains("Entity")) {
-          pdbIdChain = pdbIdChain.replaceFirst(" ", "_");
-        }
-        String[] bits = pdbIdChain.split("_");
-        PDb.Alignment a = results.getAlignment(bits[0], bits[1]);
-        if (a == null) {
-          throw new RuntimeException("Alignment not yet seen: " + pdbIdChain);
+        String[] bits = parsePdbIdChain(matcher2, firstGroup(matcher2));
+        int row = results.getRow(bits[0], bits[1]);
+        if (row < 0) {
+          throw new RuntimeException("Alignment not yet seen: " + bits[0] + "_" + bits[1]);
         }
 
         // sometimes an alignment appears twice in the results - need to ignore all
         // but the first (but still need to consume lines)
-        boolean complete = a.isComplete();
+        boolean complete = results.isComplete(row);
+        querySeq.setLength(0);
+        retSeq.setLength(0);
 
         while ((line = reader.readLine()) != null) {
           Matcher m2 = pattern2.matcher(line);
@@ -175,12 +185,9 @@ public class FastaJob implements Runnable {
             String[] oIn = o[0].split("-");
             String[] oOut = o[1].split("-");
             if (! complete) {
-              a.setPercentIdentity(identity);
               try {
-                a.setQueryOverlapStart(Integer.valueOf(oIn[0]));
-                a.setQueryOverlapEnd(Integer.valueOf(oIn[1]));
-                a.setDbOverlapStart(Integer.valueOf(oOut[0]));
-                a.setDbOverlapEnd(Integer.valueOf(oOut[1]));
+                results.setAlignmentDetails(row, identity, Integer.parseInt(oIn[0]), Integer.parseInt(oIn[1]),
+                    Integer.parseInt(oOut[0]), Integer.parseInt(oOut[1]));
               } catch (NumberFormatException e) {
                 throw new IOException("Error parsing line: " + line);
               }
@@ -188,16 +195,15 @@ public class FastaJob implements Runnable {
           } else if (m2.find()) {
             break;
           } else if (m4.find()) {
-            if (! complete) {
-              a.addQuerySequence(m4.group(1));
-            }
+            querySeq.append(m4.group(1));
           } else if (m5.find()) {
-            int n4 = firstGroup(m5);
-            if (! complete) {
-              a.addReturnSequence(m5.group(n4));
-            }
+            retSeq.append(m5.group(firstGroup(m5)));
           }
         }
+
+        if (! complete) {
+          results.setSequences(row, querySeq, retSeq);
+        }
       } else {
         line = reader.readLine();
       }
@@ -1,40 +1,396 @@
 package uk.co.flax.biosolr.pdbe.fasta;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.solr.search.xjoin.cache.DiskCache;
+
+/**
+ * FASTA results, stored column-wise: one row per chain, with primitive arrays
+ * for the numeric attributes and a single shared buffer for the aligned
+ * sequences. PDb.Alignment objects are only created on request, for the rows
+ * that are actually needed.
+ */
 public class FastaJobResults {
 
-  private Map<PDb.Id, Map<String, PDb.Alignment>> alignments = new LinkedHashMap<>();
-  private int numChains = 0;
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int size = 0;
+
+  // per row columns
+  private String[] pdbIds = new String[INITIAL_CAPACITY];
+  private String[] chains = new String[INITIAL_CAPACITY];
+  private int[] entries = new int[INITIAL_CAPACITY];
+  private double[] eValues = new double[INITIAL_CAPACITY];
+  private double[] percentIdentities = new double[INITIAL_CAPACITY];
+  private int[] queryOverlapStarts = new int[INITIAL_CAPACITY];
+  private int[] queryOverlapEnds = new int[INITIAL_CAPACITY];
+  private int[] dbOverlapStarts = new int[INITIAL_CAPACITY];
+  private int[] dbOverlapEnds = new int[INITIAL_CAPACITY];
+  private int[] queryIndexes = new int[INITIAL_CAPACITY];
+
+  // aligned sequences are [start, end) ranges of the shared buffer
+  private int[] querySequenceStarts = new int[INITIAL_CAPACITY];
+  private int[] querySequenceEnds = new int[INITIAL_CAPACITY];
+  private int[] returnSequenceStarts = new int[INITIAL_CAPACITY];
+  private int[] returnSequenceEnds = new int[INITIAL_CAPACITY];
+  private StringBuilder sequences = new StringBuilder();
+
+  // distinct pdb ids in order of first appearance, and the reverse mapping;
+  // every row for an entry shares the same id string
+  private List<String> entryIds = new ArrayList<>();
+  private Map<String, Integer> entryNumbers = new HashMap<>();
+
+  // pdbId_chain -> row
+  private Map<String, Integer> rows = new HashMap<>();
+
+  // computed on first use: lower case pdb ids in sorted order, and the rows
+  // for joinIds[i] are entryRows[entryOffsets[i]] to entryRows[entryOffsets[i + 1] - 1],
+  // in the order they were added
+  private String[] joinIds;
+  private int[] entryOffsets;
+  private int[] entryRows;
+
+  /**
+   * Add an alignment with the given e-value, returning its row. If the chain
+   * has already been added, its row is reused and any details are cleared.
+   */
+  /*package*/ int addAlignment(String pdbId, String chain, double eValue) {
+    joinIds = null;
+    String key = pdbId + "_" + chain;
+    Integer existing = rows.get(key);
+    int row;
+    if (existing != null) {
+      row = existing;
+    } else {
+      ensureCapacity(size + 1);
+      row = size++;
+      Integer entry = entryNumbers.get(pdbId);
+      if (entry == null) {
+        entry = entryIds.size();
+        entryIds.add(pdbId);
+        entryNumbers.put(pdbId, entry);
+      }
+      pdbIds[row] = entryIds.get(entry);
+      chains[row] = chain;
+      entries[row] = entry;
+      rows.put(key, row);
+    }
+    eValues[row] = eValue;
+    queryIndexes[row] = 0;
+    percentIdentities[row] = Double.NaN;
+    queryOverlapStarts[row] = queryOverlapEnds[row] = dbOverlapStarts[row] = dbOverlapEnds[row] = -1;
+    querySequenceStarts[row] = querySequenceEnds[row] = returnSequenceStarts[row] = returnSequenceEnds[row] = 0;
+    return row;
+  }
 
   /*package*/ void addAlignment(PDb.Alignment alignment) {
-    Map<String, PDb.Alignment> map = alignments.get(alignment.getPdbId());
-    if (map == null) {
-      map = new LinkedHashMap<>();
-      alignments.put(alignment.getPdbId(), map);
+    int row = addAlignment(alignment.getPdbId().id, alignment.getChain(), alignment.getEValue());
+    queryIndexes[row] = alignment.getQueryIndex();
+    if (alignment.isComplete()) {
+      setAlignmentDetails(row, alignment.getPercentIdentity(), alignment.getQueryOverlapStart(), alignment.getQueryOverlapEnd(),
+          alignment.getDbOverlapStart(), alignment.getDbOverlapEnd());
+    }
+    setSequences(row, alignment.getQuerySequenceString(), alignment.getReturnSequenceString());
+  }
+
+  /*package*/ void setAlignmentDetails(int row, double percentIdentity, int queryOverlapStart, int queryOverlapEnd,
+      int dbOverlapStart, int dbOverlapEnd) {
+    percentIdentities[row] = percentIdentity;
+    queryOverlapStarts[row] = queryOverlapStart;
+    queryOverlapEnds[row] = queryOverlapEnd;
+    dbOverlapStarts[row] = dbOverlapStart;
+    dbOverlapEnds[row] = dbOverlapEnd;
+  }
+
+  /*package*/ void setSequences(int row, CharSequence querySequence, CharSequence returnSequence) {
+    querySequenceStarts[row] = sequences.length();
+    sequences.append(querySequence);
+    querySequenceEnds[row] = returnSequenceStarts[row] = sequences.length();
+    sequences.append(returnSequence);
+    returnSequenceEnds[row] = sequences.length();
+  }
+
+  /**
+   * Merge the results of several queries, keeping the alignment with the best
+   * e-value for each chain and recording which query it came from (its index
+   * in the given list).
+   */
+  public static FastaJobResults merge(List<FastaJobResults> queries) {
+    FastaJobResults merged = new FastaJobResults();
+    for (int q = 0; q < queries.size(); ++q) {
+      FastaJobResults results = queries.get(q);
+      for (int row = 0; row < results.size; ++row) {
+        int best = merged.getRow(results.pdbIds[row], results.chains[row]);
+        if (best >= 0 && merged.eValues[best] <= results.eValues[row]) {
+          continue;
+        }
+        int r = merged.addAlignment(results.pdbIds[row], results.chains[row], results.eValues[row]);
+        merged.queryIndexes[r] = q;
+        if (results.isComplete(row)) {
+          merged.setAlignmentDetails(r, results.percentIdentities[row], results.queryOverlapStarts[row],
+              results.queryOverlapEnds[row], results.dbOverlapStarts[row], results.dbOverlapEnds[row]);
+        }
+        merged.setSequences(r,
+            results.sequences.subSequence(results.querySequenceStarts[row], results.querySequenceEnds[row]),
+            results.sequences.subSequence(results.returnSequenceStarts[row], results.returnSequenceEnds[row]));
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Encode the rows, for decoding by fromBytes(). The aligned sequences are
+   * written as one string, after the per row columns.
+   */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StringBuilder seqs = new StringBuilder();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(size);
+      for (int row = 0; row < size; ++row) {
+        out.writeUTF(pdbIds[row]);
+        out.writeUTF(chains[row]);
+        out.writeDouble(eValues[row]);
+        out.writeInt(queryIndexes[row]);
+        out.writeDouble(percentIdentities[row]);
+        out.writeInt(queryOverlapStarts[row]);
+        out.writeInt(queryOverlapEnds[row]);
+        out.writeInt(dbOverlapStarts[row]);
+        out.writeInt(dbOverlapEnds[row]);
+        out.writeInt(querySequenceEnds[row] - querySequenceStarts[row]);
+        out.writeInt(returnSequenceEnds[row] - returnSequenceStarts[row]);
+        seqs.append(sequences, querySequenceStarts[row], querySequenceEnds[row]);
+        seqs.append(sequences, returnSequenceStarts[row], returnSequenceEnds[row]);
+      }
+      DiskCache.writeString(out, seqs.toString());
     }
-    if (map.put(alignment.getChain(), alignment) == null) {
-      ++numChains;
+    return bytes.toByteArray();
+  }
+
+  public static FastaJobResults fromBytes(byte[] bytes) throws IOException {
+    FastaJobResults results = new FastaJobResults();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      int n = in.readInt();
+      results.ensureCapacity(n);
+      int offset = 0;
+      for (int i = 0; i < n; ++i) {
+        int row = results.addAlignment(in.readUTF(), in.readUTF(), in.readDouble());
+        results.queryIndexes[row] = in.readInt();
+        results.setAlignmentDetails(row, in.readDouble(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        results.querySequenceStarts[row] = offset;
+        offset += in.readInt();
+        results.querySequenceEnds[row] = results.returnSequenceStarts[row] = offset;
+        offset += in.readInt();
+        results.returnSequenceEnds[row] = offset;
+      }
+      results.sequences.append(DiskCache.readString(in));
+    }
+    return results;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= pdbIds.length) {
+      return;
     }
+    int n = Math.max(capacity, pdbIds.length * 2);
+    pdbIds = Arrays.copyOf(pdbIds, n);
+    chains = Arrays.copyOf(chains, n);
+    entries = Arrays.copyOf(entries, n);
+    eValues = Arrays.copyOf(eValues, n);
+    percentIdentities = Arrays.copyOf(percentIdentities, n);
+    queryOverlapStarts = Arrays.copyOf(queryOverlapStarts, n);
+    queryOverlapEnds = Arrays.copyOf(queryOverlapEnds, n);
+    dbOverlapStarts = Arrays.copyOf(dbOverlapStarts, n);
+    dbOverlapEnds = Arrays.copyOf(dbOverlapEnds, n);
+    queryIndexes = Arrays.copyOf(queryIndexes, n);
+    querySequenceStarts = Arrays.copyOf(querySequenceStarts, n);
+    querySequenceEnds = Arrays.copyOf(querySequenceEnds, n);
+    returnSequenceStarts = Arrays.copyOf(returnSequenceStarts, n);
+    returnSequenceEnds = Arrays.copyOf(returnSequenceEnds, n);
+  }
+
+  /**
+   * Get the row for the given chain, or -1.
+   */
+  public int getRow(String pdbId, String chain) {
+    Integer row = rows.get(pdbId + "_" + chain);
+    return row != null ? row : -1;
+  }
+
+  public String getPdbId(int row) {
+    return pdbIds[row];
   }
-  
+
+  public String getChain(int row) {
+    return chains[row];
+  }
+
+  public double getEValue(int row) {
+    return eValues[row];
+  }
+
+  /**
+   * Get the index of the query sequence that the row's alignment came from
+   * (always 0 unless the results were merged).
+   */
+  public int getQueryIndex(int row) {
+    return queryIndexes[row];
+  }
+
+  public boolean isComplete(int row) {
+    return ! Double.isNaN(percentIdentities[row]);
+  }
+
+  public double getPercentIdentity(int row) {
+    return percentIdentities[row];
+  }
+
+  public int getQueryOverlapStart(int row) {
+    return queryOverlapStarts[row];
+  }
+
+  public int getQueryOverlapEnd(int row) {
+    return queryOverlapEnds[row];
+  }
+
+  public int getDbOverlapStart(int row) {
+    return dbOverlapStarts[row];
+  }
+
+  public int getDbOverlapEnd(int row) {
+    return dbOverlapEnds[row];
+  }
+
+  public String getQuerySequence(int row) {
+    return sequences.substring(querySequenceStarts[row], querySequenceEnds[row]);
+  }
+
+  public String getReturnSequence(int row) {
+    return sequences.substring(returnSequenceStarts[row], returnSequenceEnds[row]);
+  }
+
+  /**
+   * Create a PDb.Alignment for the given row.
+   */
+  public PDb.Alignment getAlignment(int row) {
+    PDb.Alignment a = new PDb.Alignment(new PDb.Id(pdbIds[row]), chains[row], eValues[row]);
+    a.setQueryIndex(queryIndexes[row]);
+    if (isComplete(row)) {
+      a.setPercentIdentity(percentIdentities[row]);
+      a.setQueryOverlapStart(queryOverlapStarts[row]);
+      a.setQueryOverlapEnd(queryOverlapEnds[row]);
+      a.setDbOverlapStart(dbOverlapStarts[row]);
+      a.setDbOverlapEnd(dbOverlapEnds[row]);
+    }
+    a.addQuerySequence(getQuerySequence(row));
+    a.addReturnSequence(getReturnSequence(row));
+    return a;
+  }
+
   public PDb.Alignment getAlignment(String pdbId, String chain) {
-    Map<String, PDb.Alignment> map = alignments.get(new PDb.Id(pdbId));
-    if (map == null) return null;
-    return map.get(chain);
+    int row = getRow(pdbId, chain);
+    return row >= 0 ? getAlignment(row) : null;
+  }
+
+  /**
+   * Get the distinct PDB ids, in lower case and sorted.
+   */
+  public List<String> getJoinIds() {
+    index();
+    return Collections.unmodifiableList(Arrays.asList(joinIds));
   }
-  
+
+  /**
+   * Get alignments for all chains of the given PDB id (case insensitive), or
+   * null if there are none.
+   */
+  public List<PDb.Alignment> getEntryAlignments(String pdbId) {
+    index();
+    int i = Arrays.binarySearch(joinIds, pdbId.toLowerCase());
+    if (i < 0) {
+      return null;
+    }
+    List<PDb.Alignment> alignments = new ArrayList<>(entryOffsets[i + 1] - entryOffsets[i]);
+    for (int j = entryOffsets[i]; j < entryOffsets[i + 1]; ++j) {
+      alignments.add(getAlignment(entryRows[j]));
+    }
+    return alignments;
+  }
+
+  // build the sorted join id index
+  private void index() {
+    if (joinIds != null) {
+      return;
+    }
+    int numEntries = entryIds.size();
+    String[] ids = new String[numEntries];
+    Integer[] order = new Integer[numEntries];
+    for (int i = 0; i < numEntries; ++i) {
+      ids[i] = entryIds.get(i).toLowerCase();
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> ids[a].compareTo(ids[b]));
+
+    // rank of each entry in sorted order, and counts per entry
+    int[] rank = new int[numEntries];
+    String[] sorted = new String[numEntries];
+    for (int i = 0; i < numEntries; ++i) {
+      rank[order[i]] = i;
+      sorted[i] = ids[order[i]];
+    }
+    int[] offsets = new int[numEntries + 1];
+    for (int row = 0; row < size; ++row) {
+      ++offsets[rank[entries[row]] + 1];
+    }
+    for (int i = 0; i < numEntries; ++i) {
+      offsets[i + 1] += offsets[i];
+    }
+    int[] next = Arrays.copyOf(offsets, numEntries);
+    int[] entryRows = new int[size];
+    for (int row = 0; row < size; ++row) {
+      entryRows[next[rank[entries[row]]]++] = row;
+    }
+
+    this.entryOffsets = offsets;
+    this.entryRows = entryRows;
+    this.joinIds = sorted;
+  }
+
+  /**
+   * Get all alignments, by PDB id and then chain, in the order in which they
+   * were added. This creates a PDb.Alignment for every row.
+   */
   public Map<PDb.Id, Map<String, PDb.Alignment>> getAlignments() {
+    Map<PDb.Id, Map<String, PDb.Alignment>> alignments = new LinkedHashMap<>();
+    List<Map<String, PDb.Alignment>> byEntry = new ArrayList<>(entryIds.size());
+    for (String pdbId : entryIds) {
+      Map<String, PDb.Alignment> map = new LinkedHashMap<>();
+      alignments.put(new PDb.Id(pdbId), map);
+      byEntry.add(map);
+    }
+    for (int row = 0; row < size; ++row) {
+      byEntry.get(entries[row]).put(chains[row], getAlignment(row));
+    }
     return alignments;
   }
 
   public int getNumChains() {
-    return numChains;
+    return size;
   }
 
   public int getNumEntries() {
-    return alignments.size();
+    return entryIds.size();
   }
 
 }
@@ -1,28 +1,27 @@
 package uk.co.flax.biosolr.pdbe.fasta;
 
-//import static org.mockito.Mockito.mock;
-//import static org.mockito.Mockito.when;
-
 import java.io.IOException;
-//import java.nio.file.Files;
-//import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.xml.rpc.ServiceException;
 
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.ExternalJobs;
 import org.apache.solr.search.xjoin.XJoinResults;
 import org.apache.solr.search.xjoin.XJoinResultsFactory;
+import org.apache.solr.search.xjoin.cache.DiskCache;
+import org.apache.solr.search.xjoin.replay.RecordedResponses;
 
 import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_Service;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_ServiceLocator;
-//import uk.ac.ebi.webservices.axis1.stubs.fasta.WsResultType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,7 +29,17 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Connect to FASTA service and generate a PDB id filter based on a user
- * supplied sequence.
+ * supplied sequence. Several sequence parameters may be given (for example,
+ * the chains of a complex): a job is run for each, up to max.concurrent.jobs
+ * at a time (see ExternalJobs for the node-wide limit), and the results are
+ * merged, keeping the best e-value for each chain.
+ *
+ * Raw FASTA output can be recorded and replayed instead of calling the
+ * service: see RecordedResponses for the debug.file and replay.*
+ * initialisation parameters.
+ *
+ * Results can also be kept in a persistent cache, so that a repeated search
+ * does not run a FASTA job at all: see DiskCache for the cache.* parameters.
  */
 public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 
@@ -41,7 +50,10 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
   public static final String INIT_PROGRAM = "program";
   public static final String INIT_DATABASE = "database";
   public static final String INIT_STYPE = "stype";
-  public static final String INIT_DEBUG_FILE = "debug.file";
+  public static final String INIT_DEBUG_FILE = RecordedResponses.INIT_DEBUG_FILE;
+  public static final String INIT_MAX_CONCURRENT_JOBS = "max.concurrent.jobs";
+
+  public static final int DEFAULT_MAX_CONCURRENT_JOBS = 4;
 
   // request parameters
   public static final String FASTA_EXPLOWLIM = "explowlim";
@@ -56,27 +68,20 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
   private String program;
   private String database;
   private String sType;
+  private RecordedResponses recorded;
+  private int maxConcurrentJobs;
+  private DiskCache cache;
 
   @Override
   @SuppressWarnings("rawtypes")
   public void init(NamedList args) {
     LOG.info("initialising FastaXJoinResultsFactory");
     
-    String debugFile = (String) args.get(INIT_DEBUG_FILE);
-    if (debugFile != null) {
-//      try {
-//        byte[] result = Files.readAllBytes(Paths.get(debugFile));
-//        fasta = mock(JDispatcherService_PortType.class);
-//        when(fasta.getStatus(null)).thenReturn(FastaStatus.DONE);
-//        WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
-//        when(fasta.getResultTypes(null)).thenReturn(types);
-//        when(fasta.getResult(null, null, null)).thenReturn(result);
-//      } catch (IOException e) {
-//        throw new RuntimeException(e);
-//      }
-        throw new UnsupportedOperationException("debug file not supported");
-    } 
-    else {
+    recorded = RecordedResponses.fromInitArgs(args);
+    if (recorded != null) {
+      LOG.info("FASTA responses are in " + recorded.getMode() + " mode, latency " + recorded.getLatency());
+    }
+    if (recorded == null || ! recorded.isReplay()) {
       JDispatcherService_Service service = new JDispatcherService_ServiceLocator();
       try {
         fasta = service.getJDispatcherServiceHttpPort();
@@ -108,6 +113,15 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
         throw new RuntimeException("external stype parameter is required");
     }
     LOG.info("sType=" + sType);
+
+    Object maxJobs = args.get(INIT_MAX_CONCURRENT_JOBS);
+    maxConcurrentJobs = maxJobs != null ? Integer.parseInt(maxJobs.toString()) : DEFAULT_MAX_CONCURRENT_JOBS;
+    LOG.info("maxConcurrentJobs=" + maxConcurrentJobs);
+
+    cache = DiskCache.fromInitArgs(args);
+    if (cache != null) {
+      LOG.info("caching FASTA results for release " + cache.getRelease());
+    }
   }
 
   private String getParam(SolrParams params, String name) {
@@ -123,15 +137,51 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
    */
   @Override
   public XJoinResults<String> getResults(SolrParams params) throws IOException {
-    InputParameters input = new InputParameters();
-    input.setProgram(program);
-    input.setDatabase(new String[] { database });
-    input.setStype(sType);
-    input.setSequence(getParam(params, FASTA_SEQUENCE));
-    input.setExplowlim(new Double(getParam(params, FASTA_EXPLOWLIM)));
-    input.setExpupperlim(new Double(getParam(params, FASTA_EXPUPPERLIM)));
-    input.setScores(new Integer(getParam(params, FASTA_SCORES)));
-    input.setAlignments(new Integer(getParam(params, FASTA_ALIGNMENTS)));
+    String[] sequences = params.getParams(FASTA_SEQUENCE);
+    if (sequences == null || sequences.length == 0) {
+      throw new RuntimeException("Missing or empty " + FASTA_SEQUENCE);
+    }
+    List<Callable<FastaJobResults>> jobs = new ArrayList<>(sequences.length);
+    for (String sequence : sequences) {
+      if (sequence.length() == 0) {
+        throw new RuntimeException("Missing or empty " + FASTA_SEQUENCE);
+      }
+      InputParameters input = new InputParameters();
+      input.setProgram(program);
+      input.setDatabase(new String[] { database });
+      input.setStype(sType);
+      input.setSequence(sequence);
+      input.setExplowlim(new Double(getParam(params, FASTA_EXPLOWLIM)));
+      input.setExpupperlim(new Double(getParam(params, FASTA_EXPUPPERLIM)));
+      input.setScores(new Integer(getParam(params, FASTA_SCORES)));
+      input.setAlignments(new Integer(getParam(params, FASTA_ALIGNMENTS)));
+      jobs.add(() -> search(input));
+    }
+
+    List<FastaJobResults> results = ExternalJobs.runAll(jobs, maxConcurrentJobs);
+    return new Results(results.size() == 1 ? results.get(0) : FastaJobResults.merge(results));
+  }
+
+  // get results for one sequence, from the cache if possible
+  private FastaJobResults search(InputParameters input) throws IOException {
+    if (cache == null) {
+      return runJob(input);
+    }
+    String key = cache.key(getRequestKey(input));
+    byte[] cached = cache.get(key);
+    if (cached != null) {
+      return FastaJobResults.fromBytes(cached);
+    }
+    FastaJobResults results = runJob(input);
+    cache.put(key, results.toBytes());
+    return results;
+  }
+
+  // run a FASTA job for one sequence
+  private FastaJobResults runJob(InputParameters input) throws IOException {
+    if (recorded != null && recorded.isReplay()) {
+      return FastaJob.parseResults(recorded.replay(getRequestKey(input)));
+    }
 
     FastaJob job = new FastaJob(fasta, email, input);
     job.run();
@@ -150,7 +200,24 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
       throw new RuntimeException("No results");
     }
 
-    return new Results(job.getResults());
+    if (recorded != null) {
+      recorded.record(getRequestKey(input), job.getRawResults());
+    }
+    return job.getResults();
+  }
+
+  // the parameters that determine a FASTA response
+  private Map<String, Object> getRequestKey(InputParameters input) {
+    Map<String, Object> key = new HashMap<>();
+    key.put(INIT_PROGRAM, input.getProgram());
+    key.put(INIT_DATABASE, input.getDatabase());
+    key.put(INIT_STYPE, input.getStype());
+    key.put(FASTA_SEQUENCE, input.getSequence());
+    key.put(FASTA_EXPLOWLIM, input.getExplowlim());
+    key.put(FASTA_EXPUPPERLIM, input.getExpupperlim());
+    key.put(FASTA_SCORES, input.getScores());
+    key.put(FASTA_ALIGNMENTS, input.getAlignments());
+    return key;
   }
 
   public static class Results implements XJoinResults<String> {
@@ -163,20 +230,12 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 
     @Override
     public Iterable<String> getJoinIds() {
-      Set<PDb.Id> pdbIds = results.getAlignments().keySet();
-      String[] entries = new String[pdbIds.size()];
-      int i = 0;
-      for (PDb.Id pdbId : pdbIds) {
-        entries[i++] = pdbId.toString().toLowerCase();
-      }
-      Arrays.sort(entries);
-      return Arrays.asList(entries);
+      return results.getJoinIds();
     }
 
     @Override
     public Collection<PDb.Alignment> getResult(String joinId) {
-      Map<String, PDb.Alignment> map = results.getAlignments().get(new PDb.Id(joinId.toUpperCase()));
-      return map != null ? map.values() : null;
+      return results.getEntryAlignments(joinId);
     }
 
     public int getNumChains() {
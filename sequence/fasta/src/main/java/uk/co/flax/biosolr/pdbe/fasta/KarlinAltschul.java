@@ -0,0 +1,43 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+/**
+ * Karlin-Altschul statistics for converting a raw local alignment score into
+ * a bit score and an expectation value. The lambda and K parameters depend on
+ * the scoring matrix and gap penalties used.
+ */
+public class KarlinAltschul {
+
+  /** gapped parameters for BLOSUM62 with gap open 11, extend 1 */
+  public static final KarlinAltschul BLOSUM62_11_1 = new KarlinAltschul(0.267, 0.041);
+
+  private double lambda;
+
+  private double k;
+
+  public KarlinAltschul(double lambda, double k) {
+    this.lambda = lambda;
+    this.k = k;
+  }
+
+  public double getLambda() {
+    return lambda;
+  }
+
+  public double getK() {
+    return k;
+  }
+
+  public double bitScore(int score) {
+    return (lambda * score - Math.log(k)) / Math.log(2);
+  }
+
+  /**
+   * The number of alignments with at least the given score expected by chance
+   * when searching a query of the given length against a database of the
+   * given total length.
+   */
+  public double eValue(int score, int queryLength, long dbLength) {
+    return k * queryLength * (double)dbLength * Math.exp(-lambda * score);
+  }
+
+}
@@ -0,0 +1,119 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+/**
+ * The result of a local (Smith-Waterman) alignment of a query sequence against
+ * a database sequence. Overlap positions are 1-based and inclusive, as in FASTA
+ * output.
+ */
+public class LocalAlignment {
+
+  private int score;
+  private int queryOverlapStart;
+  private int queryOverlapEnd;
+  private int dbOverlapStart;
+  private int dbOverlapEnd;
+  private String querySequence;
+  private String returnSequence;
+  private int identities;
+  private int positives;
+
+  /*package*/ LocalAlignment(int score, int queryOverlapStart, int queryOverlapEnd, int dbOverlapStart, int dbOverlapEnd,
+      String querySequence, String returnSequence, int identities, int positives) {
+    this.score = score;
+    this.queryOverlapStart = queryOverlapStart;
+    this.queryOverlapEnd = queryOverlapEnd;
+    this.dbOverlapStart = dbOverlapStart;
+    this.dbOverlapEnd = dbOverlapEnd;
+    this.querySequence = querySequence;
+    this.returnSequence = returnSequence;
+    this.identities = identities;
+    this.positives = positives;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public int getQueryOverlapStart() {
+    return queryOverlapStart;
+  }
+
+  public int getQueryOverlapEnd() {
+    return queryOverlapEnd;
+  }
+
+  public int getDbOverlapStart() {
+    return dbOverlapStart;
+  }
+
+  public int getDbOverlapEnd() {
+    return dbOverlapEnd;
+  }
+
+  /**
+   * The aligned part of the query, with '-' for gaps.
+   */
+  public String getQuerySequence() {
+    return querySequence;
+  }
+
+  /**
+   * The aligned part of the database sequence, with '-' for gaps.
+   */
+  public String getReturnSequence() {
+    return returnSequence;
+  }
+
+  /**
+   * The number of alignment columns (including gaps), i.e. FASTA's "overlap".
+   */
+  public int getLength() {
+    return querySequence.length();
+  }
+
+  public int getIdentities() {
+    return identities;
+  }
+
+  public double getPercentIdentity() {
+    return getLength() == 0 ? 0 : 100.0 * identities / getLength();
+  }
+
+  public double getPercentSimilarity() {
+    return getLength() == 0 ? 0 : 100.0 * positives / getLength();
+  }
+
+  /**
+   * Copy this alignment's attributes into an incomplete PDb.Alignment.
+   */
+  public void fill(PDb.Alignment alignment) {
+    alignment.setPercentIdentity(getPercentIdentity());
+    alignment.setQueryOverlapStart(queryOverlapStart);
+    alignment.setQueryOverlapEnd(queryOverlapEnd);
+    alignment.setDbOverlapStart(dbOverlapStart);
+    alignment.setDbOverlapEnd(dbOverlapEnd);
+    alignment.addQuerySequence(querySequence);
+    alignment.addReturnSequence(returnSequence);
+  }
+
+  /**
+   * Fill in the details of the given row of FASTA results.
+   */
+  public void fill(FastaJobResults results, int row) {
+    results.setAlignmentDetails(row, getPercentIdentity(), queryOverlapStart, queryOverlapEnd, dbOverlapStart, dbOverlapEnd);
+    results.setSequences(row, querySequence, returnSequence);
+  }
+
+  public PDb.Alignment toPdbAlignment(PDb.Id pdbId, String chain, double eValue) {
+    PDb.Alignment alignment = new PDb.Alignment(pdbId, chain, eValue);
+    fill(alignment);
+    return alignment;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[%d (%d-%d:%d-%d) %.1f%%]", score, queryOverlapStart, queryOverlapEnd,
+        dbOverlapStart, dbOverlapEnd, getPercentIdentity());
+  }
+
+}
@@ -43,6 +43,7 @@ public class PDb {
     private Integer dbOverlapStart = null;
     private Integer dbOverlapEnd = null;
     private Double percentIdentity = null;
+    private int queryIndex = 0;
   
     public Alignment(Id pdbId, String chain, double eValue) {
       this.pdbId = pdbId;
@@ -97,6 +98,18 @@ public class PDb {
     public double getEValue() {
       return eValue;
     }
+
+    public void setQueryIndex(int n) {
+      queryIndex = n;
+    }
+
+    /**
+     * The index of the query sequence that produced this alignment, when
+     * several sequences were searched together.
+     */
+    public int getQueryIndex() {
+      return queryIndex;
+    }
   
     public Id getPdbId() {
       return pdbId;
@@ -0,0 +1,446 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+import java.util.Arrays;
+
+/**
+ * Smith-Waterman local alignment with affine gap penalties, over sequences
+ * encoded by ScoringMatrix.encode().
+ *
+ * The score is computed with a striped query profile (Farrar, 2007): query
+ * positions are split into LANES interleaved segments, so the inner loops work
+ * on LANES independent cells at a time with no loop-carried dependency, which
+ * lets the JIT vectorise them. The start of the best alignment is found by an
+ * anchored pass over the reversed sequences, and the aligned sequences by a
+ * banded global alignment of just the aligned region.
+ *
+ * All work buffers are reused between calls, so an instance is not thread safe;
+ * use one per thread, and call setQuery() once for many targets.
+ */
+public class SmithWaterman {
+
+  /** the number of query positions processed together */
+  public static final int LANES = 8;
+
+  // initial half-width of the band used for traceback
+  private static final int BAND = 16;
+
+  // "minus infinity" that penalties can be subtracted from without overflow
+  private static final int NEG = -(1 << 29);
+
+  // profile score for padding positions beyond the end of the query
+  private static final int PAD = -(1 << 20);
+
+  // traceback bits
+  private static final int FROM_DIAG = 0;
+  private static final int FROM_E = 1;
+  private static final int FROM_F = 2;
+  private static final int SOURCE = 3;
+  private static final int E_EXTEND = 4;
+  private static final int F_EXTEND = 8;
+
+  private final ScoringMatrix matrix;
+
+  // penalty for the first residue of a gap (open + extend), and for each subsequent one
+  private final int gapFirst;
+  private final int gapExtend;
+
+  private byte[] query;
+  private int segments;
+  private int[] profile = new int[0];
+  private int[] reverseProfile = new int[0];
+
+  // striped work buffers
+  private int[] hStore = new int[0];
+  private int[] hLoad = new int[0];
+  private int[] e = new int[0];
+  private int[] hBest = new int[0];
+  private final int[] vH = new int[LANES];
+  private final int[] vF = new int[LANES];
+  private final int[] vMax = new int[LANES];
+
+  // result of the last scan()
+  private int scanScore;
+  private int scanQueryEnd;
+  private int scanTargetEnd;
+
+  // banded traceback buffers
+  private int[] hPrev = new int[0];
+  private int[] hCur = new int[0];
+  private int[] fPrev = new int[0];
+  private int[] fCur = new int[0];
+  private byte[] trace = new byte[0];
+
+  public SmithWaterman(ScoringMatrix matrix) {
+    this(matrix, matrix.getDefaultGapOpen(), matrix.getDefaultGapExtend());
+  }
+
+  /**
+   * A gap of length n is penalised by gapOpen + n * gapExtend.
+   */
+  public SmithWaterman(ScoringMatrix matrix, int gapOpen, int gapExtend) {
+    if (gapOpen < 0 || gapExtend < 1) {
+      throw new RuntimeException("gap open must be >= 0 and gap extend >= 1");
+    }
+    this.matrix = matrix;
+    this.gapFirst = gapOpen + gapExtend;
+    this.gapExtend = gapExtend;
+  }
+
+  public ScoringMatrix getMatrix() {
+    return matrix;
+  }
+
+  /**
+   * Set the query sequence for subsequent calls to score() and align().
+   */
+  public void setQuery(byte[] query) {
+    if (query.length == 0) {
+      throw new RuntimeException("empty query sequence");
+    }
+    this.query = query;
+    segments = segments(query.length);
+    profile = buildProfile(profile, query.length, segments, false);
+    int stride = segments * LANES;
+    if (hStore.length < stride) {
+      hStore = new int[stride];
+      hLoad = new int[stride];
+      e = new int[stride];
+      hBest = new int[stride];
+    }
+  }
+
+  public byte[] getQuery() {
+    return query;
+  }
+
+  /**
+   * Get the best local alignment score of the query against the target.
+   */
+  public int score(byte[] target) {
+    checkQuery();
+    scan(profile, query.length, segments, target, 0, target.length, false, false, Integer.MAX_VALUE);
+    return scanScore;
+  }
+
+  /**
+   * Get the best local alignment of the query against the target, or null if
+   * there is no alignment with a positive score.
+   */
+  public LocalAlignment align(byte[] target) {
+    checkQuery();
+    scan(profile, query.length, segments, target, 0, target.length, false, false, Integer.MAX_VALUE);
+    int score = scanScore;
+    if (score <= 0) {
+      return null;
+    }
+    int queryEnd = scanQueryEnd;
+    int targetEnd = scanTargetEnd;
+
+    // align the reversed prefixes, anchored at the end of the best alignment,
+    // to find where it starts
+    int length = queryEnd + 1;
+    int segs = segments(length);
+    reverseProfile = buildProfile(reverseProfile, length, segs, true);
+    scan(reverseProfile, length, segs, target, targetEnd, targetEnd + 1, true, true, score);
+    if (scanScore != score) {
+      throw new RuntimeException("reverse alignment score " + scanScore + " does not match " + score);
+    }
+    return traceback(target, queryEnd - scanQueryEnd, queryEnd, targetEnd - scanTargetEnd, targetEnd, score);
+  }
+
+  private void checkQuery() {
+    if (query == null) {
+      throw new RuntimeException("query sequence not set");
+    }
+  }
+
+  private static int segments(int length) {
+    return (length + LANES - 1) / LANES;
+  }
+
+  // striped profile: [residue][segment][lane] for query position lane * segs + segment
+  private int[] buildProfile(int[] buffer, int length, int segs, boolean reverse) {
+    int stride = segs * LANES;
+    int size = ScoringMatrix.SIZE * stride;
+    int[] p = buffer.length >= size ? buffer : new int[size];
+    for (int r = 0; r < ScoringMatrix.SIZE; ++r) {
+      int base = r * stride;
+      for (int s = 0; s < segs; ++s) {
+        for (int l = 0; l < LANES; ++l) {
+          int q = l * segs + s;
+          p[base + s * LANES + l] = q < length ? matrix.score(r, query[reverse ? length - 1 - q : q]) : PAD;
+        }
+      }
+    }
+    return p;
+  }
+
+  /*
+   * Striped Smith-Waterman over count target residues starting at targetStart
+   * (going backwards if reverse is set). If anchored, alignments must start at
+   * the first query and target positions. Stops early once stopAt is reached.
+   * Sets scanScore, scanQueryEnd and scanTargetEnd (the latter two relative to
+   * the scan order).
+   */
+  private void scan(int[] prof, int length, int segs, byte[] target, int targetStart, int count,
+      boolean reverse, boolean anchored, int stopAt) {
+    final int stride = segs * LANES;
+    final int floor = anchored ? NEG : 0;
+    final int last = stride - LANES;
+    Arrays.fill(hStore, 0, stride, floor);
+    Arrays.fill(e, 0, stride, NEG);
+    int best = floor;
+    int bestColumn = -1;
+
+    for (int c = 0; c < count; ++c) {
+      final int pbase = target[reverse ? targetStart - c : targetStart + c] * stride;
+
+      // diagonal values entering the first segment come from the last segment, shifted one lane
+      vH[0] = anchored && c > 0 ? NEG : 0;
+      for (int l = 1; l < LANES; ++l) {
+        vH[l] = hStore[last + l - 1];
+      }
+      Arrays.fill(vF, NEG);
+      Arrays.fill(vMax, floor);
+      int[] swap = hLoad;
+      hLoad = hStore;
+      hStore = swap;
+
+      for (int s = 0; s < stride; s += LANES) {
+        for (int l = 0; l < LANES; ++l) {
+          int i = s + l;
+          int h = vH[l] + prof[pbase + i];
+          int ei = e[i];
+          int f = vF[l];
+          h = h > ei ? h : ei;
+          h = h > f ? h : f;
+          h = h > floor ? h : floor;
+          hStore[i] = h;
+          vMax[l] = vMax[l] > h ? vMax[l] : h;
+          h -= gapFirst;
+          ei -= gapExtend;
+          e[i] = ei > h ? ei : h;
+          f -= gapExtend;
+          vF[l] = f > h ? f : h;
+          vH[l] = hLoad[i];
+        }
+      }
+
+      // lazy F: carry vertical gaps across the segment boundaries until they
+      // can no longer change any cell
+      shift(vF);
+      int s = 0;
+      while (lazyF(s)) {
+        for (int l = 0; l < LANES; ++l) {
+          int i = s + l;
+          int f = vF[l];
+          if (f > hStore[i]) {
+            hStore[i] = f;
+            vMax[l] = vMax[l] > f ? vMax[l] : f;
+            int h = f - gapFirst;
+            e[i] = e[i] > h ? e[i] : h;
+          }
+          vF[l] = f - gapExtend;
+        }
+        s += LANES;
+        if (s == stride) {
+          s = 0;
+          shift(vF);
+        }
+      }
+
+      int max = vMax[0];
+      for (int l = 1; l < LANES; ++l) {
+        max = max > vMax[l] ? max : vMax[l];
+      }
+      if (max > best) {
+        best = max;
+        bestColumn = c;
+        System.arraycopy(hStore, 0, hBest, 0, stride);
+        if (best >= stopAt) {
+          break;
+        }
+      }
+    }
+
+    scanScore = best;
+    scanTargetEnd = bestColumn;
+    scanQueryEnd = -1;
+    if (bestColumn >= 0) {
+      for (int q = 0; q < length; ++q) {
+        if (hBest[(q % segs) * LANES + q / segs] == best) {
+          scanQueryEnd = q;
+          break;
+        }
+      }
+    }
+  }
+
+  private boolean lazyF(int s) {
+    for (int l = 0; l < LANES; ++l) {
+      if (vF[l] > NEG / 2 && vF[l] > hStore[s + l] - gapFirst) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void shift(int[] v) {
+    System.arraycopy(v, 0, v, 1, LANES - 1);
+    v[0] = NEG;
+  }
+
+  /*
+   * Recover the aligned sequences from a global alignment of the region
+   * query[qs..qe], target[ts..te], widening the band until it reproduces
+   * the local alignment score.
+   */
+  private LocalAlignment traceback(byte[] target, int qs, int qe, int ts, int te, int score) {
+    int a = qe - qs + 1;
+    int b = te - ts + 1;
+    int lo, width;
+    for (int band = BAND; ; band *= 4) {
+      lo = Math.max(Math.min(0, b - a) - band, -a);
+      int hi = Math.min(Math.max(0, b - a) + band, b);
+      width = hi - lo + 1;
+      int s = bandedGlobal(target, qs, a, ts, b, lo, width);
+      if (s >= score) {
+        break;
+      }
+      if (lo == -a && hi == b) {
+        throw new RuntimeException("traceback score " + s + " does not match " + score);
+      }
+    }
+
+    StringBuilder querySeq = new StringBuilder();
+    StringBuilder returnSeq = new StringBuilder();
+    int identities = 0;
+    int positives = 0;
+    int i = a;
+    int j = b;
+    int state = FROM_DIAG;
+    while (i > 0 || j > 0) {
+      int t = trace[i * width + j - i - lo];
+      if (state == FROM_DIAG) {
+        state = t & SOURCE;
+        if (state == FROM_DIAG) {
+          byte qr = query[qs + i - 1];
+          byte tr = target[ts + j - 1];
+          querySeq.append(ScoringMatrix.decode(qr));
+          returnSeq.append(ScoringMatrix.decode(tr));
+          if (qr == tr) {
+            ++identities;
+          }
+          if (matrix.score(qr, tr) > 0) {
+            ++positives;
+          }
+          --i;
+          --j;
+        }
+      } else if (state == FROM_E) {
+        querySeq.append('-');
+        returnSeq.append(ScoringMatrix.decode(target[ts + j - 1]));
+        state = (t & E_EXTEND) != 0 ? FROM_E : FROM_DIAG;
+        --j;
+      } else {
+        querySeq.append(ScoringMatrix.decode(query[qs + i - 1]));
+        returnSeq.append('-');
+        state = (t & F_EXTEND) != 0 ? FROM_F : FROM_DIAG;
+        --i;
+      }
+    }
+
+    return new LocalAlignment(score, qs + 1, qe + 1, ts + 1, te + 1,
+        querySeq.reverse().toString(), returnSeq.reverse().toString(), identities, positives);
+  }
+
+  /*
+   * Global (Gotoh) alignment of a query residues from qs against b target
+   * residues from ts, restricted to the diagonals j - i in [lo, lo + width).
+   * Fills trace and returns the score.
+   */
+  private int bandedGlobal(byte[] target, int qs, int a, int ts, int b, int lo, int width) {
+    if (hPrev.length < width) {
+      hPrev = new int[width];
+      hCur = new int[width];
+      fPrev = new int[width];
+      fCur = new int[width];
+    }
+    int size = (a + 1) * width;
+    if (trace.length < size) {
+      trace = new byte[size];
+    }
+
+    // row 0: leading gap in the query
+    Arrays.fill(hPrev, 0, width, NEG);
+    Arrays.fill(fPrev, 0, width, NEG);
+    for (int j = Math.max(0, lo); j <= Math.min(b, lo + width - 1); ++j) {
+      hPrev[j - lo] = j == 0 ? 0 : -(gapFirst + (j - 1) * gapExtend);
+      trace[j - lo] = (byte)(FROM_E | (j > 1 ? E_EXTEND : 0));
+    }
+
+    for (int i = 1; i <= a; ++i) {
+      Arrays.fill(hCur, 0, width, NEG);
+      Arrays.fill(fCur, 0, width, NEG);
+      int rowBase = i * width;
+      int jMin = Math.max(0, i + lo);
+      int jMax = Math.min(b, i + lo + width - 1);
+      int eRun = NEG;
+      byte qr = query[qs + i - 1];
+      for (int j = jMin; j <= jMax; ++j) {
+        int k = j - i - lo;
+        if (j == 0) {
+          // leading gap in the target
+          hCur[k] = fCur[k] = -(gapFirst + (i - 1) * gapExtend);
+          trace[rowBase + k] = (byte)(FROM_F | (i > 1 ? F_EXTEND : 0));
+          continue;
+        }
+        int bits = 0;
+
+        int eOpen = (j > jMin ? hCur[k - 1] : NEG) - gapFirst;
+        int eExt = eRun - gapExtend;
+        if (eExt > eOpen) {
+          eRun = eExt;
+          bits |= E_EXTEND;
+        } else {
+          eRun = eOpen;
+        }
+
+        int f = NEG;
+        if (k + 1 < width) {
+          int fOpen = hPrev[k + 1] - gapFirst;
+          int fExt = fPrev[k + 1] - gapExtend;
+          if (fExt > fOpen) {
+            f = fExt;
+            bits |= F_EXTEND;
+          } else {
+            f = fOpen;
+          }
+        }
+
+        int h = hPrev[k] + matrix.score(qr, target[ts + j - 1]);
+        int source = FROM_DIAG;
+        if (eRun > h) {
+          h = eRun;
+          source = FROM_E;
+        }
+        if (f > h) {
+          h = f;
+          source = FROM_F;
+        }
+        hCur[k] = h;
+        fCur[k] = f;
+        trace[rowBase + k] = (byte)(source | bits);
+      }
+      int[] swap = hPrev;
+      hPrev = hCur;
+      hCur = swap;
+      swap = fPrev;
+      fPrev = fCur;
+      fCur = swap;
+    }
+
+    return hPrev[b - a - lo];
+  }
+
+}
@@ -0,0 +1,100 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestFastaJobResults {
+
+	private static final String RESULT_PATH = "result2";
+
+	@Test
+	public void joinIds() throws IOException, URISyntaxException {
+		byte[] result = Files.readAllBytes(Paths.get(TestFastaJobResults.class.getResource(RESULT_PATH).toURI()));
+		FastaJobResults results = FastaJob.parseResults(result);
+
+		// 315 PDB entries and 2 pre-release ones, lower case and sorted
+		List<String> joinIds = results.getJoinIds();
+		assertEquals(317, joinIds.size());
+		assertEquals("1am5", joinIds.get(0));
+		assertEquals("6apr", joinIds.get(joinIds.size() - 1));
+		assertTrue(joinIds.contains("1czi"));
+		assertTrue(joinIds.contains("4lap"));
+		assertTrue(joinIds.contains("4rld"));
+		List<String> sorted = new ArrayList<>(new TreeSet<>(joinIds));
+		assertEquals(sorted, joinIds);
+
+		// entry alignments are in the same order as the full map
+		for (Map.Entry<PDb.Id, Map<String, PDb.Alignment>> e : results.getAlignments().entrySet()) {
+			List<PDb.Alignment> entry = results.getEntryAlignments(e.getKey().toString().toLowerCase());
+			assertEquals(e.getValue().size(), entry.size());
+			int i = 0;
+			for (PDb.Alignment a : e.getValue().values()) {
+				PDb.Alignment b = entry.get(i++);
+				assertEquals(a.getPdbIdChain(), b.getPdbIdChain());
+				assertEquals(a.getEValue(), b.getEValue(), 0.0);
+				assertEquals(a.getQuerySequenceString(), b.getQuerySequenceString());
+			}
+		}
+		assertNull(results.getEntryAlignments("0xxx"));
+	}
+
+	@Test
+	public void replaceChain() {
+		FastaJobResults results = new FastaJobResults();
+		int row = results.addAlignment("1ABC", "A", 0.1);
+		results.setAlignmentDetails(row, 50.0, 1, 10, 5, 14);
+		results.setSequences(row, "QUERY", "RETURN");
+		results.addAlignment("2DEF", "B", 0.2);
+		assertTrue(results.isComplete(row));
+
+		assertEquals(row, results.addAlignment("1ABC", "A", 0.05));
+		assertFalse(results.isComplete(row));
+		assertEquals(2, results.getNumChains());
+		assertEquals(2, results.getNumEntries());
+
+		PDb.Alignment a = results.getAlignment("1ABC", "A");
+		assertEquals(0.05, a.getEValue(), 0.0);
+		assertEquals("", a.getQuerySequenceString());
+	}
+
+	@Test
+	public void merge() {
+		FastaJobResults first = new FastaJobResults();
+		first.addAlignment("1ABC", "A", 0.1);
+		first.addAlignment("1ABC", "B", 0.01);
+		FastaJobResults second = new FastaJobResults();
+		int row = second.addAlignment("1ABC", "A", 0.001);
+		second.setAlignmentDetails(row, 90.0, 1, 10, 1, 10);
+		second.setSequences(row, "QUERY", "RETURN");
+		second.addAlignment("1ABC", "B", 0.5);
+		second.addAlignment("2DEF", "C", 0.2);
+
+		FastaJobResults merged = FastaJobResults.merge(Arrays.asList(first, second));
+		assertEquals(3, merged.getNumChains());
+		assertEquals(2, merged.getNumEntries());
+
+		PDb.Alignment a = merged.getAlignment("1ABC", "A");
+		assertEquals(0.001, a.getEValue(), 0.0);
+		assertEquals(1, a.getQueryIndex());
+		assertEquals(90.0, a.getPercentIdentity(), 0.0);
+		assertEquals("RETURN", a.getReturnSequenceString());
+		assertEquals(0, merged.getAlignment("1ABC", "B").getQueryIndex());
+		assertEquals(1, merged.getAlignment("2DEF", "C").getQueryIndex());
+		assertEquals(Arrays.asList("1abc", "2def"), merged.getJoinIds());
+	}
+
+}
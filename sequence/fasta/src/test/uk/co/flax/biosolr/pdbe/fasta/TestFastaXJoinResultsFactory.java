@@ -0,0 +1,125 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.cache.DiskCache;
+import org.apache.solr.search.xjoin.replay.RecordedResponses;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFastaXJoinResultsFactory {
+
+	private static final String RESULT_PATH = "result2";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private NamedList<String> baseArgs() {
+		NamedList<String> args = new NamedList<>();
+		args.add(FastaXJoinResultsFactory.INIT_EMAIL, "test@example.com");
+		args.add(FastaXJoinResultsFactory.INIT_PROGRAM, "ssearch");
+		args.add(FastaXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(FastaXJoinResultsFactory.INIT_STYPE, "protein");
+		return args;
+	}
+
+	private FastaXJoinResultsFactory debugFactory() throws URISyntaxException {
+		return debugFactory(baseArgs());
+	}
+
+	private FastaXJoinResultsFactory debugFactory(NamedList<String> args) throws URISyntaxException {
+		args.add(FastaXJoinResultsFactory.INIT_DEBUG_FILE,
+				Paths.get(TestFastaXJoinResultsFactory.class.getResource(RESULT_PATH).toURI()).toString());
+		FastaXJoinResultsFactory factory = new FastaXJoinResultsFactory();
+		factory.init(args);
+		return factory;
+	}
+
+	private ModifiableSolrParams params(String... sequences) {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.set(FastaXJoinResultsFactory.FASTA_SEQUENCE, sequences);
+		params.set(FastaXJoinResultsFactory.FASTA_EXPLOWLIM, "0.0");
+		params.set(FastaXJoinResultsFactory.FASTA_EXPUPPERLIM, "1.0");
+		params.set(FastaXJoinResultsFactory.FASTA_SCORES, "1000");
+		params.set(FastaXJoinResultsFactory.FASTA_ALIGNMENTS, "1000");
+		return params;
+	}
+
+	@Test
+	public void debugFile() throws IOException, URISyntaxException {
+		FastaXJoinResultsFactory.Results results = (FastaXJoinResultsFactory.Results)debugFactory().getResults(params("<DUMMY>"));
+		assertEquals(504, results.getNumChains());
+		assertEquals(317, results.getNumEntries());
+	}
+
+	@Test
+	public void multipleSequences() throws IOException, URISyntaxException {
+		FastaXJoinResultsFactory.Results results = (FastaXJoinResultsFactory.Results)debugFactory().getResults(
+				params("<DUMMY1>", "<DUMMY2>", "<DUMMY3>"));
+		assertEquals(504, results.getNumChains());
+		assertEquals(317, results.getNumEntries());
+
+		// identical results for each sequence, so every best hit is from the first
+		for (String joinId : results.getJoinIds()) {
+			for (PDb.Alignment a : results.getResult(joinId)) {
+				assertEquals(0, a.getQueryIndex());
+			}
+		}
+	}
+
+	@Test
+	public void persistentCache() throws IOException, URISyntaxException {
+		Path file = folder.getRoot().toPath().resolve("cache");
+		NamedList<String> args = baseArgs();
+		args.add(DiskCache.INIT_CACHE_FILE, file.toString());
+		args.add(DiskCache.INIT_CACHE_RELEASE, "2018_01");
+		FastaXJoinResultsFactory.Results expected = (FastaXJoinResultsFactory.Results)debugFactory(args).getResults(params("<DUMMY>"));
+
+		// reopen, as after a restart, replaying from an empty directory so that
+		// only cached results are available
+		DiskCache.open(file, 0, "2018_01").close();
+		args = baseArgs();
+		args.add(DiskCache.INIT_CACHE_FILE, file.toString());
+		args.add(DiskCache.INIT_CACHE_RELEASE, "2018_01");
+		args.add(RecordedResponses.INIT_REPLAY_DIR, folder.newFolder().getPath());
+		FastaXJoinResultsFactory factory = new FastaXJoinResultsFactory();
+		factory.init(args);
+		try {
+			FastaXJoinResultsFactory.Results results = (FastaXJoinResultsFactory.Results)factory.getResults(params("<DUMMY>"));
+			assertEquals(504, results.getNumChains());
+			assertEquals(317, results.getNumEntries());
+			assertEquals(expected.getJoinIds(), results.getJoinIds());
+			for (String joinId : expected.getJoinIds()) {
+				Iterator<PDb.Alignment> it = results.getResult(joinId).iterator();
+				for (PDb.Alignment a : expected.getResult(joinId)) {
+					PDb.Alignment b = it.next();
+					assertEquals(a.getPdbIdChain(), b.getPdbIdChain());
+					assertEquals(a.getEValue(), b.getEValue(), 0.0);
+					assertEquals(a.getPercentIdentity(), b.getPercentIdentity(), 0.0);
+					assertEquals(a.getDbOverlapEnd(), b.getDbOverlapEnd());
+					assertEquals(a.getQuerySequenceString(), b.getQuerySequenceString());
+					assertEquals(a.getReturnSequenceString(), b.getReturnSequenceString());
+				}
+			}
+
+			try {
+				factory.getResults(params("<OTHER>"));
+				throw new AssertionError("expected no recorded response");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			DiskCache.open(file, 0, "2018_01").close();
+		}
+	}
+
+}
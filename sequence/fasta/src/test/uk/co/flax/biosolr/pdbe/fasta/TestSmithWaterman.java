@@ -0,0 +1,185 @@
+package uk.co.flax.biosolr.pdbe.fasta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class TestSmithWaterman {
+
+	private static final String RESIDUES = "ARNDCQEGHILKMFPSTWYV";
+
+	@Test
+	public void identical() {
+		byte[] seq = ScoringMatrix.encode("MKTAYIAKQRQISFVKSHFSRQ");
+		SmithWaterman sw = new SmithWaterman(ScoringMatrix.BLOSUM62);
+		sw.setQuery(seq);
+		LocalAlignment a = sw.align(seq);
+		assertEquals(1, a.getQueryOverlapStart());
+		assertEquals(22, a.getQueryOverlapEnd());
+		assertEquals(1, a.getDbOverlapStart());
+		assertEquals(22, a.getDbOverlapEnd());
+		assertEquals(100.0, a.getPercentIdentity(), 0.0);
+		assertEquals("MKTAYIAKQRQISFVKSHFSRQ", a.getReturnSequence());
+	}
+
+	@Test
+	public void gapped() {
+		SmithWaterman sw = new SmithWaterman(ScoringMatrix.BLOSUM62, 2, 1);
+		sw.setQuery(ScoringMatrix.encode("WWWWCCCCWWWW"));
+		LocalAlignment a = sw.align(ScoringMatrix.encode("GGGWWWWCCWWWWGGG"));
+		assertEquals("WWWWCCCCWWWW", a.getQuerySequence());
+		assertEquals(12, a.getReturnSequence().length());
+		assertEquals("WWWWCCWWWW", a.getReturnSequence().replace("-", ""));
+		assertEquals(4, a.getDbOverlapStart());
+		assertEquals(13, a.getDbOverlapEnd());
+		assertEquals(8 * 11 + 2 * 9 - 4, a.getScore());
+	}
+
+	@Test
+	public void noAlignment() {
+		SmithWaterman sw = new SmithWaterman(ScoringMatrix.BLOSUM62);
+		sw.setQuery(ScoringMatrix.encode("WWW"));
+		assertNull(sw.align(ScoringMatrix.encode("GGG")));
+	}
+
+	@Test
+	public void matchesReference() {
+		Random random = new Random(42);
+		ScoringMatrix matrix = ScoringMatrix.BLOSUM62;
+		for (int n = 0; n < 200; ++n) {
+			byte[] query = randomSequence(random, 1 + random.nextInt(120));
+			byte[] target = random.nextBoolean() ? mutate(random, query) : randomSequence(random, 1 + random.nextInt(200));
+			int gapOpen = random.nextInt(12);
+			int gapExtend = 1 + random.nextInt(3);
+			SmithWaterman sw = new SmithWaterman(matrix, gapOpen, gapExtend);
+			sw.setQuery(query);
+
+			int expected = referenceScore(matrix, gapOpen, gapExtend, query, target);
+			assertEquals(expected, sw.score(target));
+
+			LocalAlignment a = sw.align(target);
+			if (expected <= 0) {
+				assertNull(a);
+				continue;
+			}
+			assertEquals(expected, a.getScore());
+			assertEquals(expected, rescore(matrix, gapOpen, gapExtend, a));
+			assertEquals(a.getQuerySequence().replace("-", ""),
+					decode(query, a.getQueryOverlapStart() - 1, a.getQueryOverlapEnd()));
+			assertEquals(a.getReturnSequence().replace("-", ""),
+					decode(target, a.getDbOverlapStart() - 1, a.getDbOverlapEnd()));
+		}
+	}
+
+	@Test
+	public void chainAligner() throws InterruptedException {
+		Random random = new Random(7);
+		byte[] q = randomSequence(random, 150);
+		String query = decode(q, 0, q.length);
+		Map<String, String> chains = new HashMap<>();
+		for (int i = 0; i < 300; ++i) {
+			byte[] t = i % 3 == 0 ? mutate(random, q) : randomSequence(random, 100 + random.nextInt(100));
+			chains.put(String.format("%dabc_%c", i, 'A' + i % 4), decode(t, 0, t.length));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			FastaJobResults parallel = new ChainAligner(executor).align(query, chains, 1.0);
+			FastaJobResults serial = new ChainAligner(null).align(query, chains, 1.0);
+			assertEquals(serial.getNumChains(), parallel.getNumChains());
+			assertTrue(parallel.getNumChains() >= 100);
+
+			double last = 0;
+			for (Map<String, PDb.Alignment> map : parallel.getAlignments().values()) {
+				for (PDb.Alignment a : map.values()) {
+					assertTrue(a.getEValue() >= last);
+					last = a.getEValue();
+					assertTrue(a.isComplete());
+					assertEquals(serial.getAlignment(a.getPdbId().id, a.getChain()).getPercentIdentity(), a.getPercentIdentity(), 0.0);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] randomSequence(Random random, int length) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < length; ++i) {
+			s.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+		}
+		return ScoringMatrix.encode(s);
+	}
+
+	// substitutions, insertions and deletions, with random flanks
+	private static byte[] mutate(Random random, byte[] seq) {
+		StringBuilder s = new StringBuilder(decode(randomSequence(random, random.nextInt(20)), 0, -1));
+		for (byte b : seq) {
+			int r = random.nextInt(20);
+			if (r == 0) continue;
+			s.append(r < 4 ? RESIDUES.charAt(random.nextInt(RESIDUES.length())) : ScoringMatrix.decode(b));
+			if (r == 4) {
+				s.append(decode(randomSequence(random, 1 + random.nextInt(4)), 0, -1));
+			}
+		}
+		s.append(decode(randomSequence(random, random.nextInt(20)), 0, -1));
+		return ScoringMatrix.encode(s);
+	}
+
+	private static String decode(byte[] seq, int from, int to) {
+		StringBuilder s = new StringBuilder();
+		for (int i = from; i < (to < 0 ? seq.length : to); ++i) {
+			s.append(ScoringMatrix.decode(seq[i]));
+		}
+		return s.toString();
+	}
+
+	// straightforward O(mn) Gotoh local alignment
+	private static int referenceScore(ScoringMatrix matrix, int gapOpen, int gapExtend, byte[] q, byte[] t) {
+		int neg = -1000000;
+		int[][] h = new int[q.length + 1][t.length + 1];
+		int[][] e = new int[q.length + 1][t.length + 1];
+		int[][] f = new int[q.length + 1][t.length + 1];
+		int best = 0;
+		for (int i = 0; i <= q.length; ++i) {
+			for (int j = 0; j <= t.length; ++j) {
+				if (i == 0 || j == 0) {
+					e[i][j] = f[i][j] = neg;
+					continue;
+				}
+				e[i][j] = Math.max(e[i][j - 1] - gapExtend, h[i][j - 1] - gapOpen - gapExtend);
+				f[i][j] = Math.max(f[i - 1][j] - gapExtend, h[i - 1][j] - gapOpen - gapExtend);
+				h[i][j] = Math.max(0, Math.max(h[i - 1][j - 1] + matrix.score(q[i - 1], t[j - 1]), Math.max(e[i][j], f[i][j])));
+				best = Math.max(best, h[i][j]);
+			}
+		}
+		return best;
+	}
+
+	// score an alignment from its aligned sequences
+	private static int rescore(ScoringMatrix matrix, int gapOpen, int gapExtend, LocalAlignment a) {
+		String q = a.getQuerySequence();
+		String t = a.getReturnSequence();
+		int score = 0;
+		for (int i = 0; i < q.length(); ++i) {
+			char qc = q.charAt(i);
+			char tc = t.charAt(i);
+			if (qc == '-' || tc == '-') {
+				boolean open = i == 0 || (qc == '-' ? q.charAt(i - 1) != '-' : t.charAt(i - 1) != '-');
+				score -= gapExtend + (open ? gapOpen : 0);
+			} else {
+				score += matrix.score(ScoringMatrix.encode(String.valueOf(qc))[0], ScoringMatrix.encode(String.valueOf(tc))[0]);
+			}
+		}
+		return score;
+	}
+
+}
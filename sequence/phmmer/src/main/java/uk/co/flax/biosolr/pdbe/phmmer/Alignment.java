@@ -1,7 +1,15 @@
 package uk.co.flax.biosolr.pdbe.phmmer;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import javax.json.JsonArray;
 import javax.json.JsonObject;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.solr.search.xjoin.cache.DiskCache;
 
 public class Alignment {
   
@@ -54,6 +62,8 @@ public class Alignment {
   private double similarityPercent;
   
   private int similarityCount;
+
+  private int queryIndex;
   
   public Alignment(JsonObject hit) {
     target = hit.getString("acc");
@@ -102,6 +112,213 @@ public class Alignment {
     }
   }
 
+  /**
+   * Decode a hit from a streaming parser positioned just after the hit's
+   * START_OBJECT, consuming everything up to and including its END_OBJECT.
+   */
+  /*package*/ Alignment(JsonParser parser) {
+    Event event;
+    while ((event = parser.next()) == Event.KEY_NAME) {
+      String key = parser.getString();
+      event = parser.next();
+      switch (key) {
+      case "acc":
+        target = PhmmerResultsReader.getString(parser, event);
+        break;
+      case "species":
+        species = PhmmerResultsReader.getString(parser, event);
+        break;
+      case "desc":
+        description = PhmmerResultsReader.getString(parser, event);
+        break;
+      case "score":
+        score = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "evalue":
+        eValue = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "domains":
+        readDomains(parser, event);
+        break;
+      default:
+        PhmmerResultsReader.skip(parser, event);
+      }
+    }
+  }
+
+  /**
+   * Read an alignment written by write().
+   */
+  /*package*/ Alignment(DataInput in) throws IOException {
+    target = DiskCache.readString(in);
+    species = DiskCache.readString(in);
+    description = DiskCache.readString(in);
+    score = in.readDouble();
+    eValue = in.readDouble();
+    eValueInd = in.readDouble();
+    eValueCond = in.readDouble();
+    querySequence = DiskCache.readString(in);
+    querySequenceStart = in.readInt();
+    querySequenceEnd = in.readInt();
+    match = DiskCache.readString(in);
+    targetSequence = DiskCache.readString(in);
+    targetSequenceStart = in.readInt();
+    targetSequenceEnd = in.readInt();
+    targetEnvelopeStart = in.readInt();
+    targetEnvelopeEnd = in.readInt();
+    posteriorProbability = DiskCache.readString(in);
+    bias = in.readDouble();
+    accuracy = in.readDouble();
+    bitScore = in.readDouble();
+    identityPercent = in.readDouble();
+    identityCount = in.readInt();
+    similarityPercent = in.readDouble();
+    similarityCount = in.readInt();
+  }
+
+  /*package*/ void write(DataOutput out) throws IOException {
+    DiskCache.writeString(out, target);
+    DiskCache.writeString(out, species);
+    DiskCache.writeString(out, description);
+    out.writeDouble(score);
+    out.writeDouble(eValue);
+    out.writeDouble(eValueInd);
+    out.writeDouble(eValueCond);
+    DiskCache.writeString(out, querySequence);
+    out.writeInt(querySequenceStart);
+    out.writeInt(querySequenceEnd);
+    DiskCache.writeString(out, match);
+    DiskCache.writeString(out, targetSequence);
+    out.writeInt(targetSequenceStart);
+    out.writeInt(targetSequenceEnd);
+    out.writeInt(targetEnvelopeStart);
+    out.writeInt(targetEnvelopeEnd);
+    DiskCache.writeString(out, posteriorProbability);
+    out.writeDouble(bias);
+    out.writeDouble(accuracy);
+    out.writeDouble(bitScore);
+    out.writeDouble(identityPercent);
+    out.writeInt(identityCount);
+    out.writeDouble(similarityPercent);
+    out.writeInt(similarityCount);
+  }
+
+  private void readDomains(JsonParser parser, Event event) {
+    if (event != Event.START_ARRAY) {
+      PhmmerResultsReader.skip(parser, event);
+      return;
+    }
+    boolean found = false;
+    while ((event = parser.next()) != Event.END_ARRAY) {
+      if (found) {
+        PhmmerResultsReader.skip(parser, event);
+      } else {
+        // we consider only the first significant match
+        found = readDomain(parser);
+      }
+    }
+  }
+
+  // a domain is read into locals, and only copied to the fields if it is significant
+  private boolean readDomain(JsonParser parser) {
+    double ievalue = Double.POSITIVE_INFINITY, cevalue = 0, bias = 0, accuracy = 0, bitScore = 0, identity = 0, similarity = 0;
+    int hmmFrom = 0, hmmTo = 0, sqFrom = 0, sqTo = 0, envFrom = 0, envTo = 0, identityCount = 0, similarityCount = 0;
+    String model = null, mline = null, aseq = null, ppline = null;
+    Event event;
+    while ((event = parser.next()) == Event.KEY_NAME) {
+      String key = parser.getString();
+      event = parser.next();
+      if (event == Event.VALUE_NULL) continue;
+      switch (key) {
+      case "ievalue":
+        ievalue = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "cevalue":
+        cevalue = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "alimodel":
+        model = parser.getString();
+        break;
+      case "alihmmfrom":
+        hmmFrom = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "alihmmto":
+        hmmTo = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "alimline":
+        mline = parser.getString();
+        break;
+      case "aliaseq":
+        aseq = parser.getString();
+        break;
+      case "alisqfrom":
+        sqFrom = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "alisqto":
+        sqTo = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "ienv":
+        envFrom = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "jenv":
+        envTo = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "alippline":
+        ppline = parser.getString();
+        break;
+      case "bias":
+        bias = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "oasc":
+        accuracy = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "bitscore":
+        bitScore = PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "aliId":
+        identity = 100 * PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "aliIdCount":
+        identityCount = PhmmerResultsReader.getInt(parser, event);
+        break;
+      case "aliSim":
+        similarity = 100 * PhmmerResultsReader.getDouble(parser, event);
+        break;
+      case "aliSimCount":
+        similarityCount = PhmmerResultsReader.getInt(parser, event);
+        break;
+      default:
+        PhmmerResultsReader.skip(parser, event);
+      }
+    }
+
+    // skip insignificant matches (by ind. eValue), keeping the last ievalue so
+    // that a hit with no significant domain is still filtered out
+    eValueInd = ievalue;
+    if (ievalue >= SIGNIFICANCE_THRESHOLD) {
+      return false;
+    }
+    eValueCond = cevalue;
+    querySequence = model;
+    querySequenceStart = hmmFrom;
+    querySequenceEnd = hmmTo;
+    match = mline;
+    targetSequence = aseq;
+    targetSequenceStart = sqFrom;
+    targetSequenceEnd = sqTo;
+    targetEnvelopeStart = envFrom;
+    targetEnvelopeEnd = envTo;
+    posteriorProbability = ppline;
+    this.bias = bias;
+    this.accuracy = accuracy;
+    this.bitScore = bitScore;
+    identityPercent = identity;
+    this.identityCount = identityCount;
+    similarityPercent = similarity;
+    this.similarityCount = similarityCount;
+    return true;
+  }
+
   public double getSignificanceThreshold() {
     return SIGNIFICANCE_THRESHOLD;
   }
@@ -110,6 +327,18 @@ public class Alignment {
     return target;
   }
   
+  /*package*/ void setQueryIndex(int queryIndex) {
+    this.queryIndex = queryIndex;
+  }
+
+  /**
+   * The index of the query sequence that produced this alignment, when
+   * several sequences were searched together.
+   */
+  public int getQueryIndex() {
+    return queryIndex;
+  }
+
   public double getEValue() {
     return eValue;
   }
@@ -1,5 +1,6 @@
 package uk.co.flax.biosolr.pdbe.phmmer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,29 +15,71 @@ import javax.json.JsonReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-//import uk.co.flax.biosolr.pdbe.fasta.FastaJob;
-
+/**
+ * Client for the PHMMER REST API. Connections are never explicitly disconnected;
+ * instead each response is read to the end and closed, which returns the
+ * underlying socket to the JVM's keep-alive pool (sized by the system property
+ * http.maxConnections) so that it is reused by later requests to the same host.
+ */
 public class PhmmerClient {
 
   private static final Logger LOG = LoggerFactory.getLogger(PhmmerClient.class);
-  
+
   private String phmmerUrl;
-  
+
   public PhmmerClient(String phmmerUrl) {
       this.phmmerUrl = phmmerUrl;
   }
 
+  /**
+   * Run a search, decoding the hits in the response as they are streamed.
+   */
+  public PhmmerResults search(String database, String sequence) throws IOException {
+    String respUrl = getResultsUrl(database, sequence);
+    LOG.debug("response URL=" + respUrl);
+    try (HttpConnection http = new HttpConnection(respUrl)) {
+      http.get("application/json");
+      return PhmmerResultsReader.read(http.getInputStream());
+    }
+  }
+
+  /**
+   * Run a search, returning the undecoded response.
+   */
+  public byte[] getRawResults(String database, String sequence) throws IOException {
+    String respUrl = getResultsUrl(database, sequence);
+    LOG.debug("response URL=" + respUrl);
+    try (HttpConnection http = new HttpConnection(respUrl)) {
+      http.get("application/json");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      InputStream in = http.getInputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Run a search, returning the whole response as a JSON object.
+   */
   public JsonObject getResults(String database, String sequence) throws IOException {
     String respUrl = getResultsUrl(database, sequence);
     LOG.debug("response URL=" + respUrl);
     return getResultsJson(respUrl);
   }
-  
+
   private String getResultsUrl(String database, String sequence) throws IOException {
     LOG.info("getting PHMMER data for seqdb=" + database + "; sequence=" + sequence);
     try (HttpConnection http = new HttpConnection(phmmerUrl)) {
       http.post("seqdb=" + database + "&seq=>Seq%0D%0A" + sequence);
-      return http.getHeader("Location");
+      String location = http.getHeader("Location");
+      if (location == null) {
+        throw new IOException("No Location header in PHMMER response (" + http.getResponseCode() + ")");
+      }
+      return location;
     }
   }
 
@@ -46,16 +89,18 @@ public class PhmmerClient {
       return http.getJson();
     }
   }
-  
+
   private class HttpConnection implements AutoCloseable {
 
     private HttpURLConnection http;
-    
+
+    private InputStream in;
+
     private HttpConnection(String url) throws IOException {
       LOG.debug("opening connection to " + url);
       http = (HttpURLConnection)new URL(url).openConnection();
     }
-    
+
     private void post(String params) throws IOException {
       LOG.debug("POSTing \"" + params + "\"");
       http.setRequestMethod("POST");
@@ -66,31 +111,50 @@ public class PhmmerClient {
       try (OutputStream out = http.getOutputStream()) {
         out.write(params.getBytes());
       }
-      
+
       LOG.debug("response is " + http.getResponseCode() + " " + http.getResponseMessage());
     }
-    
+
     private String getHeader(String key) {
       return http.getHeaderField(key);
     }
-    
+
+    private int getResponseCode() throws IOException {
+      return http.getResponseCode();
+    }
+
     private void get(String accept) throws ProtocolException {
       http.setRequestMethod("GET");
       http.setRequestProperty("Accept", accept);
     }
-    
+
+    private InputStream getInputStream() throws IOException {
+      in = http.getInputStream();
+      return in;
+    }
+
     private JsonObject getJson() throws IOException {
-      try (InputStream in = http.getInputStream();
-           JsonReader reader = Json.createReader(in)) {
+      try (JsonReader reader = Json.createReader(getInputStream())) {
         return reader.readObject();
       }
     }
-    
+
+    // close the response body rather than disconnecting: the JDK reads any
+    // remaining bytes and returns the connection to its keep-alive cache
     @Override
-    public void close() {
-      http.disconnect();
+    public void close() throws IOException {
+      if (in == null) {
+        try {
+          in = http.getInputStream();
+        } catch (IOException e) {
+          in = http.getErrorStream();
+        }
+      }
+      if (in != null) {
+        in.close();
+      }
     }
-    
+
   }
-  
+
 }
@@ -1,6 +1,12 @@
 package uk.co.flax.biosolr.pdbe.phmmer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,6 +39,58 @@ public class PhmmerResults {
     }
   }
   
+  /**
+   * Merge the results of several queries, keeping the alignment with the best
+   * e-value for each chain and recording which query it came from (its index
+   * in the given list).
+   */
+  public static PhmmerResults merge(List<PhmmerResults> queries) {
+    PhmmerResults merged = new PhmmerResults(0);
+    for (int q = 0; q < queries.size(); ++q) {
+      for (Map.Entry<String, Map<String, Alignment>> e : queries.get(q).getAlignments().entrySet()) {
+        Map<String, Alignment> map = merged.alignments.computeIfAbsent(e.getKey(), k -> new HashMap<>());
+        for (Map.Entry<String, Alignment> chain : e.getValue().entrySet()) {
+          Alignment best = map.get(chain.getKey());
+          if (best == null) {
+            ++merged.numChains;
+          } else if (best.getEValue() <= chain.getValue().getEValue()) {
+            continue;
+          }
+          chain.getValue().setQueryIndex(q);
+          map.put(chain.getKey(), chain.getValue());
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Encode the alignments, for decoding by fromBytes().
+   */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(numChains);
+      for (Map<String, Alignment> map : alignments.values()) {
+        for (Alignment alignment : map.values()) {
+          alignment.write(out);
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  public static PhmmerResults fromBytes(byte[] bytes) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      int n = in.readInt();
+      PhmmerResults results = new PhmmerResults(n);
+      for (int i = 0; i < n; ++i) {
+        results.addAlignment(new Alignment(in));
+      }
+      return results;
+    }
+  }
+
   public Set<String> getPdbIds() {
     return alignments.keySet();
   }
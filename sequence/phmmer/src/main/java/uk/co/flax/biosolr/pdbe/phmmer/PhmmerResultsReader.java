@@ -0,0 +1,102 @@
+package uk.co.flax.biosolr.pdbe.phmmer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+/**
+ * Decodes a PHMMER JSON response straight into PhmmerResults with a streaming
+ * parser, so the full response is never held in memory. Only the fields used
+ * by Alignment are decoded; everything else is skipped.
+ */
+public class PhmmerResultsReader {
+
+  public static PhmmerResults read(InputStream in) throws IOException {
+    try (JsonParser parser = Json.createParser(in)) {
+      expect(parser, Event.START_OBJECT);
+      PhmmerResults results = null;
+      while (parser.next() == Event.KEY_NAME) {
+        if ("results".equals(parser.getString())) {
+          results = readResults(parser);
+        } else {
+          skip(parser, parser.next());
+        }
+      }
+      if (results == null) {
+        throw new IOException("No results in PHMMER response");
+      }
+      return results;
+    } catch (JsonException e) {
+      throw new IOException("Error parsing PHMMER response", e);
+    }
+  }
+
+  private static PhmmerResults readResults(JsonParser parser) throws IOException {
+    expect(parser, Event.START_OBJECT);
+    PhmmerResults results = new PhmmerResults(0);
+    while (parser.next() == Event.KEY_NAME) {
+      if ("hits".equals(parser.getString())) {
+        expect(parser, Event.START_ARRAY);
+        Event event;
+        while ((event = parser.next()) == Event.START_OBJECT) {
+          results.addAlignment(new Alignment(parser));
+        }
+        if (event != Event.END_ARRAY) {
+          throw new IOException("Unexpected " + event + " in PHMMER hits");
+        }
+      } else {
+        skip(parser, parser.next());
+      }
+    }
+    return results;
+  }
+
+  private static void expect(JsonParser parser, Event expected) throws IOException {
+    Event event = parser.next();
+    if (event != expected) {
+      throw new IOException("Expected " + expected + " but got " + event + " in PHMMER response");
+    }
+  }
+
+  /**
+   * Skip the value starting with the given (just consumed) event.
+   */
+  /*package*/ static void skip(JsonParser parser, Event event) {
+    if (event != Event.START_OBJECT && event != Event.START_ARRAY) {
+      return;
+    }
+    int depth = 1;
+    while (depth > 0) {
+      switch (parser.next()) {
+      case START_OBJECT:
+      case START_ARRAY:
+        ++depth;
+        break;
+      case END_OBJECT:
+      case END_ARRAY:
+        --depth;
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  /*package*/ static String getString(JsonParser parser, Event event) {
+    return event == Event.VALUE_NULL ? null : parser.getString();
+  }
+
+  // some numbers are given as JSON strings
+  /*package*/ static double getDouble(JsonParser parser, Event event) {
+    return event == Event.VALUE_NUMBER ? parser.getBigDecimal().doubleValue() : Double.parseDouble(parser.getString());
+  }
+
+  /*package*/ static int getInt(JsonParser parser, Event event) {
+    return event == Event.VALUE_NUMBER ? parser.getInt() : Integer.parseInt(parser.getString());
+  }
+
+}
@@ -1,39 +1,53 @@
 package uk.co.flax.biosolr.pdbe.phmmer;
 
-//import static org.mockito.Mockito.mock;
-//import static org.mockito.Mockito.when;
-//import static org.mockito.Matchers.any;
-
-//import java.io.ByteArrayInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-//import java.nio.file.Files;
-//import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-//import javax.json.Json;
-//import javax.json.JsonObject;
-//import javax.json.JsonReader;
+import java.util.concurrent.Callable;
 
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.ExternalJobs;
 import org.apache.solr.search.xjoin.XJoinResults;
 import org.apache.solr.search.xjoin.XJoinResultsFactory;
+import org.apache.solr.search.xjoin.cache.DiskCache;
+import org.apache.solr.search.xjoin.replay.RecordedResponses;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+/**
+ * Connect to the PHMMER service and generate a PDB id filter based on a user
+ * supplied sequence. Several sequence parameters may be given: they are
+ * searched up to max.concurrent.jobs at a time (see ExternalJobs for the
+ * node-wide limit), and the results are merged, keeping the best e-value for
+ * each chain.
+ *
+ * Raw PHMMER responses can be recorded and replayed instead of calling the
+ * service: see RecordedResponses for the debug.file and replay.*
+ * initialisation parameters.
+ *
+ * Results can also be kept in a persistent cache, so that a repeated search
+ * does not call the service at all: see DiskCache for the cache.* parameters.
+ */
 public class PhmmerXJoinResultsFactory implements XJoinResultsFactory<String> {
   
   private static final Logger LOG = LoggerFactory.getLogger(PhmmerXJoinResultsFactory.class);
 
   // initialisation parameters
   public static final String INIT_DATABASE = "database";
-  public static final String INIT_DEBUG_FILE = "debug.file";
+  public static final String INIT_DEBUG_FILE = RecordedResponses.INIT_DEBUG_FILE;
   public static final String PHMMER_URL = "url";
+  public static final String INIT_MAX_CONCURRENT_JOBS = "max.concurrent.jobs";
+
+  public static final int DEFAULT_MAX_CONCURRENT_JOBS = 4;
 
   // request parameters
   public static final String PHMMER_SEQUENCE = "sequence";
@@ -42,28 +56,21 @@ public class PhmmerXJoinResultsFactory implements XJoinResultsFactory<String> {
   
   private String database;
 
+  private RecordedResponses recorded;
+
+  private int maxConcurrentJobs;
+
+  private DiskCache cache;
+
   @Override
   @SuppressWarnings("rawtypes")
   public void init(NamedList args) {
     LOG.info("initialising PhmmerXJoinResultsFactory");
-    String debugFile = (String) args.get(INIT_DEBUG_FILE);
-    if (debugFile != null) {
-//      try {
-//        byte[] result = Files.readAllBytes(Paths.get(debugFile));
-//        client = mock(PhmmerClient.class);
-//        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(result))) {
-//          JsonObject json = reader.readObject();
-//          if (json == null) {
-//            throw new RuntimeException("Can not initialise from " + INIT_DEBUG_FILE);
-//          }
-//          when(client.getResults(any(String.class), any(String.class))).thenReturn(json);
-//        }
-//      } catch (IOException e) {
-//        throw new RuntimeException(e);
-//      }
-        throw new UnsupportedOperationException("debug file not supported");
-    } 
-    else {
+    recorded = RecordedResponses.fromInitArgs(args);
+    if (recorded != null) {
+      LOG.info("PHMMER responses are in " + recorded.getMode() + " mode, latency " + recorded.getLatency());
+    }
+    if (recorded == null || ! recorded.isReplay()) {
       String url = (String) args.get(PHMMER_URL);
       if (url == null || url.isEmpty()) {
           throw new RuntimeException("external url parameter is required");
@@ -77,16 +84,69 @@ public class PhmmerXJoinResultsFactory implements XJoinResultsFactory<String> {
         throw new RuntimeException("external database parameter is required");        
     }
     LOG.info("PHMMER database is " + database);
+
+    Object maxJobs = args.get(INIT_MAX_CONCURRENT_JOBS);
+    maxConcurrentJobs = maxJobs != null ? Integer.parseInt(maxJobs.toString()) : DEFAULT_MAX_CONCURRENT_JOBS;
+    LOG.info("PHMMER max concurrent jobs is " + maxConcurrentJobs);
+
+    cache = DiskCache.fromInitArgs(args);
+    if (cache != null) {
+      LOG.info("caching PHMMER results for release " + cache.getRelease());
+    }
   }
 
   @Override
   public XJoinResults<String> getResults(SolrParams params) throws IOException {
-    String sequence = params.get(PHMMER_SEQUENCE);
-    if (sequence == null || sequence.length() == 0) {
+    String[] sequences = params.getParams(PHMMER_SEQUENCE);
+    if (sequences == null || sequences.length == 0) {
       throw new RuntimeException("Missing or empty sequence");
     }
+    List<Callable<PhmmerResults>> jobs = new ArrayList<>(sequences.length);
+    for (String sequence : sequences) {
+      if (sequence.length() == 0) {
+        throw new RuntimeException("Missing or empty sequence");
+      }
+      jobs.add(() -> search(sequence));
+    }
+
+    List<PhmmerResults> results = ExternalJobs.runAll(jobs, maxConcurrentJobs);
+    return new Results(results.size() == 1 ? results.get(0) : PhmmerResults.merge(results));
+  }
+
+  // search for one sequence, using the cache if possible
+  private PhmmerResults search(String sequence) throws IOException {
+    Map<String, String> key = new HashMap<>();
+    key.put(INIT_DATABASE, database);
+    key.put(PHMMER_SEQUENCE, sequence);
+    if (cache == null) {
+      return runJob(key, sequence);
+    }
+    Map<String, Object> cacheParams = new HashMap<>(key);
+    cacheParams.put("significance", Alignment.SIGNIFICANCE_THRESHOLD);
+    String cacheKey = cache.key(cacheParams);
+    byte[] cached = cache.get(cacheKey);
+    if (cached != null) {
+      return PhmmerResults.fromBytes(cached);
+    }
+    PhmmerResults results = runJob(key, sequence);
+    cache.put(cacheKey, results.toBytes());
+    return results;
+  }
+
+  private PhmmerResults runJob(Map<String, String> key, String sequence) throws IOException {
+    if (recorded != null) {
+      byte[] response;
+      if (recorded.isReplay()) {
+        response = recorded.replay(key);
+      } else {
+        response = client.getRawResults(database, sequence);
+        recorded.record(key, response);
+      }
+      return PhmmerResultsReader.read(new ByteArrayInputStream(response));
+    }
+
     PhmmerJob job = new PhmmerJob(client, database, sequence);
-    return new Results(job.runJob());
+    return job.runJob();
   }
   
   public class Results implements XJoinResults<String> {
@@ -0,0 +1,131 @@
+package org.apache.solr.search.xjoin.cache;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDiskCache {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String key(DiskCache cache, int n) {
+    return cache.key(Collections.singletonMap("n", n));
+  }
+
+  private static byte[] value(int n, int length) {
+    byte[] value = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      value[i] = (byte)(n + i);
+    }
+    return value;
+  }
+
+  @Test
+  public void persistent() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("cache");
+    DiskCache cache = DiskCache.open(file, 1024 * 1024, "r1");
+    assertSame(cache, DiskCache.open(file, 1024 * 1024, "r1"));
+    for (int n = 0; n < 10; ++n) {
+      cache.put(key(cache, n), value(n, 100));
+    }
+    cache.close();
+
+    cache = DiskCache.open(file, 1024 * 1024, "r1");
+    try {
+      assertEquals(10, cache.size());
+      for (int n = 0; n < 10; ++n) {
+        assertArrayEquals(value(n, 100), cache.get(key(cache, n)));
+      }
+      assertNull(cache.get(key(cache, 10)));
+    } finally {
+      cache.close();
+    }
+
+    // a different release gives different keys
+    cache = DiskCache.open(file, 1024 * 1024, "r2");
+    try {
+      assertNull(cache.get(key(cache, 0)));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void incompleteRecord() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("cache");
+    DiskCache cache = DiskCache.open(file, 1024 * 1024, "");
+    cache.put(key(cache, 1), value(1, 100));
+    cache.put(key(cache, 2), value(2, 100));
+    cache.close();
+
+    // chop off the end of the last record
+    long size = Files.size(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 10);
+    }
+
+    cache = DiskCache.open(file, 1024 * 1024, "");
+    try {
+      assertEquals(1, cache.size());
+      assertArrayEquals(value(1, 100), cache.get(key(cache, 1)));
+      assertNull(cache.get(key(cache, 2)));
+      cache.put(key(cache, 2), value(2, 100));
+      assertArrayEquals(value(2, 100), cache.get(key(cache, 2)));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void eviction() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("cache");
+    DiskCache cache = DiskCache.open(file, 10000, "");
+    try {
+      for (int n = 0; n < 100; ++n) {
+        cache.put(key(cache, n), value(n, 900));
+        // keep the first entry in use
+        assertArrayEquals(value(0, 900), cache.get(key(cache, 0)));
+        assertTrue(Files.size(file) <= 10000);
+      }
+      assertNotEquals(100, cache.size());
+      assertArrayEquals(value(0, 900), cache.get(key(cache, 0)));
+      assertArrayEquals(value(99, 900), cache.get(key(cache, 99)));
+      assertNull(cache.get(key(cache, 50)));
+    } finally {
+      cache.close();
+    }
+  }
+
+}
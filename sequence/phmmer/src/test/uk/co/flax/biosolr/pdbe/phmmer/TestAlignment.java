@@ -0,0 +1,55 @@
+package uk.co.flax.biosolr.pdbe.phmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+
+import org.junit.Test;
+
+public class TestAlignment {
+
+  // parse a hit with the given domains
+  private Alignment parse(String domains) {
+    String hit = "{\"acc\":\"1abc_A\",\"species\":\"Homo sapiens\",\"desc\":\"TEST\",\"score\":\"10.5\",\"evalue\":\"0.01\","
+        + "\"domains\":[" + domains + "]}";
+    JsonParser parser = Json.createParser(new StringReader(hit));
+    parser.next();
+    return new Alignment(parser);
+  }
+
+  @Test
+  public void testFirstSignificantDomain() {
+    Alignment a = parse(
+        "{\"ievalue\":\"5.0\",\"cevalue\":\"2.0\",\"alimodel\":\"xxx\",\"alihmmfrom\":1,\"alihmmto\":3,\"bitscore\":1.5},"
+      + "{\"ievalue\":\"0.001\",\"cevalue\":\"0.0001\",\"alimodel\":null,\"alihmmfrom\":10,\"alihmmto\":20,\"bitscore\":30.5},"
+      + "{\"ievalue\":\"0.0001\",\"cevalue\":\"0.00001\",\"alimodel\":\"zzz\",\"alihmmfrom\":100,\"alihmmto\":200,\"bitscore\":50.5}");
+    assertEquals(0.001, a.getEValueInd(), 1e-6);
+    assertEquals(0.0001, a.getEValueCond(), 1e-7);
+    assertEquals(10, a.getQuerySequenceStart());
+    assertEquals(20, a.getQuerySequenceEnd());
+    assertEquals(30.5, a.getBitScore(), 0.01);
+    // nothing is kept from the insignificant domain
+    assertNull(a.getQuerySequence());
+  }
+
+  @Test
+  public void testNoSignificantDomain() {
+    Alignment a = parse("{\"ievalue\":\"5.0\",\"cevalue\":\"2.0\",\"alimodel\":\"xxx\",\"alihmmfrom\":1,\"alihmmto\":3}");
+    assertEquals(0.01, a.getEValue(), 1e-6);
+    assertNull(a.getQuerySequence());
+    assertEquals(0, a.getQuerySequenceStart());
+    assertTrue(a.getEValueInd() >= Alignment.SIGNIFICANCE_THRESHOLD);
+
+    // the hit is dropped from the results
+    PhmmerResults results = new PhmmerResults(1);
+    results.addAlignment(a);
+    assertEquals(0, results.getNumChains());
+    assertTrue(results.getPdbIds().isEmpty());
+  }
+
+}
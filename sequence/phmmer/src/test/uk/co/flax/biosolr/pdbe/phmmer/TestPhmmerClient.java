@@ -0,0 +1,139 @@
+package uk.co.flax.biosolr.pdbe.phmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs PhmmerClient against a local stub of the PHMMER REST API which serves
+ * a recorded response.
+ */
+public class TestPhmmerClient {
+
+	private static final String RESULT_PATH = "result";
+
+	private HttpServer server;
+
+	private byte[] result;
+
+	private AtomicInteger requests = new AtomicInteger();
+
+	// remote ports seen by the server, one per client connection
+	private Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+	@Before
+	public void startServer() throws Exception {
+		result = Files.readAllBytes(Paths.get(TestPhmmerClient.class.getResource(RESULT_PATH).toURI()));
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/search/phmmer", exchange -> {
+			consume(exchange);
+			String location = "http://localhost:" + server.getAddress().getPort() + "/results/1";
+			exchange.getResponseHeaders().add("Location", location);
+			exchange.sendResponseHeaders(303, -1);
+			exchange.close();
+		});
+		server.createContext("/results/1", exchange -> {
+			consume(exchange);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, result.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(result);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private void consume(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		connections.add(exchange.getRemoteAddress().getPort());
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() >= 0);
+		}
+	}
+
+	private PhmmerClient client() {
+		return new PhmmerClient("http://localhost:" + server.getAddress().getPort() + "/search/phmmer");
+	}
+
+	@Test
+	public void streamingMatchesTree() throws IOException {
+		PhmmerResults results = client().search("pdb", "SEQ");
+		JsonObject json = client().getResults("pdb", "SEQ");
+		JsonArray hits = json.getJsonObject("results").getJsonArray("hits");
+		PhmmerResults tree = new PhmmerResults(hits.size());
+		for (int i = 0; i < hits.size(); ++i) {
+			tree.addAlignment(new Alignment(hits.getJsonObject(i)));
+		}
+
+		assertEquals(116, results.getNumChains());
+		assertEquals(tree.getNumChains(), results.getNumChains());
+		assertEquals(tree.getPdbIds(), results.getPdbIds());
+		for (Map.Entry<String, Map<String, Alignment>> e : tree.getAlignments().entrySet()) {
+			for (Alignment expected : e.getValue().values()) {
+				String chain = expected.getTarget().split("_")[1];
+				Alignment actual = results.getAlignments().get(e.getKey()).get(chain);
+				assertNotNull(actual);
+				assertEquals(expected.getTarget(), actual.getTarget());
+				assertEquals(expected.getSpecies(), actual.getSpecies());
+				assertEquals(expected.getDescription(), actual.getDescription());
+				assertEquals(expected.getScore(), actual.getScore(), 0.0);
+				assertEquals(expected.getEValue(), actual.getEValue(), 0.0);
+				assertEquals(expected.getEValueInd(), actual.getEValueInd(), 0.0);
+				assertEquals(expected.getEValueCond(), actual.getEValueCond(), 0.0);
+				assertEquals(expected.getBitScore(), actual.getBitScore(), 0.0);
+				assertEquals(expected.getQuerySequence(), actual.getQuerySequence());
+				assertEquals(expected.getQuerySequenceStart(), actual.getQuerySequenceStart());
+				assertEquals(expected.getQuerySequenceEnd(), actual.getQuerySequenceEnd());
+				assertEquals(expected.getMatch(), actual.getMatch());
+				assertEquals(expected.getTargetSequence(), actual.getTargetSequence());
+				assertEquals(expected.getTargetSequenceStart(), actual.getTargetSequenceStart());
+				assertEquals(expected.getTargetSequenceEnd(), actual.getTargetSequenceEnd());
+				assertEquals(expected.getTargetEnvelopeStart(), actual.getTargetEnvelopeStart());
+				assertEquals(expected.getTargetEnvelopeEnd(), actual.getTargetEnvelopeEnd());
+				assertEquals(expected.getPosteriorProbability(), actual.getPosteriorProbability());
+				assertEquals(expected.getBias(), actual.getBias(), 0.0);
+				assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.0);
+				assertEquals(expected.getIdentityPercent(), actual.getIdentityPercent(), 0.0);
+				assertEquals(expected.getIdentityCount(), actual.getIdentityCount());
+				assertEquals(expected.getSimilarityPercent(), actual.getSimilarityPercent(), 0.0);
+				assertEquals(expected.getSimilarityCount(), actual.getSimilarityCount());
+			}
+		}
+	}
+
+	@Test
+	public void reusesConnections() throws IOException {
+		PhmmerClient client = client();
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(116, client.search("pdb", "SEQ").getNumChains());
+		}
+		assertEquals(10, requests.get());
+		assertEquals(1, connections.size());
+	}
+
+}
@@ -13,9 +13,6 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-import javax.json.Json;
-import javax.json.JsonReader;
-
 import org.junit.Test;
 
 public class TestPhmmerJob {
@@ -27,8 +24,7 @@ public class TestPhmmerJob {
 		byte[] result = Files.readAllBytes(Paths.get(TestPhmmerJob.class.getResource(RESULT_PATH).toURI()));
 
     PhmmerClient client = mock(PhmmerClient.class);
-    JsonReader reader = Json.createReader(new ByteArrayInputStream(result));
-    when(client.getResults(null, null)).thenReturn(reader.readObject());
+    when(client.search(null, null)).thenReturn(PhmmerResultsReader.read(new ByteArrayInputStream(result)));
     
 		PhmmerJob job = new PhmmerJob(client, null, null);
 		PhmmerResults results = job.runJob();
@@ -0,0 +1,174 @@
+package uk.co.flax.biosolr.pdbe.phmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.cache.DiskCache;
+import org.apache.solr.search.xjoin.replay.RecordedResponses;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestPhmmerRecordReplay {
+
+	private static final String RESULT_PATH = "result";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+
+	private Path resultPath;
+
+	private AtomicInteger searches = new AtomicInteger();
+
+	@Before
+	public void startServer() throws Exception {
+		resultPath = Paths.get(TestPhmmerRecordReplay.class.getResource(RESULT_PATH).toURI());
+		final byte[] result = Files.readAllBytes(resultPath);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/search/phmmer", exchange -> {
+			consume(exchange);
+			searches.incrementAndGet();
+			exchange.getResponseHeaders().add("Location", "http://localhost:" + server.getAddress().getPort() + "/results/1");
+			exchange.sendResponseHeaders(303, -1);
+			exchange.close();
+		});
+		server.createContext("/results/1", exchange -> {
+			consume(exchange);
+			exchange.sendResponseHeaders(200, result.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(result);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private void consume(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() >= 0);
+		}
+	}
+
+	private PhmmerXJoinResultsFactory.Results search(PhmmerXJoinResultsFactory factory, String... sequences) throws IOException {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.set(PhmmerXJoinResultsFactory.PHMMER_SEQUENCE, sequences);
+		return (PhmmerXJoinResultsFactory.Results)factory.getResults(params);
+	}
+
+	@Test
+	public void recordThenReplay() throws IOException {
+		File dir = folder.newFolder();
+
+		NamedList<String> args = new NamedList<>();
+		args.add(PhmmerXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(PhmmerXJoinResultsFactory.PHMMER_URL, "http://localhost:" + server.getAddress().getPort() + "/search/phmmer");
+		args.add(RecordedResponses.INIT_REPLAY_DIR, dir.getPath());
+		args.add(RecordedResponses.INIT_REPLAY_MODE, "record");
+		PhmmerXJoinResultsFactory recorder = new PhmmerXJoinResultsFactory();
+		recorder.init(args);
+		assertEquals(116, search(recorder, "SEQ").getNumChains());
+		assertEquals(1, searches.get());
+		assertEquals(2, dir.list().length);
+
+		// replay with no URL, so no server access is possible
+		args = new NamedList<>();
+		args.add(PhmmerXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(RecordedResponses.INIT_REPLAY_DIR, dir.getPath());
+		args.add(RecordedResponses.INIT_REPLAY_LATENCY, "fixed:50");
+		PhmmerXJoinResultsFactory replayer = new PhmmerXJoinResultsFactory();
+		replayer.init(args);
+		long start = System.nanoTime();
+		assertEquals(116, search(replayer, "SEQ").getNumChains());
+		assertTrue(System.nanoTime() - start >= 50000000L);
+		assertEquals(1, searches.get());
+
+		try {
+			search(replayer, "OTHER");
+			throw new AssertionError("expected no recorded response");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void debugFile() throws IOException {
+		NamedList<String> args = new NamedList<>();
+		args.add(PhmmerXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(PhmmerXJoinResultsFactory.INIT_DEBUG_FILE, resultPath.toString());
+		PhmmerXJoinResultsFactory factory = new PhmmerXJoinResultsFactory();
+		factory.init(args);
+		assertEquals(116, search(factory, "ANY").getNumChains());
+		assertEquals(116, search(factory, "OTHER").getNumChains());
+		assertEquals(0, searches.get());
+	}
+
+	@Test
+	public void multipleSequences() throws IOException {
+		NamedList<String> args = new NamedList<>();
+		args.add(PhmmerXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(PhmmerXJoinResultsFactory.PHMMER_URL, "http://localhost:" + server.getAddress().getPort() + "/search/phmmer");
+		args.add(PhmmerXJoinResultsFactory.INIT_MAX_CONCURRENT_JOBS, "2");
+		PhmmerXJoinResultsFactory factory = new PhmmerXJoinResultsFactory();
+		factory.init(args);
+		PhmmerXJoinResultsFactory.Results results = search(factory, "SEQ1", "SEQ2", "SEQ3");
+		assertEquals(3, searches.get());
+		assertEquals(116, results.getNumChains());
+		for (String joinId : results.getJoinIds()) {
+			for (Alignment a : results.getResult(joinId)) {
+				assertEquals(0, a.getQueryIndex());
+			}
+		}
+	}
+
+	@Test
+	public void persistentCache() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("cache");
+		NamedList<String> args = new NamedList<>();
+		args.add(PhmmerXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(PhmmerXJoinResultsFactory.PHMMER_URL, "http://localhost:" + server.getAddress().getPort() + "/search/phmmer");
+		args.add(DiskCache.INIT_CACHE_FILE, file.toString());
+		PhmmerXJoinResultsFactory factory = new PhmmerXJoinResultsFactory();
+		factory.init(args);
+		try {
+			assertEquals(116, search(factory, "SEQ").getNumChains());
+			assertEquals(116, search(factory, "SEQ").getNumChains());
+			assertEquals(1, searches.get());
+
+			// as after a restart
+			DiskCache.open(file, 0, "").close();
+			factory = new PhmmerXJoinResultsFactory();
+			factory.init(args);
+			PhmmerXJoinResultsFactory.Results results = search(factory, "SEQ");
+			assertEquals(1, searches.get());
+			assertEquals(116, results.getNumChains());
+			assertEquals(search(factory, "OTHER").getJoinIds(), results.getJoinIds());
+			assertEquals(2, searches.get());
+		} finally {
+			DiskCache.open(file, 0, "").close();
+		}
+	}
+
+}
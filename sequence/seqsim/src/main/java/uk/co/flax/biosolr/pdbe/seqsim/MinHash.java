@@ -0,0 +1,193 @@
+package uk.co.flax.biosolr.pdbe.seqsim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * MinHash signatures of protein sequences, computed from their overlapping
+ * k-residue shingles, and split into bands for locality sensitive hashing.
+ *
+ * The fraction of equal values in two signatures estimates the Jaccard
+ * similarity J of the sequences' shingle sets, and two sequences share at
+ * least one band (so are found as candidates) with probability
+ * 1 - (1 - J^rows)^bands.
+ */
+public class MinHash {
+
+  public static final int DEFAULT_SHINGLE_SIZE = 3;
+  public static final int DEFAULT_BANDS = 32;
+  public static final int DEFAULT_ROWS = 4;
+  public static final long DEFAULT_SEED = 0x5eedL;
+
+  // residues are packed 5 bits each into a long
+  private static final int MAX_SHINGLE_SIZE = 12;
+
+  private final int shingleSize;
+  private final int bands;
+  private final int rows;
+
+  // one per hash function
+  private final long[] seeds;
+
+  public MinHash() {
+    this(DEFAULT_SHINGLE_SIZE, DEFAULT_BANDS, DEFAULT_ROWS, DEFAULT_SEED);
+  }
+
+  public MinHash(int shingleSize, int bands, int rows, long seed) {
+    if (shingleSize < 1 || shingleSize > MAX_SHINGLE_SIZE) {
+      throw new IllegalArgumentException("shingle size must be from 1 to " + MAX_SHINGLE_SIZE);
+    }
+    if (bands < 1 || bands > 256 || rows < 1) {
+      throw new IllegalArgumentException("bands must be from 1 to 256, and rows at least 1");
+    }
+    this.shingleSize = shingleSize;
+    this.bands = bands;
+    this.rows = rows;
+    seeds = new long[bands * rows];
+    long s = seed;
+    for (int i = 0; i < seeds.length; ++i) {
+      s = mix(s + 0x9e3779b97f4a7c15L);
+      seeds[i] = s;
+    }
+  }
+
+  public int getShingleSize() {
+    return shingleSize;
+  }
+
+  public int getBands() {
+    return bands;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public int getNumHashes() {
+    return seeds.length;
+  }
+
+  /**
+   * Get the signature of a sequence. Only letters are used, ignoring case, so
+   * whitespace and numbering in pasted sequences do not matter. A sequence
+   * shorter than the shingle size is a single shingle.
+   */
+  public int[] signature(CharSequence sequence) {
+    StringBuilder residues = new StringBuilder(sequence.length());
+    for (int i = 0; i < sequence.length(); ++i) {
+      char c = Character.toUpperCase(sequence.charAt(i));
+      if (c >= 'A' && c <= 'Z') {
+        residues.append(c);
+      }
+    }
+    if (residues.length() == 0) {
+      throw new IllegalArgumentException("Sequence has no residues");
+    }
+
+    int[] signature = new int[seeds.length];
+    Arrays.fill(signature, Integer.MAX_VALUE);
+    int k = Math.min(shingleSize, residues.length());
+    long mask = (1L << (5 * k)) - 1;
+    long shingle = 0;
+    for (int i = 0; i < residues.length(); ++i) {
+      shingle = ((shingle << 5) | (residues.charAt(i) - 'A' + 1)) & mask;
+      if (i < k - 1) {
+        continue;
+      }
+      for (int j = 0; j < seeds.length; ++j) {
+        int h = (int)(mix(shingle ^ seeds[j]) >>> 32);
+        if (h < signature[j]) {
+          signature[j] = h;
+        }
+      }
+    }
+    return signature;
+  }
+
+  /**
+   * Get the LSH terms for a signature: for each band, the band number
+   * followed by the band's signature values.
+   */
+  public BytesRef[] bandTerms(int[] signature) {
+    BytesRef[] terms = new BytesRef[bands];
+    for (int b = 0; b < bands; ++b) {
+      byte[] bytes = new byte[1 + 4 * rows];
+      bytes[0] = (byte)b;
+      for (int r = 0; r < rows; ++r) {
+        putInt(bytes, 1 + 4 * r, signature[b * rows + r]);
+      }
+      terms[b] = new BytesRef(bytes);
+    }
+    return terms;
+  }
+
+  /**
+   * Create the Lucene fields for a sequence: a term per band, and the whole
+   * signature as binary doc values (needed for scoring).
+   */
+  public List<IndexableField> createFields(String name, CharSequence sequence) {
+    int[] signature = signature(sequence);
+    List<IndexableField> fields = new ArrayList<>(bands + 1);
+    for (BytesRef term : bandTerms(signature)) {
+      fields.add(new StringField(name, term, Field.Store.NO));
+    }
+    fields.add(new BinaryDocValuesField(name, toBytes(signature)));
+    return fields;
+  }
+
+  public static BytesRef toBytes(int[] signature) {
+    byte[] bytes = new byte[4 * signature.length];
+    for (int i = 0; i < signature.length; ++i) {
+      putInt(bytes, 4 * i, signature[i]);
+    }
+    return new BytesRef(bytes);
+  }
+
+  /**
+   * Estimate the Jaccard similarity of a signature and an encoded signature,
+   * as the fraction of equal values. Signatures of different lengths (from
+   * differently configured MinHashes) have similarity 0.
+   */
+  public static float similarity(int[] signature, BytesRef encoded) {
+    if (encoded.length != 4 * signature.length) {
+      return 0;
+    }
+    int equal = 0;
+    for (int i = 0, offset = encoded.offset; i < signature.length; ++i, offset += 4) {
+      if (getInt(encoded.bytes, offset) == signature[i]) {
+        ++equal;
+      }
+    }
+    return (float)equal / signature.length;
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+  }
+
+  // MurmurHash3 finaliser
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb3f97b8f1f53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,119 @@
+package uk.co.flax.biosolr.pdbe.seqsim;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.uninverting.UninvertingReader.Type;
+
+/**
+ * Field type indexing a MinHash signature of a protein sequence as LSH band
+ * terms, with the full signature in doc values, for fast similar sequence
+ * search with the seqsim query parser. Fields must have docValues="true", and
+ * may be stored (which stores the sequence itself).
+ *
+ * The optional attributes shingleSize, bands, rows and seed configure the
+ * MinHash (see MinHash for the defaults). Changing them needs a re-index.
+ *
+ * A query on the field, e.g. sequence_minhash:MKTAYIAKQR..., is a
+ * SequenceSimilarityQuery with no minimum similarity.
+ */
+public class MinHashField extends FieldType {
+
+  // field type attributes
+  public static final String SHINGLE_SIZE = "shingleSize";
+  public static final String BANDS = "bands";
+  public static final String ROWS = "rows";
+  public static final String SEED = "seed";
+
+  private MinHash minHash;
+
+  @Override
+  protected void init(IndexSchema schema, Map<String, String> args) {
+    int shingleSize = getInt(args, SHINGLE_SIZE, MinHash.DEFAULT_SHINGLE_SIZE);
+    int bands = getInt(args, BANDS, MinHash.DEFAULT_BANDS);
+    int rows = getInt(args, ROWS, MinHash.DEFAULT_ROWS);
+    String seed = args.remove(SEED);
+    minHash = new MinHash(shingleSize, bands, rows, seed != null ? Long.parseLong(seed) : MinHash.DEFAULT_SEED);
+
+    // the doc values are a signature, not the field value
+    properties &= ~USE_DOCVALUES_AS_STORED;
+    super.init(schema, args);
+  }
+
+  private static int getInt(Map<String, String> args, String name, int defaultValue) {
+    String value = args.remove(name);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  public MinHash getMinHash() {
+    return minHash;
+  }
+
+  /**
+   * Create a query for sequences similar to the given one.
+   */
+  public Query createQuery(SchemaField field, String sequence, float minSimilarity) {
+    try {
+      return new SequenceSimilarityQuery(field.getName(), minHash, sequence, minSimilarity);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage() + ": " + sequence);
+    }
+  }
+
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value) {
+    String sequence = value.toString();
+    List<IndexableField> fields;
+    try {
+      fields = minHash.createFields(field.getName(), sequence);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage() + " in field " + field.getName());
+    }
+    if (field.stored()) {
+      fields.add(new StoredField(field.getName(), sequence));
+    }
+    return fields;
+  }
+
+  @Override
+  public void checkSchemaField(SchemaField field) {
+    if (! field.hasDocValues()) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "MinHashField " + field.getName() + " must have docValues");
+    }
+    if (field.multiValued()) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "MinHashField " + field.getName() + " can not be multiValued");
+    }
+  }
+
+  @Override
+  public Query getFieldQuery(QParser parser, SchemaField field, String externalVal) {
+    return createQuery(field, externalVal, 0);
+  }
+
+  @Override
+  public Type getUninversionType(SchemaField sf) {
+    return null;
+  }
+
+  @Override
+  public SortField getSortField(SchemaField field, boolean top) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Can not sort on MinHashField " + field.getName());
+  }
+
+  @Override
+  public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+    writer.writeStr(name, f.stringValue(), true);
+  }
+
+}
@@ -0,0 +1,59 @@
+package uk.co.flax.biosolr.pdbe.seqsim;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Query parser for sequences similar to a given one, in a MinHashField:
+ * 
+ *   {!seqsim f=sequence_minhash min=0.3}MKTAYIAKQRQISFVKSHFSRQ...
+ *
+ * Documents are scored by the estimated Jaccard similarity of their
+ * sequence's shingles to those of the query sequence. Those with a similarity
+ * below min (default 0) do not match.
+ */
+public class SequenceSimilarityQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "seqsim";
+
+  // local parameters
+  public static final String FIELD = "f";
+  public static final String MIN_SIMILARITY = "min";
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args) {
+    // nothing to do
+  }
+
+  @Override
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+
+      @Override
+      public Query parse() throws SyntaxError {
+        String fieldName = localParams.get(FIELD);
+        if (fieldName == null) {
+          throw new SyntaxError("Missing " + FIELD + " parameter for " + NAME + " query");
+        }
+        SchemaField field = req.getSchema().getFieldOrNull(fieldName);
+        if (field == null || ! (field.getType() instanceof MinHashField)) {
+          throw new SyntaxError("Field " + fieldName + " is not a MinHashField");
+        }
+        if (qstr == null || qstr.trim().isEmpty()) {
+          throw new SyntaxError("Missing sequence for " + NAME + " query");
+        }
+        float minSimilarity = localParams.getFloat(MIN_SIMILARITY, 0);
+        return ((MinHashField)field.getType()).createQuery(field, qstr, minSimilarity);
+      }
+
+    };
+  }
+
+}
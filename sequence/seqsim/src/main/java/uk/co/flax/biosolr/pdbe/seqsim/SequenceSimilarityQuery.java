@@ -0,0 +1,212 @@
+package uk.co.flax.biosolr.pdbe.seqsim;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+
+/**
+ * Finds documents with a sequence similar to the query sequence, using a field
+ * indexed by MinHash.createFields(). Candidates are the documents sharing at
+ * least one LSH band term with the query, and each is scored by the estimated
+ * Jaccard similarity of its signature (from doc values) to the query's.
+ * Candidates scoring below minSimilarity are not matched.
+ */
+public class SequenceSimilarityQuery extends Query {
+
+  private final String field;
+
+  private final int[] signature;
+
+  private final BytesRef[] bandTerms;
+
+  private final float minSimilarity;
+
+  public SequenceSimilarityQuery(String field, MinHash minHash, CharSequence sequence, float minSimilarity) {
+    this.field = field;
+    this.signature = minHash.signature(sequence);
+    this.bandTerms = minHash.bandTerms(signature);
+    this.minSimilarity = minSimilarity;
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public float getMinSimilarity() {
+    return minSimilarity;
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+    return new SimilarityWeight(boost);
+  }
+
+  private class SimilarityWeight extends Weight {
+
+    private final float boost;
+
+    private SimilarityWeight(float boost) {
+      super(SequenceSimilarityQuery.this);
+      this.boost = boost;
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+      for (BytesRef term : bandTerms) {
+        terms.add(new Term(field, term));
+      }
+    }
+
+    @Override
+    public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+      SimilarityScorer scorer = scorer(context);
+      if (scorer != null && scorer.approximation.advance(doc) == doc && scorer.twoPhase.matches()) {
+        return Explanation.match(scorer.score(), "estimated Jaccard similarity to query sequence, with boost " + boost);
+      }
+      return Explanation.noMatch("no similar sequence in " + field);
+    }
+
+    @Override
+    public SimilarityScorer scorer(LeafReaderContext context) throws IOException {
+      LeafReader reader = context.reader();
+      Terms terms = reader.terms(field);
+      if (terms == null) {
+        return null;
+      }
+
+      // candidates: the union of the band terms' postings
+      TermsEnum termsEnum = terms.iterator();
+      DocIdSetBuilder candidates = new DocIdSetBuilder(reader.maxDoc(), terms);
+      boolean found = false;
+      PostingsEnum postings = null;
+      for (BytesRef term : bandTerms) {
+        if (termsEnum.seekExact(term)) {
+          postings = termsEnum.postings(postings, PostingsEnum.NONE);
+          candidates.add(postings);
+          found = true;
+        }
+      }
+      if (! found) {
+        return null;
+      }
+      DocIdSetIterator approximation = candidates.build().iterator();
+      if (approximation == null) {
+        return null;
+      }
+      return new SimilarityScorer(this, approximation, DocValues.getBinary(reader, field), boost);
+    }
+
+    @Override
+    public boolean isCacheable(LeafReaderContext context) {
+      return DocValues.isCacheable(context, field);
+    }
+
+  }
+
+  private class SimilarityScorer extends Scorer {
+
+    private final DocIdSetIterator approximation;
+
+    private final TwoPhaseIterator twoPhase;
+
+    private final float boost;
+
+    // similarity of the current document, set by matches()
+    private float similarity;
+
+    private SimilarityScorer(Weight weight, DocIdSetIterator approximation, BinaryDocValues signatures, float boost) {
+      super(weight);
+      this.approximation = approximation;
+      this.boost = boost;
+      twoPhase = new TwoPhaseIterator(approximation) {
+
+        @Override
+        public boolean matches() throws IOException {
+          if (! signatures.advanceExact(approximation.docID())) {
+            return false;
+          }
+          similarity = MinHash.similarity(signature, signatures.binaryValue());
+          return similarity >= minSimilarity;
+        }
+
+        @Override
+        public float matchCost() {
+          return signature.length;
+        }
+
+      };
+    }
+
+    @Override
+    public int docID() {
+      return approximation.docID();
+    }
+
+    @Override
+    public float score() {
+      return boost * similarity;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+      return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+    }
+
+    @Override
+    public TwoPhaseIterator twoPhaseIterator() {
+      return twoPhase;
+    }
+
+  }
+
+  @Override
+  public String toString(String defaultField) {
+    StringBuilder sb = new StringBuilder("seqsim(");
+    if (! field.equals(defaultField)) {
+      sb.append(field).append(':');
+    }
+    sb.append(signature.length).append(" hashes");
+    if (minSimilarity > 0) {
+      sb.append(", min=").append(minSimilarity);
+    }
+    return sb.append(')').toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (! sameClassAs(other)) {
+      return false;
+    }
+    SequenceSimilarityQuery that = (SequenceSimilarityQuery)other;
+    return field.equals(that.field) && Arrays.equals(signature, that.signature)
+        && Arrays.equals(bandTerms, that.bandTerms) && minSimilarity == that.minSimilarity;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = classHash();
+    h = 31 * h + field.hashCode();
+    h = 31 * h + Arrays.hashCode(signature);
+    h = 31 * h + Arrays.hashCode(bandTerms);
+    return 31 * h + Float.floatToIntBits(minSimilarity);
+  }
+
+}
@@ -0,0 +1,107 @@
+package uk.co.flax.biosolr.pdbe.seqsim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class TestSequenceSimilarity {
+
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+	private static final String FIELD = "sequence_minhash";
+
+	private final Random random = new Random(42);
+
+	private String randomSequence(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sb.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+		}
+		return sb.toString();
+	}
+
+	// substitute residues at the given fraction of positions
+	private String mutate(String sequence, double fraction) {
+		char[] chars = sequence.toCharArray();
+		for (int i = 0; i < chars.length; ++i) {
+			if (random.nextDouble() < fraction) {
+				chars[i] = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+			}
+		}
+		return new String(chars);
+	}
+
+	private float similarity(MinHash minHash, String a, String b) {
+		return MinHash.similarity(minHash.signature(a), MinHash.toBytes(minHash.signature(b)));
+	}
+
+	@Test
+	public void estimate() {
+		MinHash minHash = new MinHash();
+		String sequence = randomSequence(300);
+		assertEquals(1.0f, similarity(minHash, sequence, sequence), 0);
+		assertEquals(1.0f, similarity(minHash, sequence, " " + sequence.toLowerCase() + "\n"), 0);
+		assertTrue(similarity(minHash, sequence, mutate(sequence, 0.02)) > 0.7f);
+		assertTrue(similarity(minHash, sequence, randomSequence(300)) < 0.1f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noResidues() {
+		new MinHash().signature("123 ");
+	}
+
+	@Test
+	public void search() throws IOException {
+		MinHash minHash = new MinHash();
+		String query = randomSequence(250);
+
+		try (Directory dir = new RAMDirectory()) {
+			try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+				for (int i = 0; i < 200; ++i) {
+					// the first three documents are close variants of the query
+					String sequence = i < 3 ? mutate(query, 0.01 * (i + 1)) : randomSequence(250);
+					Document doc = new Document();
+					doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+					for (IndexableField f : minHash.createFields(FIELD, sequence)) {
+						doc.add(f);
+					}
+					writer.addDocument(doc);
+				}
+			}
+
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				IndexSearcher searcher = new IndexSearcher(reader);
+				TopDocs top = searcher.search(new SequenceSimilarityQuery(FIELD, minHash, query, 0), 10);
+				assertTrue(top.totalHits >= 3);
+				for (int i = 0; i < 3; ++i) {
+					ScoreDoc sd = top.scoreDocs[i];
+					assertEquals(Integer.toString(i), searcher.doc(sd.doc).get("id"));
+				}
+
+				TopDocs min = searcher.search(new SequenceSimilarityQuery(FIELD, minHash, query, 0.5f), 10);
+				assertEquals(3, min.totalHits);
+				for (ScoreDoc sd : min.scoreDocs) {
+					assertTrue(sd.score >= 0.5f && sd.score <= 1.0f);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent external jobs (for example, one per query sequence)
+ * concurrently for an XJoinResultsFactory. At most maxConcurrent jobs from
+ * one call run at once, and all calls in the JVM share a single pool whose
+ * size is given by the system property xjoin.external.threads (default 8),
+ * which bounds the number of external jobs in flight on the node.
+ */
+public class ExternalJobs {
+
+  public static final String THREADS_PROPERTY = "xjoin.external.threads";
+
+  public static final int DEFAULT_THREADS = 8;
+
+  // created on first use
+  private static class Pool {
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+        Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS), r -> {
+          Thread thread = new Thread(r, "xjoin-external-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+
+  }
+
+  /**
+   * Run the given jobs, returning their results in the same order. A single
+   * job (or a limit of one) runs in the calling thread. If any job fails, the
+   * others are cancelled and its exception is thrown.
+   */
+  public static <T> List<T> runAll(List<? extends Callable<T>> jobs, int maxConcurrent) throws IOException {
+    List<T> results = new ArrayList<>(Collections.nCopies(jobs.size(), (T)null));
+    if (jobs.size() <= 1 || maxConcurrent <= 1) {
+      for (int i = 0; i < jobs.size(); ++i) {
+        try {
+          results.set(i, jobs.get(i).call());
+        } catch (Exception e) {
+          throw rethrow(e);
+        }
+      }
+      return results;
+    }
+
+    CompletionService<T> completion = new ExecutorCompletionService<>(Pool.EXECUTOR);
+    Map<Future<T>, Integer> futures = new HashMap<>();
+    int next = 0;
+    int running = 0;
+    try {
+      while (next < jobs.size() || running > 0) {
+        for (; running < maxConcurrent && next < jobs.size(); ++next, ++running) {
+          futures.put(completion.submit(jobs.get(next)), next);
+        }
+        Future<T> future = completion.take();
+        --running;
+        results.set(futures.get(future), future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted waiting for external jobs", e);
+    } catch (ExecutionException e) {
+      throw rethrow(e.getCause());
+    } finally {
+      for (Future<T> future : futures.keySet()) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  private static IOException rethrow(Throwable t) {
+    if (t instanceof IOException) {
+      return (IOException)t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    }
+    if (t instanceof Error) {
+      throw (Error)t;
+    }
+    throw new RuntimeException(t);
+  }
+
+}
@@ -123,7 +123,7 @@ public class XJoinSearchComponent extends SearchComponent {
     for (Iterator<String> it = params.getParameterNamesIterator(); it.hasNext(); ) {
       String name = it.next();
       if (name.startsWith(prefix)) {
-        externalParams.set(name.substring(prefix.length()), params.get(name));
+        externalParams.set(name.substring(prefix.length()), params.getParams(name));
       }
     }
     results = factory.getResults(externalParams);
@@ -0,0 +1,364 @@
+package org.apache.solr.search.xjoin.cache;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.replay.RecordedResponses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of external results, keyed by a hash of the request
+ * parameters that produced them, for services whose results only change when
+ * their database does (so the database release should be part of the key).
+ *
+ * Entries are appended to a single file, and indexed in memory when the file
+ * is opened. Once the file grows beyond its maximum size, the least recently
+ * used entries are dropped and the rest are rewritten to a new file. Each
+ * record is checksummed, so a record left incomplete by a crash is discarded
+ * on the next open.
+ *
+ * A file is opened at most once per JVM, by open(), and the instance is shared
+ * by every factory (in every core) that names it. A lock file stops other
+ * processes using it at the same time.
+ */
+public class DiskCache implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskCache.class);
+
+  // initialisation parameters
+  public static final String INIT_CACHE_FILE = "cache.file";
+  public static final String INIT_CACHE_SIZE = "cache.size";
+  public static final String INIT_CACHE_RELEASE = "cache.release";
+
+  // key for the release tag in request parameters
+  public static final String RELEASE = "release";
+
+  public static final long DEFAULT_SIZE_MB = 256;
+
+  private static final int MAGIC = 0x58434331;
+
+  // key length (SHA-1 as hex) and record overheads
+  private static final int KEY_LENGTH = 40;
+  private static final int HEADER_LENGTH = 4 + KEY_LENGTH + 4;
+  private static final int TRAILER_LENGTH = 4;
+
+  // caches opened so far, by absolute path
+  private static final Map<Path, DiskCache> open = new HashMap<>();
+
+  private Path path;
+
+  private long maxSize;
+
+  private FileChannel channel;
+
+  private FileChannel lockChannel;
+
+  private FileLock lock;
+
+  // key -> record, in order of access
+  private LinkedHashMap<String, Record> index = new LinkedHashMap<>(16, 0.75f, true);
+
+  // total size of the file, and of the records in the index
+  private long fileSize;
+  private long liveSize;
+
+  // the release tag that factories should add to their keys
+  private String release;
+
+  private static class Record {
+
+    private long offset;
+
+    private int length;
+
+    private Record(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private long size() {
+      return HEADER_LENGTH + length + TRAILER_LENGTH;
+    }
+
+  }
+
+  private DiskCache(Path path, long maxSize, String release) throws IOException {
+    this.path = path;
+    this.maxSize = maxSize;
+    this.release = release;
+    Files.createDirectories(path.getParent());
+    lockChannel = FileChannel.open(Paths.get(path + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    lock = lockChannel.tryLock();
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Cache file is in use by another process: " + path);
+    }
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    load();
+    LOG.info("opened cache " + path + " with " + index.size() + " entries (" + fileSize + " bytes)");
+  }
+
+  /**
+   * Open the cache in the given file, or return the instance already open for
+   * it (whose maximum size and release are then those it was opened with).
+   */
+  public static DiskCache open(Path file, long maxSize, String release) throws IOException {
+    Path path = file.toAbsolutePath().normalize();
+    synchronized (open) {
+      DiskCache cache = open.get(path);
+      if (cache == null) {
+        cache = new DiskCache(path, maxSize, release);
+        open.put(path, cache);
+      } else if (! cache.release.equals(release)) {
+        LOG.warn("cache " + path + " is already open for release " + cache.release + ", not " + release);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Open a cache from a factory's initialisation parameters, or return null if
+   * cache.file is not given. The size is in megabytes.
+   */
+  @SuppressWarnings("rawtypes")
+  public static DiskCache fromInitArgs(NamedList args) {
+    String file = (String)args.get(INIT_CACHE_FILE);
+    if (file == null) {
+      return null;
+    }
+    Object size = args.get(INIT_CACHE_SIZE);
+    long maxSize = (size != null ? Long.parseLong(size.toString()) : DEFAULT_SIZE_MB) * 1024 * 1024;
+    String release = (String)args.get(INIT_CACHE_RELEASE);
+    if (release == null) {
+      LOG.warn(INIT_CACHE_RELEASE + " not given: the cache must be cleared by hand when the database changes");
+      release = "";
+    }
+    try {
+      return open(Paths.get(file), maxSize, release);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public String getRelease() {
+    return release;
+  }
+
+  /**
+   * Get the key for a set of request parameters, including the release.
+   */
+  public String key(Map<String, ?> request) {
+    Map<String, Object> params = new HashMap<>(request);
+    params.put(RELEASE, release);
+    return RecordedResponses.key(params);
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Get the cached value for a key (as returned by key()), or null.
+   */
+  public synchronized byte[] get(String key) throws IOException {
+    Record record = index.get(key);
+    if (record == null) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(record.length);
+    readFully(buffer, record.offset + HEADER_LENGTH);
+    return buffer.array();
+  }
+
+  /**
+   * Add a value to the cache, unless it already has one for the key.
+   */
+  public synchronized void put(String key, byte[] value) throws IOException {
+    if (key.length() != KEY_LENGTH) {
+      throw new IllegalArgumentException("Bad cache key: " + key);
+    }
+    if (index.containsKey(key)) {
+      return;
+    }
+    Record record = new Record(fileSize, value.length);
+    if (record.size() > maxSize) {
+      return;
+    }
+    write(channel, record.offset, key, value);
+    channel.force(false);
+    index.put(key, record);
+    fileSize += record.size();
+    liveSize += record.size();
+    if (fileSize > maxSize) {
+      compact();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (open) {
+      open.remove(path);
+    }
+    synchronized (this) {
+      channel.close();
+      lock.release();
+      lockChannel.close();
+    }
+  }
+
+  // index the records in the file, truncating any incomplete one at the end
+  private void load() throws IOException {
+    long size = channel.size();
+    long offset = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    while (offset < size) {
+      header.clear();
+      if (size - offset < HEADER_LENGTH || ! readFully(header, offset) || header.getInt(0) != MAGIC) {
+        break;
+      }
+      int length = header.getInt(4 + KEY_LENGTH);
+      if (length < 0 || size - offset < HEADER_LENGTH + (long)length + TRAILER_LENGTH) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length + TRAILER_LENGTH);
+      readFully(body, offset + HEADER_LENGTH);
+      CRC32 crc = new CRC32();
+      crc.update(header.array(), 4, KEY_LENGTH);
+      crc.update(body.array(), 0, length);
+      if ((int)crc.getValue() != body.getInt(length)) {
+        break;
+      }
+      String key = new String(header.array(), 4, KEY_LENGTH, StandardCharsets.US_ASCII);
+      Record record = new Record(offset, length);
+      Record old = index.put(key, record);
+      if (old != null) {
+        liveSize -= old.size();
+      }
+      liveSize += record.size();
+      offset += record.size();
+    }
+    if (offset < size) {
+      LOG.warn("discarding " + (size - offset) + " bytes of incomplete records at the end of " + path);
+      channel.truncate(offset);
+    }
+    fileSize = offset;
+  }
+
+  // drop least recently used entries, and rewrite the rest to a new file
+  private void compact() throws IOException {
+    long target = maxSize * 3 / 4;
+    for (Iterator<Record> it = index.values().iterator(); it.hasNext() && liveSize > target; ) {
+      liveSize -= it.next().size();
+      it.remove();
+    }
+
+    Path tmp = Files.createTempFile(path.getParent(), ".", ".tmp");
+    try {
+      LinkedHashMap<String, Record> compacted = new LinkedHashMap<>(16, 0.75f, true);
+      long offset = 0;
+      try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        for (Map.Entry<String, Record> e : index.entrySet()) {
+          Record record = e.getValue();
+          ByteBuffer value = ByteBuffer.allocate(record.length);
+          readFully(value, record.offset + HEADER_LENGTH);
+          write(out, offset, e.getKey(), value.array());
+          compacted.put(e.getKey(), new Record(offset, record.length));
+          offset += record.size();
+        }
+        out.force(true);
+      }
+      channel.close();
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      index = compacted;
+      fileSize = liveSize = offset;
+      LOG.info("compacted cache " + path + " to " + index.size() + " entries (" + fileSize + " bytes)");
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Write a string, which may be null, for reading by readString(). Unlike
+   * DataOutput.writeUTF(), there is no length limit.
+   */
+  public static void writeString(DataOutput out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void write(FileChannel out, long offset, String key, byte[] value) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(keyBytes);
+    crc.update(value);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + value.length + TRAILER_LENGTH);
+    buffer.putInt(MAGIC).put(keyBytes).putInt(value.length).put(value).putInt((int)crc.getValue());
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      offset += out.write(buffer, offset);
+    }
+  }
+
+  private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, offset);
+      if (n < 0) {
+        return false;
+      }
+      offset += n;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,161 @@
+package org.apache.solr.search.xjoin.replay;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.servlet.SolrRequestParsers;
+
+/**
+ * Runs queries concurrently against Solr and reports throughput and latency
+ * percentiles. Intended to be run against an embedded Solr whose XJoin
+ * components replay recorded responses (see RecordedResponses), so that the
+ * Solr side of an XJoin can be load tested without calling the external service.
+ */
+public class LoadGenerator {
+
+  private SolrClient client;
+
+  private String collection;
+
+  public LoadGenerator(SolrClient client, String collection) {
+    this.client = client;
+    this.collection = collection;
+  }
+
+  /**
+   * Send the given number of requests from the given number of threads, cycling
+   * through the given queries.
+   */
+  public Report run(final List<SolrParams> queries, int threads, final int requests) throws InterruptedException {
+    final long[] latencies = new long[requests];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; ++t) {
+      executor.execute(() -> {
+        int n;
+        while ((n = next.getAndIncrement()) < requests) {
+          long t0 = System.nanoTime();
+          try {
+            client.query(collection, queries.get(n % queries.size()));
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+          latencies[n] = System.nanoTime() - t0;
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    return new Report(latencies, errors.get(), System.nanoTime() - start);
+  }
+
+  public static class Report {
+
+    private long[] latencies;
+
+    private int errors;
+
+    private long elapsed;
+
+    private Report(long[] latencies, int errors, long elapsed) {
+      this.latencies = latencies.clone();
+      Arrays.sort(this.latencies);
+      this.errors = errors;
+      this.elapsed = elapsed;
+    }
+
+    public int getRequests() {
+      return latencies.length;
+    }
+
+    public int getErrors() {
+      return errors;
+    }
+
+    /**
+     * Requests per second.
+     */
+    public double getThroughput() {
+      return latencies.length / (elapsed / 1e9);
+    }
+
+    /**
+     * Latency percentile (0-100) in milliseconds.
+     */
+    public double getPercentile(double p) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      int i = (int)Math.ceil(p / 100.0 * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("requests=%d errors=%d throughput=%.1f/s latency(ms) p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+          getRequests(), errors, getThroughput(), getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(100));
+    }
+
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 5) {
+      System.err.println("Arguments: [solr home] [core] [threads] [requests] [queries file]");
+      System.err.println("Each line of the queries file holds the parameters for one query, e.g. q=*:*&xjoin_fasta=true");
+      return;
+    }
+    List<SolrParams> queries = new ArrayList<>();
+    for (String line : Files.readAllLines(Paths.get(args[4]), StandardCharsets.UTF_8)) {
+      if (line.trim().length() > 0 && ! line.startsWith("#")) {
+        queries.add(SolrRequestParsers.parseQueryString(line.trim()));
+      }
+    }
+    if (queries.size() == 0) {
+      System.err.println("No queries in " + args[4]);
+      return;
+    }
+
+    try (EmbeddedSolrServer solr = new EmbeddedSolrServer(Paths.get(args[0]), args[1])) {
+      LoadGenerator generator = new LoadGenerator(solr, args[1]);
+      int threads = Integer.parseInt(args[2]);
+      int requests = Integer.parseInt(args[3]);
+
+      // warm up before measuring
+      generator.run(queries, threads, Math.min(requests, queries.size() * threads));
+      System.out.println(generator.run(queries, threads, requests));
+    }
+  }
+
+}
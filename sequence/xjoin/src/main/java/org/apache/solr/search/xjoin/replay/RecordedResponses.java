@@ -0,0 +1,201 @@
+package org.apache.solr.search.xjoin.replay;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Raw responses from an external service, recorded to disk keyed by the request
+ * parameters that produced them, so that an XJoin results factory can be run
+ * without the service (e.g. for load testing).
+ *
+ * In record mode, each response is written to a directory as
+ * &lt;key&gt;.response, alongside a readable &lt;key&gt;.params. In replay mode,
+ * responses are read back from the directory after sleeping for a simulated
+ * response time. A single debug file may be given instead of a directory, in
+ * which case it is replayed for every request.
+ */
+public class RecordedResponses {
+
+  // initialisation parameters
+  public static final String INIT_DEBUG_FILE = "debug.file";
+  public static final String INIT_REPLAY_DIR = "replay.dir";
+  public static final String INIT_REPLAY_MODE = "replay.mode";
+  public static final String INIT_REPLAY_LATENCY = "replay.latency";
+
+  public static enum Mode {
+    RECORD, REPLAY
+  }
+
+  private Mode mode;
+
+  // directory of recorded responses, or null
+  private Path dir;
+
+  // single debug file, or null
+  private Path file;
+
+  private SimulatedLatency latency;
+
+  public RecordedResponses(Path dir, Mode mode, SimulatedLatency latency) throws IOException {
+    this.dir = dir;
+    this.mode = mode;
+    this.latency = latency;
+    if (mode == Mode.RECORD) {
+      Files.createDirectories(dir);
+    } else if (! Files.isDirectory(dir)) {
+      throw new IOException("Replay directory does not exist: " + dir);
+    }
+  }
+
+  private RecordedResponses(Path file, SimulatedLatency latency) throws IOException {
+    if (! Files.isReadable(file)) {
+      throw new IOException("Can not read debug file: " + file);
+    }
+    this.file = file;
+    this.mode = Mode.REPLAY;
+    this.latency = latency;
+  }
+
+  /**
+   * Replay a single file for every request.
+   */
+  public static RecordedResponses forFile(Path file, SimulatedLatency latency) throws IOException {
+    return new RecordedResponses(file, latency);
+  }
+
+  /**
+   * Create from a factory's initialisation parameters, or return null if
+   * neither debug.file nor replay.dir is given.
+   */
+  @SuppressWarnings("rawtypes")
+  public static RecordedResponses fromInitArgs(NamedList args) {
+    String debugFile = (String)args.get(INIT_DEBUG_FILE);
+    String replayDir = (String)args.get(INIT_REPLAY_DIR);
+    SimulatedLatency latency = SimulatedLatency.parse((String)args.get(INIT_REPLAY_LATENCY));
+    try {
+      if (debugFile != null) {
+        return forFile(Paths.get(debugFile), latency);
+      }
+      if (replayDir != null) {
+        String mode = (String)args.get(INIT_REPLAY_MODE);
+        return new RecordedResponses(Paths.get(replayDir), mode != null ? Mode.valueOf(mode.toUpperCase()) : Mode.REPLAY, latency);
+      }
+      return null;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException("Bad " + INIT_REPLAY_MODE + ": " + args.get(INIT_REPLAY_MODE));
+    }
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public boolean isReplay() {
+    return mode == Mode.REPLAY;
+  }
+
+  public SimulatedLatency getLatency() {
+    return latency;
+  }
+
+  /**
+   * Get the recorded response for the given request parameters, after waiting
+   * for a simulated response time.
+   */
+  public byte[] replay(Map<String, ?> request) throws IOException {
+    try {
+      latency.sleep();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while replaying response");
+    }
+    Path path = file != null ? file : dir.resolve(key(request) + ".response");
+    if (! Files.exists(path)) {
+      throw new IOException("No recorded response for " + describe(request));
+    }
+    return Files.readAllBytes(path);
+  }
+
+  /**
+   * Save the response for the given request parameters.
+   */
+  public void record(Map<String, ?> request, byte[] response) throws IOException {
+    if (mode != Mode.RECORD) {
+      throw new RuntimeException("Not in record mode");
+    }
+    String key = key(request);
+    write(dir.resolve(key + ".params"), describe(request).getBytes(StandardCharsets.UTF_8));
+    write(dir.resolve(key + ".response"), response);
+  }
+
+  // write via a temporary file so that concurrent readers never see partial data
+  private void write(Path path, byte[] data) throws IOException {
+    Path tmp = Files.createTempFile(dir, ".", ".tmp");
+    try {
+      Files.write(tmp, data);
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Get the key for a set of request parameters, independent of their order.
+   */
+  public static String key(Map<String, ?> request) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(describe(request).getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : hash) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String describe(Map<String, ?> request) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, ?> e : new TreeMap<>(request).entrySet()) {
+      Object value = e.getValue();
+      sb.append(e.getKey()).append('=');
+      sb.append(value instanceof Object[] ? Arrays.toString((Object[])value) : String.valueOf(value));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+}
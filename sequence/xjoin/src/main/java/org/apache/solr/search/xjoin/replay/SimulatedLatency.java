@@ -0,0 +1,143 @@
+package org.apache.solr.search.xjoin.replay;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of simulated response times, in milliseconds. Specified as
+ * one of:
+ * <ul>
+ * <li>none</li>
+ * <li>fixed:&lt;ms&gt;</li>
+ * <li>uniform:&lt;min ms&gt;,&lt;max ms&gt;</li>
+ * <li>exponential:&lt;mean ms&gt;</li>
+ * <li>lognormal:&lt;median ms&gt;,&lt;sigma&gt;</li>
+ * </ul>
+ */
+public abstract class SimulatedLatency {
+
+  public static final SimulatedLatency NONE = new SimulatedLatency("none") {
+    @Override
+    public long sample() {
+      return 0;
+    }
+  };
+
+  private String spec;
+
+  private SimulatedLatency(String spec) {
+    this.spec = spec;
+  }
+
+  public static SimulatedLatency parse(String spec) {
+    if (spec == null || spec.equals("none")) {
+      return NONE;
+    }
+    String[] bits = spec.split(":", 2);
+    double[] args = bits.length > 1 ? parseArgs(spec, bits[1]) : new double[0];
+    switch (bits[0]) {
+    case "fixed":
+      checkArgs(spec, args, 1);
+      final long ms = (long)args[0];
+      return new SimulatedLatency(spec) {
+        @Override
+        public long sample() {
+          return ms;
+        }
+      };
+    case "uniform":
+      checkArgs(spec, args, 2);
+      final long min = (long)args[0];
+      final long max = (long)args[1];
+      if (max < min) {
+        throw new RuntimeException("Bad latency specification: " + spec);
+      }
+      return new SimulatedLatency(spec) {
+        @Override
+        public long sample() {
+          return min + ThreadLocalRandom.current().nextLong(max - min + 1);
+        }
+      };
+    case "exponential":
+      checkArgs(spec, args, 1);
+      final double mean = args[0];
+      return new SimulatedLatency(spec) {
+        @Override
+        public long sample() {
+          return (long)(-mean * Math.log(1.0 - ThreadLocalRandom.current().nextDouble()));
+        }
+      };
+    case "lognormal":
+      checkArgs(spec, args, 2);
+      final double mu = Math.log(args[0]);
+      final double sigma = args[1];
+      return new SimulatedLatency(spec) {
+        @Override
+        public long sample() {
+          return (long)Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+        }
+      };
+    default:
+      throw new RuntimeException("Bad latency specification: " + spec);
+    }
+  }
+
+  private static double[] parseArgs(String spec, String args) {
+    String[] bits = args.split(",");
+    double[] values = new double[bits.length];
+    try {
+      for (int i = 0; i < bits.length; ++i) {
+        values[i] = Double.parseDouble(bits[i].trim());
+        if (values[i] < 0) {
+          throw new RuntimeException("Bad latency specification: " + spec);
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Bad latency specification: " + spec, e);
+    }
+    return values;
+  }
+
+  private static void checkArgs(String spec, double[] args, int n) {
+    if (args.length != n) {
+      throw new RuntimeException("Bad latency specification: " + spec);
+    }
+  }
+
+  /**
+   * Get a response time in milliseconds.
+   */
+  public abstract long sample();
+
+  /**
+   * Sleep for a sampled response time.
+   */
+  public void sleep() throws InterruptedException {
+    long ms = sample();
+    if (ms > 0) {
+      Thread.sleep(ms);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+}